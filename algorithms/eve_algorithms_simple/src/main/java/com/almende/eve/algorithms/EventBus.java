@@ -5,6 +5,7 @@
 package com.almende.eve.algorithms;
 
 import java.io.IOException;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -194,12 +195,15 @@ public class EventBus {
 				}
 				final JSONRequest request = new JSONRequest(
 						"event.receiveEvents", params);
+				final List<URI> addresses = new ArrayList<URI>(
+						neighborArray.length);
 				for (Edge neighbor : neighborArray) {
-					try {
-						caller.call(neighbor.getAddress(), request);
-					} catch (IOException e) {
-						LOG.log(Level.WARNING, "EventBus got IO error", e);
-					}
+					addresses.add(neighbor.getAddress());
+				}
+				try {
+					caller.multicast(addresses, request);
+				} catch (IOException e) {
+					LOG.log(Level.WARNING, "EventBus got IO error", e);
 				}
 			}
 		});
@@ -29,6 +29,7 @@ import com.almende.eve.protocol.jsonrpc.formats.Params;
 import com.almende.eve.scheduling.Scheduler;
 import com.almende.util.TypeUtil;
 import com.almende.util.callback.AsyncCallback;
+import com.almende.util.callback.FutureCallback;
 import com.almende.util.callback.SyncCallback;
 import com.almende.util.jackson.JOM;
 import com.almende.util.uuid.UUID;
@@ -236,6 +237,85 @@ public class Agent extends AgentCore implements AgentInterface {
 		}
 	}
 
+	/**
+	 * Send the same notification to multiple agents, without expecting a
+	 * response. The message is serialized once for all receivers.
+	 *
+	 * @param urls
+	 *            the addresses of the other agents
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected void multicast(final List<URI> urls, final String method,
+			final ObjectNode params) throws IOException {
+		caller.multicast(urls, new JSONRequest(method, params));
+	}
+
+	/**
+	 * Send an asynchronous request to multiple agents, completing according
+	 * to the given policy. The callback is called as soon as the policy is
+	 * satisfied (e.g. at the first result, or when a majority has responded),
+	 * calls that are still outstanding at that moment are cancelled. If too
+	 * many calls fail to satisfy the policy, the callback's onFailure is called.
+	 *
+	 * @param <T>
+	 *            the generic type of the result, controlled by the TypeUtil
+	 *            injector.
+	 * @param urls
+	 *            the addresses of the other agents
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @param policy
+	 *            the completion policy and concurrency limit
+	 * @param type
+	 *            the expected result type, in the form of a TypeUtil injector.
+	 * @param callback
+	 *            the callback's onSuccess is called with an unmodifiable map,
+	 *            mapping the remote address to its result, containing only
+	 *            the results received before completion.
+	 */
+	protected <T> void callMulti(final List<URI> urls, final String method,
+			final ObjectNode params, final CallMultiPolicy policy,
+			final TypeUtil<T> type, final AsyncCallback<Map<URI, T>> callback) {
+		new ScatterGather<T>(this, urls, method, params, policy, type,
+				callback).start();
+	}
+
+	/**
+	 * Send an asynchronous request to multiple agents, completing according
+	 * to the given policy. See {@link #callMulti(List, String, ObjectNode,
+	 * CallMultiPolicy, TypeUtil, AsyncCallback)}.
+	 *
+	 * @param <T>
+	 *            the generic type of the result, controlled by the TypeUtil
+	 *            injector.
+	 * @param urls
+	 *            the addresses of the other agents
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @param policy
+	 *            the completion policy and concurrency limit
+	 * @param type
+	 *            the expected result type, in the form of a TypeUtil injector.
+	 * @return A future of an unmodifiable map, mapping the remote address to
+	 *         its result.
+	 */
+	protected <T> FutureCallback<Map<URI, T>> callMultiAsync(
+			final List<URI> urls, final String method, final ObjectNode params,
+			final CallMultiPolicy policy, final TypeUtil<T> type) {
+		final FutureCallback<Map<URI, T>> callback = new FutureCallback<Map<URI, T>>();
+		callMulti(urls, method, params, policy, type, callback);
+		return callback;
+	}
+
 	/**
 	 * Send synchronous request, waiting for a response.
 	 *
@@ -365,6 +445,131 @@ public class Agent extends AgentCore implements AgentInterface {
 		}
 	}
 
+	/**
+	 * Send asynchronous request, returning a future for the result.
+	 *
+	 * @param <T>
+	 *            the generic type of the result, controlled by the TypeUtil
+	 *            injector.
+	 * @param url
+	 *            the address of the other agent
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @param type
+	 *            the expected result type, in the form of a Java Type.
+	 * @return the future result, cast/converted to the given type.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected <T> FutureCallback<T> callAsync(final URI url,
+			final String method, final ObjectNode params, final Type type)
+			throws IOException {
+		return caller.callAsync(url, method, params, type);
+	}
+
+	/**
+	 * Send asynchronous request, returning a future for the result.
+	 *
+	 * @param <T>
+	 *            the generic type of the result, controlled by the TypeUtil
+	 *            injector.
+	 * @param url
+	 *            the address of the other agent
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @param type
+	 *            the expected result type, in the form of a Jackson JavaType.
+	 * @return the future result, cast/converted to the given type.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected <T> FutureCallback<T> callAsync(final URI url,
+			final String method, final ObjectNode params, final JavaType type)
+			throws IOException {
+		return caller.callAsync(url, method, params, type);
+	}
+
+	/**
+	 * Send asynchronous request, returning a future for the result.
+	 *
+	 * @param <T>
+	 *            the generic type of the result, controlled by the TypeUtil
+	 *            injector.
+	 * @param url
+	 *            the address of the other agent
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @param clazz
+	 *            the expected result type, in the form of a class.
+	 * @return the future result, cast/converted to the given type.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected <T> FutureCallback<T> callAsync(final URI url,
+			final String method, final ObjectNode params, final Class<T> clazz)
+			throws IOException {
+		return caller.callAsync(url, method, params, clazz);
+	}
+
+	/**
+	 * Send asynchronous request, returning a future for the result.
+	 *
+	 * @param <T>
+	 *            the generic type of the result, controlled by the TypeUtil
+	 *            injector.
+	 * @param url
+	 *            the address of the other agent
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @param type
+	 *            the expected result type, in the form of a TypeUtil injector.
+	 * @return the future result, cast/converted to the given type.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected <T> FutureCallback<T> callAsync(final URI url,
+			final String method, final ObjectNode params, final TypeUtil<T> type)
+			throws IOException {
+		return caller.callAsync(url, method, params, type);
+	}
+
+	/**
+	 * Send asynchronous request to multiple agents. The returned future
+	 * completes with a map of results, after the final agent returns or
+	 * reaches its timeout. Unlike {@link #callMultiSync(List, String,
+	 * ObjectNode)}, this doesn't block the calling thread.
+	 *
+	 * @param <T>
+	 *            the generic type of the result, controlled by the return
+	 *            value.
+	 * @param urls
+	 *            the addresses of the other agents
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @return A future of an unmodifiable map, mapping the remote address to
+	 *         its results. Failure to get a result will lead to null values
+	 *         for the given peer.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected <T> FutureCallback<Map<URI, T>> callMultiAsync(
+			final List<URI> urls, final String method, final ObjectNode params)
+			throws IOException {
+		final FutureCallback<Map<URI, T>> callback = new FutureCallback<Map<URI, T>>();
+		callMulti(urls, method, params, callback);
+		return callback;
+	}
+
 	/**
 	 * Schedule a local RPC call after the specified delay in milliseconds.
 	 *
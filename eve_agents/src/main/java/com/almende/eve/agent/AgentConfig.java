@@ -4,6 +4,11 @@
  */
 package com.almende.eve.agent;
 
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -287,4 +292,223 @@ public class AgentConfig extends Config {
 	public void setCanHibernate(boolean canHibernate) {
 		this.put("canHibernate", canHibernate);
 	}
+
+	/**
+	 * Checks if this agent allows direct invocation by co-located agents.
+	 *
+	 * @return true, if direct invocation is allowed
+	 * @see DirectInvocation
+	 */
+	public boolean isDirectInvocation() {
+		if (this.has("directInvocation")) {
+			return this.get("directInvocation").asBoolean();
+		}
+		AnnotatedClass ac = null;
+		String className = this.getClassName();
+		if (className != null) {
+			try {
+				ac = AnnotationUtil.get(Class.forName(className));
+			} catch (ClassNotFoundException e) {
+				LOG.log(Level.WARNING, "Couldn't load agent class", e);
+			}
+		}
+		return (ac != null && ac.getAnnotation(DirectInvocation.class) != null);
+	}
+
+	/**
+	 * Sets the directInvocation value.
+	 *
+	 * @param directInvocation
+	 *            the new directInvocation value
+	 */
+	public void setDirectInvocation(boolean directInvocation) {
+		this.put("directInvocation", directInvocation);
+	}
+
+	/**
+	 * Checks if identical concurrent idempotent requests of this agent are
+	 * coalesced into a single request, also with those of other agents in this
+	 * JVM that coalesce requests. (default: false)
+	 *
+	 * @return true, if requests are coalesced
+	 * @see CoalescingCaller
+	 */
+	public boolean isCoalesceRequests() {
+		if (this.has("coalesceRequests")) {
+			return this.get("coalesceRequests").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the coalesceRequests value.
+	 *
+	 * @param coalesceRequests
+	 *            the new coalesceRequests value
+	 */
+	public void setCoalesceRequests(boolean coalesceRequests) {
+		this.put("coalesceRequests", coalesceRequests);
+	}
+
+	/**
+	 * Sets the names of the remote methods that may be coalesced, next to the
+	 * methods annotated with Idempotent in proxy interfaces.
+	 *
+	 * @param methods
+	 *            the new idempotent methods
+	 */
+	public void setIdempotentMethods(final List<String> methods) {
+		final ArrayNode list = JOM.createArrayNode();
+		for (final String method : methods) {
+			list.add(method);
+		}
+		this.set("idempotentMethods", list);
+	}
+
+	/**
+	 * Gets the names of the remote methods that may be coalesced.
+	 *
+	 * @return the idempotent methods
+	 */
+	public Set<String> getIdempotentMethods() {
+		final Set<String> result = new HashSet<String>();
+		if (this.has("idempotentMethods")) {
+			for (final JsonNode method : this.get("idempotentMethods")) {
+				result.add(method.asText());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Sets the known peers of this agent, each with its list of addresses.
+	 * Requests to any of the addresses of a peer are routed to the best one,
+	 * see Router#addPeer.
+	 *
+	 * @param peers
+	 *            the new peers
+	 */
+	public void setPeers(final List<List<URI>> peers) {
+		final ArrayNode list = JOM.createArrayNode();
+		for (final List<URI> peer : peers) {
+			final ArrayNode addresses = list.addArray();
+			for (final URI address : peer) {
+				addresses.add(address.toString());
+			}
+		}
+		this.set("peers", list);
+	}
+
+	/**
+	 * Gets the known peers of this agent, each with its list of addresses.
+	 *
+	 * @return the peers
+	 */
+	public List<List<URI>> getPeers() {
+		final List<List<URI>> result = new ArrayList<List<URI>>();
+		if (this.has("peers")) {
+			for (final JsonNode peer : this.get("peers")) {
+				final List<URI> addresses = new ArrayList<URI>(peer.size());
+				for (final JsonNode address : peer) {
+					addresses.add(URI.create(address.asText()));
+				}
+				result.add(addresses);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the maximum number of requests this agent has in flight to a
+	 * single peer. (default: 0, unlimited)
+	 *
+	 * @return the max in flight
+	 * @see WindowedCaller
+	 */
+	public int getMaxInFlight() {
+		if (this.has("maxInFlight")) {
+			return this.get("maxInFlight").asInt();
+		}
+		return 0;
+	}
+
+	/**
+	 * Sets the maximum number of requests in flight to a single peer, 0 for
+	 * unlimited.
+	 *
+	 * @param maxInFlight
+	 *            the new max in flight
+	 */
+	public void setMaxInFlight(final int maxInFlight) {
+		this.put("maxInFlight", maxInFlight);
+	}
+
+	/**
+	 * Gets the maximum number of requests waiting for a place in the window
+	 * of a single peer, further requests are rejected. (default: 1000)
+	 *
+	 * @return the max queued
+	 */
+	public int getMaxQueued() {
+		if (this.has("maxQueued")) {
+			return this.get("maxQueued").asInt();
+		}
+		return 1000;
+	}
+
+	/**
+	 * Sets the maximum number of waiting requests per peer.
+	 *
+	 * @param maxQueued
+	 *            the new max queued
+	 */
+	public void setMaxQueued(final int maxQueued) {
+		this.put("maxQueued", maxQueued);
+	}
+
+	/**
+	 * Checks if the window of requests in flight adapts to the observed
+	 * latency, with maxInFlight as upper bound. (default: false)
+	 *
+	 * @return true, if the window is adaptive
+	 */
+	public boolean isAdaptiveWindow() {
+		if (this.has("adaptiveWindow")) {
+			return this.get("adaptiveWindow").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the adaptive window.
+	 *
+	 * @param adaptiveWindow
+	 *            the new adaptive window
+	 */
+	public void setAdaptiveWindow(final boolean adaptiveWindow) {
+		this.put("adaptiveWindow", adaptiveWindow);
+	}
+
+	/**
+	 * Gets the target latency in milliseconds of the adaptive window, slower
+	 * responses shrink the window. (default: 1000)
+	 *
+	 * @return the target latency
+	 */
+	public long getTargetLatency() {
+		if (this.has("targetLatency")) {
+			return this.get("targetLatency").asLong();
+		}
+		return 1000;
+	}
+
+	/**
+	 * Sets the target latency of the adaptive window.
+	 *
+	 * @param targetLatency
+	 *            the new target latency, in milliseconds
+	 */
+	public void setTargetLatency(final long targetLatency) {
+		this.put("targetLatency", targetLatency);
+	}
 }
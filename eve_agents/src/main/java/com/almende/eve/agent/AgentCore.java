@@ -8,8 +8,10 @@ import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.net.URI;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +39,7 @@ import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
 import com.almende.eve.protocol.jsonrpc.formats.Caller;
 import com.almende.eve.protocol.jsonrpc.formats.JSONMessage;
 import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.eve.protocol.jsonrpc.formats.JSONResponse;
 import com.almende.eve.scheduling.Scheduler;
 import com.almende.eve.scheduling.SchedulerBuilder;
 import com.almende.eve.scheduling.SimpleSchedulerConfig;
@@ -52,8 +55,11 @@ import com.almende.eve.transport.TransportBuilder;
 import com.almende.eve.transport.TransportConfig;
 import com.almende.util.TypeUtil;
 import com.almende.util.callback.AsyncCallback;
+import com.almende.util.callback.FutureCallback;
+import com.almende.util.callback.StreamCallback;
 import com.almende.util.callback.SyncCallback;
 import com.almende.util.jackson.JOM;
+import com.almende.util.threads.ThreadPool;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -76,12 +82,15 @@ public class AgentCore implements Receiver, Configurable, Authorizor {
 	private Router					transport		= new Router();
 	private Scheduler				scheduler		= null;
 	private ProtocolStack			protocolStack	= new ProtocolStack();
+	private boolean					directInvocation	= false;
+	private Set<String>				idempotent		= Collections.emptySet();
 	private Handler<Receiver>		receiver		= new SimpleHandler<Receiver>(
 															this);
 	private Handler<Object>			handler			= new SimpleHandler<Object>(
 															this);
 
 	protected Caller				caller			= new DefaultCaller();
+	private WindowedCaller			window			= null;
 
 	private Handler<Caller>			sender			= new SimpleHandler<Caller>(
 															caller);
@@ -275,6 +284,24 @@ public class AgentCore implements Receiver, Configurable, Authorizor {
 
 	private void loadConfig() {
 		agentId = config.getId();
+		directInvocation = config.isDirectInvocation()
+				|| getClass().getAnnotation(DirectInvocation.class) != null;
+		idempotent = config.getIdempotentMethods();
+		if (config.getMaxInFlight() > 0 || config.isCoalesceRequests()) {
+			caller = new DefaultCaller();
+			if (config.getMaxInFlight() > 0) {
+				window = new WindowedCaller(caller, config.getMaxInFlight(),
+						config.getMaxQueued(), config.isAdaptiveWindow(),
+						config.getTargetLatency());
+				caller = window;
+			}
+			if (config.isCoalesceRequests()) {
+				// Coalesced requests take a single place in the window.
+				caller = new CoalescingCaller(caller,
+						config.getIdempotentMethods());
+			}
+			setSender(new SimpleHandler<Caller>(caller));
+		}
 		loadInstantiationService(config.getInstantiationService());
 		if (instService != null && config.isCanHibernate()) {
 			setHandler(new HibernationHandler<Object>(this, agentId,
@@ -287,6 +314,9 @@ public class AgentCore implements Receiver, Configurable, Authorizor {
 		loadState(config.getState());
 		loadProtocols(config.getProtocols());
 		loadTransports(config.getTransports());
+		for (final List<URI> peer : config.getPeers()) {
+			transport.addPeer(peer);
+		}
 		loadScheduler(config.getScheduler());
 	}
 
@@ -433,6 +463,46 @@ public class AgentCore implements Receiver, Configurable, Authorizor {
 		return protocolStack;
 	}
 
+	/**
+	 * Wait until a request to the given peer can be sent right away, without
+	 * being queued behind the requests in flight. Always true if the number of
+	 * requests in flight isn't limited (see AgentConfig.setMaxInFlight()).
+	 *
+	 * @param url
+	 *            the url of the peer
+	 * @param timeout
+	 *            the timeout in milliseconds
+	 * @return true, if there is capacity, false if the timeout passed first.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	protected boolean awaitCapacity(final URI url, final long timeout)
+			throws InterruptedException {
+		if (window == null) {
+			return true;
+		}
+		return window.awaitCapacity(url, timeout);
+	}
+
+	/**
+	 * Gets the JSON-RPC protocol of this agent, if that is the only protocol
+	 * in the stack. Only in that case the protocol stack can be bypassed for
+	 * direct invocation.
+	 *
+	 * @return the JSON-RPC protocol, or null
+	 */
+	private JSONRpcProtocol getDirectProtocol() {
+		final ProtocolStack stack = protocolStack;
+		if (stack == null) {
+			return null;
+		}
+		final Protocol protocol = stack.getFirst();
+		if (protocol instanceof JSONRpcProtocol && protocol == stack.getLast()) {
+			return (JSONRpcProtocol) protocol;
+		}
+		return null;
+	}
+
 	private void loadProtocols(final ArrayNode config) {
 		boolean found = false;
 		if (config != null) {
@@ -506,6 +576,26 @@ public class AgentCore implements Receiver, Configurable, Authorizor {
 		scheduler.cancel(taskId);
 	}
 
+	/**
+	 * Cancel an outstanding request of this agent: it isn't sent anymore if a
+	 * caller still holds it back, and a late response is ignored.
+	 *
+	 * @param id
+	 *            the id of the request
+	 */
+	void cancelRequest(final JsonNode id) {
+		if (caller instanceof CallerDecorator) {
+			((CallerDecorator) caller).cancel(id);
+		}
+		final ProtocolStack stack = protocolStack;
+		if (stack != null) {
+			final Protocol protocol = stack.getLast();
+			if (protocol instanceof JSONRpcProtocol) {
+				((JSONRpcProtocol) protocol).cancel(id);
+			}
+		}
+	}
+
 	/**
 	 * Sets the scheduler, updates the agent's configuration in the process.
 	 * <b>Note: this does not update the literal config</b>
@@ -652,14 +742,137 @@ public class AgentCore implements Receiver, Configurable, Authorizor {
 
 	private class DefaultCaller implements Caller {
 
+		private <T> void send(final Meta wrapper,
+				final AsyncCallback<T> callback) throws IOException {
+			if (invokeDirect(wrapper)) {
+				return;
+			}
+			final Object msg = wrapper.getMsg();
+			final AsyncCallback<?> reply = msg instanceof JSONRequest ? ((JSONRequest) msg)
+					.getCallback() : null;
+			if (reply instanceof Router.Reply
+					|| reply instanceof Router.SyncReply) {
+				transport.send(wrapper.getPeer(), msg, wrapper.getTag(), reply);
+			} else {
+				transport.send(wrapper.getPeer(), msg, wrapper.getTag(),
+						callback);
+			}
+		}
+
+		/**
+		 * Let the router track the reply to this request, if it's sent to a
+		 * peer with several known addresses. Idempotent requests, see
+		 * JSONRequest#isIdempotent and the "idempotentMethods" option, may
+		 * then be sent to another address of the peer, if the first doesn't
+		 * reply in time.
+		 *
+		 * @param url
+		 *            the url
+		 * @param message
+		 *            the message
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private void track(final URI url, final Object message) {
+			if (!(message instanceof JSONRequest) || url == null
+					|| "local".equals(url.getScheme())) {
+				return;
+			}
+			final JSONRequest request = (JSONRequest) message;
+			final AsyncCallback<?> callback = request.getCallback();
+			if (callback == null || callback instanceof StreamCallback
+					|| callback instanceof Router.Reply
+					|| callback instanceof Router.SyncReply
+					|| transport.getRoutes().rank(url) == null) {
+				return;
+			}
+			final boolean retry = request.isIdempotent()
+					|| idempotent.contains(request.getMethod());
+			// Synchronous calls are recognized by their callback type, keep
+			// that.
+			if (callback instanceof SyncCallback) {
+				request.setCallback(new Router.SyncReply(
+						(SyncCallback) callback, retry));
+			} else {
+				request.setCallback(new Router.Reply(callback, retry));
+			}
+		}
+
+		/**
+		 * Invoke the request directly on a co-located agent, if that agent
+		 * allows it. Synchronous calls are handled on the calling thread,
+		 * others are handed to the threadpool. Either way, the isolation the
+		 * invoked method asks for is respected.
+		 *
+		 * @param wrapper
+		 *            the outbound message
+		 * @return true, if the message has been handled.
+		 */
+		private boolean invokeDirect(final Meta wrapper) {
+			final Object msg = wrapper.getMsg();
+			final URI peer = wrapper.getPeer();
+			if (wrapper.getTag() != null || !(msg instanceof JSONRequest)
+					|| peer == null || !"local".equals(peer.getScheme())) {
+				return false;
+			}
+			final JSONRpcProtocol own = getDirectProtocol();
+			if (own == null) {
+				return false;
+			}
+			final Receiver receiver = transport.getLocalReceiver(peer);
+			if (!(receiver instanceof AgentCore)
+					|| !((AgentCore) receiver).directInvocation) {
+				return false;
+			}
+			final JSONRpcProtocol target = ((AgentCore) receiver)
+					.getDirectProtocol();
+			if (target == null) {
+				return false;
+			}
+			final JSONRequest original = (JSONRequest) msg;
+			final JSONRequest request = new JSONRequest(original.getId(),
+					original.getMethod(), original.getParams().deepCopy(),
+					null);
+			if (original.getExtra() != null) {
+				request.setExtra(original.getExtra().deepCopy());
+			}
+			// Attachments are read-only for the receiver, no need to copy.
+			request.setAttachments(original.getAttachments());
+			final URI senderUrl = transport.getAddressByScheme("local");
+			final Runnable invocation = new Runnable() {
+				@Override
+				public void run() {
+					final JSONResponse response = target.invoke(request,
+							senderUrl);
+					if (response != null) {
+						final JsonNode result = response.getResult();
+						if (result != null && result.isContainerNode()) {
+							response.setResult(result.deepCopy());
+						}
+						own.invoke(response, peer);
+					}
+				}
+			};
+			if (original.getCallback() instanceof SyncCallback) {
+				target.schedule(request, invocation);
+			} else {
+				ThreadPool.getPool().execute(new Runnable() {
+					@Override
+					public void run() {
+						target.schedule(request, invocation);
+					}
+				});
+			}
+			return true;
+		}
+
 		@Override
 		public void call(final URI url, final Object message)
 				throws IOException {
 
+			track(url, message);
 			final Meta wrapper = protocolStack.outbound(message, url, null);
 			if (wrapper != null) {
-				transport.send(wrapper.getPeer(), wrapper.getMsg(),
-						wrapper.getTag(), null);
+				send(wrapper, null);
 			}
 		}
 
@@ -667,10 +880,10 @@ public class AgentCore implements Receiver, Configurable, Authorizor {
 		public <T> void call(final URI url, final JSONMessage message,
 				final String tag) throws IOException {
 
+			track(url, message);
 			final Meta wrapper = protocolStack.outbound(message, url, tag);
 			if (wrapper != null) {
-				transport.send(wrapper.getPeer(), wrapper.getMsg(),
-						wrapper.getTag(), null);
+				send(wrapper, null);
 			}
 		}
 
@@ -695,10 +908,10 @@ public class AgentCore implements Receiver, Configurable, Authorizor {
 				throws IOException {
 			final JSONRequest message = new JSONRequest(method, params,
 					callback);
+			track(url, message);
 			final Meta wrapper = protocolStack.outbound(message, url, null);
 			if (wrapper != null) {
-				transport.send(wrapper.getPeer(), wrapper.getMsg(),
-						wrapper.getTag(), callback);
+				send(wrapper, callback);
 			}
 		}
 
@@ -745,10 +958,10 @@ public class AgentCore implements Receiver, Configurable, Authorizor {
 			final JSONRequest message = new JSONRequest(method, params,
 					callback);
 
+			track(url, message);
 			final Meta wrapper = protocolStack.outbound(message, url, null);
 			if (wrapper != null) {
-				transport.send(wrapper.getPeer(), wrapper.getMsg(),
-						wrapper.getTag(), callback);
+				send(wrapper, callback);
 			}
 			try {
 				return callback.get();
@@ -757,6 +970,81 @@ public class AgentCore implements Receiver, Configurable, Authorizor {
 			}
 		}
 
+		@Override
+		public <T> FutureCallback<T> callAsync(final URI url,
+				final String method, final ObjectNode params,
+				final Class<T> clazz) throws IOException {
+			return callAsync(url, method, params, TypeUtil.get(clazz));
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T> FutureCallback<T> callAsync(final URI url,
+				final String method, final ObjectNode params,
+				final JavaType type) throws IOException {
+			return (FutureCallback<T>) callAsync(url, method, params,
+					TypeUtil.get(type));
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T> FutureCallback<T> callAsync(final URI url,
+				final String method, final ObjectNode params, final Type type)
+				throws IOException {
+			return (FutureCallback<T>) callAsync(url, method, params,
+					TypeUtil.get(type));
+		}
+
+		@Override
+		public <T> FutureCallback<T> callAsync(final URI url,
+				final String method, final ObjectNode params,
+				final TypeUtil<T> type) throws IOException {
+
+			final FutureCallback<T> callback = new FutureCallback<T>(type);
+			final JSONRequest message = new JSONRequest(method, params,
+					callback);
+
+			track(url, message);
+			final Meta wrapper = protocolStack.outbound(message, url, null);
+			if (wrapper != null) {
+				send(wrapper, callback);
+			}
+			return callback;
+		}
+
+		@Override
+		public void multicast(final List<URI> urls, final JSONRequest message)
+				throws IOException {
+			if (message.getCallback() != null) {
+				throw new IllegalArgumentException(
+						"Only notifications can be multicast.");
+			}
+			if (urls.isEmpty()) {
+				return;
+			}
+			if (getDirectProtocol() == null) {
+				// Other protocols may depend on the peer, run the stack per
+				// receiver.
+				IOException failure = null;
+				for (final URI url : urls) {
+					try {
+						call(url, message);
+					} catch (final IOException e) {
+						failure = e;
+					}
+				}
+				if (failure != null) {
+					throw failure;
+				}
+				return;
+			}
+			final Meta wrapper = protocolStack.outbound(message, null, null);
+			if (wrapper != null) {
+				transport.multicast(urls, wrapper.getMsg().toString(),
+						wrapper.getTag());
+			}
+		}
+
 		@Override
 		public List<URI> getSenderUrls() {
 			return transport.getAddresses();
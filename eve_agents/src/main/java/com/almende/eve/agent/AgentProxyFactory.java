@@ -5,13 +5,17 @@
 package com.almende.eve.agent;
 
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
 import java.net.URI;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 import com.almende.eve.protocol.jsonrpc.annotation.NoReply;
 import com.almende.eve.protocol.jsonrpc.formats.JSONRPCException;
@@ -20,20 +24,30 @@ import com.almende.util.AnnotationUtil;
 import com.almende.util.AnnotationUtil.AnnotatedClass;
 import com.almende.util.AnnotationUtil.AnnotatedMethod;
 import com.almende.util.TypeUtil;
+import com.almende.util.callback.FutureCallback;
 import com.almende.util.callback.SyncCallback;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonNode;
 
 /**
- * A factory for creating AgentProxy objects.
+ * A factory for creating AgentProxy objects. The proxy class of each interface
+ * and the call information of each proxied method are determined once and
+ * cached, so proxy calls don't need to inspect the interface again.
  */
 public final class AgentProxyFactory {
-	private static final TypeUtil<JsonNode>	JSONNODETYPE	= new TypeUtil<JsonNode>() {};
+	private static final TypeUtil<JsonNode>				JSONNODETYPE	= new TypeUtil<JsonNode>() {};
+	private static final int							MAXCACHESIZE	= 1000;
+	private static final Map<Class<?>, Constructor<?>>	CONSTRUCTORS	= new ConcurrentHashMap<Class<?>, Constructor<?>>();
+	private static final Map<Class<?>, Map<Method, ProxyMethod>>	METHODS	= new ConcurrentHashMap<Class<?>, Map<Method, ProxyMethod>>();
 
 	private AgentProxyFactory() {}
 
 	/**
-	 * Gen proxy.
-	 * 
+	 * Gen proxy. Methods in the proxy interface that return a
+	 * {@link Future} (or {@link FutureCallback}) are called asynchronously,
+	 * the returned future will receive the result.
+	 *
 	 * @param <T>
 	 *            the generic type
 	 * @param sender
@@ -47,63 +61,134 @@ public final class AgentProxyFactory {
 	@SuppressWarnings("unchecked")
 	public static <T> T genProxy(final AgentCore sender, final URI receiverUrl,
 			final Class<T> proxyInterface) {
-		// http://docs.oracle.com/javase/1.4.2/docs/guide/reflection/proxy.html
-		final T proxy = (T) Proxy.newProxyInstance(
+		final Map<Method, ProxyMethod> methods = getMethods(proxyInterface);
+		final InvocationHandler handler = new InvocationHandler() {
+
+			@Override
+			public Object invoke(final Object proxy, final Method method,
+					final Object[] args) {
+				ProxyMethod proxyMethod = methods.get(method);
+				if (proxyMethod == null) {
+					proxyMethod = new ProxyMethod(proxyInterface, method);
+					methods.put(method, proxyMethod);
+				}
+				if (proxyMethod.async) {
+					return callAsync(sender, receiverUrl, proxyMethod, method,
+							args);
+				}
+				SyncCallback<JsonNode> callback = null;
+				if (proxyMethod.doSync) {
+					callback = new SyncCallback<JsonNode>(JSONNODETYPE) {};
+				}
+				try {
+					sender.caller.call(receiverUrl, method, args, callback);
+				} catch (final IOException e) {
+					throw new JSONRPCException(CODE.REMOTE_EXCEPTION,
+							e.getLocalizedMessage(), e);
+				}
+				if (callback != null) {
+					try {
+						return TypeUtil.inject(callback.get(),
+								proxyMethod.returnType);
+					} catch (final Exception e) {
+						throw new JSONRPCException(CODE.REMOTE_EXCEPTION,
+								e.getLocalizedMessage(), e);
+					}
+				}
+				return null;
+			}
+		};
+		try {
+			return (T) newProxy(proxyInterface, handler);
+		} catch (final Exception e) {
+			throw new IllegalArgumentException("Couldn't create proxy for "
+					+ proxyInterface.getName(), e);
+		}
+	}
+
+	private static Object newProxy(final Class<?> proxyInterface,
+			final InvocationHandler handler) throws Exception {
+		Constructor<?> constructor = CONSTRUCTORS.get(proxyInterface);
+		if (constructor != null) {
+			return constructor.newInstance(handler);
+		}
+		// The first proxy generates the proxy class, later ones are created
+		// through its constructor.
+		final Object proxy = Proxy.newProxyInstance(
 				proxyInterface.getClassLoader(),
-				new Class[] { proxyInterface }, new InvocationHandler() {
+				new Class[] { proxyInterface }, handler);
+		constructor = proxy.getClass().getConstructor(InvocationHandler.class);
+		// The proxy class of a non-public interface isn't public.
+		constructor.setAccessible(true);
+		if (CONSTRUCTORS.size() >= MAXCACHESIZE) {
+			CONSTRUCTORS.clear();
+		}
+		CONSTRUCTORS.put(proxyInterface, constructor);
+		return proxy;
+	}
 
-					private Map<Method, Boolean>	cache	= new HashMap<Method, Boolean>();
+	private static Map<Method, ProxyMethod> getMethods(
+			final Class<?> proxyInterface) {
+		Map<Method, ProxyMethod> result = METHODS.get(proxyInterface);
+		if (result == null) {
+			result = new ConcurrentHashMap<Method, ProxyMethod>();
+			if (METHODS.size() >= MAXCACHESIZE) {
+				METHODS.clear();
+			}
+			METHODS.put(proxyInterface, result);
+		}
+		return result;
+	}
 
-					@Override
-					public Object invoke(final Object proxy,
-							final Method method, final Object[] args) {
-						boolean doSync = true;
-						if (cache.containsKey(method)) {
-							doSync = cache.get(method);
-						} else {
-							AnnotatedClass clazz = AnnotationUtil
-									.get(proxyInterface);
-							if (clazz != null) {
-								List<AnnotatedMethod> list = clazz
-										.getMethods(method.getName());
-								for (AnnotatedMethod m : list) {
-									if (m.getAnnotation(NoReply.class) != null) {
-										doSync = false;
-									}
-								}
-								if (doSync
-										&& method.getReturnType().equals(
-												void.class)
-										&& clazz.getAnnotation(NoReply.class) != null) {
-									doSync = false;
-								}
-							}
-							cache.put(method, doSync);
-						}
-						SyncCallback<JsonNode> callback = null;
-						if (doSync) {
-							callback = new SyncCallback<JsonNode>(JSONNODETYPE) {};
-						}
-						try {
-							sender.caller.call(receiverUrl, method, args,
-									callback);
-						} catch (final IOException e) {
-							throw new JSONRPCException(CODE.REMOTE_EXCEPTION, e
-									.getLocalizedMessage(), e);
-						}
-						if (callback != null) {
-							try {
-								return TypeUtil.inject(callback.get(),
-										method.getGenericReturnType());
-							} catch (final Exception e) {
-								throw new JSONRPCException(
-										CODE.REMOTE_EXCEPTION, e
-												.getLocalizedMessage(), e);
-							}
-						}
-						return null;
+	private static FutureCallback<Object> callAsync(final AgentCore sender,
+			final URI receiverUrl, final ProxyMethod proxyMethod,
+			final Method method, final Object[] args) {
+		final FutureCallback<Object> future = new FutureCallback<Object>(
+				TypeUtil.<Object> get(proxyMethod.returnType));
+		try {
+			sender.caller.call(receiverUrl, method, args, future);
+		} catch (final IOException e) {
+			throw new JSONRPCException(CODE.REMOTE_EXCEPTION,
+					e.getLocalizedMessage(), e);
+		}
+		return future;
+	}
+
+	/**
+	 * The call information of a proxied method.
+	 */
+	private static final class ProxyMethod {
+		private boolean			doSync	= true;
+		private boolean			async	= false;
+		private final JavaType	returnType;
+
+		private ProxyMethod(final Class<?> proxyInterface, final Method method) {
+			final AnnotatedClass clazz = AnnotationUtil.get(proxyInterface);
+			if (clazz != null) {
+				final List<AnnotatedMethod> list = clazz.getMethods(method
+						.getName());
+				for (AnnotatedMethod m : list) {
+					if (m.getAnnotation(NoReply.class) != null) {
+						doSync = false;
 					}
-				});
-		return proxy;
+				}
+				if (doSync && method.getReturnType().equals(void.class)
+						&& clazz.getAnnotation(NoReply.class) != null) {
+					doSync = false;
+				}
+			}
+			Type type = method.getGenericReturnType();
+			if (doSync && Future.class.isAssignableFrom(method.getReturnType())
+					&& method.getReturnType().isAssignableFrom(
+							FutureCallback.class)) {
+				async = true;
+				type = Object.class;
+				if (method.getGenericReturnType() instanceof ParameterizedType) {
+					type = ((ParameterizedType) method.getGenericReturnType())
+							.getActualTypeArguments()[0];
+				}
+			}
+			returnType = JOM.getTypeFactory().constructType(type);
+		}
 	}
 }
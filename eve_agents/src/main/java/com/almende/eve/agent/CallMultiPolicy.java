@@ -0,0 +1,108 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent;
+
+/**
+ * The Class CallMultiPolicy, determines when a call to multiple agents is
+ * complete and how many of those calls may be outstanding at the same time.
+ * Once the required number of results has been received, the remaining calls
+ * are no longer waited for.
+ */
+public final class CallMultiPolicy {
+	private static final int	ALL			= -1;
+	private static final int	MAJORITY	= -2;
+
+	private final int			required;
+	private final int			maxInFlight;
+
+	private CallMultiPolicy(final int required, final int maxInFlight) {
+		this.required = required;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Wait for all peers to return a result.
+	 *
+	 * @return the call multi policy
+	 */
+	public static CallMultiPolicy all() {
+		return new CallMultiPolicy(ALL, 0);
+	}
+
+	/**
+	 * Complete at the first successful result.
+	 *
+	 * @return the call multi policy
+	 */
+	public static CallMultiPolicy first() {
+		return new CallMultiPolicy(1, 0);
+	}
+
+	/**
+	 * Complete when more than half of the peers returned a result.
+	 *
+	 * @return the call multi policy
+	 */
+	public static CallMultiPolicy majority() {
+		return new CallMultiPolicy(MAJORITY, 0);
+	}
+
+	/**
+	 * Complete when at least the given number of peers returned a result.
+	 *
+	 * @param count
+	 *            the number of results needed
+	 * @return the call multi policy
+	 */
+	public static CallMultiPolicy atLeast(final int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Count can't be negative.");
+		}
+		return new CallMultiPolicy(count, 0);
+	}
+
+	/**
+	 * Limit the number of outstanding calls, the remaining peers are called
+	 * when earlier calls return.
+	 *
+	 * @param max
+	 *            the maximum number of outstanding calls, 0 for unlimited.
+	 * @return a new call multi policy, with the given limit.
+	 */
+	public CallMultiPolicy withMaxInFlight(final int max) {
+		if (max < 0) {
+			throw new IllegalArgumentException(
+					"MaxInFlight can't be negative.");
+		}
+		return new CallMultiPolicy(required, max);
+	}
+
+	/**
+	 * Gets the number of results required for the given number of peers.
+	 *
+	 * @param total
+	 *            the total number of peers
+	 * @return the number of required results
+	 */
+	public int getRequired(final int total) {
+		switch (required) {
+			case ALL:
+				return total;
+			case MAJORITY:
+				return total == 0 ? 0 : total / 2 + 1;
+			default:
+				return required;
+		}
+	}
+
+	/**
+	 * Gets the maximum number of outstanding calls.
+	 *
+	 * @return the max in flight, 0 if unlimited.
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.util.List;
+
+import com.almende.eve.protocol.jsonrpc.formats.Caller;
+import com.almende.eve.protocol.jsonrpc.formats.JSONMessage;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.util.TypeUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.callback.FutureCallback;
+import com.almende.util.callback.SyncCallback;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class CallerDecorator, base class of Callers that intercept the outbound
+ * requests of another Caller. All requests are funneled through
+ * {@link #send(URI, JSONRequest, String)}, everything else is forwarded to the
+ * decorated caller as is.
+ */
+public abstract class CallerDecorator implements Caller {
+	/** The decorated caller. */
+	protected final Caller	caller;
+
+	/**
+	 * Instantiates a new caller decorator.
+	 *
+	 * @param caller
+	 *            the caller to decorate
+	 */
+	public CallerDecorator(final Caller caller) {
+		this.caller = caller;
+	}
+
+	/**
+	 * Send the request, normally through the decorated caller.
+	 *
+	 * @param url
+	 *            the url
+	 * @param request
+	 *            the request
+	 * @param tag
+	 *            the tag
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected abstract void send(final URI url, final JSONRequest request,
+			final String tag) throws IOException;
+
+	/**
+	 * Cancel the request with the given id, if this caller still holds it
+	 * back. By default this is passed on to the decorated caller.
+	 *
+	 * @param id
+	 *            the id of the request
+	 */
+	public void cancel(final JsonNode id) {
+		if (caller instanceof CallerDecorator) {
+			((CallerDecorator) caller).cancel(id);
+		}
+	}
+
+	@Override
+	public List<URI> getSenderUrls() {
+		return caller.getSenderUrls();
+	}
+
+	@Override
+	public URI getSenderUrlByScheme(final String scheme) {
+		return caller.getSenderUrlByScheme(scheme);
+	}
+
+	@Override
+	public void call(final URI url, final Object message) throws IOException {
+		if (message instanceof JSONRequest) {
+			send(url, (JSONRequest) message, null);
+		} else {
+			caller.call(url, message);
+		}
+	}
+
+	@Override
+	public <T> void call(final URI url, final String method,
+			final ObjectNode params, final AsyncCallback<T> callback)
+			throws IOException {
+		send(url, new JSONRequest(method, params, callback), null);
+	}
+
+	@Override
+	public <T> void call(final URI url, final Method method,
+			final Object[] params, final AsyncCallback<T> callback)
+			throws IOException {
+		send(url, new JSONRequest(method, params, callback), null);
+	}
+
+	@Override
+	public void call(final URI url, final String method,
+			final ObjectNode params) throws IOException {
+		caller.call(url, method, params);
+	}
+
+	@Override
+	public void call(final URI url, final Method method, final Object[] params)
+			throws IOException {
+		caller.call(url, method, params);
+	}
+
+	@Override
+	public void call(final URI url, final JSONMessage request)
+			throws IOException {
+		call(url, request, null);
+	}
+
+	@Override
+	public <T> void call(final URI url, final JSONMessage request,
+			final String tag) throws IOException {
+		if (request instanceof JSONRequest) {
+			send(url, (JSONRequest) request, tag);
+		} else {
+			caller.call(url, request, tag);
+		}
+	}
+
+	@Override
+	public <T> T callSync(final URI url, final String method,
+			final ObjectNode params, final Class<T> clazz) throws IOException {
+		return callSync(url, method, params, TypeUtil.get(clazz));
+	}
+
+	@Override
+	public <T> T callSync(final URI url, final String method,
+			final ObjectNode params, final TypeUtil<T> type)
+			throws IOException {
+		final SyncCallback<T> callback = new SyncCallback<T>(type) {};
+		send(url, new JSONRequest(method, params, callback), null);
+		try {
+			return callback.get();
+		} catch (final Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T callSync(final URI url, final String method,
+			final ObjectNode params, final JavaType type) throws IOException {
+		return (T) callSync(url, method, params, TypeUtil.get(type));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T callSync(final URI url, final String method,
+			final ObjectNode params, final Type type) throws IOException {
+		return (T) callSync(url, method, params, TypeUtil.get(type));
+	}
+
+	@Override
+	public void multicast(final List<URI> urls, final JSONRequest message)
+			throws IOException {
+		caller.multicast(urls, message);
+	}
+
+	@Override
+	public <T> FutureCallback<T> callAsync(final URI url, final String method,
+			final ObjectNode params, final Class<T> clazz) throws IOException {
+		return callAsync(url, method, params, TypeUtil.get(clazz));
+	}
+
+	@Override
+	public <T> FutureCallback<T> callAsync(final URI url, final String method,
+			final ObjectNode params, final TypeUtil<T> type)
+			throws IOException {
+		final FutureCallback<T> callback = new FutureCallback<T>(type);
+		send(url, new JSONRequest(method, params, callback), null);
+		return callback;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> FutureCallback<T> callAsync(final URI url, final String method,
+			final ObjectNode params, final JavaType type) throws IOException {
+		return (FutureCallback<T>) callAsync(url, method, params,
+				TypeUtil.get(type));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> FutureCallback<T> callAsync(final URI url, final String method,
+			final ObjectNode params, final Type type) throws IOException {
+		return (FutureCallback<T>) callAsync(url, method, params,
+				TypeUtil.get(type));
+	}
+}
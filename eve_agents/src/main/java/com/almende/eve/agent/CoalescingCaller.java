@@ -0,0 +1,276 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.almende.eve.protocol.jsonrpc.annotation.Idempotent;
+import com.almende.eve.protocol.jsonrpc.formats.Caller;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRPCException;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.util.TypeUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.callback.StreamCallback;
+import com.almende.util.callback.SyncCallback;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The Class CoalescingCaller, a Caller decorator that coalesces identical
+ * concurrent requests. If an idempotent request (same target, method and
+ * params) is already in flight, a new request isn't sent, but waits for the
+ * response of the earlier request. Requests are idempotent if they are marked
+ * as such (see {@link Idempotent}) or if their method is configured as
+ * idempotent. Requests with attachments are never coalesced.
+ * <p>
+ * The requests in flight are shared by all CoalescingCallers in the JVM, so
+ * agents on one host asking the same question share a single request. It is
+ * sent by the first agent asking, the receiver doesn't see the others.
+ */
+public class CoalescingCaller extends CallerDecorator {
+	private static final TypeUtil<JsonNode>					JSONNODETYPE	= new TypeUtil<JsonNode>() {};
+	private static final ConcurrentHashMap<String, Flight>	FLIGHTS			= new ConcurrentHashMap<String, Flight>();
+	private final Set<String>								methods;
+
+	/**
+	 * Instantiates a new coalescing caller.
+	 *
+	 * @param caller
+	 *            the caller to decorate
+	 * @param methods
+	 *            the names of the methods that are idempotent, next to the
+	 *            requests marked as such.
+	 */
+	public CoalescingCaller(final Caller caller, final Set<String> methods) {
+		super(caller);
+		this.methods = methods == null ? Collections.<String> emptySet()
+				: new HashSet<String>(methods);
+	}
+
+	private boolean isIdempotent(final JSONRequest request) {
+		// Streamed results can't be shared between callers, and the key
+		// doesn't cover attachments.
+		return request.getCallback() != null
+				&& !(request.getCallback() instanceof StreamCallback)
+				&& !request.hasAttachments()
+				&& (request.isIdempotent() || methods.contains(request
+						.getMethod()));
+	}
+
+	@Override
+	protected void send(final URI url, final JSONRequest request,
+			final String tag) throws IOException {
+		if (tag != null || !isIdempotent(request)) {
+			caller.call(url, request, tag);
+			return;
+		}
+		final AsyncCallback<?> callback = request.getCallback();
+		final String key = url.toASCIIString() + " " + request.getMethod()
+				+ " " + canonical(request.getParams());
+		final Flight flight = new Flight(key, request.getId(), caller);
+		flight.add(request.getId(), callback);
+		while (true) {
+			final Flight existing = FLIGHTS.putIfAbsent(key, flight);
+			if (existing == null) {
+				break;
+			}
+			if (existing.add(request.getId(), callback)) {
+				return;
+			}
+			// Already completed, but not yet removed.
+			FLIGHTS.remove(key, existing);
+		}
+		request.setCallback(wrap(flight, callback));
+		try {
+			caller.call(url, request, null);
+		} catch (final IOException e) {
+			request.setCallback(callback);
+			flight.remove(request.getId());
+			flight.onFailure(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Cancel the request with the given id: it stops waiting for the shared
+	 * response, which is only cancelled itself if no one else waits for it.
+	 * That is done through the caller that sent it, which may belong to
+	 * another agent.
+	 *
+	 * @param id
+	 *            the id of the request
+	 */
+	@Override
+	public void cancel(final JsonNode id) {
+		for (final Flight flight : FLIGHTS.values()) {
+			if (flight.remove(id)) {
+				if (flight.abandon() && flight.sender instanceof CallerDecorator) {
+					((CallerDecorator) flight.sender).cancel(flight.id);
+				}
+				return;
+			}
+		}
+		super.cancel(id);
+	}
+
+	private static AsyncCallback<JsonNode> wrap(final Flight flight,
+			final AsyncCallback<?> callback) {
+		if (callback instanceof SyncCallback) {
+			// Keep it recognizable as synchronous call.
+			return new SyncCallback<JsonNode>(JSONNODETYPE) {
+				@Override
+				public void onSuccess(final JsonNode result) {
+					flight.onSuccess(result);
+				}
+
+				@Override
+				public void onFailure(final Exception exception) {
+					flight.onFailure(exception);
+				}
+			};
+		}
+		return new AsyncCallback<JsonNode>(JSONNODETYPE) {
+			@Override
+			public void onSuccess(final JsonNode result) {
+				flight.onSuccess(result);
+			}
+
+			@Override
+			public void onFailure(final Exception exception) {
+				flight.onFailure(exception);
+			}
+		};
+	}
+
+	/**
+	 * Canonical string representation of the params: object fields are
+	 * sorted, so equal params give an equal key regardless of field order.
+	 */
+	private static String canonical(final JsonNode node) {
+		if (node == null) {
+			return "null";
+		}
+		if (node.isObject()) {
+			final Map<String, String> sorted = new TreeMap<String, String>();
+			final Iterator<Map.Entry<String, JsonNode>> iter = node.fields();
+			while (iter.hasNext()) {
+				final Map.Entry<String, JsonNode> field = iter.next();
+				sorted.put(field.getKey(), canonical(field.getValue()));
+			}
+			return sorted.toString();
+		}
+		if (node.isArray()) {
+			final List<String> items = new ArrayList<String>(node.size());
+			for (final JsonNode item : node) {
+				items.add(canonical(item));
+			}
+			return items.toString();
+		}
+		return node.toString();
+	}
+
+	/**
+	 * A request in flight, with the callbacks waiting for its result.
+	 */
+	private static final class Flight {
+		private final String							key;
+		private final JsonNode							id;
+		private final Caller							sender;
+		private final Map<JsonNode, AsyncCallback<?>>	waiters	= new LinkedHashMap<JsonNode, AsyncCallback<?>>(
+																	2);
+		private boolean									done	= false;
+
+		private Flight(final String key, final JsonNode id, final Caller sender) {
+			this.key = key;
+			this.id = id;
+			this.sender = sender;
+		}
+
+		private synchronized boolean add(final JsonNode waiterId,
+				final AsyncCallback<?> waiter) {
+			if (done) {
+				return false;
+			}
+			waiters.put(waiterId, waiter);
+			return true;
+		}
+
+		private synchronized boolean remove(final JsonNode waiterId) {
+			return !done && waiters.remove(waiterId) != null;
+		}
+
+		/**
+		 * Give up the flight if no one waits for it anymore.
+		 *
+		 * @return true, if the flight has been given up.
+		 */
+		private boolean abandon() {
+			synchronized (this) {
+				if (done || !waiters.isEmpty()) {
+					return false;
+				}
+				done = true;
+			}
+			FLIGHTS.remove(key, this);
+			return true;
+		}
+
+		private Collection<AsyncCallback<?>> finish() {
+			synchronized (this) {
+				if (done) {
+					return Collections.emptyList();
+				}
+				done = true;
+			}
+			FLIGHTS.remove(key, this);
+			return waiters.values();
+		}
+
+		private void onSuccess(final JsonNode result) {
+			boolean first = true;
+			for (final AsyncCallback<?> waiter : finish()) {
+				deliver(waiter, first || result == null ? result : result
+						.deepCopy());
+				first = false;
+			}
+		}
+
+		private void onFailure(final Exception exception) {
+			for (final AsyncCallback<?> waiter : finish()) {
+				waiter.onFailure(exception);
+			}
+		}
+	}
+
+	private static <T> void deliver(final AsyncCallback<T> waiter,
+			final JsonNode result) {
+		if (waiter.getType() == null
+				|| waiter.getType().getJavaType().getRawClass()
+						.equals(Void.class)) {
+			waiter.onSuccess(null);
+			return;
+		}
+		final T res;
+		try {
+			res = waiter.getType().inject(result);
+		} catch (final ClassCastException cce) {
+			waiter.onFailure(new JSONRPCException(
+					"Incorrect return type received for JSON-RPC call", cce));
+			return;
+		}
+		waiter.onSuccess(res);
+	}
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The Interface DirectInvocation, marks an agent as safe for direct invocation
+ * by co-located agents. Calls from agents in the same JVM to the "local:"
+ * address of such an agent are invoked directly on the calling thread (for
+ * synchronous calls), instead of passing through the transport. Parameters
+ * are deep copied, authorization and @Sender injection are still applied.
+ * Only used if both agents have a plain JSON-RPC protocol stack.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.TYPE })
+@Documented
+public @interface DirectInvocation {
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.util.TypeUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+import com.almende.util.uuid.UUID;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class ScatterGather, sends a request to multiple agents and collects the
+ * results, according to the given {@link CallMultiPolicy}.
+ *
+ * @param <T>
+ *            the generic type of the results
+ */
+final class ScatterGather<T> {
+	private static final Logger				LOG			= Logger.getLogger(ScatterGather.class
+																.getName());
+	private final AgentCore					agent;
+	private final String					method;
+	private final ObjectNode				params;
+	private final TypeUtil<T>				type;
+	private final AsyncCallback<Map<URI, T>>	callback;
+	private final int						total;
+	private final int						required;
+	private final int						maxInFlight;
+	private final Iterator<URI>				pending;
+	private final Map<URI, T>				results		= new HashMap<URI, T>();
+	private final Map<JsonNode, URI>		outstanding	= new HashMap<JsonNode, URI>();
+	private int								failures	= 0;
+	private Exception						lastError	= null;
+	private boolean							done		= false;
+	private boolean							sending		= false;
+
+	/**
+	 * Instantiates a new scatter gather.
+	 *
+	 * @param agent
+	 *            the sending agent
+	 * @param urls
+	 *            the addresses of the other agents
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @param policy
+	 *            the policy
+	 * @param type
+	 *            the expected result type
+	 * @param callback
+	 *            the callback, receiving the map of results
+	 */
+	ScatterGather(final AgentCore agent, final List<URI> urls,
+			final String method, final ObjectNode params,
+			final CallMultiPolicy policy, final TypeUtil<T> type,
+			final AsyncCallback<Map<URI, T>> callback) {
+		this.agent = agent;
+		this.method = method;
+		this.params = params;
+		this.type = type;
+		this.callback = callback;
+		this.total = urls.size();
+		this.required = policy.getRequired(total);
+		this.maxInFlight = policy.getMaxInFlight();
+		this.pending = new ArrayList<URI>(urls).iterator();
+	}
+
+	/**
+	 * Start sending the requests.
+	 */
+	void start() {
+		if (required <= 0) {
+			done = true;
+			callback.onSuccess(Collections.<URI, T> emptyMap());
+			return;
+		}
+		if (required > total) {
+			done = true;
+			callback.onFailure(new IOException("Policy requires " + required
+					+ " results, but only " + total + " peers given."));
+			return;
+		}
+		sendNext();
+	}
+
+	/**
+	 * Send requests while the policy allows. Only one thread sends at a time,
+	 * results that arrive meanwhile (also those of failed sends) leave the
+	 * next requests to it, instead of recursing.
+	 */
+	private void sendNext() {
+		synchronized (this) {
+			if (sending) {
+				return;
+			}
+			sending = true;
+		}
+		while (true) {
+			final URI peer;
+			final JsonNode id = JOM.getInstance().getNodeFactory()
+					.textNode(new UUID().toString());
+			synchronized (this) {
+				if (done || !pending.hasNext()
+						|| (maxInFlight > 0 && outstanding.size() >= maxInFlight)) {
+					sending = false;
+					return;
+				}
+				peer = pending.next();
+				outstanding.put(id, peer);
+			}
+			final JSONRequest request = new JSONRequest(id, method, params,
+					new AsyncCallback<T>(type) {
+						@Override
+						public void onSuccess(final T result) {
+							onResult(id, peer, result, null);
+						}
+
+						@Override
+						public void onFailure(final Exception exception) {
+							onResult(id, peer, null, exception);
+						}
+					});
+			try {
+				agent.caller.call(peer, request);
+			} catch (final IOException e) {
+				cancel(id);
+				onResult(id, peer, null, e);
+			}
+		}
+	}
+
+	private void onResult(final JsonNode id, final URI peer, final T result,
+			final Exception exception) {
+		Map<URI, T> success = null;
+		Exception failure = null;
+		List<JsonNode> remaining = null;
+		synchronized (this) {
+			if (outstanding.remove(id) == null || done) {
+				return;
+			}
+			if (exception == null) {
+				results.put(peer, result);
+			} else {
+				LOG.log(Level.WARNING, "CallMulti: Failed to call peer:" + peer,
+						exception);
+				failures++;
+				lastError = exception;
+			}
+			if (results.size() >= required) {
+				success = Collections.unmodifiableMap(new HashMap<URI, T>(
+						results));
+			} else if (total - failures < required) {
+				failure = new IOException("Only " + results.size() + " of "
+						+ total + " peers returned a result, " + required
+						+ " required.", lastError);
+			}
+			if (success != null || failure != null) {
+				done = true;
+				remaining = new ArrayList<JsonNode>(outstanding.keySet());
+				outstanding.clear();
+			}
+		}
+		if (remaining != null) {
+			for (final JsonNode other : remaining) {
+				cancel(other);
+			}
+			if (success != null) {
+				callback.onSuccess(success);
+			} else {
+				callback.onFailure(failure);
+			}
+		} else {
+			sendNext();
+		}
+	}
+
+	private void cancel(final JsonNode id) {
+		agent.cancelRequest(id);
+	}
+}
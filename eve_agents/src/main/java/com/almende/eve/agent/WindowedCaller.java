@@ -0,0 +1,435 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.protocol.jsonrpc.JSONRpcProtocol;
+import com.almende.eve.protocol.jsonrpc.formats.Caller;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRPCException;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.callback.StreamCallback;
+import com.almende.util.callback.SyncCallback;
+import com.almende.util.threads.ThreadPool;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The Class WindowedCaller, a Caller decorator that limits the number of
+ * requests in flight per peer. Requests beyond the window are queued and sent
+ * as soon as responses come in, requests beyond the queue are rejected with an
+ * IOException. Producers can wait for capacity through
+ * {@link #awaitCapacity(URI, long)}.
+ * The window is either fixed, or adapts to the observed latency (AIMD): it
+ * grows by one request per round trip while responses arrive within the
+ * target latency, and is halved (at most once per round trip) on slow or
+ * failed requests.
+ * Only requests that expect a response count, streamed results are not
+ * limited. Queued requests keep the deadline of the request that was being
+ * handled when they were made, and fail once it passes before they are sent.
+ * The window of a peer is dropped once nothing is in flight or queued, an
+ * adaptive window starts at its maximum size again after that.
+ */
+public class WindowedCaller extends CallerDecorator {
+	private static final Logger					LOG		= Logger.getLogger(WindowedCaller.class
+																.getName());
+	private final int							maxWindow;
+	private final int							maxQueued;
+	private final boolean						adaptive;
+	private final long							targetLatency;
+	private final ConcurrentHashMap<String, Window>	windows	= new ConcurrentHashMap<String, Window>();
+
+	/**
+	 * Instantiates a new windowed caller.
+	 *
+	 * @param caller
+	 *            the caller to decorate
+	 * @param maxWindow
+	 *            the maximum number of requests in flight per peer
+	 * @param maxQueued
+	 *            the maximum number of waiting requests per peer
+	 * @param adaptive
+	 *            if true, the window adapts to the observed latency
+	 * @param targetLatency
+	 *            the target latency in milliseconds, for the adaptive window
+	 */
+	public WindowedCaller(final Caller caller, final int maxWindow,
+			final int maxQueued, final boolean adaptive,
+			final long targetLatency) {
+		super(caller);
+		this.maxWindow = Math.max(1, maxWindow);
+		this.maxQueued = Math.max(0, maxQueued);
+		this.adaptive = adaptive;
+		this.targetLatency = targetLatency;
+	}
+
+	@Override
+	protected void send(final URI url, final JSONRequest request,
+			final String tag) throws IOException {
+		final AsyncCallback<?> callback = request.getCallback();
+		if (tag != null || callback == null
+				|| callback instanceof StreamCallback) {
+			caller.call(url, request, tag);
+			return;
+		}
+		final Slot slot = new Slot(url, request);
+		Boolean acquired = null;
+		while (acquired == null) {
+			acquired = getWindow(url).acquire(slot);
+		}
+		if (!acquired) {
+			if (slot.isQueued()) {
+				return;
+			}
+			request.setCallback(callback);
+			throw new IOException("Too many requests waiting for " + url);
+		}
+		try {
+			caller.call(url, request, null);
+		} catch (final IOException e) {
+			request.setCallback(callback);
+			slot.release(true);
+			throw e;
+		}
+	}
+
+	/**
+	 * Cancel the request with the given id: if it's still queued, it's
+	 * dropped without being sent, and fails with a cancellation error.
+	 *
+	 * @param id
+	 *            the id of the request
+	 */
+	@Override
+	public void cancel(final JsonNode id) {
+		for (final Window window : windows.values()) {
+			final Slot slot = window.remove(id);
+			if (slot != null) {
+				slot.cancel();
+				return;
+			}
+		}
+		super.cancel(id);
+	}
+
+	/**
+	 * Wait until a request to the given peer can be sent without being
+	 * queued.
+	 *
+	 * @param url
+	 *            the url of the peer
+	 * @param timeout
+	 *            the timeout in milliseconds
+	 * @return true, if there is capacity, false if the timeout passed first.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	public boolean awaitCapacity(final URI url, final long timeout)
+			throws InterruptedException {
+		final Window window = windows.get(url.toASCIIString());
+		return window == null || window.await(timeout);
+	}
+
+	/**
+	 * Gets the number of requests in flight to the given peer.
+	 *
+	 * @param url
+	 *            the url
+	 * @return the number of requests in flight
+	 */
+	public int getInFlight(final URI url) {
+		final Window window = windows.get(url.toASCIIString());
+		return window == null ? 0 : window.getInFlight();
+	}
+
+	/**
+	 * Gets the current window of the given peer.
+	 *
+	 * @param url
+	 *            the url
+	 * @return the maximum number of requests in flight at this moment
+	 */
+	public int getWindowSize(final URI url) {
+		final Window window = windows.get(url.toASCIIString());
+		return window == null ? maxWindow : window.getSize();
+	}
+
+	private Window getWindow(final URI url) {
+		final String key = url.toASCIIString();
+		Window window = windows.get(key);
+		if (window == null) {
+			window = new Window(key);
+			final Window existing = windows.putIfAbsent(key, window);
+			if (existing != null) {
+				window = existing;
+			}
+		}
+		return window;
+	}
+
+	/**
+	 * The requests in flight to a single peer.
+	 */
+	private final class Window {
+		private final String		key;
+		private final Queue<Slot>	queue			= new ArrayDeque<Slot>();
+		private double				size			= maxWindow;
+		private int					inFlight		= 0;
+		private long				lastDecrease	= 0;
+		private boolean				dropped			= false;
+
+		private Window(final String key) {
+			this.key = key;
+		}
+
+		/**
+		 * Take a place in the window, or in the queue if the window is full.
+		 *
+		 * @return true, if the request may be sent right away, null if this
+		 *         window has been dropped and a new one must be used.
+		 */
+		private Boolean acquire(final Slot slot) {
+			final List<Slot> expired = new ArrayList<Slot>(0);
+			try {
+				synchronized (this) {
+					if (dropped) {
+						return null;
+					}
+					slot.window = this;
+					if (queue.isEmpty() && inFlight < (int) size) {
+						inFlight++;
+						slot.start();
+						return true;
+					}
+					if (queue.size() >= maxQueued) {
+						removeExpired(expired);
+					}
+					if (queue.size() < maxQueued) {
+						queue.add(slot);
+						slot.queued = true;
+					}
+					return false;
+				}
+			} finally {
+				for (final Slot waiting : expired) {
+					waiting.expire();
+				}
+			}
+		}
+
+		private void removeExpired(final List<Slot> expired) {
+			final long now = System.currentTimeMillis();
+			final Iterator<Slot> iter = queue.iterator();
+			while (iter.hasNext()) {
+				final Slot waiting = iter.next();
+				if (waiting.isExpired(now)) {
+					iter.remove();
+					expired.add(waiting);
+				}
+			}
+		}
+
+		private void release(final Slot slot, final boolean slow) {
+			final List<Slot> next = new ArrayList<Slot>(2);
+			final List<Slot> expired = new ArrayList<Slot>(0);
+			synchronized (this) {
+				inFlight--;
+				if (adaptive) {
+					if (!slow) {
+						size = Math.min(maxWindow, size + 1 / size);
+					} else if (slot.started >= lastDecrease) {
+						size = Math.max(1, size / 2);
+						lastDecrease = System.currentTimeMillis();
+					}
+				}
+				final long now = System.currentTimeMillis();
+				while (!queue.isEmpty() && inFlight < (int) size) {
+					final Slot waiting = queue.poll();
+					if (waiting.isExpired(now)) {
+						expired.add(waiting);
+						continue;
+					}
+					inFlight++;
+					waiting.start();
+					next.add(waiting);
+				}
+				if (inFlight == 0 && queue.isEmpty()) {
+					dropped = true;
+					windows.remove(key, this);
+				}
+				notifyAll();
+			}
+			for (final Slot waiting : expired) {
+				waiting.expire();
+			}
+			for (final Slot waiting : next) {
+				ThreadPool.getPool().execute(new Runnable() {
+					@Override
+					public void run() {
+						waiting.send();
+					}
+				});
+			}
+		}
+
+		private synchronized Slot remove(final JsonNode id) {
+			final Iterator<Slot> iter = queue.iterator();
+			while (iter.hasNext()) {
+				final Slot slot = iter.next();
+				if (id.equals(slot.request.getId())) {
+					iter.remove();
+					notifyAll();
+					return slot;
+				}
+			}
+			return null;
+		}
+
+		private synchronized boolean await(final long timeout)
+				throws InterruptedException {
+			final long end = System.currentTimeMillis() + timeout;
+			while (!queue.isEmpty() || inFlight >= (int) size) {
+				final long left = end - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				wait(left);
+			}
+			return true;
+		}
+
+		private synchronized int getInFlight() {
+			return inFlight;
+		}
+
+		private synchronized int getSize() {
+			return (int) size;
+		}
+	}
+
+	/**
+	 * A request that occupies a place in the window until its response
+	 * arrives.
+	 */
+	private final class Slot {
+		private final URI			url;
+		private final JSONRequest	request;
+		private final AtomicBoolean	released	= new AtomicBoolean(false);
+		private final Long			deadline;
+		private volatile Window		window		= null;
+		private long				started		= 0;
+		private boolean				queued		= false;
+
+		private Slot(final URI url, final JSONRequest request) {
+			this.url = url;
+			this.request = request;
+			request.setCallback(wrap(request.getCallback()));
+			// A queued request is sent from another thread, which doesn't know
+			// the deadline of the request that is handled in this one.
+			final Long inherited = JSONRpcProtocol.getCurrentDeadline();
+			final Long own = request.getDeadline();
+			if (inherited != null && (own == null || inherited < own)) {
+				request.setDeadline(inherited);
+				deadline = inherited;
+			} else {
+				deadline = own;
+			}
+		}
+
+		private boolean isQueued() {
+			return queued;
+		}
+
+		private void start() {
+			started = System.currentTimeMillis();
+		}
+
+		private boolean isExpired(final long now) {
+			return deadline != null && deadline < now;
+		}
+
+		/**
+		 * Fail the request, its deadline passed while it was queued. It never
+		 * took a place in the window, so there is nothing to release.
+		 */
+		private void expire() {
+			released.set(true);
+			request.getCallback().onFailure(
+					new JSONRPCException(JSONRPCException.CODE.DEADLINE_EXCEEDED,
+							"Deadline of request '" + request.getMethod()
+									+ "' passed while queued for " + url));
+		}
+
+		/**
+		 * Fail the request, it has been cancelled while it was queued. It
+		 * never took a place in the window, so there is nothing to release.
+		 */
+		private void cancel() {
+			released.set(true);
+			request.getCallback().onFailure(
+					new JSONRPCException(JSONRPCException.CODE.CANCELLED,
+							"Request '" + request.getMethod()
+									+ "' cancelled while queued for " + url));
+		}
+
+		private void send() {
+			try {
+				caller.call(url, request, null);
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Couldn't send request to " + url, e);
+				request.getCallback().onFailure(e);
+			}
+		}
+
+		private void release(final boolean failed) {
+			if (released.compareAndSet(false, true)) {
+				window.release(this, failed
+						|| System.currentTimeMillis() - started > targetLatency);
+			}
+		}
+
+		private <T> AsyncCallback<T> wrap(final AsyncCallback<T> callback) {
+			if (callback instanceof SyncCallback) {
+				// Keep it recognizable as synchronous call.
+				return new SyncCallback<T>(callback.getType()) {
+					@Override
+					public void onSuccess(final T result) {
+						release(false);
+						callback.onSuccess(result);
+					}
+
+					@Override
+					public void onFailure(final Exception exception) {
+						release(true);
+						callback.onFailure(exception);
+					}
+				};
+			}
+			return new AsyncCallback<T>(callback.getType()) {
+				@Override
+				public void onSuccess(final T result) {
+					release(false);
+					callback.onSuccess(result);
+				}
+
+				@Override
+				public void onFailure(final Exception exception) {
+					release(true);
+					callback.onFailure(exception);
+				}
+			};
+		}
+	}
+}
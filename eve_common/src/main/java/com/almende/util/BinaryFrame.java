@@ -0,0 +1,218 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Class BinaryFrame, the binary encoding of a {@link BinaryMessage}: the
+ * text body followed by the raw attachments. Transports with binary frames use
+ * this to carry attachments without Base64 encoding them. Decoding doesn't
+ * copy the attachments, they are read-only views on the received frame.
+ * <br>
+ * Layout: "EVE" 0x01 | body length | body (UTF-8) | attachment count | (id
+ * length | id (UTF-8) | data length | data)*, all lengths as 32 bit integers.
+ */
+public final class BinaryFrame implements BinaryMessage {
+	/** The content type of a binary frame, e.g. for HTTP. */
+	public static final String				CONTENTTYPE	= "application/x-eve-frame";
+	private static final Charset			UTF8		= Charset
+																.forName("UTF-8");
+	private static final byte[]				MAGIC		= new byte[] { 'E',
+			'V', 'E', 1								};
+	private final String					body;
+	private final Map<String, ByteBuffer>	attachments;
+
+	/**
+	 * Instantiates a new binary frame.
+	 *
+	 * @param body
+	 *            the body
+	 * @param attachments
+	 *            the attachments
+	 */
+	public BinaryFrame(final String body,
+			final Map<String, ByteBuffer> attachments) {
+		this.body = body;
+		this.attachments = attachments == null ? Collections
+				.<String, ByteBuffer> emptyMap() : attachments;
+	}
+
+	@Override
+	public String getBody() {
+		return body;
+	}
+
+	@Override
+	public Map<String, ByteBuffer> getAttachments() {
+		return attachments;
+	}
+
+	/**
+	 * Checks if the given message has attachments, which would benefit from a
+	 * binary frame.
+	 *
+	 * @param message
+	 *            the message
+	 * @return true, if the message is a binary message with attachments.
+	 */
+	public static boolean hasAttachments(final Object message) {
+		return message instanceof BinaryMessage
+				&& !((BinaryMessage) message).getAttachments().isEmpty();
+	}
+
+	/**
+	 * Encode the given message into a binary frame.
+	 *
+	 * @param message
+	 *            the message
+	 * @return the byte buffer, ready for reading.
+	 */
+	public static ByteBuffer encode(final BinaryMessage message) {
+		final byte[] text = message.getBody().getBytes(UTF8);
+		final Map<String, ByteBuffer> parts = message.getAttachments();
+		final Map<byte[], ByteBuffer> encoded = new LinkedHashMap<byte[], ByteBuffer>(
+				parts.size());
+		int size = MAGIC.length + 8 + text.length;
+		for (final Map.Entry<String, ByteBuffer> part : parts.entrySet()) {
+			final byte[] id = part.getKey().getBytes(UTF8);
+			encoded.put(id, part.getValue());
+			size += 8 + id.length + part.getValue().remaining();
+		}
+		final ByteBuffer result = ByteBuffer.allocate(size);
+		result.put(MAGIC);
+		result.putInt(text.length);
+		result.put(text);
+		result.putInt(encoded.size());
+		for (final Map.Entry<byte[], ByteBuffer> part : encoded.entrySet()) {
+			result.putInt(part.getKey().length);
+			result.put(part.getKey());
+			result.putInt(part.getValue().remaining());
+			result.put(part.getValue().duplicate());
+		}
+		((Buffer) result).flip();
+		return result;
+	}
+
+	/**
+	 * Checks if the given data starts like a binary frame.
+	 *
+	 * @param data
+	 *            the data
+	 * @return true, if it is a frame
+	 */
+	public static boolean isFrame(final ByteBuffer data) {
+		if (data.remaining() < MAGIC.length) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (data.get(data.position() + i) != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decode a binary frame.
+	 *
+	 * @param data
+	 *            the data
+	 * @return the binary frame
+	 * @throws IOException
+	 *             Signals that the data isn't a valid frame.
+	 */
+	public static BinaryFrame decode(final ByteBuffer data) throws IOException {
+		if (!isFrame(data)) {
+			throw new IOException("Data is not a binary frame.");
+		}
+		final ByteBuffer in = data.asReadOnlyBuffer();
+		try {
+			((Buffer) in).position(in.position() + MAGIC.length);
+			final String body = readString(in);
+			final int count = in.getInt();
+			final Map<String, ByteBuffer> parts = new LinkedHashMap<String, ByteBuffer>(
+					Math.max(0, count) * 2);
+			for (int i = 0; i < count; i++) {
+				final String id = readString(in);
+				parts.put(id, slice(in, in.getInt()));
+			}
+			return new BinaryFrame(body, parts);
+		} catch (final BufferUnderflowException e) {
+			throw new IOException("Truncated binary frame.", e);
+		} catch (final IllegalArgumentException e) {
+			throw new IOException("Corrupt binary frame.", e);
+		}
+	}
+
+	/**
+	 * Read and decode a binary frame from the given stream.
+	 *
+	 * @param stream
+	 *            the stream
+	 * @return the binary frame
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static BinaryFrame read(final InputStream stream)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+		int count = stream.read(buffer);
+		while (count >= 0) {
+			out.write(buffer, 0, count);
+			count = stream.read(buffer);
+		}
+		return decode(ByteBuffer.wrap(out.toByteArray()));
+	}
+
+	/**
+	 * Get the remaining content of a buffer as byte array. The backing array is
+	 * returned if it matches the content exactly, otherwise the content is
+	 * copied.
+	 *
+	 * @param data
+	 *            the data
+	 * @return the byte[]
+	 */
+	public static byte[] toBytes(final ByteBuffer data) {
+		if (data.hasArray() && data.arrayOffset() == 0
+				&& data.position() == 0 && data.remaining() == data.array().length) {
+			return data.array();
+		}
+		final byte[] result = new byte[data.remaining()];
+		data.duplicate().get(result);
+		return result;
+	}
+
+	private static String readString(final ByteBuffer in) {
+		final ByteBuffer text = slice(in, in.getInt());
+		return UTF8.decode(text).toString();
+	}
+
+	private static ByteBuffer slice(final ByteBuffer in, final int length) {
+		if (length < 0 || length > in.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		final ByteBuffer result = in.slice();
+		((Buffer) result).limit(length);
+		((Buffer) in).position(in.position() + length);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return body;
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * A message that carries binary attachments next to its text body. The body
+ * refers to the attachments by their id, the attachments themselves are never
+ * embedded in the body. Transports that support binary frames send the
+ * attachments as raw data (see {@link BinaryFrame}), other transports send the
+ * text representation of the message (toString()), which embeds them.
+ */
+public interface BinaryMessage {
+
+	/**
+	 * Gets the text body, without the attachments.
+	 *
+	 * @return the body
+	 */
+	String getBody();
+
+	/**
+	 * Gets the attachments, by id.
+	 *
+	 * @return the attachments, an empty map if there are none.
+	 */
+	Map<String, ByteBuffer> getAttachments();
+}
@@ -4,25 +4,38 @@
  */
 package com.almende.util.callback;
 
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.util.threads.ThreadPool;
 
 /**
  * Store to hold a map with callbacks in progress.
- * The Store handles timeouts on the callbacks.
+ * The Store handles timeouts on the callbacks: a single scanner thread checks
+ * the timeouts of all stores, so stores are cheap to have per transport or
+ * per agent.
  * 
  * @param <T>
  *            the generic type
  */
 public class AsyncCallbackStore<T> {
+	private static final Logger					LOG			= Logger.getLogger(AsyncCallbackStore.class
+																	.getName());
 	private final Map<Object, CallbackHandler>	store		= new ConcurrentHashMap<Object, CallbackHandler>(
 																	5);
+	private static final Queue<WeakReference<AsyncCallbackStore<?>>>	STORES		= new ConcurrentLinkedQueue<WeakReference<AsyncCallbackStore<?>>>();
+	private static Thread						scanner		= null;
 	private final TimeoutHandler				head		= new TimeoutHandler(
 																	null);
-	private final Thread						scanner;
-	private boolean								started		= false;
+	private volatile boolean					started		= false;
 	private TimeoutHandler						tail		= head;
 	private int									growsize	= 10;
 	private final static int					MAXGROWSIZE	= 20000;
@@ -36,36 +49,58 @@ public class AsyncCallbackStore<T> {
 	 * @param id
 	 *            the id
 	 */
-	public AsyncCallbackStore(String id) {
-		scanner = new Thread(new Runnable() {
-			public void run() {
-				while (true) {
-					TimeoutHandler handler = tail;
-					while (handler != null) {
-						handler.checkTimeout();
-						handler = handler.prev;
-					}
-					try {
-						Thread.sleep(1000);
-					} catch (InterruptedException e) {}
-				}
-
-			}
-		}, "AsyncCBScanner:" + id);
-
-	}
+	public AsyncCallbackStore(String id) {}
 
 	private void startScanner() {
 		if (!started) {
-			synchronized (scanner) {
+			synchronized (STORES) {
 				if (!started) {
-					scanner.start();
+					STORES.add(new WeakReference<AsyncCallbackStore<?>>(this));
 					started = true;
+					if (scanner == null) {
+						scanner = new Thread(new Runnable() {
+							public void run() {
+								while (true) {
+									scanAll();
+									try {
+										Thread.sleep(1000);
+									} catch (InterruptedException e) {}
+								}
+							}
+						}, "AsyncCBScanner");
+						scanner.setDaemon(true);
+						scanner.start();
+					}
 				}
 			}
 		}
 	}
 
+	private static void scanAll() {
+		final Iterator<WeakReference<AsyncCallbackStore<?>>> iter = STORES
+				.iterator();
+		while (iter.hasNext()) {
+			final AsyncCallbackStore<?> store = iter.next().get();
+			if (store == null) {
+				iter.remove();
+				continue;
+			}
+			try {
+				store.scan();
+			} catch (final RuntimeException e) {
+				LOG.log(Level.WARNING, "Failed to scan callback store", e);
+			}
+		}
+	}
+
+	private void scan() {
+		TimeoutHandler handler = tail;
+		while (handler != null) {
+			handler.checkTimeout();
+			handler = handler.prev;
+		}
+	}
+
 	private void grow() {
 		synchronized (head) {
 			if (growsize <= MAXGROWSIZE / 2) {
@@ -116,24 +151,47 @@ public class AsyncCallbackStore<T> {
 		}
 
 		public void checkTimeout() {
-			if (this.handler != null) {
-				lock.lock();
-				if (this.handler != null && this.handler.callback != null
-						&& this.handler.timeout <= System.currentTimeMillis()) {
-					this.handler.callback.onFailure(new TimeoutException(
-							"Timeout occurred for callback with id '"
-									+ this.handler.id + "': "
-									+ this.handler.description));
-					this.handler = null;
+			if (this.handler == null) {
+				return;
+			}
+			final CallbackHandler expired;
+			lock.lock();
+			try {
+				expired = this.handler;
+				if (expired == null || expired.callback == null
+						|| expired.timeout > System.currentTimeMillis()) {
+					return;
 				}
+				this.handler = null;
+			} finally {
 				lock.unlock();
 			}
+			store.remove(expired.id, expired);
+			// Not on the scanner thread, a slow or failing callback mustn't
+			// hold up the timeouts of the other callbacks.
+			ThreadPool.getPool().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						expired.callback.onFailure(new TimeoutException(
+								"Timeout occurred for callback with id '"
+										+ expired.id + "': "
+										+ expired.description));
+					} catch (final RuntimeException e) {
+						LOG.log(Level.WARNING, "Callback with id '" + expired.id
+								+ "' failed on its timeout", e);
+					}
+				}
+			});
 		}
 
 		public void forget() {
 			lock.lock();
-			this.handler = null;
-			lock.unlock();
+			try {
+				this.handler = null;
+			} finally {
+				lock.unlock();
+			}
 		}
 
 		public CallbackHandler get() {
@@ -159,6 +217,26 @@ public class AsyncCallbackStore<T> {
 	 */
 	public void put(final Object id, final String description,
 			final AsyncCallback<T> callback) {
+		put(id, description, callback, System.currentTimeMillis() + timeout);
+	}
+
+	/**
+	 * Place a callback in the store, with an explicit deadline instead of the
+	 * default timeout. Otherwise equal to {@link #put(Object, String,
+	 * AsyncCallback)}.
+	 *
+	 * @param id
+	 *            the id
+	 * @param description
+	 *            the description
+	 * @param callback
+	 *            the callback
+	 * @param deadline
+	 *            the absolute deadline of this callback, in milliseconds
+	 *            since epoch.
+	 */
+	public void put(final Object id, final String description,
+			final AsyncCallback<T> callback, final long deadline) {
 		startScanner();
 		if (store.containsKey(id)) {
 			throw new IllegalStateException("Callback with id '" + id
@@ -168,7 +246,7 @@ public class AsyncCallbackStore<T> {
 		handler.callback = callback;
 		handler.id = id;
 		handler.description = description;
-		handler.timeout = System.currentTimeMillis() + timeout;
+		handler.timeout = deadline;
 		put(handler);
 		store.put(id, handler);
 	}
@@ -191,6 +269,54 @@ public class AsyncCallbackStore<T> {
 		return null;
 	}
 
+	/**
+	 * Get a callback from the Store, without removing it. The timeout of the
+	 * callback is renewed. This is meant for callbacks that receive multiple
+	 * responses, e.g. chunks of a streamed result.
+	 * 
+	 * @param id
+	 *            the id
+	 * @return the async callback, or null if no callback is found with the
+	 *         given id.
+	 */
+	public AsyncCallback<T> peek(final Object id) {
+		final CallbackHandler handler = store.get(id);
+		if (handler != null) {
+			final TimeoutHandler parent = handler.parent;
+			parent.lock.lock();
+			try {
+				if (parent.handler == handler) {
+					handler.timeout = Math.max(handler.timeout,
+							System.currentTimeMillis() + timeout);
+					return handler.callback;
+				}
+			} finally {
+				parent.lock.unlock();
+			}
+			// Already timed out.
+			store.remove(id);
+		}
+		return null;
+	}
+
+	/**
+	 * Remove a callback from the store, without calling it. This is meant for
+	 * calls whose result is no longer needed, e.g. because enough other
+	 * results have been received.
+	 *
+	 * @param id
+	 *            the id
+	 * @return true, if the callback was still in the store.
+	 */
+	public boolean cancel(final Object id) {
+		final CallbackHandler handler = store.remove(id);
+		if (handler != null) {
+			handler.parent.forget();
+			return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Remove all callbacks from the queue.
 	 */
@@ -0,0 +1,217 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util.callback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.almende.util.TypeUtil;
+
+/**
+ * The Class FutureCallback, a callback that can also be used as a Future. The
+ * result is delivered directly on the thread that completes the callback (e.g.
+ * the thread handling the response), listeners added through
+ * {@link #then(AsyncCallback)} are called on that same thread. This allows
+ * combining multiple calls without blocking any threads.
+ *
+ * @param <T>
+ *            the generic type
+ */
+public class FutureCallback<T> extends AsyncCallback<T> implements Future<T> {
+	private final List<AsyncCallback<T>>	listeners	= new ArrayList<AsyncCallback<T>>(
+																1);
+	private T								result		= null;
+	private Exception						exception	= null;
+	private boolean							done		= false;
+	private boolean							cancelled	= false;
+
+	/**
+	 * Instantiates a new future callback.
+	 *
+	 * @param type
+	 *            the type
+	 */
+	public FutureCallback(final TypeUtil<T> type) {
+		super(type);
+	}
+
+	/**
+	 * Instantiates a new future callback.
+	 */
+	public FutureCallback() {
+		super();
+	}
+
+	@Override
+	public void onSuccess(final T result) {
+		complete(result, null, false);
+	}
+
+	@Override
+	public void onFailure(final Exception exception) {
+		complete(null, exception, false);
+	}
+
+	private void complete(final T result, final Exception exception,
+			final boolean cancel) {
+		final List<AsyncCallback<T>> todo;
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			this.result = result;
+			this.exception = exception;
+			this.cancelled = cancel;
+			this.done = true;
+			this.notifyAll();
+			todo = new ArrayList<AsyncCallback<T>>(listeners);
+			listeners.clear();
+		}
+		for (final AsyncCallback<T> listener : todo) {
+			deliver(listener);
+		}
+	}
+
+	private void deliver(final AsyncCallback<T> listener) {
+		if (exception != null) {
+			listener.onFailure(exception);
+		} else {
+			listener.onSuccess(result);
+		}
+	}
+
+	/**
+	 * Add a callback that will be called when this future completes. If the
+	 * future has already completed, the callback is called immediately on the
+	 * calling thread.
+	 *
+	 * @param callback
+	 *            the callback
+	 * @return this future, for chaining.
+	 */
+	public FutureCallback<T> then(final AsyncCallback<T> callback) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(callback);
+				return this;
+			}
+		}
+		deliver(callback);
+		return this;
+	}
+
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+		}
+		complete(null, new CancellationException(), true);
+		return isCancelled();
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		synchronized (this) {
+			while (!done) {
+				this.wait();
+			}
+		}
+		return report();
+	}
+
+	@Override
+	public T get(final long timeout, final TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		final long deadline = System.currentTimeMillis()
+				+ unit.toMillis(timeout);
+		synchronized (this) {
+			while (!done) {
+				final long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					throw new TimeoutException();
+				}
+				this.wait(left);
+			}
+		}
+		return report();
+	}
+
+	private T report() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		return result;
+	}
+
+	/**
+	 * Combine the given futures into a single future, which completes with the
+	 * list of results (in the same order) after all given futures have
+	 * succeeded, or fails with the first failure.
+	 *
+	 * @param <T>
+	 *            the generic type
+	 * @param futures
+	 *            the futures
+	 * @return the future callback
+	 */
+	public static <T> FutureCallback<List<T>> all(
+			final List<FutureCallback<T>> futures) {
+		final FutureCallback<List<T>> result = new FutureCallback<List<T>>(
+				new TypeUtil<List<T>>(List.class) {});
+		final int size = futures.size();
+		if (size == 0) {
+			result.onSuccess(Collections.<T> emptyList());
+			return result;
+		}
+		final List<T> results = new ArrayList<T>(Collections.<T> nCopies(
+				size, null));
+		final int[] count = new int[] { 0 };
+		for (int i = 0; i < size; i++) {
+			final int index = i;
+			final FutureCallback<T> future = futures.get(i);
+			future.then(new AsyncCallback<T>(future.getType()) {
+				@Override
+				public void onSuccess(final T res) {
+					boolean last = false;
+					synchronized (results) {
+						results.set(index, res);
+						count[0]++;
+						last = count[0] == size;
+					}
+					if (last) {
+						result.onSuccess(results);
+					}
+				}
+
+				@Override
+				public void onFailure(final Exception exception) {
+					result.onFailure(exception);
+				}
+			});
+		}
+		return result;
+	}
+}
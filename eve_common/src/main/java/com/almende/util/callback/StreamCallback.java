@@ -0,0 +1,112 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util.callback;
+
+import com.almende.util.TypeUtil;
+
+/**
+ * The Class StreamCallback, a callback that receives the result of a call
+ * incrementally. If the remote method returns a stream of items, these items
+ * are delivered one by one, in order, to {@link #onItem(Object)}, followed by
+ * a single call to {@link #onComplete()}. The number of chunks the remote side
+ * may send ahead of the consumption of this callback is limited by the
+ * credits of this callback.
+ * If the remote side doesn't stream its result, an array result is delivered
+ * item by item, any other result as a single item.
+ *
+ * @param <T>
+ *            the type of the items
+ */
+public abstract class StreamCallback<T> extends AsyncCallback<T> {
+	private static final int	DEFAULTCREDITS	= 4;
+	private final int			credits;
+	private volatile boolean	cancelled		= false;
+
+	/**
+	 * Instantiates a new stream callback.
+	 *
+	 * @param type
+	 *            the type of the items
+	 * @param credits
+	 *            the number of chunks that may be in flight
+	 */
+	public StreamCallback(final TypeUtil<T> type, final int credits) {
+		super(type);
+		this.credits = credits > 0 ? credits : DEFAULTCREDITS;
+	}
+
+	/**
+	 * Instantiates a new stream callback.
+	 *
+	 * @param type
+	 *            the type of the items
+	 */
+	public StreamCallback(final TypeUtil<T> type) {
+		this(type, DEFAULTCREDITS);
+	}
+
+	/**
+	 * Instantiates a new stream callback.
+	 *
+	 * @param credits
+	 *            the number of chunks that may be in flight
+	 */
+	public StreamCallback(final int credits) {
+		super();
+		this.credits = credits > 0 ? credits : DEFAULTCREDITS;
+	}
+
+	/**
+	 * Instantiates a new stream callback.
+	 */
+	public StreamCallback() {
+		this(DEFAULTCREDITS);
+	}
+
+	/**
+	 * Called for each received item, in order. Calls to this method are never
+	 * concurrent for a single stream.
+	 *
+	 * @param item
+	 *            the item
+	 */
+	public abstract void onItem(T item);
+
+	/**
+	 * Called after the last item has been delivered.
+	 */
+	public abstract void onComplete();
+
+	@Override
+	public void onSuccess(final T item) {
+		onItem(item);
+	}
+
+	/**
+	 * Gets the number of chunks that may be in flight.
+	 *
+	 * @return the credits
+	 */
+	public int getCredits() {
+		return credits;
+	}
+
+	/**
+	 * Stop receiving this stream. Items that are already in flight are
+	 * dropped and the remote side is asked to stop sending.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Checks if this stream has been cancelled.
+	 *
+	 * @return true, if cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util.threads;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The Class ReadWriteExecutor, a read-write lock that queues tasks instead of
+ * blocking threads. Shared tasks run concurrently with each other, an exclusive
+ * task runs alone. Tasks are started in order of arrival: a waiting exclusive
+ * task holds back the shared tasks behind it, so it can't be starved.
+ * Tasks that can't start yet wait in the queue, without occupying a thread
+ * of the pool. An executor with only exclusive tasks is a serial executor.
+ */
+public class ReadWriteExecutor implements Executor {
+	private static final Logger	LOG			= Logger.getLogger(ReadWriteExecutor.class
+													.getName());
+	private final Executor		pool;
+	private final Queue<Task>	queue		= new ArrayDeque<Task>();
+	private int					readers		= 0;
+	private boolean				writing		= false;
+
+	/**
+	 * Instantiates a new read-write executor, running the tasks on the given
+	 * pool.
+	 *
+	 * @param pool
+	 *            the pool
+	 */
+	public ReadWriteExecutor(final Executor pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Instantiates a new read-write executor, running the tasks on the
+	 * ThreadPool.
+	 */
+	public ReadWriteExecutor() {
+		this(ThreadPool.getPool());
+	}
+
+	/**
+	 * Execute the task exclusively.
+	 *
+	 * @param task
+	 *            the task
+	 */
+	@Override
+	public void execute(final Runnable task) {
+		execute(task, true);
+	}
+
+	/**
+	 * Execute the task, shared or exclusive.
+	 *
+	 * @param task
+	 *            the task
+	 * @param exclusive
+	 *            true if the task must run alone, false if it may run
+	 *            concurrently with other shared tasks.
+	 */
+	public void execute(final Runnable task, final boolean exclusive) {
+		synchronized (queue) {
+			queue.add(new Task(task, exclusive));
+		}
+		drain();
+	}
+
+	/**
+	 * Gets the number of waiting tasks.
+	 *
+	 * @return the number of tasks that haven't started yet.
+	 */
+	public int getQueueSize() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	private void drain() {
+		for (;;) {
+			final Task next;
+			synchronized (queue) {
+				next = queue.peek();
+				if (next == null || writing
+						|| (next.exclusive && readers > 0)) {
+					return;
+				}
+				queue.poll();
+				if (next.exclusive) {
+					writing = true;
+				} else {
+					readers++;
+				}
+			}
+			pool.execute(next);
+		}
+	}
+
+	private void done(final Task task) {
+		synchronized (queue) {
+			if (task.exclusive) {
+				writing = false;
+			} else {
+				readers--;
+			}
+		}
+		drain();
+	}
+
+	private class Task implements Runnable {
+		private final Runnable	task;
+		private final boolean	exclusive;
+
+		Task(final Runnable task, final boolean exclusive) {
+			this.task = task;
+			this.exclusive = exclusive;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} catch (final RuntimeException e) {
+				LOG.log(Level.WARNING, "Task failed", e);
+			} finally {
+				done(this);
+			}
+		}
+	}
+}
@@ -5,12 +5,14 @@
 package com.almende.eve.protocol.jsonrpc;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.invoke.MethodHandle;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,6 +28,7 @@ import com.almende.eve.protocol.jsonrpc.annotation.Sender;
 import com.almende.eve.protocol.jsonrpc.formats.JSONRPCException;
 import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
 import com.almende.eve.protocol.jsonrpc.formats.JSONResponse;
+import com.almende.eve.protocol.jsonrpc.formats.ResultStream;
 import com.almende.util.AnnotationUtil;
 import com.almende.util.AnnotationUtil.AnnotatedMethod;
 import com.almende.util.AnnotationUtil.AnnotatedParam;
@@ -164,7 +167,7 @@ public final class JSONRpc {
 			if (Defines.HASMETHODHANDLES) {
 				final Object[] params = castParams(realDest,
 						request.getParams(), annotatedMethod.getParams(),
-						senderUrl, request.getId());
+						senderUrl, request);
 				if (annotatedMethod.isVoid()) {
 					methodHandle.invokeExact(params);
 				} else {
@@ -172,10 +175,22 @@ public final class JSONRpc {
 				}
 			} else {
 				final Object[] params = castParams(request.getParams(),
-						annotatedMethod.getParams(), senderUrl, request.getId());
+						annotatedMethod.getParams(), senderUrl, request);
 				result = method.invoke(realDest, params);
 			}
 			if (resp != null) {
+				if (result instanceof ResultStream) {
+					if (ResultStream.isRequested(request)) {
+						resp.setStream((ResultStream<?>) result);
+						return resp;
+					}
+					result = ((ResultStream<?>) result).toList();
+				}
+				if (result instanceof ByteBuffer) {
+					result = resp.attach((ByteBuffer) result);
+				} else if (result instanceof InputStream) {
+					result = resp.attach((InputStream) result);
+				}
 				if (result == null) {
 					result = JOM.createNullNode();
 				}
@@ -313,6 +328,75 @@ public final class JSONRpc {
 		return JOM.getTypeSchema(c);
 	}
 
+	/**
+	 * Checks if a parameter or result of the given type can be taken from an
+	 * attachment directly.
+	 *
+	 * @param type
+	 *            the type
+	 * @return true, if the type is ByteBuffer, InputStream or byte[]
+	 */
+	static boolean isAttachmentType(final Class<?> type) {
+		return ByteBuffer.class.equals(type)
+				|| InputStream.class.equals(type) || byte[].class.equals(type);
+	}
+
+	/**
+	 * Convert an attachment to the given type.
+	 *
+	 * @param attachment
+	 *            the attachment
+	 * @param type
+	 *            the type, see {@link #isAttachmentType(Class)}
+	 * @return the converted attachment
+	 */
+	static Object fromAttachment(final ByteBuffer attachment,
+			final Class<?> type) {
+		if (ByteBuffer.class.equals(type)) {
+			return attachment;
+		}
+		if (InputStream.class.equals(type)) {
+			return new ByteBufferInputStream(attachment);
+		}
+		final byte[] result = new byte[attachment.remaining()];
+		attachment.duplicate().get(result);
+		return result;
+	}
+
+	/**
+	 * An InputStream reading from a ByteBuffer, without copying it.
+	 */
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer	buffer;
+
+		private ByteBufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer.duplicate();
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int off, final int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			final int count = Math.min(len, buffer.remaining());
+			buffer.get(bytes, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
 	/**
 	 * Retrieve a description of an error.
 	 * 
@@ -336,8 +420,8 @@ public final class JSONRpc {
 	 */
 	private static Object[] castParams(final ObjectNode params,
 			final List<AnnotatedParam> annotatedParams, final URI senderUrl,
-			final JsonNode requestId) {
-		return castParams(null, params, annotatedParams, senderUrl, requestId);
+			final JSONRequest request) {
+		return castParams(null, params, annotatedParams, senderUrl, request);
 	}
 
 	/**
@@ -354,7 +438,7 @@ public final class JSONRpc {
 	private static Object[] castParams(final Object realDest,
 			final ObjectNode params,
 			final List<AnnotatedParam> annotatedParams, final URI senderUrl,
-			final JsonNode requestId) {
+			final JSONRequest request) {
 
 		switch (annotatedParams.size()) {
 			case 0:
@@ -404,7 +488,7 @@ public final class JSONRpc {
 						} else {
 							a = p.getAnnotation(RequestId.class);
 							if (a != null) {
-								objects[i + offset] = requestId;
+								objects[i + offset] = request.getId();
 							} else {
 								// this is a problem
 								throw new ClassCastException(
@@ -415,8 +499,17 @@ public final class JSONRpc {
 					} else {
 						// this is a named parameter
 						if (paramsObject.has(name)) {
-							objects[i + offset] = TypeUtil.inject(
-									paramsObject.get(name), p.getGenericType());
+							final JsonNode value = paramsObject.get(name);
+							final ByteBuffer attachment = request
+									.getAttachment(value);
+							if (attachment != null
+									&& isAttachmentType(p.getType())) {
+								objects[i + offset] = fromAttachment(
+										attachment, p.getType());
+							} else {
+								objects[i + offset] = TypeUtil.inject(value,
+										p.getGenericType());
+							}
 						} else {
 							if (isRequired(p)) {
 								throw new ClassCastException(
@@ -6,6 +6,11 @@ package com.almende.eve.protocol.jsonrpc;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,15 +19,28 @@ import com.almende.eve.capabilities.handler.SimpleHandler;
 import com.almende.eve.protocol.Meta;
 import com.almende.eve.protocol.auth.Authorizor;
 import com.almende.eve.protocol.auth.DefaultAuthorizor;
+import com.almende.eve.protocol.jsonrpc.NamespaceUtil.CallTuple;
+import com.almende.eve.protocol.jsonrpc.annotation.Concurrent;
+import com.almende.eve.protocol.jsonrpc.annotation.Exclusive;
+import com.almende.eve.protocol.jsonrpc.annotation.Sequential;
 import com.almende.eve.protocol.jsonrpc.formats.Caller;
 import com.almende.eve.protocol.jsonrpc.formats.JSONMessage;
 import com.almende.eve.protocol.jsonrpc.formats.JSONRPCException;
 import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
 import com.almende.eve.protocol.jsonrpc.formats.JSONResponse;
+import com.almende.eve.protocol.jsonrpc.formats.ResultStream;
+import com.almende.util.AnnotationUtil;
+import com.almende.util.AnnotationUtil.AnnotatedClass;
+import com.almende.util.AnnotationUtil.AnnotatedMethod;
+import com.almende.util.AnnotationUtil.CachedAnnotation;
 import com.almende.util.TypeUtil;
 import com.almende.util.callback.AsyncCallback;
 import com.almende.util.callback.AsyncCallbackStore;
+import com.almende.util.callback.StreamCallback;
+import com.almende.util.jackson.JOM;
+import com.almende.util.threads.ReadWriteExecutor;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -32,7 +50,12 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 	private static final Logger						LOG					= Logger.getLogger(JSONRpcProtocol.class
 																				.getName());
 	private static final TypeUtil<JSONResponse>		JSONRESPONSETYPE	= new TypeUtil<JSONResponse>() {};
+	private static final ThreadLocal<Long>			CURRENTDEADLINE		= new ThreadLocal<Long>();
 	private final AsyncCallbackStore<JSONResponse>	callbacks;
+	private final ConcurrentHashMap<String, OutboundStream>	streams	= new ConcurrentHashMap<String, OutboundStream>();
+	private final ReadWriteExecutor					agentExecutor		= new ReadWriteExecutor();
+	private final ConcurrentHashMap<String, ReadWriteExecutor>	groups	= new ConcurrentHashMap<String, ReadWriteExecutor>();
+	private final ConcurrentHashMap<String, Isolation>	isolations	= new ConcurrentHashMap<String, Isolation>();
 	private final Handler<Object>					destination;
 	private Handler<Caller>							caller				= null;
 	private Handler<Authorizor>						auth				= new SimpleHandler<Authorizor>(
@@ -67,11 +90,117 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 
 	@Override
 	public boolean inbound(final Meta input) {
-		final JSONResponse response = invoke(input.getMsg(), input.getPeer());
+		final JSONMessage msg = JSONMessage.jsonConvert(input.getMsg());
+		if (msg == null || !msg.isRequest()) {
+			handle(input, msg != null ? msg : input.getMsg());
+		} else {
+			schedule((JSONRequest) msg, new Runnable() {
+				@Override
+				public void run() {
+					handle(input, msg);
+				}
+			});
+		}
+		// TODO: currently not calling next on protocol stack, in the future use
+		// this as a filter, sometimes forward.
+		return true;
+	}
+
+	/**
+	 * Run the handling of this request with the isolation its method asks for,
+	 * through the @Concurrent, @Sequential and @Exclusive annotations.
+	 * Methods without these annotations are handled directly. Requests that
+	 * don't arrive through {@link #inbound(Meta)}, e.g. direct invocations
+	 * between co-located agents, must be run through here as well.
+	 *
+	 * @param request
+	 *            the request
+	 * @param task
+	 *            the task
+	 */
+	public void schedule(final JSONRequest request, final Runnable task) {
+		final CachedAnnotation isolation = getIsolation(request.getMethod());
+		if (isolation == null) {
+			task.run();
+		} else if (isolation.getAnnotation() instanceof Exclusive) {
+			final String group = (String) isolation.value();
+			ReadWriteExecutor executor = groups.get(group);
+			if (executor == null) {
+				executor = new ReadWriteExecutor();
+				final ReadWriteExecutor prev = groups.putIfAbsent(group,
+						executor);
+				if (prev != null) {
+					executor = prev;
+				}
+			}
+			executor.execute(task, true);
+		} else {
+			agentExecutor.execute(task,
+					isolation.getAnnotation() instanceof Sequential);
+		}
+	}
+
+	/**
+	 * Gets the isolation annotation of the given method, resolved once per
+	 * method and class of the destination.
+	 *
+	 * @param path
+	 *            the method, with its namespace
+	 * @return the isolation, or null if the method doesn't ask for any.
+	 */
+	private CachedAnnotation getIsolation(final String path) {
+		final Object dest = destination.get();
+		if (dest == null || path == null) {
+			return null;
+		}
+		Isolation isolation = isolations.get(path);
+		if (isolation != null && isolation.clazz == dest.getClass()) {
+			return isolation.annotation;
+		}
+		AnnotatedMethod method = null;
+		Object target = null;
+		try {
+			final CallTuple tuple = NamespaceUtil.get(dest, path);
+			method = tuple.getMethod();
+			target = tuple.getDestination();
+		} catch (final Exception e) {
+			// Unknown method, the invocation will report this.
+		}
+		if (method == null || target == null) {
+			// Not cached, callers can make up any number of unknown methods.
+			return null;
+		}
+		CachedAnnotation annotation = getIsolation(method.getAnnotation(
+				Exclusive.class), method.getAnnotation(Sequential.class),
+				method.getAnnotation(Concurrent.class));
+		if (annotation == null) {
+			final AnnotatedClass clazz = AnnotationUtil.get(target.getClass());
+			annotation = getIsolation(clazz.getAnnotation(Exclusive.class),
+					clazz.getAnnotation(Sequential.class),
+					clazz.getAnnotation(Concurrent.class));
+		}
+		isolations.put(path, new Isolation(dest.getClass(), annotation));
+		return annotation;
+	}
+
+	private static CachedAnnotation getIsolation(
+			final CachedAnnotation... annotations) {
+		for (final CachedAnnotation annotation : annotations) {
+			if (annotation != null) {
+				return annotation;
+			}
+		}
+		return null;
+	}
+
+	private void handle(final Meta input, final Object msg) {
+		// Tagged requests get their result as a single response.
+		final JSONResponse response = invoke(msg, input.getPeer(),
+				input.getTag() == null);
 		if (response != null) {
 			if (caller == null) {
 				LOG.warning("JSONRpcProtocol has response, but no caller given.");
-				return false;
+				return;
 			}
 			try {
 				caller.get().call(input.getPeer(), response, input.getTag());
@@ -88,15 +217,15 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 				LOG.log(Level.WARNING, "Couldn't send response", e);
 			}
 		}
-		// TODO: currently not calling next on protocol stack, in the future use
-		// this as a filter, sometimes forward.
-		return true;
 	}
 
 	public boolean outbound(final Meta output) {
 		if (output.getMsg() instanceof JSONRequest) {
 			final JSONRequest request = (JSONRequest) output.getMsg();
-			addCallback(request, request.getCallback());
+			if (myParams.isPropagateDeadlines()) {
+				setDeadline(request);
+			}
+			addCallback(request, request.getCallback(), output.getPeer());
 		}
 		return output.nextOut();
 	}
@@ -121,7 +250,8 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 	}
 
 	/**
-	 * Invoke this RPC msg.
+	 * Invoke this RPC msg. A streamed result is collected into a single
+	 * response.
 	 * 
 	 * @param msg
 	 *            the msg
@@ -130,6 +260,11 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 	 * @return the JSON response
 	 */
 	public JSONResponse invoke(final Object msg, final URI senderUrl) {
+		return invoke(msg, senderUrl, false);
+	}
+
+	private JSONResponse invoke(final Object msg, final URI senderUrl,
+			final boolean stream) {
 		final JSONMessage jsonMsg = JSONMessage.jsonConvert(msg);
 		if (jsonMsg == null) {
 			LOG.log(Level.INFO, "Received non-JSONRPC message:'" + msg + "'");
@@ -139,13 +274,36 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 		try {
 			if (jsonMsg.isRequest()) {
 				final JSONRequest request = (JSONRequest) jsonMsg;
-				return JSONRpc.invoke(destination.get(), request, senderUrl,
-						auth.get());
+				if (myParams.isShedExpired() && request.isExpired()) {
+					LOG.fine("Dropping expired request:" + request.getMethod());
+					if (id != null && !id.isNull()) {
+						return new JSONResponse(id, new JSONRPCException(
+								JSONRPCException.CODE.DEADLINE_EXCEEDED,
+								"Deadline of request '" + request.getMethod()
+										+ "' has passed"));
+					}
+					return null;
+				}
+				final JSONResponse response = invoke(request, senderUrl);
+				if (response != null && response.getStream() != null) {
+					if (stream && caller != null) {
+						startStream(senderUrl, response, request.getExtra()
+								.get(ResultStream.CREDITS).asInt());
+						return null;
+					}
+					response.setResult(response.getStream().toList());
+					response.setStream(null);
+				}
+				return response;
 			} else if (jsonMsg.isResponse() && callbacks != null && id != null
 					&& !id.isNull()) {
-				final AsyncCallback<JSONResponse> callback = callbacks.get(id);
+				final JSONResponse response = (JSONResponse) jsonMsg;
+				// Chunks of a streamed result share the callback, which
+				// removes itself after the last chunk.
+				final AsyncCallback<JSONResponse> callback = ResultStream
+						.isChunk(response) ? callbacks.peek(id) : callbacks
+						.get(id);
 				if (callback != null) {
-					final JSONResponse response = (JSONResponse) jsonMsg;
 					final JSONRPCException error = response.getError();
 					if (error != null) {
 						callback.onFailure(error);
@@ -153,6 +311,10 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 						callback.onSuccess(response);
 					}
 				}
+			} else if (ResultStream.isRequested(jsonMsg) && id != null
+					&& !id.isNull()) {
+				grant(senderUrl, id,
+						jsonMsg.getExtra().get(ResultStream.CREDITS).asInt());
 			}
 		} catch (final Exception e) {
 			// generate JSON error response, skipped if it was an incoming
@@ -169,6 +331,38 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 		return null;
 	}
 
+	private JSONResponse invoke(final JSONRequest request, final URI senderUrl) {
+		if (!myParams.isPropagateDeadlines()) {
+			return JSONRpc.invoke(destination.get(), request, senderUrl,
+					auth.get());
+		}
+		// Calls made during this invocation inherit its deadline.
+		final Long outer = CURRENTDEADLINE.get();
+		CURRENTDEADLINE.set(request.getDeadline());
+		try {
+			return JSONRpc.invoke(destination.get(), request, senderUrl,
+					auth.get());
+		} finally {
+			if (outer == null) {
+				CURRENTDEADLINE.remove();
+			} else {
+				CURRENTDEADLINE.set(outer);
+			}
+		}
+	}
+
+	/**
+	 * Cancel the callback of an outstanding request, a late response to this
+	 * request will be ignored.
+	 *
+	 * @param id
+	 *            the id of the request
+	 * @return true, if the request was still outstanding.
+	 */
+	public boolean cancel(final JsonNode id) {
+		return callbacks.cancel(id);
+	}
+
 	/**
 	 * Gets the methods.
 	 * 
@@ -178,18 +372,69 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 		return JSONRpc.describe(getHandle().get(), auth.get());
 	}
 
+	/**
+	 * Gets the deadline of the inbound request currently handled in this
+	 * thread, which calls made from this thread inherit. Callers that send
+	 * requests from another thread should capture it first.
+	 *
+	 * @return the deadline (in milliseconds since epoch), or null if there is
+	 *         none.
+	 */
+	public static Long getCurrentDeadline() {
+		return CURRENTDEADLINE.get();
+	}
+
+	/**
+	 * Sets the deadline of the request: the earliest of its own deadline, the
+	 * callback timeout and the deadline of the inbound request currently
+	 * handled in this thread.
+	 *
+	 * @param request
+	 *            the request
+	 */
+	private void setDeadline(final JSONRequest request) {
+		Long deadline = request.getDeadline();
+		if (request.getCallback() != null) {
+			final long timeout = System.currentTimeMillis()
+					+ myParams.getCallbackTimeout() * 1000L;
+			if (deadline == null || timeout < deadline) {
+				deadline = timeout;
+			}
+		}
+		final Long inherited = CURRENTDEADLINE.get();
+		if (inherited != null && (deadline == null || inherited < deadline)) {
+			deadline = inherited;
+		}
+		if (deadline != null) {
+			request.setDeadline(deadline);
+		}
+	}
+
 	private <T> void addCallback(final JSONRequest request,
-			final AsyncCallback<T> asyncCallback) {
+			final AsyncCallback<T> asyncCallback, final URI peer) {
 		if (asyncCallback == null || request.getId() == null
 				|| request.getId().isNull()) {
 			return;
 		}
+		if (asyncCallback instanceof StreamCallback) {
+			final StreamCallback<T> streamCallback = (StreamCallback<T>) asyncCallback;
+			ObjectNode extra = request.getExtra();
+			if (extra == null) {
+				extra = JOM.createObjectNode();
+				request.setExtra(extra);
+			}
+			extra.put(ResultStream.CREDITS, streamCallback.getCredits());
+			storeCallback(request, new StreamReceiver<T>(request, peer,
+					streamCallback));
+			return;
+		}
 
 		// Create a callback to retrieve a JSONResponse and extract the result
 		// or error from this. This is double nested, mostly because of the type
 		// conversions required on the result.
 		final AsyncCallback<JSONResponse> responseCallback = new AsyncCallback<JSONResponse>(
 				JSONRESPONSETYPE) {
+			@SuppressWarnings("unchecked")
 			@Override
 			public void onSuccess(final JSONResponse response) {
 				final Exception err = response.getError();
@@ -199,6 +444,15 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 				if (asyncCallback.getType() != null
 						&& !asyncCallback.getType().getJavaType().getRawClass()
 								.equals(Void.class)) {
+					final Class<?> raw = asyncCallback.getType().getJavaType()
+							.getRawClass();
+					final ByteBuffer attachment = response
+							.getAttachment(response.getResult());
+					if (attachment != null && JSONRpc.isAttachmentType(raw)) {
+						asyncCallback.onSuccess((T) JSONRpc.fromAttachment(
+								attachment, raw));
+						return;
+					}
 					try {
 						final T res = asyncCallback.getType().inject(
 								response.getResult());
@@ -220,9 +474,21 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 			}
 		};
 
+		storeCallback(request, responseCallback);
+	}
+
+	private void storeCallback(final JSONRequest request,
+			final AsyncCallback<JSONResponse> responseCallback) {
 		if (callbacks != null) {
-			callbacks.put(((JSONMessage) request).getId(),
-					"Outbound message callback.", responseCallback);
+			final Long deadline = request.getDeadline();
+			if (deadline != null) {
+				callbacks.put(((JSONMessage) request).getId(),
+						"Outbound message callback.", responseCallback,
+						deadline);
+			} else {
+				callbacks.put(((JSONMessage) request).getId(),
+						"Outbound message callback.", responseCallback);
+			}
 		}
 	}
 
@@ -244,8 +510,267 @@ public class JSONRpcProtocol implements RpcBasedProtocol {
 		return myParams;
 	}
 
+	/**
+	 * Start sending a streamed result, as far as the credits of the request
+	 * allow. Streams that have been idle for longer than the callback timeout
+	 * are dropped.
+	 */
+	private void startStream(final URI peer, final JSONResponse response,
+			final int credits) {
+		final long idle = System.currentTimeMillis()
+				- myParams.getCallbackTimeout() * 1000L;
+		final Iterator<OutboundStream> iter = streams.values().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().lastActive < idle) {
+				iter.remove();
+			}
+		}
+		final JsonNode id = response.getId();
+		final OutboundStream stream = new OutboundStream(peer, id, response
+				.getStream().getItems());
+		streams.put(stream.key, stream);
+		stream.grant(Math.max(1, credits));
+	}
+
+	private void grant(final URI peer, final JsonNode id, final int credits) {
+		final OutboundStream stream = streams.get(String.valueOf(peer) + " "
+				+ id);
+		if (stream != null) {
+			stream.grant(credits);
+		}
+	}
+
+	/**
+	 * The isolation of a method, for the class of the destination it was
+	 * resolved for.
+	 */
+	private static final class Isolation {
+		private final Class<?>			clazz;
+		private final CachedAnnotation	annotation;
+
+		private Isolation(final Class<?> clazz,
+				final CachedAnnotation annotation) {
+			this.clazz = clazz;
+			this.annotation = annotation;
+		}
+	}
+
+	/**
+	 * A streamed result that is being sent, in chunks, as the receiver grants
+	 * credits for them. A negative credit cancels the stream.
+	 */
+	private final class OutboundStream {
+		private final String		key;
+		private final URI			peer;
+		private final JsonNode		id;
+		private final Iterator<?>	items;
+		private final int			chunkSize	= myParams.getStreamChunkSize();
+		private int					credits		= 0;
+		private long				seq			= 0;
+		private boolean				done		= false;
+		private volatile long		lastActive	= System.currentTimeMillis();
+
+		private OutboundStream(final URI peer, final JsonNode id,
+				final Iterator<?> items) {
+			this.key = String.valueOf(peer) + " " + id;
+			this.peer = peer;
+			this.id = id;
+			this.items = items;
+		}
+
+		private void grant(final int count) {
+			lastActive = System.currentTimeMillis();
+			synchronized (this) {
+				if (count < 0) {
+					finish();
+					return;
+				}
+				credits += count;
+			}
+			while (true) {
+				final JSONResponse chunk;
+				synchronized (this) {
+					if (done || credits <= 0) {
+						return;
+					}
+					credits--;
+					chunk = nextChunk();
+				}
+				try {
+					caller.get().call(peer, chunk, null);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Couldn't send result chunk", e);
+					synchronized (this) {
+						finish();
+					}
+					return;
+				}
+			}
+		}
+
+		private JSONResponse nextChunk() {
+			final ArrayNode result = JOM.createArrayNode();
+			final boolean more;
+			try {
+				while (result.size() < chunkSize && items.hasNext()) {
+					result.add(JOM.getInstance().valueToTree(items.next()));
+				}
+				more = items.hasNext();
+			} catch (final RuntimeException e) {
+				LOG.log(Level.WARNING, "Exception in streaming result", e);
+				finish();
+				return new JSONResponse(id, new JSONRPCException(
+						JSONRPCException.CODE.INTERNAL_ERROR, e.getMessage(),
+						e));
+			}
+			final JSONResponse chunk = new JSONResponse(id, result);
+			final ObjectNode extra = JOM.createObjectNode();
+			extra.put(ResultStream.SEQ, seq++);
+			extra.put(ResultStream.MORE, more);
+			chunk.setExtra(extra);
+			if (!more) {
+				finish();
+			}
+			return chunk;
+		}
+
+		private void finish() {
+			done = true;
+			streams.remove(key, this);
+		}
+	}
+
+	/**
+	 * Receives the chunks of a streamed result, restores their order and
+	 * hands out new credits while the items are consumed.
+	 */
+	private final class StreamReceiver<T> extends AsyncCallback<JSONResponse> {
+		private final JsonNode					id;
+		private final String					method;
+		private final URI						peer;
+		private final StreamCallback<T>			callback;
+		private final Map<Long, JSONResponse>	pending		= new HashMap<Long, JSONResponse>();
+		private long							next		= 0;
+		private int								consumed	= 0;
+		private boolean							done		= false;
+
+		private StreamReceiver(final JSONRequest request, final URI peer,
+				final StreamCallback<T> callback) {
+			super(JSONRESPONSETYPE);
+			this.id = request.getId();
+			this.method = request.getMethod();
+			this.peer = peer;
+			this.callback = callback;
+		}
+
+		@Override
+		public void onSuccess(final JSONResponse response) {
+			int grant = 0;
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				if (!ResultStream.isChunk(response)) {
+					// Remote side didn't stream the result.
+					done = true;
+					if (deliver(response.getResult())) {
+						callback.onComplete();
+					}
+					return;
+				}
+				if (callback.isCancelled()) {
+					done = true;
+					callbacks.cancel(id);
+					grant = -1;
+				} else {
+					pending.put(response.getExtra().get(ResultStream.SEQ)
+							.asLong(), response);
+					JSONResponse chunk = pending.remove(next);
+					while (chunk != null) {
+						next++;
+						if (!deliver(chunk.getResult())) {
+							done = true;
+							callbacks.cancel(id);
+							grant = -1;
+							break;
+						}
+						if (!chunk.getExtra().get(ResultStream.MORE)
+								.asBoolean()) {
+							done = true;
+							callbacks.cancel(id);
+							callback.onComplete();
+							return;
+						}
+						consumed++;
+						chunk = pending.remove(next);
+					}
+					if (grant == 0
+							&& consumed >= Math.max(1,
+									callback.getCredits() / 2)) {
+						grant = consumed;
+						consumed = 0;
+					}
+				}
+			}
+			if (grant != 0) {
+				sendCredits(grant);
+			}
+		}
+
+		private boolean deliver(final JsonNode result) {
+			try {
+				if (result != null && result.isArray()) {
+					for (final JsonNode item : result) {
+						callback.onItem(inject(item));
+					}
+				} else if (result != null && !result.isNull()) {
+					callback.onItem(inject(result));
+				}
+				return true;
+			} catch (final ClassCastException cce) {
+				callback.onFailure(new JSONRPCException(
+						"Incorrect return type received for JSON-RPC call:"
+								+ method, cce));
+				return false;
+			}
+		}
+
+		private T inject(final JsonNode item) {
+			if (callback.getType() == null) {
+				return null;
+			}
+			return callback.getType().inject(item);
+		}
+
+		private void sendCredits(final int count) {
+			final JSONMessage message = new JSONMessage();
+			message.setId(id);
+			final ObjectNode extra = JOM.createObjectNode();
+			extra.put(ResultStream.CREDITS, count);
+			message.setExtra(extra);
+			try {
+				caller.get().call(peer, message);
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Couldn't send stream credits", e);
+			}
+		}
+
+		@Override
+		public void onFailure(final Exception exception) {
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				done = true;
+			}
+			callbacks.cancel(id);
+			callback.onFailure(exception);
+		}
+	}
+
 	@Override
 	public void delete() {
+		streams.clear();
 		callbacks.clear();
 		JSONRpcProtocolBuilder.delete(myParams.getId());
 	}
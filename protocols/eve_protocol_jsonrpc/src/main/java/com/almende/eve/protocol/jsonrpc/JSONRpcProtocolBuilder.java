@@ -90,6 +90,17 @@ public class JSONRpcProtocolBuilder extends
 		return result;
 	}
 
+	/**
+	 * Gets the protocol with the given id, if it has been built.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the protocol, or null
+	 */
+	public static JSONRpcProtocol get(final String id) {
+		return INSTANCES.get(id);
+	}
+
 	/**
 	 * Delete.
 	 *
@@ -66,4 +66,73 @@ public class JSONRpcProtocolConfig extends ProtocolConfig {
 		}
 		return 30;
 	}
+
+	/**
+	 * Sets whether outbound requests should carry a deadline, based on the
+	 * callback timeout. Calls made during the handling of an inbound request
+	 * inherit the remaining time of that request.
+	 *
+	 * @param propagate
+	 *            the new propagate deadlines
+	 */
+	public void setPropagateDeadlines(final boolean propagate) {
+		this.put("propagateDeadlines", propagate);
+	}
+
+	/**
+	 * Checks if deadlines are propagated. (default: true)
+	 *
+	 * @return true, if deadlines are propagated
+	 */
+	public boolean isPropagateDeadlines() {
+		if (this.has("propagateDeadlines")) {
+			return this.get("propagateDeadlines").asBoolean();
+		}
+		return true;
+	}
+
+	/**
+	 * Sets whether inbound requests that have passed their deadline should be
+	 * answered with an error, instead of being executed.
+	 *
+	 * @param shed
+	 *            the new shed expired
+	 */
+	public void setShedExpired(final boolean shed) {
+		this.put("shedExpired", shed);
+	}
+
+	/**
+	 * Checks if expired requests are shed. (default: true)
+	 *
+	 * @return true, if expired requests are shed
+	 */
+	public boolean isShedExpired() {
+		if (this.has("shedExpired")) {
+			return this.get("shedExpired").asBoolean();
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the number of items per chunk of a streamed result.
+	 *
+	 * @param size
+	 *            the new chunk size
+	 */
+	public void setStreamChunkSize(final int size) {
+		this.put("streamChunkSize", size);
+	}
+
+	/**
+	 * Gets the number of items per chunk of a streamed result. (default: 100)
+	 *
+	 * @return the chunk size
+	 */
+	public int getStreamChunkSize() {
+		if (this.has("streamChunkSize")) {
+			return this.get("streamChunkSize").asInt();
+		}
+		return 100;
+	}
 }
@@ -0,0 +1,27 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.protocol.jsonrpc.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * An annotation that indicates that this method may run concurrently with
+ * other calls, but not during a call to a {@link Sequential} method of the
+ * same agent. On a class, this applies to all methods without a concurrency
+ * annotation of their own.
+ * 
+ * Methods without any concurrency annotation are called directly, without
+ * isolation.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD, ElementType.TYPE })
+@Documented
+public @interface Concurrent {
+
+}
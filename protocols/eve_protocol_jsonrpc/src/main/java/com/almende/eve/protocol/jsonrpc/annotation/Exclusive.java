@@ -0,0 +1,30 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.protocol.jsonrpc.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * An annotation that indicates that this method must not run concurrently
+ * with other methods of the same group, e.g. because they share some state.
+ * Calls within a group run one at a time, in order of arrival. Groups are
+ * independent of each other and of {@link Sequential} methods.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD, ElementType.TYPE })
+@Documented
+public @interface Exclusive {
+
+	/**
+	 * The group.
+	 * 
+	 * @return the name of the group
+	 */
+	String value();
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.protocol.jsonrpc.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * An annotation that indicates that calling this method multiple times with
+ * the same parameters gives the same result, without additional side effects.
+ * 
+ * This is used in the AgentProxy to mark requests that may be coalesced with
+ * identical concurrent requests, see CoalescingCaller.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD })
+@Documented
+public @interface Idempotent {
+
+}
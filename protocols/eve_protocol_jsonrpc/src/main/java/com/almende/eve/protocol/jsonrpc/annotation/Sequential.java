@@ -0,0 +1,26 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.protocol.jsonrpc.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * An annotation that indicates that this method must run alone: calls to
+ * {@link Sequential} and {@link Concurrent} methods of the same agent are
+ * queued until it is done. On a class, this applies to all methods without a
+ * concurrency annotation of their own.
+ * 
+ * Queued calls don't occupy a thread, see ReadWriteExecutor.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD, ElementType.TYPE })
+@Documented
+public @interface Sequential {
+
+}
@@ -12,6 +12,7 @@ import java.util.List;
 
 import com.almende.util.TypeUtil;
 import com.almende.util.callback.AsyncCallback;
+import com.almende.util.callback.FutureCallback;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -231,4 +232,108 @@ public interface Caller {
 	<T> T callSync(URI url, String method, ObjectNode params, Type type)
 			throws IOException;
 
+	/**
+	 * Send the same notification to multiple agents. The outbound protocols
+	 * are run and the message is serialized once for all receivers, if the
+	 * protocol stack allows it. Only notifications (requests without
+	 * callback) can be multicast.
+	 *
+	 * @param urls
+	 *            the addresses of the other agents
+	 * @param message
+	 *            the notification
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void multicast(final List<URI> urls, final JSONRequest message)
+			throws IOException;
+
+	/**
+	 * Send asynchronous request, returning a future for the result. The future
+	 * is completed directly from the thread handling the response.
+	 *
+	 * @param <T>
+	 *            the generic type of the result, controlled by the TypeUtil
+	 *            injector.
+	 * @param url
+	 *            the address of the other agent
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @param clazz
+	 *            the expected result type, in the form of a class.
+	 * @return the future result, cast/converted to the given type.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	<T> FutureCallback<T> callAsync(final URI url, final String method,
+			final ObjectNode params, final Class<T> clazz) throws IOException;
+
+	/**
+	 * Send asynchronous request, returning a future for the result. The future
+	 * is completed directly from the thread handling the response.
+	 *
+	 * @param <T>
+	 *            the generic type of the result, controlled by the TypeUtil
+	 *            injector.
+	 * @param url
+	 *            the address of the other agent
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @param type
+	 *            the expected result type, in the form of a TypeUtil injector.
+	 * @return the future result, cast/converted to the given type.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	<T> FutureCallback<T> callAsync(final URI url, final String method,
+			final ObjectNode params, final TypeUtil<T> type) throws IOException;
+
+	/**
+	 * Send asynchronous request, returning a future for the result. The future
+	 * is completed directly from the thread handling the response.
+	 *
+	 * @param <T>
+	 *            the generic type of the result, controlled by the TypeUtil
+	 *            injector.
+	 * @param url
+	 *            the address of the other agent
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @param type
+	 *            the expected result type, in the form of a Jackson JavaType.
+	 * @return the future result, cast/converted to the given type.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	<T> FutureCallback<T> callAsync(final URI url, final String method,
+			final ObjectNode params, final JavaType type) throws IOException;
+
+	/**
+	 * Send asynchronous request, returning a future for the result. The future
+	 * is completed directly from the thread handling the response.
+	 *
+	 * @param <T>
+	 *            the generic type of the result, controlled by the TypeUtil
+	 *            injector.
+	 * @param url
+	 *            the address of the other agent
+	 * @param method
+	 *            the remote RPC method
+	 * @param params
+	 *            the remote RPC method's params
+	 * @param type
+	 *            the expected result type, in the form of a Java Type.
+	 * @return the future result, cast/converted to the given type.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	<T> FutureCallback<T> callAsync(final URI url, final String method,
+			final ObjectNode params, final Type type) throws IOException;
+
 }
@@ -4,11 +4,22 @@
  */
 package com.almende.eve.protocol.jsonrpc.formats;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.commons.codec.binary.Base64;
+
+import com.almende.util.BinaryFrame;
+import com.almende.util.BinaryMessage;
 import com.almende.util.jackson.JOM;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -16,9 +27,13 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
- * The Class JSONMessage.
+ * The Class JSONMessage. A message can carry binary attachments, which are
+ * referred to from the params or result as {"$blob":id}. Attachments never
+ * enter the JSON tree: transports with binary frames send them as raw data,
+ * the text representation of the message embeds them in a separate
+ * "attachments" member.
  */
-public class JSONMessage implements Serializable {
+public class JSONMessage implements Serializable, BinaryMessage {
 	private static final Logger		LOG					= Logger.getLogger(JSONMessage.class
 																.getName());
 	private static final long		serialVersionUID	= -3324436908445901707L;
@@ -32,9 +47,12 @@ public class JSONMessage implements Serializable {
 	protected static final String	CALLBACK			= "callback";
 	protected static final String	EXTRA				= "extra";
 	protected static final String	VERSION				= "2.0";
+	protected static final String	ATTACHMENTS			= "attachments";
+	protected static final String	BLOB				= "$blob";
 
 	private JsonNode				id					= null;
 	private ObjectNode				extra				= null;
+	private transient Map<String, ByteBuffer>	attachments	= null;
 
 	/**
 	 * Instantiates a new JSON message.
@@ -72,6 +90,16 @@ public class JSONMessage implements Serializable {
 			throw new JSONRPCException(JSONRPCException.CODE.INVALID_REQUEST,
 					"Value of member 'extra' should be an object");
 		}
+		final JsonNode embedded = jsonNode.get(ATTACHMENTS);
+		if (embedded != null && embedded.isObject()) {
+			final Iterator<Map.Entry<String, JsonNode>> iter = embedded
+					.fields();
+			while (iter.hasNext()) {
+				final Map.Entry<String, JsonNode> field = iter.next();
+				putAttachment(field.getKey(), ByteBuffer.wrap(Base64
+						.decodeBase64(field.getValue().asText())));
+			}
+		}
 	}
 
 	/**
@@ -141,6 +169,114 @@ public class JSONMessage implements Serializable {
 		return this.extra;
 	}
 
+	/**
+	 * Attach binary data to this message.
+	 *
+	 * @param data
+	 *            the data, which shouldn't be modified afterwards.
+	 * @return the reference to the attachment, to be used in the params or
+	 *         result.
+	 */
+	public ObjectNode attach(final ByteBuffer data) {
+		final String ref = "b"
+				+ (attachments == null ? 0 : attachments.size());
+		putAttachment(ref, data);
+		final ObjectNode result = JOM.createObjectNode();
+		result.put(BLOB, ref);
+		return result;
+	}
+
+	/**
+	 * Attach the content of the stream to this message. The stream is read
+	 * completely, but not closed.
+	 *
+	 * @param data
+	 *            the data
+	 * @return the reference to the attachment, to be used in the params or
+	 *         result.
+	 * @throws IOException
+	 *             Signals that the stream couldn't be read.
+	 */
+	public ObjectNode attach(final InputStream data) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+		int count = data.read(buffer);
+		while (count >= 0) {
+			out.write(buffer, 0, count);
+			count = data.read(buffer);
+		}
+		return attach(ByteBuffer.wrap(out.toByteArray()));
+	}
+
+	private void putAttachment(final String ref, final ByteBuffer data) {
+		if (attachments == null) {
+			attachments = new LinkedHashMap<String, ByteBuffer>(2);
+		}
+		attachments.put(ref, data);
+	}
+
+	/**
+	 * Gets the attachment the given node refers to.
+	 *
+	 * @param ref
+	 *            the reference, as found in the params or result
+	 * @return a read-only view on the attachment, or null if the node isn't a
+	 *         reference to an attachment of this message.
+	 */
+	public ByteBuffer getAttachment(final JsonNode ref) {
+		if (attachments == null || !isAttachmentRef(ref)) {
+			return null;
+		}
+		final ByteBuffer data = attachments.get(ref.get(BLOB).asText());
+		return data == null ? null : data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Checks if the given node is a reference to an attachment.
+	 *
+	 * @param node
+	 *            the node
+	 * @return true, if it is an attachment reference
+	 */
+	public static boolean isAttachmentRef(final JsonNode node) {
+		return node != null && node.isObject() && node.size() == 1
+				&& node.has(BLOB) && node.get(BLOB).isTextual();
+	}
+
+	@Override
+	@JsonIgnore
+	public Map<String, ByteBuffer> getAttachments() {
+		if (attachments == null) {
+			return Collections.emptyMap();
+		}
+		return Collections.unmodifiableMap(attachments);
+	}
+
+	/**
+	 * Sets the attachments, e.g. as received next to the body of this message.
+	 *
+	 * @param attachments
+	 *            the attachments
+	 */
+	@JsonIgnore
+	public void setAttachments(final Map<String, ByteBuffer> attachments) {
+		if (attachments == null || attachments.isEmpty()) {
+			this.attachments = null;
+		} else {
+			this.attachments = new LinkedHashMap<String, ByteBuffer>(
+					attachments);
+		}
+	}
+
+	/**
+	 * Checks for attachments.
+	 *
+	 * @return true, if this message has attachments.
+	 */
+	public boolean hasAttachments() {
+		return attachments != null && !attachments.isEmpty();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see java.lang.Object#equals(java.lang.Object)
@@ -207,6 +343,12 @@ public class JSONMessage implements Serializable {
 		try {
 			if (msg instanceof JSONMessage) {
 				jsonMsg = (JSONMessage) msg;
+			} else if (msg instanceof BinaryMessage) {
+				final BinaryMessage binary = (BinaryMessage) msg;
+				jsonMsg = jsonConvert(binary.getBody());
+				if (jsonMsg != null && !binary.getAttachments().isEmpty()) {
+					jsonMsg.setAttachments(binary.getAttachments());
+				}
 			} else {
 				ObjectNode json = null;
 				if (msg instanceof String) {
@@ -244,12 +386,12 @@ public class JSONMessage implements Serializable {
 		return jsonMsg;
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.lang.Object#toString()
+	/**
+	 * Gets the JSON representation of this message, without attachments.
+	 *
+	 * @return the tree, or null if the message couldn't be serialized.
 	 */
-	@Override
-	public String toString() {
+	protected ObjectNode toTree() {
 		final ObjectMapper mapper = JOM.getInstance();
 		try {
 			ObjectNode tree = mapper.valueToTree(this);
@@ -259,10 +401,40 @@ public class JSONMessage implements Serializable {
 			if (tree.get(EXTRA) == null || tree.get(EXTRA).isNull()) {
 				tree.remove(EXTRA);
 			}
-			return tree.toString();
+			return tree;
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
 		return null;
 	}
+
+	@Override
+	@JsonIgnore
+	public String getBody() {
+		final ObjectNode tree = toTree();
+		return tree == null ? null : tree.toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final ObjectNode tree = toTree();
+		if (tree == null) {
+			return null;
+		}
+		if (hasAttachments()) {
+			// No binary frames here, embed the attachments.
+			final ObjectNode embedded = tree.putObject(ATTACHMENTS);
+			for (final Map.Entry<String, ByteBuffer> attachment : attachments
+					.entrySet()) {
+				embedded.put(attachment.getKey(), Base64
+						.encodeBase64String(BinaryFrame.toBytes(attachment
+								.getValue())));
+			}
+		}
+		return tree.toString();
+	}
 }
@@ -46,7 +46,13 @@ public class JSONRPCException extends RuntimeException {
 		/** The not found. */
 		NOT_FOUND,
 		/** The unauthorized. */
-		UNAUTHORIZED
+		UNAUTHORIZED,
+		/** The deadline exceeded. */
+		DEADLINE_EXCEEDED,
+		/** The circuit to the peer is open. */
+		CIRCUIT_OPEN,
+		/** The request has been cancelled before it was sent. */
+		CANCELLED
 	}
 
 	/**
@@ -247,6 +253,18 @@ public class JSONRPCException extends RuntimeException {
 				setCode(-32401);
 				setMessage("Unauthorized");
 				break;
+			case DEADLINE_EXCEEDED:
+				setCode(-32408);
+				setMessage("Deadline exceeded");
+				break;
+			case CIRCUIT_OPEN:
+				setCode(-32503);
+				setMessage("Circuit open");
+				break;
+			case CANCELLED:
+				setCode(-32800);
+				setMessage("Request cancelled");
+				break;
 		}
 		setMessage(message);
 		if (t != null && getCause() == null) {
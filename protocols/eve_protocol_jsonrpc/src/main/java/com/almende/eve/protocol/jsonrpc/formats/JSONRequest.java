@@ -5,11 +5,16 @@
 package com.almende.eve.protocol.jsonrpc.formats;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.almende.eve.protocol.jsonrpc.annotation.Idempotent;
 import com.almende.eve.protocol.jsonrpc.annotation.Name;
 import com.almende.eve.protocol.jsonrpc.annotation.Optional;
 import com.almende.util.AnnotationUtil;
@@ -36,7 +41,11 @@ public final class JSONRequest extends JSONMessage {
 																	.reader(JSONRequest.class);
 	private static final ObjectNode		OBJECT				= JOM.getInstance()
 																	.createObjectNode();
+	private static final String			DEADLINE			= "deadline";
+	private static final int			MAXTEMPLATES		= 1000;
+	private static final Map<Method, Template>	TEMPLATES	= new ConcurrentHashMap<Method, Template>();
 	transient private AsyncCallback<?>	callback			= null;
+	transient private boolean			idempotent			= false;
 
 	private String						method				= null;
 	private ObjectNode					params				= null;
@@ -115,7 +124,8 @@ public final class JSONRequest extends JSONMessage {
 	}
 
 	/**
-	 * Create a JSONRequest from a java method and arguments.
+	 * Create a JSONRequest from a java method and arguments. ByteBuffer and
+	 * InputStream arguments are sent as attachments.
 	 *
 	 * @param method
 	 *            the method
@@ -126,45 +136,107 @@ public final class JSONRequest extends JSONMessage {
 	 */
 	public <T> JSONRequest(final Method method, final Object[] args,
 			final AsyncCallback<T> callback) {
-		AnnotatedMethod annotatedMethod = null;
-		try {
-			annotatedMethod = new AnnotationUtil.AnnotatedMethod(method);
-		} catch (final Exception e) {
-			LOG.log(Level.WARNING, "Method can't be used as annotated method",
-					e);
-			throw new IllegalArgumentException("Method '" + method.getName()
-					+ "' can't be used as annotated method.", e);
+		final Template template = getTemplate(method);
+		final ObjectNode params = template.toParams(args, this);
+		if (callback != null) {
+			final JsonNode id = OBJECT.textNode(new UUID().toString());
+			init(id, method.getName(), params, callback);
+		} else {
+			init(null, method.getName(), params, null);
 		}
-		final List<AnnotatedParam> annotatedParams = annotatedMethod
-				.getParams();
+		setIdempotent(template.idempotent);
+	}
 
-		final ObjectNode params = JOM.createObjectNode();
+	/**
+	 * Gets the (cached) request template of the given method.
+	 *
+	 * @param method
+	 *            the method
+	 * @return the template
+	 */
+	private static Template getTemplate(final Method method) {
+		Template template = TEMPLATES.get(method);
+		if (template == null) {
+			template = new Template(method);
+			if (TEMPLATES.size() >= MAXTEMPLATES) {
+				TEMPLATES.clear();
+			}
+			TEMPLATES.put(method, template);
+		}
+		return template;
+	}
 
-		for (int i = 0; i < annotatedParams.size(); i++) {
-			final AnnotatedParam annotatedParam = annotatedParams.get(i);
-			if (i < args.length && args[i] != null) {
+	/**
+	 * The parameter names and requirements of a java method, read once from
+	 * the method's annotations.
+	 */
+	private static final class Template {
+		private final String	method;
+		private final String[]	names;
+		private final boolean[]	required;
+		private final boolean	idempotent;
+
+		private Template(final Method method) {
+			AnnotatedMethod annotatedMethod = null;
+			try {
+				annotatedMethod = new AnnotationUtil.AnnotatedMethod(method);
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING,
+						"Method can't be used as annotated method", e);
+				throw new IllegalArgumentException("Method '"
+						+ method.getName()
+						+ "' can't be used as annotated method.", e);
+			}
+			final List<AnnotatedParam> annotatedParams = annotatedMethod
+					.getParams();
+
+			this.method = method.getName();
+			this.idempotent = annotatedMethod
+					.getAnnotation(Idempotent.class) != null;
+			this.names = new String[annotatedParams.size()];
+			this.required = new boolean[annotatedParams.size()];
+			for (int i = 0; i < annotatedParams.size(); i++) {
+				final AnnotatedParam annotatedParam = annotatedParams.get(i);
 				final CachedAnnotation nameAnnotation = annotatedParam
 						.getAnnotation(Name.class);
 				if (nameAnnotation != null && nameAnnotation.value() != null) {
-					final String name = (String) nameAnnotation.value();
-					final JsonNode paramValue = JOM.getInstance().valueToTree(
-							args[i]);
-					params.set(name, paramValue);
-				} else {
-					throw new IllegalArgumentException("Parameter " + i
-							+ " in method '" + method.getName()
-							+ "' is missing the @Name annotation.");
+					names[i] = (String) nameAnnotation.value();
 				}
-			} else if (isRequired(annotatedParam)) {
-				throw new IllegalArgumentException("Required parameter " + i
-						+ " in method '" + method.getName() + "' is null.");
+				required[i] = isRequired(annotatedParam);
 			}
 		}
-		if (callback != null) {
-			final JsonNode id = OBJECT.textNode(new UUID().toString());
-			init(id, method.getName(), params, callback);
-		} else {
-			init(null, method.getName(), params, null);
+
+		private ObjectNode toParams(final Object[] args,
+				final JSONMessage message) {
+			final ObjectNode params = JOM.createObjectNode();
+			for (int i = 0; i < names.length; i++) {
+				if (args != null && i < args.length && args[i] != null) {
+					if (names[i] == null) {
+						throw new IllegalArgumentException("Parameter " + i
+								+ " in method '" + method
+								+ "' is missing the @Name annotation.");
+					}
+					final JsonNode paramValue;
+					if (args[i] instanceof ByteBuffer) {
+						paramValue = message.attach((ByteBuffer) args[i]);
+					} else if (args[i] instanceof InputStream) {
+						try {
+							paramValue = message.attach((InputStream) args[i]);
+						} catch (final IOException e) {
+							throw new IllegalArgumentException("Parameter "
+									+ i + " in method '" + method
+									+ "' couldn't be read.", e);
+						}
+					} else {
+						paramValue = JOM.getInstance().valueToTree(args[i]);
+					}
+					params.set(names[i], paramValue);
+				} else if (required[i]) {
+					throw new IllegalArgumentException("Required parameter "
+							+ i + " in method '" + method + "' is null.");
+				}
+			}
+			return params;
 		}
 	}
 
@@ -333,6 +405,73 @@ public final class JSONRequest extends JSONMessage {
 		this.callback = callback;
 	}
 
+	/**
+	 * Checks if this request is idempotent, meaning it may be coalesced with
+	 * identical concurrent requests.
+	 *
+	 * @return true, if idempotent
+	 */
+	@JsonIgnore
+	public boolean isIdempotent() {
+		return idempotent;
+	}
+
+	/**
+	 * Marks this request as idempotent. This is a local flag, it isn't sent
+	 * to the receiver.
+	 *
+	 * @param idempotent
+	 *            the new idempotent
+	 */
+	@JsonIgnore
+	public void setIdempotent(final boolean idempotent) {
+		this.idempotent = idempotent;
+	}
+
+	/**
+	 * Sets the deadline of this request, as an absolute timestamp (in
+	 * milliseconds since epoch). The deadline is carried in the extra field,
+	 * so the receiving side can drop the request if nobody is waiting for the
+	 * result anymore.
+	 *
+	 * @param deadline
+	 *            the new deadline
+	 */
+	@JsonIgnore
+	public void setDeadline(final long deadline) {
+		if (getExtra() == null) {
+			setExtra(JOM.createObjectNode());
+		}
+		getExtra().put(DEADLINE, deadline);
+	}
+
+	/**
+	 * Gets the deadline of this request.
+	 *
+	 * @return the deadline (in milliseconds since epoch), or null if no
+	 *         deadline is given.
+	 */
+	@JsonIgnore
+	public Long getDeadline() {
+		final ObjectNode extra = getExtra();
+		if (extra != null && extra.has(DEADLINE)
+				&& extra.get(DEADLINE).canConvertToLong()) {
+			return extra.get(DEADLINE).asLong();
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if the deadline of this request has passed.
+	 *
+	 * @return true, if expired
+	 */
+	@JsonIgnore
+	public boolean isExpired() {
+		final Long deadline = getDeadline();
+		return deadline != null && deadline < System.currentTimeMillis();
+	}
+
 	@Override
 	@JsonIgnore
 	public boolean isRequest() {
@@ -341,10 +480,10 @@ public final class JSONRequest extends JSONMessage {
 
 	/*
 	 * (non-Javadoc)
-	 * @see java.lang.Object#toString()
+	 * @see com.almende.eve.protocol.jsonrpc.formats.JSONMessage#toTree()
 	 */
 	@Override
-	public String toString() {
+	protected ObjectNode toTree() {
 		final ObjectMapper mapper = JOM.getInstance();
 		try {
 			ObjectNode tree = mapper.valueToTree(this);
@@ -354,7 +493,7 @@ public final class JSONRequest extends JSONMessage {
 			if (tree.get(EXTRA) == null || tree.get(EXTRA).isNull()) {
 				tree.remove(EXTRA);
 			}
-			return tree.toString();
+			return tree;
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
@@ -30,6 +30,7 @@ public final class JSONResponse extends JSONMessage {
 															JSONResponse.class);
 	private JsonNode			result				= null;
 	private JSONRPCException	error				= null;
+	private transient ResultStream<?>	stream	= null;
 
 	/**
 	 * Instantiates a new jSON response.
@@ -188,6 +189,28 @@ public final class JSONResponse extends JSONMessage {
 		return error;
 	}
 
+	/**
+	 * Sets the result stream, if the result is to be sent in chunks. The
+	 * stream isn't serialized.
+	 * 
+	 * @param stream
+	 *            the new stream
+	 */
+	@JsonIgnore
+	public void setStream(final ResultStream<?> stream) {
+		this.stream = stream;
+	}
+
+	/**
+	 * Gets the result stream.
+	 * 
+	 * @return the stream, or null if the result isn't streamed.
+	 */
+	@JsonIgnore
+	public ResultStream<?> getStream() {
+		return stream;
+	}
+
 	@Override
 	@JsonIgnore
 	public boolean isResponse() {
@@ -196,10 +219,10 @@ public final class JSONResponse extends JSONMessage {
 
 	/*
 	 * (non-Javadoc)
-	 * @see java.lang.Object#toString()
+	 * @see com.almende.eve.protocol.jsonrpc.formats.JSONMessage#toTree()
 	 */
 	@Override
-	public String toString() {
+	protected ObjectNode toTree() {
 		final ObjectMapper mapper = JOM.getInstance();
 		try {
 			final ObjectNode tree = mapper.valueToTree(this);
@@ -211,7 +234,7 @@ public final class JSONResponse extends JSONMessage {
 			if (tree.get(EXTRA) == null || tree.get(EXTRA).isNull()) {
 				tree.remove(EXTRA);
 			}
-			return tree.toString();
+			return tree;
 		} catch (final Exception e) {
 			LOG.log(Level.SEVERE, "Failed to stringify response.", e);
 		}
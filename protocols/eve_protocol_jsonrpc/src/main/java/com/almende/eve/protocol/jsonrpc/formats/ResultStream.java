@@ -0,0 +1,96 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.protocol.jsonrpc.formats;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The Class ResultStream, a result type for RPC methods that return a large
+ * number of items. If the caller uses a streaming callback, the items are sent
+ * in multiple chunks, correlated by the request id and ordered through a
+ * sequence number in the "extra" field of each response. The caller grants
+ * credits for the number of chunks that may be sent ahead. Other callers
+ * receive all items as a single array result.
+ * The items are taken from the iterator lazily, while sending the chunks.
+ *
+ * @param <T>
+ *            the type of the items
+ */
+public class ResultStream<T> {
+	/** Extra field of a request or credit message: number of granted chunks. */
+	public static final String	CREDITS	= "credits";
+	/** Extra field of a chunk: sequence number of the chunk. */
+	public static final String	SEQ		= "seq";
+	/** Extra field of a chunk: false for the last chunk. */
+	public static final String	MORE	= "more";
+	private final Iterator<T>	items;
+
+	/**
+	 * Instantiates a new result stream.
+	 *
+	 * @param items
+	 *            the items
+	 */
+	public ResultStream(final Iterator<T> items) {
+		this.items = items;
+	}
+
+	/**
+	 * Instantiates a new result stream.
+	 *
+	 * @param items
+	 *            the items
+	 */
+	public ResultStream(final Iterable<T> items) {
+		this(items.iterator());
+	}
+
+	/**
+	 * Gets the items.
+	 *
+	 * @return the iterator over the (remaining) items
+	 */
+	public Iterator<T> getItems() {
+		return items;
+	}
+
+	/**
+	 * Collect all remaining items into a list.
+	 *
+	 * @return the list
+	 */
+	public List<T> toList() {
+		final List<T> result = new ArrayList<T>();
+		while (items.hasNext()) {
+			result.add(items.next());
+		}
+		return result;
+	}
+
+	/**
+	 * Checks if the given message requests a streamed result.
+	 *
+	 * @param message
+	 *            the message
+	 * @return true, if the message carries credits.
+	 */
+	public static boolean isRequested(final JSONMessage message) {
+		return message.getExtra() != null && message.getExtra().has(CREDITS);
+	}
+
+	/**
+	 * Checks if the given response is a chunk of a streamed result.
+	 *
+	 * @param response
+	 *            the response
+	 * @return true, if the response is a chunk.
+	 */
+	public static boolean isChunk(final JSONResponse response) {
+		return response.getError() == null && response.getExtra() != null
+				&& response.getExtra().has(SEQ);
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.protocol;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.almende.eve.capabilities.handler.Handler;
+import com.almende.eve.protocol.jsonrpc.JSONRpcProtocol;
+import com.almende.eve.protocol.jsonrpc.JSONRpcProtocolBuilder;
+import com.almende.eve.protocol.jsonrpc.formats.JSONMessage;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRPCException;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.eve.protocol.jsonrpc.formats.JSONResponse;
+import com.almende.util.jackson.JOM;
+import com.almende.util.threads.ThreadPool;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class CircuitBreakerProtocol, stops calling peers that don't respond.
+ * Per peer, calls that don't get a response within the call timeout count as
+ * failures. After failureThreshold consecutive failures the circuit to that
+ * peer opens: calls fail right away with a
+ * {@link JSONRPCException.CODE#CIRCUIT_OPEN} error, notifications are dropped.
+ * After the reset timeout the circuit is half-open: a few trial calls are let
+ * through, if these all succeed the circuit closes again, otherwise it stays
+ * open for another reset timeout.
+ * <p>
+ * Place this protocol before the JSONRpcProtocol in the protocol list (the
+ * JSONRpcProtocol is added last by default), it needs to see the responses
+ * before the JSONRpcProtocol handles them.
+ */
+public class CircuitBreakerProtocol implements Protocol {
+	private static final Logger							LOG			= Logger.getLogger(CircuitBreakerProtocol.class
+																			.getName());
+	private final CircuitBreakerProtocolConfig			params;
+	private final ConcurrentHashMap<URI, Circuit>		circuits	= new ConcurrentHashMap<URI, Circuit>();
+	private final ConcurrentHashMap<String, Pending>	pending		= new ConcurrentHashMap<String, Pending>();
+
+	/**
+	 * The state of the circuit to a peer.
+	 */
+	public static enum State {
+		/** Calls go through. */
+		CLOSED,
+		/** Calls fail right away. */
+		OPEN,
+		/** Trial calls go through, others fail right away. */
+		HALF_OPEN
+	}
+
+	/**
+	 * Instantiates a new circuit breaker protocol.
+	 *
+	 * @param params
+	 *            the params
+	 * @param handle
+	 *            the handle
+	 */
+	public CircuitBreakerProtocol(final ObjectNode params,
+			final Handler<Object> handle) {
+		this.params = CircuitBreakerProtocolConfig.decorate(params);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.capabilities.Capability#getParams()
+	 */
+	@Override
+	public CircuitBreakerProtocolConfig getParams() {
+		return params;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.capabilities.Capability#delete()
+	 */
+	@Override
+	public void delete() {
+		for (final Pending call : pending.values()) {
+			call.cancel();
+		}
+		pending.clear();
+		circuits.clear();
+		CircuitBreakerProtocolBuilder.delete(params.getId());
+	}
+
+	/**
+	 * Gets the state of the circuit to the given peer.
+	 *
+	 * @param peer
+	 *            the peer
+	 * @return the state, CLOSED for unknown peers.
+	 */
+	public State getState(final URI peer) {
+		final Circuit circuit = circuits.get(peer);
+		return circuit != null ? circuit.getState() : State.CLOSED;
+	}
+
+	/**
+	 * Gets the circuits to all known peers, for monitoring. Per peer url it
+	 * gives the "state" and the number of consecutive "failures".
+	 *
+	 * @return the circuits
+	 */
+	public ObjectNode getCircuits() {
+		final ObjectNode result = JOM.createObjectNode();
+		for (final Map.Entry<URI, Circuit> entry : circuits.entrySet()) {
+			result.set(entry.getKey().toString(), entry.getValue().toJson());
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.protocol.Protocol#inbound(com.almende.eve.protocol.Meta)
+	 */
+	@Override
+	public boolean inbound(final Meta msg) {
+		if (!pending.isEmpty()) {
+			final JSONMessage message = JSONMessage.jsonConvert(msg.getMsg());
+			if (message != null) {
+				// No need to parse it again later.
+				msg.setMsg(message);
+				final JsonNode id = message.getId();
+				if (message.isResponse() && id != null && !id.isNull()) {
+					final Pending call = pending.remove(id.asText());
+					if (call != null) {
+						// Even an error response shows the peer is alive.
+						call.cancel();
+						call.circuit.success(call.generation);
+					}
+				}
+			}
+		}
+		return msg.nextIn();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.protocol.Protocol#outbound(com.almende.eve.protocol.Meta)
+	 */
+	@Override
+	public boolean outbound(final Meta msg) {
+		final URI peer = msg.getPeer();
+		if (peer == null) {
+			// Multicast, no single peer to judge.
+			return msg.nextOut();
+		}
+		final JSONMessage message = JSONMessage.jsonConvert(msg.getMsg());
+		if (message == null || !message.isRequest()) {
+			return msg.nextOut();
+		}
+		msg.setMsg(message);
+		final JSONRequest request = (JSONRequest) message;
+		final JsonNode id = request.getId();
+		final boolean expectsResponse = request.getCallback() != null
+				&& id != null && !id.isNull();
+
+		final Circuit circuit = getCircuit(peer);
+		final long generation = circuit.allow(expectsResponse);
+		if (generation < 0) {
+			reject(request, peer);
+			return false;
+		}
+		if (expectsResponse) {
+			track(id.asText(), circuit, generation);
+		}
+		return msg.nextOut();
+	}
+
+	private Circuit getCircuit(final URI peer) {
+		Circuit circuit = circuits.get(peer);
+		if (circuit == null) {
+			circuit = new Circuit(peer);
+			final Circuit prev = circuits.putIfAbsent(peer, circuit);
+			if (prev != null) {
+				circuit = prev;
+			}
+		}
+		return circuit;
+	}
+
+	private void track(final String id, final Circuit circuit,
+			final long generation) {
+		final Pending call = new Pending(circuit, generation);
+		pending.put(id, call);
+		call.timer = ThreadPool.getScheduledPool().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (pending.remove(id, call)) {
+					call.circuit.failure(call.generation);
+				}
+			}
+		}, params.getCallTimeout(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Fail the given request with a CIRCUIT_OPEN error, through the
+	 * JSONRpcProtocol that holds its callback.
+	 */
+	private void reject(final JSONRequest request, final URI peer) {
+		final JsonNode id = request.getId();
+		if (request.getCallback() == null || id == null || id.isNull()) {
+			LOG.fine("Circuit to " + peer + " is open, dropped notification:"
+					+ request.getMethod());
+			return;
+		}
+		final JSONRPCException error = new JSONRPCException(
+				JSONRPCException.CODE.CIRCUIT_OPEN, "Circuit to " + peer
+						+ " is open, not calling:" + request.getMethod());
+		final JSONRpcProtocol rpc = JSONRpcProtocolBuilder.get(params.getId());
+		if (rpc != null) {
+			rpc.invoke(new JSONResponse(id, error), peer);
+		} else {
+			request.getCallback().onFailure(error);
+		}
+	}
+
+	private static final class Pending {
+		private final Circuit				circuit;
+		private final long					generation;
+		private volatile ScheduledFuture<?>	timer	= null;
+
+		private Pending(final Circuit circuit, final long generation) {
+			this.circuit = circuit;
+			this.generation = generation;
+		}
+
+		private void cancel() {
+			final ScheduledFuture<?> timer = this.timer;
+			if (timer != null) {
+				timer.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * The circuit to a single peer. Each state change starts a new
+	 * generation, outcomes of calls of an older generation are ignored.
+	 */
+	private final class Circuit {
+		private final URI	peer;
+		private State		state		= State.CLOSED;
+		private long		generation	= 0;
+		private int			failures	= 0;
+		private int			trials		= 0;
+		private int			successes	= 0;
+		private long		openedAt	= 0;
+
+		private Circuit(final URI peer) {
+			this.peer = peer;
+		}
+
+		/**
+		 * Check if a call may go through.
+		 *
+		 * @param trial
+		 *            whether the call can serve as a trial call.
+		 * @return the generation, or -1 if the call should fail.
+		 */
+		private synchronized long allow(final boolean trial) {
+			if (state == State.OPEN) {
+				if (System.currentTimeMillis() - openedAt < params
+						.getResetTimeout()) {
+					return -1;
+				}
+				change(State.HALF_OPEN);
+			}
+			if (state == State.HALF_OPEN) {
+				if (!trial || trials >= params.getTrialCalls()) {
+					return -1;
+				}
+				trials++;
+			}
+			return generation;
+		}
+
+		private synchronized void success(final long gen) {
+			if (gen != generation) {
+				return;
+			}
+			if (state == State.HALF_OPEN) {
+				if (++successes >= params.getTrialCalls()) {
+					LOG.info("Circuit to " + peer + " closed again.");
+					change(State.CLOSED);
+				}
+			} else {
+				failures = 0;
+			}
+		}
+
+		private synchronized void failure(final long gen) {
+			if (gen != generation) {
+				return;
+			}
+			failures++;
+			if (state == State.HALF_OPEN
+					|| failures >= params.getFailureThreshold()) {
+				LOG.warning("Circuit to " + peer + " opened after " + failures
+						+ " failures.");
+				change(State.OPEN);
+				openedAt = System.currentTimeMillis();
+			}
+		}
+
+		private void change(final State next) {
+			state = next;
+			generation++;
+			trials = 0;
+			successes = 0;
+			if (next == State.CLOSED) {
+				failures = 0;
+			}
+		}
+
+		private synchronized State getState() {
+			if (state == State.OPEN
+					&& System.currentTimeMillis() - openedAt >= params
+							.getResetTimeout()) {
+				return State.HALF_OPEN;
+			}
+			return state;
+		}
+
+		private synchronized ObjectNode toJson() {
+			final ObjectNode result = JOM.createObjectNode();
+			result.put("state", getState().name());
+			result.put("failures", failures);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.protocol;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.almende.eve.capabilities.AbstractCapabilityBuilder;
+import com.almende.util.uuid.UUID;
+
+/**
+ * The Class CircuitBreakerProtocolBuilder.
+ */
+public class CircuitBreakerProtocolBuilder extends
+		AbstractCapabilityBuilder<CircuitBreakerProtocol> {
+	private static final Logger									LOG			= Logger.getLogger(CircuitBreakerProtocolBuilder.class
+																					.getName());
+	private static final Map<String, CircuitBreakerProtocol>	INSTANCES	= new HashMap<String, CircuitBreakerProtocol>();
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.capabilities.CapabilityService#get(com.fasterxml.jackson.
+	 * databind
+	 * .JsonNode, com.almende.eve.capabilities.handler.Handler, java.lang.Class)
+	 */
+	@Override
+	public CircuitBreakerProtocol build() {
+		final CircuitBreakerProtocolConfig config = CircuitBreakerProtocolConfig
+				.decorate(getParams());
+		String id = config.getId();
+		if (id == null) {
+			id = new UUID().toString();
+			LOG.warning("Parameter 'id' is required for CircuitBreakerProtocol. (giving temporary name: "
+					+ id + ")");
+		}
+
+		CircuitBreakerProtocol result;
+		synchronized (INSTANCES) {
+			if (INSTANCES.containsKey(id)) {
+				result = INSTANCES.get(id);
+			} else {
+				result = new CircuitBreakerProtocol(getParams(), null);
+			}
+			INSTANCES.put(id, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Delete.
+	 *
+	 * @param id
+	 *            the id
+	 */
+	public static void delete(final String id) {
+		synchronized (INSTANCES) {
+			INSTANCES.remove(id);
+		}
+	}
+}
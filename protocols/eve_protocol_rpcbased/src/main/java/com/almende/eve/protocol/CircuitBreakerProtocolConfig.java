@@ -0,0 +1,135 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.protocol;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class CircuitBreakerProtocolConfig.
+ */
+public class CircuitBreakerProtocolConfig extends ProtocolConfig {
+	private static final String	BUILDER	= CircuitBreakerProtocolBuilder.class
+												.getName();
+
+	protected CircuitBreakerProtocolConfig() {
+		super();
+	}
+
+	/**
+	 * Instantiates a new circuit breaker protocol config.
+	 *
+	 * @return the circuit breaker protocol config
+	 */
+	public static CircuitBreakerProtocolConfig create() {
+		final CircuitBreakerProtocolConfig res = new CircuitBreakerProtocolConfig();
+		res.setBuilder(BUILDER);
+		return res;
+	}
+
+	/**
+	 * Instantiates a new circuit breaker protocol config.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the circuit breaker protocol config
+	 */
+	public static CircuitBreakerProtocolConfig decorate(final ObjectNode node) {
+		final CircuitBreakerProtocolConfig res = new CircuitBreakerProtocolConfig();
+		res.extend(node);
+		return res;
+	}
+
+	/**
+	 * Sets the number of consecutive failures after which the circuit to a
+	 * peer opens.
+	 *
+	 * @param failureThreshold
+	 *            the new failure threshold
+	 */
+	public void setFailureThreshold(final int failureThreshold) {
+		this.put("failureThreshold", failureThreshold);
+	}
+
+	/**
+	 * Gets the failure threshold. (default: 5)
+	 *
+	 * @return the failure threshold
+	 */
+	public int getFailureThreshold() {
+		if (this.has("failureThreshold")) {
+			return this.get("failureThreshold").asInt();
+		}
+		return 5;
+	}
+
+	/**
+	 * Sets the time after which a call without response counts as a failure
+	 * of its peer. The call itself keeps waiting for its own callback timeout.
+	 *
+	 * @param callTimeout
+	 *            the new call timeout (in milliseconds)
+	 */
+	public void setCallTimeout(final long callTimeout) {
+		this.put("callTimeout", callTimeout);
+	}
+
+	/**
+	 * Gets the call timeout. (in milliseconds, default: 10000)
+	 *
+	 * @return the call timeout
+	 */
+	public long getCallTimeout() {
+		if (this.has("callTimeout")) {
+			return this.get("callTimeout").asLong();
+		}
+		return 10000;
+	}
+
+	/**
+	 * Sets how long an open circuit fails calls, before it lets trial calls
+	 * through.
+	 *
+	 * @param resetTimeout
+	 *            the new reset timeout (in milliseconds)
+	 */
+	public void setResetTimeout(final long resetTimeout) {
+		this.put("resetTimeout", resetTimeout);
+	}
+
+	/**
+	 * Gets the reset timeout. (in milliseconds, default: 30000)
+	 *
+	 * @return the reset timeout
+	 */
+	public long getResetTimeout() {
+		if (this.has("resetTimeout")) {
+			return this.get("resetTimeout").asLong();
+		}
+		return 30000;
+	}
+
+	/**
+	 * Sets the number of trial calls in the half-open state. The circuit
+	 * closes once they all succeed.
+	 *
+	 * @param trialCalls
+	 *            the new number of trial calls
+	 */
+	public void setTrialCalls(final int trialCalls) {
+		this.put("trialCalls", trialCalls);
+	}
+
+	/**
+	 * Gets the number of trial calls. (default: 1)
+	 *
+	 * @return the number of trial calls
+	 */
+	public int getTrialCalls() {
+		if (this.has("trialCalls")) {
+			return this.get("trialCalls").asInt();
+		}
+		return 1;
+	}
+}
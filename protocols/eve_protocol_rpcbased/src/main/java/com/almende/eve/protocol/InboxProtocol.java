@@ -71,6 +71,10 @@ public class InboxProtocol implements Protocol {
 				while (!stop[0]) {
 					try {
 						final Meta next = getNext(inbox);
+						if (isExpired(next)) {
+							shed(next);
+							continue;
+						}
 						next(next);
 						synchronized (sequencer) {
 							while (!sequencer[0]) {
@@ -114,6 +118,41 @@ public class InboxProtocol implements Protocol {
 		return next;
 	}
 
+	/**
+	 * Checks if the given message is a request of which the deadline has
+	 * already passed. Messages are parsed in {@link #inbound(Meta)}, on the
+	 * delivering thread, so the loop doesn't parse anything here.
+	 *
+	 * @param next
+	 *            the next
+	 * @return true, if expired
+	 */
+	protected boolean isExpired(final Meta next) {
+		if (next == null || !params.isShedExpired()) {
+			return false;
+		}
+		final Object message = next.getMsg();
+		return message instanceof JSONRequest
+				&& ((JSONRequest) message).isExpired();
+	}
+
+	/**
+	 * Hand an expired request to the RPC layer, which fails it fast. It
+	 * doesn't wait for the agent, and doesn't hold up the loop while the
+	 * error is sent.
+	 *
+	 * @param next
+	 *            the expired request
+	 */
+	protected void shed(final Meta next) {
+		ThreadPool.getPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				next.nextIn();
+			}
+		});
+	}
+
 	/**
 	 * Next.
 	 *
@@ -215,6 +254,13 @@ public class InboxProtocol implements Protocol {
 	 */
 	@Override
 	public boolean inbound(Meta msg) {
+		if (params.isShedExpired()) {
+			// Parse before queueing, the loop only reads the deadline.
+			final JSONMessage message = JSONMessage.jsonConvert(msg.getMsg());
+			if (message != null) {
+				msg.setMsg(message);
+			}
+		}
 		try {
 			inbox.put(msg);
 		} catch (InterruptedException e) {}
@@ -62,4 +62,27 @@ public class InboxProtocolConfig extends ProtocolConfig {
 		this.put("supportSynccalls", supportSynccalls);
 	}
 
+	/**
+	 * Checks if requests that have passed their deadline are taken out of
+	 * the inbox without waiting for their turn. (default: true)
+	 *
+	 * @return true, if expired requests are shed
+	 */
+	public boolean isShedExpired() {
+		if (this.has("shedExpired")) {
+			return this.get("shedExpired").asBoolean();
+		}
+		return true;
+	}
+
+	/**
+	 * Sets whether expired requests are shed.
+	 *
+	 * @param shedExpired
+	 *            the new shed expired
+	 */
+	public void setShedExpired(final boolean shedExpired) {
+		this.put("shedExpired", shedExpired);
+	}
+
 }
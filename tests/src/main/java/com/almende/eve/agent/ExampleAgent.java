@@ -7,21 +7,31 @@ package com.almende.eve.agent;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.almende.eve.instantiation.CanHibernate;
 import com.almende.eve.protocol.jsonrpc.annotation.Access;
 import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
+import com.almende.eve.protocol.jsonrpc.annotation.Concurrent;
+import com.almende.eve.protocol.jsonrpc.annotation.Exclusive;
 import com.almende.eve.protocol.jsonrpc.annotation.Name;
 import com.almende.eve.protocol.jsonrpc.annotation.Namespace;
 import com.almende.eve.protocol.jsonrpc.annotation.Optional;
+import com.almende.eve.protocol.jsonrpc.annotation.Sequential;
 import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.eve.protocol.jsonrpc.formats.ResultStream;
 import com.almende.util.TypeUtil;
 import com.almende.util.URIUtil;
 import com.almende.util.callback.AsyncCallback;
+import com.almende.util.callback.FutureCallback;
 import com.almende.util.callback.SyncCallback;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -31,8 +41,10 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 @Access(AccessType.PUBLIC)
 @CanHibernate
 public class ExampleAgent extends Agent implements ExampleAgentInterface {
-	private static final Logger	LOG	= Logger.getLogger(ExampleAgent.class
-											.getName());
+	private static final Logger	LOG			= Logger.getLogger(ExampleAgent.class
+													.getName());
+	private final AtomicInteger	running	= new AtomicInteger(0);
+	private final AtomicInteger	inGroup	= new AtomicInteger(0);
 
 	
 	/**
@@ -123,6 +135,115 @@ public class ExampleAgent extends Agent implements ExampleAgentInterface {
 		return test;
 	}
 
+	/**
+	 * Sum the bytes of the given data.
+	 *
+	 * @param data
+	 *            the data
+	 * @return the sum
+	 */
+	public long sumBytes(@Name("data") final ByteBuffer data) {
+		long sum = 0;
+		while (data.hasRemaining()) {
+			sum += data.get();
+		}
+		return sum;
+	}
+
+	/**
+	 * Count from zero to the given number, as a stream of results.
+	 *
+	 * @param count
+	 *            the count
+	 * @return the result stream
+	 */
+	public ResultStream<Integer> countTo(@Name("count") final int count) {
+		return new ResultStream<Integer>(new Iterator<Integer>() {
+			private int	next	= 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < count;
+			}
+
+			@Override
+			public Integer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return next++;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		});
+	}
+
+	/**
+	 * Reply after the given delay, like a slow agent.
+	 *
+	 * @param millis
+	 *            the delay in milliseconds
+	 * @return the delay
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	public int delay(@Name("millis") final int millis)
+			throws InterruptedException {
+		Thread.sleep(millis);
+		return millis;
+	}
+
+	/**
+	 * Some work that must run alone.
+	 *
+	 * @return the largest number of running calls seen during this call
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Sequential
+	public int sequentialWork() throws InterruptedException {
+		return work(running);
+	}
+
+	/**
+	 * Some work that may run concurrently, but not during sequentialWork.
+	 *
+	 * @return the largest number of running calls seen during this call
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Concurrent
+	public int concurrentWork() throws InterruptedException {
+		return work(running);
+	}
+
+	/**
+	 * Some work that runs one call at a time within its group.
+	 *
+	 * @return the largest number of running calls in the group seen during
+	 *         this call
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Exclusive("work")
+	public int exclusiveWork() throws InterruptedException {
+		return work(inGroup);
+	}
+
+	private static int work(final AtomicInteger counter)
+			throws InterruptedException {
+		final int before = counter.incrementAndGet();
+		try {
+			Thread.sleep(2);
+			return Math.max(before, counter.get());
+		} finally {
+			counter.decrementAndGet();
+		}
+	}
+
 	/**
 	 * Public version of send.
 	 * 
@@ -145,6 +266,46 @@ public class ExampleAgent extends Agent implements ExampleAgentInterface {
 		super.call(url, method, params, callback);
 	}
 
+	/**
+	 * Public version of callMultiAsync.
+	 *
+	 * @param <T>
+	 *            the generic type
+	 * @param urls
+	 *            the urls
+	 * @param method
+	 *            the method
+	 * @param params
+	 *            the params
+	 * @param policy
+	 *            the policy
+	 * @param type
+	 *            the type
+	 * @return the future of the results
+	 */
+	public <T> FutureCallback<Map<URI, T>> pubCallMulti(final List<URI> urls,
+			final String method, final ObjectNode params,
+			final CallMultiPolicy policy, final TypeUtil<T> type) {
+		return super.callMultiAsync(urls, method, params, policy, type);
+	}
+
+	/**
+	 * Public version of multicast.
+	 *
+	 * @param urls
+	 *            the urls
+	 * @param method
+	 *            the method
+	 * @param params
+	 *            the params
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void pubMulticast(final List<URI> urls, final String method,
+			final ObjectNode params) throws IOException {
+		super.multicast(urls, method, params);
+	}
+
 	/**
 	 * Public version of sendSync.
 	 *
@@ -6,6 +6,9 @@ package com.almende.eve.test;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -109,4 +112,33 @@ public class TestAgents extends TestCase {
 				.create("http://localhost:8080/agents/example"));
 	}
 
+	/**
+	 * Test that the peers in the agent configuration are routed to: the
+	 * caller has no AMQP transport, so the call goes to the local address of
+	 * the peer.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testConfiguredPeers() throws IOException {
+		final ExampleAgent target = new ExampleAgent();
+		target.setConfig(AgentConfig.create("peerTarget"));
+
+		final URI remote = URI.create("amqp:peerTarget");
+		final AgentConfig config = AgentConfig.create("peerCaller");
+		config.setPeers(Collections.singletonList(Arrays.asList(remote,
+				URI.create("local:peerTarget"))));
+		final List<List<URI>> peers = config.getPeers();
+		assertEquals(1, peers.size());
+		assertEquals(remote, peers.get(0).get(0));
+		final ExampleAgent caller = new ExampleAgent();
+		caller.setConfig(config);
+
+		final Params params = new Params();
+		params.add("message", "Hi");
+		assertEquals("You said:Hi", caller.pubSendSync(remote, "helloWorld",
+				params, new TypeUtil<String>() {}));
+	}
+
 }
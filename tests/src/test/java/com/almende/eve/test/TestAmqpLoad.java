@@ -0,0 +1,328 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentConfig;
+import com.almende.eve.agent.ExampleAgent;
+import com.almende.eve.capabilities.handler.SimpleHandler;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.TransportBuilder;
+import com.almende.eve.transport.amqp.AmqpTransport;
+import com.almende.eve.transport.amqp.AmqpTransportConfig;
+import com.almende.util.TypeUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * The Class TestAmqpLoad, AMQP throughput and RPC calls against an in-process
+ * broker stand-in, which delivers to its consumers in order, honors the
+ * prefetch and confirms published messages in batches.
+ */
+public class TestAmqpLoad extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger(TestAmqpLoad.class
+												.getName());
+	private static final int	COUNT	= 100000;
+
+	/**
+	 * Test throughput.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testThroughput() throws Exception {
+		final CountDownLatch received = new CountDownLatch(COUNT);
+		final CountDownLatch confirmed = new CountDownLatch(COUNT);
+		final AtomicInteger failed = new AtomicInteger(0);
+
+		final AmqpTransportConfig config = AmqpTransportConfig.create();
+		config.setId("amqpLoad");
+		config.setHostUri("amqp://localhost");
+		config.setDoShortcut(false);
+		config.setPrefetch(100);
+
+		final AmqpTransport transport = (AmqpTransport) new TransportBuilder()
+				.withConfig(config)
+				.withHandle(new SimpleHandler<Receiver>(new Receiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						received.countDown();
+					}
+				})).build();
+		final StandInBroker broker = new StandInBroker();
+		transport.setConnectionFactory(broker);
+		transport.connect();
+
+		transport.setConfirmListener(new AsyncCallback<Void>() {
+			@Override
+			public void onSuccess(final Void result) {
+				confirmed.countDown();
+			}
+
+			@Override
+			public void onFailure(final Exception exception) {
+				failed.incrementAndGet();
+			}
+		});
+		final URI self = URI.create("amqp:amqpLoad");
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < COUNT; i++) {
+			transport.send(self, "{\"id\":" + i + "}", null, null);
+		}
+		assertTrue(confirmed.await(30, TimeUnit.SECONDS));
+		assertTrue(received.await(30, TimeUnit.SECONDS));
+		LOG.warning(COUNT + " AMQP messages took:"
+				+ (System.currentTimeMillis() - start) + " ms");
+		assertEquals(0, failed.get());
+		assertTrue(broker.maxUnacked.get() <= 100);
+
+		transport.disconnect();
+		broker.shutdown();
+	}
+
+	private static ExampleAgent createAgent(final String id,
+			final StandInBroker broker) throws InterruptedException {
+		final AmqpTransportConfig transportConfig = AmqpTransportConfig
+				.create();
+		transportConfig.setId(id);
+		transportConfig.setHostUri("amqp://localhost");
+		transportConfig.setDoShortcut(false);
+
+		// Build the transport up front, so the agent gets this instance and
+		// connects it to the stand-in.
+		final AmqpTransport transport = (AmqpTransport) new TransportBuilder()
+				.withConfig(transportConfig)
+				.withHandle(new SimpleHandler<Receiver>(new Receiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {}
+				})).build();
+		transport.setConnectionFactory(broker);
+
+		final AgentConfig config = AgentConfig.create(id);
+		config.addTransport(transportConfig);
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(config);
+		// The agent connects its transports in the background.
+		for (int i = 0; i < 100 && !broker.queues.containsKey(id); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(broker.queues.containsKey(id));
+		return agent;
+	}
+
+	/**
+	 * Test RPC calls between agents over AMQP: the results are the replies,
+	 * not the broker's confirms.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRpc() throws Exception {
+		final StandInBroker broker = new StandInBroker();
+		final ExampleAgent caller = createAgent("amqpCaller", broker);
+		createAgent("amqpTarget", broker);
+		final URI url = URI.create("amqp:amqpTarget");
+
+		final Params params = new Params();
+		params.add("message", "Hi there!");
+		assertEquals("You said:Hi there!", caller.pubSendSync(url,
+				"helloWorld", params, new TypeUtil<String>() {}));
+
+		final int count = 1000;
+		final CountDownLatch done = new CountDownLatch(count);
+		final AtomicInteger failed = new AtomicInteger(0);
+		for (int i = 0; i < count; i++) {
+			caller.pubSend(url, "helloWorld", params,
+					new AsyncCallback<String>() {
+						@Override
+						public void onSuccess(final String result) {
+							if (!"You said:Hi there!".equals(result)) {
+								failed.incrementAndGet();
+							}
+							done.countDown();
+						}
+
+						@Override
+						public void onFailure(final Exception exception) {
+							failed.incrementAndGet();
+							done.countDown();
+						}
+					});
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, failed.get());
+		broker.shutdown();
+	}
+
+	/**
+	 * A broker stand-in, Connection and Channel are dynamic proxies.
+	 */
+	private static class StandInBroker extends ConnectionFactory {
+		private final ExecutorService		broker		= Executors
+																.newSingleThreadExecutor();
+		private final Map<String, Queue>	queues		= new ConcurrentHashMap<String, Queue>();
+		private final AtomicInteger			maxUnacked	= new AtomicInteger(0);
+
+		@Override
+		public Connection newConnection() throws IOException {
+			return proxy(Connection.class, new InvocationHandler() {
+				@Override
+				public Object invoke(final Object proxy, final Method method,
+						final Object[] args) {
+					if (method.getName().equals("createChannel")) {
+						return newChannel();
+					}
+					return standard(proxy, method, args);
+				}
+			});
+		}
+
+		private void shutdown() {
+			broker.shutdownNow();
+		}
+
+		private Channel newChannel() {
+			final AtomicLong seq = new AtomicLong(1);
+			final List<ConfirmListener> listeners = new CopyOnWriteArrayList<ConfirmListener>();
+			final Semaphore[] prefetch = new Semaphore[1];
+			return proxy(Channel.class, new InvocationHandler() {
+				@Override
+				public Object invoke(final Object proxy, final Method method,
+						final Object[] args) {
+					final String name = method.getName();
+					if (name.equals("getNextPublishSeqNo")) {
+						return seq.get();
+					} else if (name.equals("addConfirmListener")) {
+						listeners.add((ConfirmListener) args[0]);
+						return null;
+					} else if (name.equals("basicQos")) {
+						prefetch[0] = new Semaphore((Integer) args[0]);
+						return null;
+					} else if (name.equals("basicConsume")) {
+						queues.put((String) args[0], new Queue(
+								(Consumer) args[2], prefetch[0]));
+						return "consumer";
+					} else if (name.equals("basicAck")) {
+						prefetch[0].release();
+						return null;
+					} else if (name.equals("basicPublish")) {
+						publish(seq.getAndIncrement(), listeners,
+								(String) args[1],
+								(AMQP.BasicProperties) args[2],
+								(byte[]) args[3]);
+						return null;
+					}
+					return standard(proxy, method, args);
+				}
+			});
+		}
+
+		private void publish(final long seq,
+				final List<ConfirmListener> listeners, final String to,
+				final AMQP.BasicProperties properties, final byte[] body) {
+			broker.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// Everything up to seq is in, confirm in one go.
+						for (final ConfirmListener listener : listeners) {
+							listener.handleAck(seq, true);
+						}
+						final Queue queue = queues.get(to);
+						queue.prefetch.acquire();
+						final int unacked = queue.unacked();
+						if (unacked > maxUnacked.get()) {
+							maxUnacked.set(unacked);
+						}
+						queue.consumer.handleDelivery("consumer", new Envelope(
+								queue.tags.incrementAndGet(), false, "", to),
+								properties, body);
+					} catch (final Exception e) {
+						LOG.warning("Stand-in broker failed:" + e);
+					}
+				}
+			});
+		}
+
+		private static Object standard(final Object proxy, final Method method,
+				final Object[] args) {
+			final String name = method.getName();
+			if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("toString")) {
+				return "StandIn" + method.getDeclaringClass().getSimpleName();
+			} else if (name.equals("isOpen")) {
+				return true;
+			}
+			final Class<?> type = method.getReturnType();
+			if (type == boolean.class) {
+				return false;
+			} else if (type == int.class) {
+				return 0;
+			} else if (type == long.class) {
+				return 0L;
+			}
+			return null;
+		}
+
+		private static <T> T proxy(final Class<T> type,
+				final InvocationHandler handler) {
+			return type.cast(Proxy.newProxyInstance(
+					StandInBroker.class.getClassLoader(),
+					new Class<?>[] { type }, handler));
+		}
+	}
+
+	private static class Queue {
+		private final Consumer		consumer;
+		private final Semaphore		prefetch;
+		private final int			size;
+		private final AtomicLong	tags	= new AtomicLong(0);
+
+		private Queue(final Consumer consumer, final Semaphore prefetch) {
+			this.consumer = consumer;
+			this.prefetch = prefetch;
+			this.size = prefetch.availablePermits();
+		}
+
+		private int unacked() {
+			return size - prefetch.availablePermits();
+		}
+	}
+}
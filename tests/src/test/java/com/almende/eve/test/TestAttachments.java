@@ -0,0 +1,172 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentConfig;
+import com.almende.eve.agent.AgentProxyFactory;
+import com.almende.eve.agent.CallerDecorator;
+import com.almende.eve.agent.CoalescingCaller;
+import com.almende.eve.agent.ExampleAgent;
+import com.almende.eve.protocol.jsonrpc.annotation.Name;
+import com.almende.eve.protocol.jsonrpc.formats.Caller;
+import com.almende.eve.protocol.jsonrpc.formats.JSONMessage;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.eve.transport.http.HttpTransportConfig;
+import com.almende.util.BinaryFrame;
+import com.almende.util.URIUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestAttachments.
+ */
+public class TestAttachments extends TestCase {
+	private static final Logger	LOG	= Logger.getLogger(TestAttachments.class
+											.getName());
+
+	/**
+	 * Interface to the binary method of the ExampleAgent.
+	 */
+	interface BinaryExampleInterface {
+
+		/**
+		 * Sum bytes.
+		 *
+		 * @param data
+		 *            the data
+		 * @return the sum
+		 */
+		long sumBytes(@Name("data") ByteBuffer data);
+	}
+
+	private static ByteBuffer getData() {
+		final byte[] data = new byte[1024 * 1024];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 7);
+		}
+		return ByteBuffer.wrap(data);
+	}
+
+	private static long sum(final ByteBuffer data) {
+		long sum = 0;
+		final ByteBuffer copy = data.duplicate();
+		while (copy.hasRemaining()) {
+			sum += copy.get();
+		}
+		return sum;
+	}
+
+	/**
+	 * Test the encoding of attachments.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testEncoding() throws Exception {
+		final ByteBuffer data = getData();
+		final JSONRequest request = new JSONRequest("sumBytes",
+				JOM.createObjectNode());
+		request.getParams().set("data", request.attach(data));
+
+		final JSONMessage framed = JSONMessage.jsonConvert(BinaryFrame
+				.decode(BinaryFrame.encode(request)));
+		assertEquals(data, framed.getAttachment(((JSONRequest) framed)
+				.getParams().get("data")));
+
+		final JSONMessage embedded = JSONMessage.jsonConvert(request
+				.toString());
+		assertEquals(data, embedded.getAttachment(((JSONRequest) embedded)
+				.getParams().get("data")));
+	}
+
+	/**
+	 * Test sending attachments.
+	 */
+	@Test
+	public void testSend() {
+		final HttpTransportConfig transportConfig = HttpTransportConfig
+				.create();
+		transportConfig.setServletUrl("http://localhost:8085/agents/");
+		transportConfig.setServletLauncher("JettyLauncher");
+		final ObjectNode jettyParms = JOM.createObjectNode();
+		jettyParms.put("port", 8085);
+		transportConfig.set("jetty", jettyParms);
+
+		final AgentConfig config = AgentConfig.create("binaryTarget");
+		config.addTransport(transportConfig);
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(config);
+
+		final ByteBuffer data = getData();
+		final BinaryExampleInterface local = AgentProxyFactory.genProxy(agent,
+				URIUtil.create("local:binaryTarget"),
+				BinaryExampleInterface.class);
+		assertEquals(sum(data), local.sumBytes(data));
+
+		final BinaryExampleInterface http = AgentProxyFactory.genProxy(agent,
+				URIUtil.create("http://localhost:8085/agents/binaryTarget"),
+				BinaryExampleInterface.class);
+		assertEquals(sum(data), http.sumBytes(data));
+		LOG.warning("Attachments arrived intact.");
+	}
+
+	/**
+	 * Test that requests with attachments aren't coalesced: their params only
+	 * refer to the attachments, which may differ.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testNotCoalesced() throws Exception {
+		final List<JSONRequest> sent = new CopyOnWriteArrayList<JSONRequest>();
+		final Caller caller = new CoalescingCaller(new CallerDecorator(null) {
+			@Override
+			protected void send(final URI url, final JSONRequest request,
+					final String tag) {
+				// Keep the requests in flight.
+				sent.add(request);
+			}
+		}, Collections.singleton("sumBytes"));
+		final URI url = URIUtil.create("local:binaryTarget");
+		final AsyncCallback<Long> callback = new AsyncCallback<Long>() {
+			@Override
+			public void onSuccess(final Long result) {}
+
+			@Override
+			public void onFailure(final Exception exception) {}
+		};
+
+		for (int i = 0; i < 2; i++) {
+			final JSONRequest request = new JSONRequest("sumBytes",
+					JOM.createObjectNode(), callback);
+			request.getParams().set("data",
+					request.attach(ByteBuffer.wrap(new byte[] { (byte) i })));
+			caller.call(url, request);
+		}
+		assertEquals(2, sent.size());
+
+		// Without attachments, equal requests are coalesced.
+		for (int i = 0; i < 2; i++) {
+			final ObjectNode params = JOM.createObjectNode();
+			params.put("data", "none");
+			caller.call(url, new JSONRequest("sumBytes", params, callback));
+		}
+		assertEquals(3, sent.size());
+	}
+}
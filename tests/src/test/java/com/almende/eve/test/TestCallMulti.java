@@ -0,0 +1,233 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentConfig;
+import com.almende.eve.agent.CallMultiPolicy;
+import com.almende.eve.agent.ExampleAgent;
+import com.almende.eve.protocol.jsonrpc.annotation.Access;
+import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
+import com.almende.util.TypeUtil;
+import com.almende.util.URIUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+
+/**
+ * The Class TestCallMulti, completion policies of calls to multiple agents.
+ */
+public class TestCallMulti extends TestCase {
+	private static final TypeUtil<Integer>	INT	= new TypeUtil<Integer>() {};
+
+	/**
+	 * An agent that takes its time to answer.
+	 */
+	@Access(AccessType.PUBLIC)
+	public static class Peer extends ExampleAgent {
+		private final int			millis;
+		private final AtomicInteger	calls	= new AtomicInteger(0);
+
+		/**
+		 * Instantiates a new peer.
+		 *
+		 * @param id
+		 *            the id
+		 * @param millis
+		 *            the time it takes to answer
+		 */
+		public Peer(final String id, final int millis) {
+			this.millis = millis;
+			setConfig(AgentConfig.create(id));
+		}
+
+		/**
+		 * Answer after a while.
+		 *
+		 * @return the time it took
+		 * @throws InterruptedException
+		 *             the interrupted exception
+		 */
+		public int slowWork() throws InterruptedException {
+			calls.incrementAndGet();
+			Thread.sleep(millis);
+			return millis;
+		}
+	}
+
+	private static ExampleAgent createCaller(final String id,
+			final int maxInFlight) {
+		final AgentConfig config = AgentConfig.create(id);
+		if (maxInFlight > 0) {
+			config.setMaxInFlight(maxInFlight);
+		}
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(config);
+		return agent;
+	}
+
+	private static List<URI> urls(final String... ids) {
+		final List<URI> result = new ArrayList<URI>(ids.length);
+		for (final String id : ids) {
+			result.add(URIUtil.create("local:" + id));
+		}
+		return result;
+	}
+
+	/**
+	 * Test the majority and atLeast policies: complete as soon as enough
+	 * peers answered, fail as soon as too many failed.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testQuorum() throws Exception {
+		new Peer("quorum0", 10);
+		new Peer("quorum1", 10);
+		new Peer("quorum2", 10);
+		new Peer("quorum3", 3000);
+		new Peer("quorum4", 3000);
+		final ExampleAgent caller = createCaller("quorumCaller", 0);
+		final List<URI> urls = urls("quorum0", "quorum1", "quorum2",
+				"quorum3", "quorum4");
+
+		final long start = System.currentTimeMillis();
+		final Map<URI, Integer> results = caller.pubCallMulti(urls,
+				"slowWork", JOM.createObjectNode(), CallMultiPolicy.majority(),
+				INT).get(10, TimeUnit.SECONDS);
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertEquals(new HashSet<URI>(urls.subList(0, 3)), results.keySet());
+
+		// Two of four peers can't be reached, three results are needed.
+		final List<URI> failing = new ArrayList<URI>(urls.subList(0, 2));
+		failing.add(URIUtil.create("unknown:quorum5"));
+		failing.add(URIUtil.create("unknown:quorum6"));
+		try {
+			caller.pubCallMulti(failing, "slowWork", JOM.createObjectNode(),
+					CallMultiPolicy.atLeast(3), INT).get(10, TimeUnit.SECONDS);
+			fail("Quorum can't be reached");
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause().getMessage().contains("3 required"));
+		}
+	}
+
+	/**
+	 * Test completing at the first N results, with a limited number of calls
+	 * in flight: the remaining peers are only called while results are
+	 * missing.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFirstN() throws Exception {
+		final Peer slow = new Peer("firstSlow", 3000);
+		new Peer("first0", 10);
+		new Peer("first1", 10);
+		final Peer unused = new Peer("firstUnused", 10);
+		final ExampleAgent caller = createCaller("firstCaller", 0);
+
+		final long start = System.currentTimeMillis();
+		final Map<URI, Integer> results = caller.pubCallMulti(
+				urls("firstSlow", "first0", "first1", "firstUnused"),
+				"slowWork", JOM.createObjectNode(),
+				CallMultiPolicy.atLeast(2).withMaxInFlight(2), INT).get(10,
+				TimeUnit.SECONDS);
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertEquals(new HashSet<URI>(urls("first0", "first1")),
+				results.keySet());
+		assertEquals(1, slow.calls.get());
+		assertEquals(0, unused.calls.get());
+
+		// The first result completes the call.
+		assertEquals(
+				urls("first0"),
+				new ArrayList<URI>(caller
+						.pubCallMulti(urls("firstSlow", "first0"),
+								"slowWork", JOM.createObjectNode(),
+								CallMultiPolicy.first(), INT)
+						.get(10, TimeUnit.SECONDS).keySet()));
+	}
+
+	/**
+	 * Test that the calls that are outstanding at completion are cancelled,
+	 * also those still queued by the caller's window.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCancel() throws Exception {
+		final Peer slow = new Peer("cancelSlow", 1000);
+		new Peer("cancelFast", 10);
+		final ExampleAgent caller = createCaller("cancelCaller", 1);
+
+		// Fill the window to the slow peer.
+		caller.pubSend(urls("cancelSlow").get(0), "slowWork",
+				JOM.createObjectNode(), new AsyncCallback<Integer>() {
+					@Override
+					public void onSuccess(final Integer result) {}
+
+					@Override
+					public void onFailure(final Exception exception) {}
+				});
+		final Map<URI, Integer> results = caller.pubCallMulti(
+				urls("cancelSlow", "cancelFast"), "slowWork",
+				JOM.createObjectNode(), CallMultiPolicy.first(), INT).get(10,
+				TimeUnit.SECONDS);
+		assertEquals(urls("cancelFast"), new ArrayList<URI>(results.keySet()));
+
+		// The queued call is never sent.
+		Thread.sleep(2000);
+		assertEquals(1, slow.calls.get());
+	}
+
+	/**
+	 * Test many calls that fail while being sent, which mustn't recurse.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFailingSends() throws Exception {
+		new Peer("failingTarget", 10);
+		final ExampleAgent caller = createCaller("failingCaller", 0);
+		final List<URI> urls = new ArrayList<URI>();
+		for (int i = 0; i < 20000; i++) {
+			urls.add(URIUtil.create("unknown:peer" + i));
+		}
+		urls.add(URIUtil.create("local:failingTarget"));
+
+		final Logger logger = Logger.getLogger("com.almende.eve.agent");
+		final Level level = logger.getLevel();
+		logger.setLevel(Level.SEVERE);
+		try {
+			assertEquals(
+					Arrays.asList(URIUtil.create("local:failingTarget")),
+					new ArrayList<URI>(caller
+							.pubCallMulti(urls, "slowWork",
+									JOM.createObjectNode(),
+									CallMultiPolicy.first(), INT)
+							.get(30, TimeUnit.SECONDS).keySet()));
+		} finally {
+			logger.setLevel(level);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.callback.AsyncCallbackStore;
+
+/**
+ * The Class TestCallbackStore.
+ */
+public class TestCallbackStore extends TestCase {
+
+	/**
+	 * Test that a callback that fails on its timeout doesn't stop the timeouts
+	 * of other callbacks.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFailingTimeout() throws Exception {
+		final AsyncCallbackStore<String> store = new AsyncCallbackStore<String>(
+				"failingTimeout");
+		final CountDownLatch timedOut = new CountDownLatch(2);
+		final AsyncCallback<String> failing = new AsyncCallback<String>() {
+			@Override
+			public void onSuccess(final String result) {}
+
+			@Override
+			public void onFailure(final Exception exception) {
+				timedOut.countDown();
+				throw new IllegalStateException("Callback failed");
+			}
+		};
+		store.put("failing1", "failing", failing,
+				System.currentTimeMillis() + 100);
+		store.put("failing2", "failing", failing,
+				System.currentTimeMillis() + 100);
+		assertTrue(timedOut.await(5, TimeUnit.SECONDS));
+
+		// The scanner is still running.
+		final CountDownLatch later = new CountDownLatch(1);
+		store.put("later", "later", new AsyncCallback<String>() {
+			@Override
+			public void onSuccess(final String result) {}
+
+			@Override
+			public void onFailure(final Exception exception) {
+				if (exception instanceof TimeoutException) {
+					later.countDown();
+				}
+			}
+		}, System.currentTimeMillis() + 100);
+		assertTrue(later.await(5, TimeUnit.SECONDS));
+		assertNull(store.get("later"));
+	}
+}
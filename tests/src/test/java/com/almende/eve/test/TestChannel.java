@@ -0,0 +1,312 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentConfig;
+import com.almende.eve.agent.ExampleAgent;
+import com.almende.eve.capabilities.handler.SimpleHandler;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.Transport;
+import com.almende.eve.transport.TransportBuilder;
+import com.almende.eve.transport.channel.ChannelTransportConfig;
+import com.almende.util.TypeUtil;
+import com.almende.util.callback.AsyncCallback;
+
+/**
+ * The Class TestChannel.
+ */
+public class TestChannel extends TestCase {
+	private static final Logger	LOG	= Logger.getLogger(TestChannel.class
+											.getName());
+
+	private static ExampleAgent createAgent(final String id, final int port) {
+		final ChannelTransportConfig transportConfig = ChannelTransportConfig
+				.create();
+		transportConfig.setAddress("channel://127.0.0.1:" + port + "/");
+		transportConfig.setId(id);
+		transportConfig.setDoShortcut(false);
+
+		final AgentConfig config = AgentConfig.create(id);
+		config.addTransport(transportConfig);
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(config);
+		return agent;
+	}
+
+	/**
+	 * Test calls between agents on two nodes.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testChannel() throws Exception {
+		final ExampleAgent caller = createAgent("channelCaller", 5700);
+		createAgent("channelTarget", 5701);
+		final URI url = URI.create("channel://127.0.0.1:5701/channelTarget");
+
+		final Params params = new Params();
+		params.add("message", "Hi there!");
+		assertEquals("You said:Hi there!", caller.pubSendSync(url,
+				"helloWorld", params, new TypeUtil<String>() {}));
+
+		final int count = 1000;
+		final CountDownLatch done = new CountDownLatch(count);
+		final AtomicInteger failed = new AtomicInteger(0);
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			caller.pubSend(url, "helloWorld", params,
+					new AsyncCallback<String>() {
+						@Override
+						public void onSuccess(final String result) {
+							done.countDown();
+						}
+
+						@Override
+						public void onFailure(final Exception exception) {
+							LOG.log(Level.SEVERE, "Call failed", exception);
+							failed.incrementAndGet();
+							done.countDown();
+						}
+					});
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, failed.get());
+		LOG.warning(count + " calls over the channel took:"
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Test that messages are delivered exactly once when the
+	 * connection between two nodes drops, and that a node is closed once
+	 * its last agent disconnects.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testReconnect() throws Exception {
+		final int count = 500;
+		final ConcurrentHashMap<String, AtomicInteger> received = new ConcurrentHashMap<String, AtomicInteger>();
+		final CountDownLatch done = new CountDownLatch(count);
+		final CountDownLatch again = new CountDownLatch(1);
+		final Receiver receiver = new Receiver() {
+			@Override
+			public synchronized void receive(final Object msg,
+					final URI senderUrl, final String tag) {
+				final String message = (String) msg;
+				final AtomicInteger previous = received.putIfAbsent(message,
+						new AtomicInteger(1));
+				if (previous != null) {
+					previous.incrementAndGet();
+				}
+				if ("again".equals(message)) {
+					again.countDown();
+				} else {
+					done.countDown();
+				}
+			}
+		};
+		final Transport target = createTransport("dropTarget", 5710, receiver);
+		final Transport sender = createTransport("dropSender", 5712,
+				receiver);
+		// The sender reaches the target through a proxy that drops the
+		// connections.
+		final Proxy proxy = new Proxy(5711, 5710);
+		final URI url = URI.create("channel://127.0.0.1:5711/dropTarget");
+		try {
+			for (int batch = 0; batch < count / 100; batch++) {
+				for (int i = batch * 100; i < (batch + 1) * 100; i++) {
+					sender.send(url, "msg" + i, null, null);
+				}
+				// Drop while the batch is being delivered.
+				while (done.getCount() > count - batch * 100 - 50) {
+					Thread.sleep(1);
+				}
+				proxy.drop();
+			}
+			assertTrue(done.await(20, TimeUnit.SECONDS));
+			assertTrue(proxy.accepted.get() >= count / 100);
+			assertEquals(count, received.size());
+			for (final AtomicInteger deliveries : received.values()) {
+				assertEquals(1, deliveries.get());
+			}
+
+			// The last agent closes the node and frees its port.
+			target.disconnect();
+			final ServerSocket probe = new ServerSocket();
+			probe.setReuseAddress(true);
+			probe.bind(new InetSocketAddress("127.0.0.1", 5710));
+			probe.close();
+
+			// Reconnecting starts the node again.
+			target.connect();
+			sender.send(url, "again", null, null);
+			assertTrue(again.await(20, TimeUnit.SECONDS));
+		} finally {
+			proxy.close();
+			target.disconnect();
+			sender.disconnect();
+		}
+	}
+
+	/**
+	 * Test that the messages to one receiver are delivered in the order they
+	 * were sent.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testOrder() throws Exception {
+		final int count = 2000;
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		final CountDownLatch done = new CountDownLatch(count);
+		final Receiver receiver = new Receiver() {
+			@Override
+			public void receive(final Object msg, final URI senderUrl,
+					final String tag) {
+				received.add((String) msg);
+				done.countDown();
+			}
+		};
+		final Transport target = createTransport("orderTarget", 5720,
+				receiver);
+		final Transport sender = createTransport("orderSender", 5721,
+				receiver);
+		final URI url = URI.create("channel://127.0.0.1:5720/orderTarget");
+		try {
+			for (int i = 0; i < count; i++) {
+				sender.send(url, "msg" + i, null, null);
+			}
+			assertTrue(done.await(20, TimeUnit.SECONDS));
+			for (int i = 0; i < count; i++) {
+				assertEquals("msg" + i, received.get(i));
+			}
+		} finally {
+			target.disconnect();
+			sender.disconnect();
+		}
+	}
+
+	private static Transport createTransport(final String id, final int port,
+			final Receiver receiver) throws IOException {
+		final ChannelTransportConfig config = ChannelTransportConfig.create();
+		config.setAddress("channel://127.0.0.1:" + port + "/");
+		config.setId(id);
+		config.setDoShortcut(false);
+		config.setMaxReconnectDelay(500);
+		final Transport transport = new TransportBuilder().withConfig(config)
+				.withHandle(new SimpleHandler<Receiver>(receiver)).build();
+		transport.connect();
+		return transport;
+	}
+
+	/**
+	 * A TCP proxy whose connections can be dropped.
+	 */
+	private static class Proxy {
+		private final ServerSocket	server;
+		private final List<Socket>	sockets		= new CopyOnWriteArrayList<Socket>();
+		private final AtomicInteger	accepted	= new AtomicInteger(0);
+
+		Proxy(final int port, final int targetPort) throws IOException {
+			server = new ServerSocket();
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress("127.0.0.1", port));
+			start(new Runnable() {
+				@Override
+				public void run() {
+					while (!server.isClosed()) {
+						Socket in = null;
+						try {
+							in = server.accept();
+							final Socket out = new Socket("127.0.0.1",
+									targetPort);
+							sockets.add(in);
+							sockets.add(out);
+							accepted.incrementAndGet();
+							pipe(in, out);
+							pipe(out, in);
+						} catch (final IOException e) {
+							LOG.log(Level.FINE, "Proxy connection failed", e);
+							if (in != null) {
+								close(in);
+							}
+						}
+					}
+				}
+			});
+		}
+
+		private void pipe(final Socket from, final Socket to) {
+			start(new Runnable() {
+				@Override
+				public void run() {
+					final byte[] buffer = new byte[8192];
+					try {
+						final InputStream in = from.getInputStream();
+						final OutputStream out = to.getOutputStream();
+						int read;
+						while ((read = in.read(buffer)) >= 0) {
+							out.write(buffer, 0, read);
+						}
+					} catch (final IOException e) {
+						LOG.log(Level.FINE, "Proxy connection dropped", e);
+					}
+					close(from);
+					close(to);
+				}
+			});
+		}
+
+		void drop() {
+			for (final Socket socket : sockets) {
+				close(socket);
+			}
+			sockets.clear();
+		}
+
+		void close() throws IOException {
+			server.close();
+			drop();
+		}
+
+		private static void start(final Runnable runnable) {
+			final Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private static void close(final Socket socket) {
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				LOG.log(Level.FINEST, "Couldn't close socket", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.capabilities.handler.SimpleHandler;
+import com.almende.eve.protocol.CircuitBreakerProtocol;
+import com.almende.eve.protocol.CircuitBreakerProtocol.State;
+import com.almende.eve.protocol.CircuitBreakerProtocolBuilder;
+import com.almende.eve.protocol.CircuitBreakerProtocolConfig;
+import com.almende.eve.protocol.Meta;
+import com.almende.eve.protocol.ProtocolStack;
+import com.almende.eve.protocol.jsonrpc.JSONRpcProtocol;
+import com.almende.eve.protocol.jsonrpc.JSONRpcProtocolBuilder;
+import com.almende.eve.protocol.jsonrpc.JSONRpcProtocolConfig;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRPCException;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.eve.protocol.jsonrpc.formats.JSONResponse;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+
+/**
+ * The Class TestCircuitBreaker, runs the circuit breaker through its states
+ * against a peer that doesn't respond until told to.
+ */
+public class TestCircuitBreaker extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger(TestCircuitBreaker.class
+												.getName());
+	private static final URI	PEER	= URI.create("local:hangingPeer");
+
+	/**
+	 * Test the circuit breaker.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		final CircuitBreakerProtocolConfig config = CircuitBreakerProtocolConfig
+				.create();
+		config.setId("breakerTest");
+		config.setFailureThreshold(2);
+		config.setCallTimeout(100);
+		config.setResetTimeout(500);
+		final CircuitBreakerProtocol breaker = (CircuitBreakerProtocol) new CircuitBreakerProtocolBuilder()
+				.withConfig(config).build();
+
+		final JSONRpcProtocolConfig rpcConfig = JSONRpcProtocolConfig.create();
+		rpcConfig.setId("breakerTest");
+		final JSONRpcProtocol rpc = (JSONRpcProtocol) new JSONRpcProtocolBuilder()
+				.withConfig(rpcConfig)
+				.withHandle(new SimpleHandler<Object>(new Object())).build();
+
+		final ProtocolStack stack = new ProtocolStack();
+		stack.add(breaker);
+		stack.add(rpc);
+
+		// The peer doesn't respond, two calls open the circuit.
+		assertNotNull(call(stack, new AtomicReference<Exception>()));
+		assertNotNull(call(stack, new AtomicReference<Exception>()));
+		assertEquals(State.CLOSED, breaker.getState(PEER));
+		Thread.sleep(300);
+		assertEquals(State.OPEN, breaker.getState(PEER));
+		LOG.warning("Circuits:" + breaker.getCircuits());
+
+		// Calls fail right away now, without being sent.
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		assertNull(call(stack, error));
+		assertTrue(error.get() instanceof JSONRPCException);
+		assertEquals(-32503, ((JSONRPCException) error.get()).getCode());
+
+		// After the reset timeout, a single trial call goes through.
+		Thread.sleep(500);
+		assertEquals(State.HALF_OPEN, breaker.getState(PEER));
+		final Meta trial = call(stack, new AtomicReference<Exception>());
+		assertNotNull(trial);
+		assertNull(call(stack, new AtomicReference<Exception>()));
+
+		// The peer answers the trial call, the circuit closes.
+		final JSONRequest request = (JSONRequest) trial.getMsg();
+		stack.inbound(new JSONResponse(request.getId(), JOM.getInstance()
+				.valueToTree("pong")).toString(), PEER, null);
+		assertEquals(State.CLOSED, breaker.getState(PEER));
+		assertNotNull(call(stack, new AtomicReference<Exception>()));
+
+		stack.delete();
+	}
+
+	private Meta call(final ProtocolStack stack,
+			final AtomicReference<Exception> error) {
+		final JSONRequest request = new JSONRequest("ping",
+				JOM.createObjectNode(), new AsyncCallback<String>() {
+					@Override
+					public void onSuccess(final String result) {}
+
+					@Override
+					public void onFailure(final Exception exception) {
+						error.set(exception);
+					}
+				});
+		return stack.outbound(request, PEER, null);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentConfig;
+import com.almende.eve.agent.ExampleAgent;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.util.callback.AsyncCallback;
+
+/**
+ * The Class TestConcurrency.
+ */
+public class TestConcurrency extends TestCase {
+	private static final Logger	LOG	= Logger.getLogger(TestConcurrency.class
+											.getName());
+
+	/**
+	 * Test the @Sequential, @Concurrent and @Exclusive annotations.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testIsolation() throws Exception {
+		checkIsolation("isolation", false);
+	}
+
+	/**
+	 * Test the isolation annotations on calls that are invoked directly on a
+	 * co-located agent.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDirectIsolation() throws Exception {
+		checkIsolation("directIsolation", true);
+	}
+
+	private void checkIsolation(final String prefix, final boolean direct)
+			throws Exception {
+		final AgentConfig targetConfig = AgentConfig.create(prefix + "Target");
+		targetConfig.setDirectInvocation(direct);
+		final ExampleAgent target = new ExampleAgent();
+		target.setConfig(targetConfig);
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(AgentConfig.create(prefix + "Caller"));
+		final URI url = URI.create("local:" + prefix + "Target");
+
+		final int count = 50;
+		final CountDownLatch done = new CountDownLatch(3 * count);
+		final AtomicInteger sequential = new AtomicInteger(0);
+		final AtomicInteger exclusive = new AtomicInteger(0);
+		for (int i = 0; i < count; i++) {
+			agent.pubSend(url, "concurrentWork", new Params(),
+					new Counter(done, null));
+			agent.pubSend(url, "sequentialWork", new Params(), new Counter(
+					done, sequential));
+			agent.pubSend(url, "exclusiveWork", new Params(), new Counter(
+					done, exclusive));
+		}
+		assertTrue(done.await(20, TimeUnit.SECONDS));
+		assertEquals(0, sequential.get());
+		assertEquals(0, exclusive.get());
+		LOG.warning("No overlapping calls.");
+	}
+
+	/**
+	 * Counts the calls that overlapped with other calls.
+	 */
+	private static class Counter extends AsyncCallback<Integer> {
+		private final CountDownLatch	done;
+		private final AtomicInteger		overlaps;
+
+		Counter(final CountDownLatch done, final AtomicInteger overlaps) {
+			this.done = done;
+			this.overlaps = overlaps;
+		}
+
+		@Override
+		public void onSuccess(final Integer running) {
+			if (overlaps != null && running > 1) {
+				overlaps.incrementAndGet();
+			}
+			done.countDown();
+		}
+
+		@Override
+		public void onFailure(final Exception exception) {
+			LOG.log(Level.SEVERE, "Call failed", exception);
+			if (overlaps != null) {
+				overlaps.incrementAndGet();
+			}
+			done.countDown();
+		}
+	}
+}
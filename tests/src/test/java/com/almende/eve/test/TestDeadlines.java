@@ -0,0 +1,217 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.CallerDecorator;
+import com.almende.eve.capabilities.handler.SimpleHandler;
+import com.almende.eve.protocol.InboxProtocol;
+import com.almende.eve.protocol.InboxProtocolBuilder;
+import com.almende.eve.protocol.InboxProtocolConfig;
+import com.almende.eve.protocol.Meta;
+import com.almende.eve.protocol.ProtocolStack;
+import com.almende.eve.protocol.jsonrpc.JSONRpcProtocol;
+import com.almende.eve.protocol.jsonrpc.JSONRpcProtocolBuilder;
+import com.almende.eve.protocol.jsonrpc.JSONRpcProtocolConfig;
+import com.almende.eve.protocol.jsonrpc.annotation.Access;
+import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
+import com.almende.eve.protocol.jsonrpc.formats.Caller;
+import com.almende.eve.protocol.jsonrpc.formats.JSONMessage;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.eve.protocol.jsonrpc.formats.JSONResponse;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+import com.almende.util.uuid.UUID;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The Class TestDeadlines, sheds expired requests and propagates deadlines to
+ * the calls made while handling a request.
+ */
+public class TestDeadlines extends TestCase {
+	private static final URI	PEER	= URI.create("local:deadlinePeer");
+
+	/**
+	 * The agent behind the protocol stack.
+	 */
+	@Access(AccessType.PUBLIC)
+	public static class Worker {
+		private final CountDownLatch	blocked		= new CountDownLatch(1);
+		private final CountDownLatch	release		= new CountDownLatch(1);
+		private final AtomicInteger		pings		= new AtomicInteger(0);
+		private volatile ProtocolStack	stack		= null;
+		private volatile Long			current		= null;
+		private volatile Long			propagated	= null;
+
+		/**
+		 * Keep the agent busy until released.
+		 *
+		 * @throws InterruptedException
+		 *             the interrupted exception
+		 */
+		public void block() throws InterruptedException {
+			blocked.countDown();
+			release.await(10, TimeUnit.SECONDS);
+		}
+
+		/**
+		 * Ping.
+		 *
+		 * @return the number of pings
+		 */
+		public int ping() {
+			return pings.incrementAndGet();
+		}
+
+		/**
+		 * Make a call while handling this request.
+		 */
+		public void relay() {
+			current = JSONRpcProtocol.getCurrentDeadline();
+			final Meta sent = stack.outbound(new JSONRequest("ping",
+					JOM.createObjectNode(), new AsyncCallback<Integer>() {
+						@Override
+						public void onSuccess(final Integer result) {}
+
+						@Override
+						public void onFailure(final Exception exception) {}
+					}), PEER, null);
+			propagated = ((JSONRequest) sent.getMsg()).getDeadline();
+		}
+	}
+
+	private static ProtocolStack createStack(final String id,
+			final Worker worker, final BlockingQueue<JSONResponse> responses) {
+		final InboxProtocolConfig inboxConfig = InboxProtocolConfig.create();
+		inboxConfig.setId(id);
+		final InboxProtocol inbox = new InboxProtocolBuilder().withConfig(
+				inboxConfig).build();
+
+		final JSONRpcProtocolConfig rpcConfig = JSONRpcProtocolConfig.create();
+		rpcConfig.setId(id);
+		final JSONRpcProtocol rpc = (JSONRpcProtocol) new JSONRpcProtocolBuilder()
+				.withConfig(rpcConfig)
+				.withHandle(new SimpleHandler<Object>(worker)).build();
+		// Collects the responses instead of sending them.
+		rpc.setCaller(new SimpleHandler<Caller>(new CallerDecorator(null) {
+			@Override
+			protected void send(final URI url, final JSONRequest request,
+					final String tag) {}
+
+			@Override
+			public <T> void call(final URI url, final JSONMessage message,
+					final String tag) {
+				if (message instanceof JSONResponse) {
+					responses.add((JSONResponse) message);
+				}
+			}
+		}));
+
+		final ProtocolStack stack = new ProtocolStack();
+		stack.add(inbox);
+		stack.add(rpc);
+		worker.stack = stack;
+		return stack;
+	}
+
+	private static JSONRequest request(final String method, final Long deadline) {
+		final JSONRequest request = new JSONRequest(JOM.getInstance()
+				.getNodeFactory().textNode(new UUID().toString()), method,
+				JOM.createObjectNode(), null);
+		if (deadline != null) {
+			request.setDeadline(deadline);
+		}
+		return request;
+	}
+
+	/**
+	 * Test that a request that expires while it waits in the inbox is
+	 * answered with a deadline error, without being invoked.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testShedding() throws Exception {
+		final Worker worker = new Worker();
+		final BlockingQueue<JSONResponse> responses = new LinkedBlockingQueue<JSONResponse>();
+		final ProtocolStack stack = createStack("deadlineShedding", worker,
+				responses);
+		try {
+			final JSONRequest block = request("block", null);
+			stack.inbound(block.toString(), PEER, null);
+			assertTrue(worker.blocked.await(5, TimeUnit.SECONDS));
+
+			// Still valid when it arrives, expired when the agent gets to it.
+			final JSONRequest expiring = request("ping",
+					System.currentTimeMillis() + 200);
+			stack.inbound(expiring.toString(), PEER, null);
+			final JSONRequest later = request("ping",
+					System.currentTimeMillis() + 10000);
+			stack.inbound(later.toString(), PEER, null);
+			Thread.sleep(400);
+			worker.release.countDown();
+
+			final Map<JsonNode, JSONResponse> answers = new HashMap<JsonNode, JSONResponse>();
+			for (int i = 0; i < 3; i++) {
+				final JSONResponse response = responses.poll(5,
+						TimeUnit.SECONDS);
+				assertNotNull(response);
+				answers.put(response.getId(), response);
+			}
+			assertNull(answers.get(block.getId()).getError());
+
+			final JSONResponse shed = answers.get(expiring.getId());
+			assertNotNull(shed.getError());
+			assertEquals(-32408, shed.getError().getCode());
+
+			final JSONResponse answered = answers.get(later.getId());
+			assertNull(answered.getError());
+			assertEquals(1, answered.getResult().asInt());
+			assertEquals(1, worker.pings.get());
+		} finally {
+			worker.release.countDown();
+			stack.delete();
+			InboxProtocolBuilder.delete("deadlineShedding");
+		}
+	}
+
+	/**
+	 * Test that calls made while handling a request inherit its deadline.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testPropagation() throws Exception {
+		final Worker worker = new Worker();
+		final BlockingQueue<JSONResponse> responses = new LinkedBlockingQueue<JSONResponse>();
+		final ProtocolStack stack = createStack("deadlinePropagation", worker,
+				responses);
+		try {
+			final long deadline = System.currentTimeMillis() + 5000;
+			stack.inbound(request("relay", deadline).toString(), PEER, null);
+			assertNotNull(responses.poll(5, TimeUnit.SECONDS));
+			assertEquals(Long.valueOf(deadline), worker.current);
+			assertEquals(Long.valueOf(deadline), worker.propagated);
+			assertNull(JSONRpcProtocol.getCurrentDeadline());
+		} finally {
+			stack.delete();
+			InboxProtocolBuilder.delete("deadlinePropagation");
+		}
+	}
+}
@@ -6,6 +6,10 @@ package com.almende.eve.test;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import junit.framework.TestCase;
@@ -16,11 +20,13 @@ import com.almende.eve.agent.AgentBuilder;
 import com.almende.eve.agent.AgentConfig;
 import com.almende.eve.agent.ExampleAgent;
 import com.almende.eve.capabilities.handler.Handler;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
 import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.Transport;
 import com.almende.eve.transport.TransportBuilder;
 import com.almende.eve.transport.http.HttpTransportConfig;
 import com.almende.util.URIUtil;
+import com.almende.util.callback.AsyncCallback;
 import com.almende.util.jackson.JOM;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -55,6 +61,56 @@ public class TestHttp extends TestCase {
 				"Hello World", null, null);
 	}
 
+	/**
+	 * Test the non-blocking http client, against the embedded Jetty.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAsyncClient() throws Exception {
+		final HttpTransportConfig transportConfig = HttpTransportConfig
+				.create();
+		transportConfig.setServletUrl("http://localhost:8086/agents/");
+		transportConfig.setServletLauncher("JettyLauncher");
+		transportConfig.setAsyncClient(true);
+		transportConfig.setMaxConnectionsPerPeer(4);
+		final ObjectNode jettyParms = JOM.createObjectNode();
+		jettyParms.put("port", 8086);
+		transportConfig.set("jetty", jettyParms);
+
+		final AgentConfig agentConf = AgentConfig.create("asyncClient");
+		agentConf.addTransport(transportConfig);
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(agentConf);
+
+		final URI url = URIUtil
+				.create("http://localhost:8086/agents/asyncClient");
+		final int count = 500;
+		final CountDownLatch done = new CountDownLatch(count);
+		final AtomicInteger received = new AtomicInteger(0);
+		for (int i = 0; i < count; i++) {
+			final Params params = new Params();
+			params.add("message", "Hi " + i);
+			agent.pubSend(url, "helloWorld", params,
+					new AsyncCallback<String>() {
+						@Override
+						public void onSuccess(final String result) {
+							received.incrementAndGet();
+							done.countDown();
+						}
+
+						@Override
+						public void onFailure(final Exception exception) {
+							LOG.log(Level.WARNING, "Call failed", exception);
+							done.countDown();
+						}
+					});
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(count, received.get());
+	}
+
 	/**
 	 * Test manual http.
 	 *
@@ -0,0 +1,209 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentConfig;
+import com.almende.eve.agent.ExampleAgent;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.eve.transport.http.AsyncEveServlet;
+import com.almende.eve.transport.http.HttpTransportConfig;
+import com.almende.eve.transport.http.embed.JettyLauncher;
+import com.almende.util.URIUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+import com.almende.util.threads.ThreadPool;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestHttpLoad, compares the blocking EveServlet with the
+ * AsyncEveServlet under load of a slow agent: the latter shouldn't hold a
+ * container thread per pending request.
+ */
+public class TestHttpLoad extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger(TestHttpLoad.class
+												.getName());
+	private static final int	COUNT	= 400;
+	private static final int	DELAY	= 50;
+
+	private static ExampleAgent createAgent(final String id,
+			final String path, final String servletClass) {
+		final HttpTransportConfig transportConfig = HttpTransportConfig
+				.create();
+		transportConfig.setServletUrl("http://localhost:8087/" + path + "/");
+		transportConfig.setServletLauncher("JettyLauncher");
+		transportConfig.setServletClass(servletClass);
+		transportConfig.setAsyncClient(true);
+		transportConfig.setMaxConnectionsPerPeer(COUNT);
+		// All calls have to go through the servlets.
+		transportConfig.setDoShortcut(false);
+		final ObjectNode jettyParms = JOM.createObjectNode();
+		jettyParms.put("port", 8087);
+		transportConfig.set("jetty", jettyParms);
+
+		final AgentConfig config = AgentConfig.create(id);
+		config.addTransport(transportConfig);
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(config);
+		return agent;
+	}
+
+	/**
+	 * Load the given url, returns the largest number of busy container
+	 * threads seen during the calls.
+	 */
+	private static int load(final ExampleAgent caller, final URI url)
+			throws IOException, InterruptedException {
+		final CountDownLatch done = new CountDownLatch(COUNT);
+		final AtomicInteger received = new AtomicInteger(0);
+		final AtomicInteger busy = new AtomicInteger(0);
+		final ScheduledFuture<?> sampler = ThreadPool.getScheduledPool()
+				.scheduleAtFixedRate(new Runnable() {
+					@Override
+					public void run() {
+						final int current = Launcher.getBusyThreads();
+						if (current > busy.get()) {
+							busy.set(current);
+						}
+					}
+				}, 0, 5, TimeUnit.MILLISECONDS);
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < COUNT; i++) {
+			final Params params = new Params();
+			params.add("millis", DELAY);
+			caller.pubSend(url, "delay", params, new AsyncCallback<Integer>() {
+				@Override
+				public void onSuccess(final Integer result) {
+					received.incrementAndGet();
+					done.countDown();
+				}
+
+				@Override
+				public void onFailure(final Exception exception) {
+					LOG.log(Level.WARNING, "Call failed", exception);
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		sampler.cancel(false);
+		assertEquals(COUNT, received.get());
+		LOG.warning(COUNT + " calls of " + DELAY + "ms to " + url + " took "
+				+ (System.currentTimeMillis() - start) + "ms, busy threads: "
+				+ busy.get());
+		return busy.get();
+	}
+
+	/**
+	 * Test the blocking and the asynchronous servlet with a slow agent.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLoad() throws Exception {
+		createAgent("blockingLoad", "agents",
+				"com.almende.eve.transport.http.EveServlet");
+		createAgent("asyncLoad", "async", AsyncEveServlet.class.getName());
+		final ExampleAgent caller = createAgent("loadCaller", "agents",
+				"com.almende.eve.transport.http.EveServlet");
+
+		final URI syncUrl = URIUtil
+				.create("http://localhost:8087/agents/blockingLoad");
+		final URI asyncUrl = URIUtil
+				.create("http://localhost:8087/async/asyncLoad");
+
+		// Warm up connections and servlets.
+		load(caller, syncUrl);
+		load(caller, asyncUrl);
+
+		final int sync = load(caller, syncUrl);
+		final int async = load(caller, asyncUrl);
+		assertTrue(async < sync);
+	}
+
+	private static int post(final URI url, final int padding,
+			final boolean chunked) throws IOException {
+		final StringBuilder pad = new StringBuilder(padding);
+		for (int i = 0; i < padding; i++) {
+			pad.append('x');
+		}
+		final byte[] body = ("{\"id\":1,\"method\":\"delay\",\"params\":"
+				+ "{\"millis\":0,\"pad\":\"" + pad + "\"}}").getBytes("UTF-8");
+		final HttpURLConnection connection = (HttpURLConnection) url.toURL()
+				.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setDoOutput(true);
+		if (chunked) {
+			connection.setChunkedStreamingMode(512);
+		} else {
+			connection.setFixedLengthStreamingMode(body.length);
+		}
+		final OutputStream out = connection.getOutputStream();
+		out.write(body);
+		out.close();
+		final int status = connection.getResponseCode();
+		connection.disconnect();
+		return status;
+	}
+
+	/**
+	 * Test that the asynchronous servlet rejects bodies larger than the
+	 * configured maximum, also those without a Content-Length.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBodyLimit() throws Exception {
+		final HttpTransportConfig transportConfig = HttpTransportConfig
+				.create();
+		transportConfig.setServletUrl("http://localhost:8087/limited/");
+		transportConfig.setServletLauncher("JettyLauncher");
+		transportConfig.setServletClass(AsyncEveServlet.class.getName());
+		transportConfig.setMaxBodySize(1024);
+		final ObjectNode jettyParms = JOM.createObjectNode();
+		jettyParms.put("port", 8087);
+		transportConfig.set("jetty", jettyParms);
+		final AgentConfig config = AgentConfig.create("limitedAgent");
+		config.addTransport(transportConfig);
+		new ExampleAgent().setConfig(config);
+
+		final URI url = URIUtil
+				.create("http://localhost:8087/limited/limitedAgent");
+		assertEquals(HttpURLConnection.HTTP_OK, post(url, 100, false));
+		assertEquals(HttpURLConnection.HTTP_OK, post(url, 100, true));
+		assertEquals(HttpURLConnection.HTTP_ENTITY_TOO_LARGE,
+				post(url, 4096, false));
+		assertEquals(HttpURLConnection.HTTP_ENTITY_TOO_LARGE,
+				post(url, 4096, true));
+	}
+
+	/**
+	 * Gives access to the embedded server.
+	 */
+	private static class Launcher extends JettyLauncher {
+		private static int getBusyThreads() {
+			return ((QueuedThreadPool) server.getThreadPool())
+					.getBusyThreads();
+		}
+	}
+}
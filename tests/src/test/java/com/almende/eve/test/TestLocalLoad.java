@@ -0,0 +1,177 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.capabilities.handler.SimpleHandler;
+import com.almende.eve.transport.LocalTransportConfig;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.Transport;
+import com.almende.eve.transport.TransportBuilder;
+
+/**
+ * The Class TestLocalLoad, local delivery through the threadpool compared to
+ * inline delivery on the sender's thread, and the local registry under
+ * concurrent use.
+ */
+public class TestLocalLoad extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger(TestLocalLoad.class
+												.getName());
+	private static final int	ROUNDS	= 100000;
+
+	private static Transport createTransport(final String id,
+			final boolean inline, final Receiver receiver) {
+		final LocalTransportConfig config = LocalTransportConfig.create(id);
+		config.setInlineDelivery(inline);
+		return new TransportBuilder().withConfig(config)
+				.withHandle(new SimpleHandler<Receiver>(receiver)).build();
+	}
+
+	/**
+	 * Run ping-pong rounds between two local transports, one message in
+	 * flight at a time.
+	 *
+	 * @return the average round trip in nanoseconds
+	 */
+	private long pingPong(final String prefix, final boolean inline)
+			throws Exception {
+		final AtomicReference<CountDownLatch> pong = new AtomicReference<CountDownLatch>();
+		final AtomicReference<Transport> echo = new AtomicReference<Transport>();
+		final Transport pinger = createTransport(prefix + "Pinger", inline,
+				new Receiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						pong.get().countDown();
+					}
+				});
+		echo.set(createTransport(prefix + "Echo", inline, new Receiver() {
+			@Override
+			public void receive(final Object msg, final URI senderUrl,
+					final String tag) {
+				try {
+					echo.get().send(senderUrl, msg, null, null);
+				} catch (final IOException e) {
+					LOG.warning("Couldn't echo:" + e);
+				}
+			}
+		}));
+
+		final URI url = URI.create("local:" + prefix + "Echo");
+		long start = 0;
+		for (int i = -10000; i < ROUNDS; i++) {
+			if (i == 0) {
+				start = System.nanoTime();
+			}
+			pong.set(new CountDownLatch(1));
+			pinger.send(url, "{\"ping\":" + i + "}", null, null);
+			assertTrue(pong.get().await(5, TimeUnit.SECONDS));
+		}
+		final long average = (System.nanoTime() - start) / ROUNDS;
+		pinger.delete();
+		echo.get().delete();
+		return average;
+	}
+
+	/**
+	 * Test the round trip time with and without inline delivery.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testInlineDelivery() throws Exception {
+		final long pooled = pingPong("pooled", false);
+		final long inline = pingPong("inline", true);
+		LOG.warning(ROUNDS + " local round trips, through the threadpool:"
+				+ pooled + " ns, inline:" + inline + " ns");
+
+		// Inline, the receiver runs on the sender's thread.
+		final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+		final Transport sender = createTransport("inlineSender", false,
+				new Receiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {}
+				});
+		createTransport("inlineTarget", true, new Receiver() {
+			@Override
+			public void receive(final Object msg, final URI senderUrl,
+					final String tag) {
+				thread.set(Thread.currentThread());
+			}
+		});
+		sender.send(URI.create("local:inlineTarget"), "Hi", null, null);
+		assertSame(Thread.currentThread(), thread.get());
+	}
+
+	/**
+	 * Test the local registry while agents are created and deleted
+	 * concurrently with local sends.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testConcurrentRegistry() throws Exception {
+		final int threads = 8;
+		final int agents = 500;
+		final AtomicInteger received = new AtomicInteger(0);
+		final AtomicInteger failed = new AtomicInteger(0);
+		final Receiver receiver = new Receiver() {
+			@Override
+			public void receive(final Object msg, final URI senderUrl,
+					final String tag) {
+				received.incrementAndGet();
+			}
+		};
+		final Transport sender = createTransport("registrySender", true,
+				receiver);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int offset = t * agents;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = offset; i < offset + agents; i++) {
+						final Transport transport = createTransport(
+								"registry" + i, true, receiver);
+						try {
+							sender.send(URI.create("local:registry" + i),
+									"Hi", null, null);
+						} catch (final IOException e) {
+							failed.incrementAndGet();
+						}
+						if (i % 2 == 0) {
+							transport.delete();
+						}
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, failed.get());
+		assertEquals(threads * agents, received.get());
+
+		// Deleted agents are gone, the others are still there.
+		try {
+			sender.send(URI.create("local:registry0"), "Hi", null, null);
+			fail("Deleted agent still registered");
+		} catch (final IOException e) {}
+		sender.send(URI.create("local:registry1"), "Hi", null, null);
+	}
+}
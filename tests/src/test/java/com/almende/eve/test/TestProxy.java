@@ -4,6 +4,13 @@
  */
 package com.almende.eve.test;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import junit.framework.TestCase;
@@ -14,8 +21,15 @@ import com.almende.eve.agent.AgentConfig;
 import com.almende.eve.agent.AgentProxyFactory;
 import com.almende.eve.agent.ExampleAgent;
 import com.almende.eve.agent.ExampleAgentInterface;
+import com.almende.eve.protocol.jsonrpc.annotation.Access;
+import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
+import com.almende.eve.protocol.jsonrpc.annotation.Name;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
 import com.almende.eve.transport.http.HttpTransportConfig;
+import com.almende.util.TypeUtil;
 import com.almende.util.URIUtil;
+import com.almende.util.callback.FutureCallback;
 import com.almende.util.jackson.JOM;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -62,4 +76,199 @@ public class TestProxy extends TestCase {
 
 		}
 	}
+
+	/**
+	 * The Interface AsyncExampleInterface.
+	 */
+	public interface AsyncExampleInterface {
+
+		/**
+		 * Hello world.
+		 *
+		 * @param message
+		 *            the message
+		 * @return the future reply
+		 */
+		Future<String> helloWorld(@Name("message") String message);
+	}
+
+	/**
+	 * Test async proxy.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAsyncProxy() throws Exception {
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(AgentConfig.create("asyncExample"));
+
+		final AsyncExampleInterface proxy = AgentProxyFactory.genProxy(agent,
+				URIUtil.create("local:asyncExample"),
+				AsyncExampleInterface.class);
+		final Future<String> first = proxy.helloWorld("Hi there");
+		final Future<String> second = proxy.helloWorld("Hi again");
+		assertTrue(first instanceof FutureCallback);
+
+		assertEquals("You said:Hi there", first.get(10, TimeUnit.SECONDS));
+		assertEquals("You said:Hi again", second.get(10, TimeUnit.SECONDS));
+		LOG.warning("Async proxy got replies.");
+	}
+
+	/**
+	 * Test direct invocation between co-located agents.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDirectInvocation() throws Exception {
+		final AgentConfig targetConfig = AgentConfig.create("directTarget");
+		targetConfig.setDirectInvocation(true);
+		final ExampleAgent target = new ExampleAgent();
+		target.setConfig(targetConfig);
+
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(AgentConfig.create("directCaller"));
+
+		final ExampleAgentInterface proxy = AgentProxyFactory.genProxy(agent,
+				URIUtil.create("local:directTarget"),
+				ExampleAgentInterface.class);
+		assertEquals("You said:Hi there", proxy.helloWorld("Hi there"));
+
+		final AsyncExampleInterface async = AgentProxyFactory.genProxy(agent,
+				URIUtil.create("local:directTarget"),
+				AsyncExampleInterface.class);
+		assertEquals("You said:Hi again", async.helloWorld("Hi again")
+				.get(10, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Test that a coalesced synchronous call stays synchronous: direct
+	 * invocation runs it on the caller's thread.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCoalescedSyncCall() throws Exception {
+		final AgentConfig targetConfig = AgentConfig.create("coalesceTarget");
+		targetConfig.setDirectInvocation(true);
+		final ExampleAgent target = new ExampleAgent();
+		target.setConfig(targetConfig);
+
+		final AgentConfig config = AgentConfig.create("coalesceCaller");
+		config.setCoalesceRequests(true);
+		config.setIdempotentMethods(Arrays.asList("checkThread"));
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(config);
+
+		assertEquals(Long.valueOf(Thread.currentThread().getId()),
+				agent.pubSendSync(URIUtil.create("local:coalesceTarget"),
+						"checkThread", new Params(), new TypeUtil<Long>() {}));
+	}
+
+	/**
+	 * An agent that counts its calls.
+	 */
+	@Access(AccessType.PUBLIC)
+	public static class Counter extends ExampleAgent {
+		private final AtomicInteger	calls	= new AtomicInteger(0);
+
+		/**
+		 * Count the call, and answer after a while.
+		 *
+		 * @param millis
+		 *            the delay in milliseconds
+		 * @return the number of calls so far
+		 * @throws InterruptedException
+		 *             the interrupted exception
+		 */
+		public int countSlowly(@Name("millis") final int millis)
+				throws InterruptedException {
+			final int count = calls.incrementAndGet();
+			Thread.sleep(millis);
+			return count;
+		}
+	}
+
+	/**
+	 * Test that identical requests of different agents are coalesced into a
+	 * single request.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCoalescedAgents() throws Exception {
+		final Counter target = new Counter();
+		target.setConfig(AgentConfig.create("coalesceCounter"));
+
+		final List<FutureCallback<Integer>> results = new ArrayList<FutureCallback<Integer>>();
+		for (int i = 0; i < 3; i++) {
+			final AgentConfig config = AgentConfig.create("coalescing" + i);
+			config.setCoalesceRequests(true);
+			config.setIdempotentMethods(Arrays.asList("countSlowly"));
+			final ExampleAgent agent = new ExampleAgent();
+			agent.setConfig(config);
+
+			final ObjectNode params = JOM.createObjectNode();
+			params.put("millis", 500);
+			final FutureCallback<Integer> result = new FutureCallback<Integer>(
+					new TypeUtil<Integer>() {});
+			agent.pubSend(URIUtil.create("local:coalesceCounter"),
+					"countSlowly", params, result);
+			results.add(result);
+		}
+		for (final FutureCallback<Integer> result : results) {
+			assertEquals(Integer.valueOf(1), result.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, target.calls.get());
+	}
+
+	/**
+	 * Test that requests built from the cached template of a method, and
+	 * calls through proxies sharing the cached proxy class, each get their
+	 * own params.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testTemplates() throws Exception {
+		final Method method = AsyncExampleInterface.class.getMethod(
+				"helloWorld", String.class);
+		final JSONRequest first = new JSONRequest(method,
+				new Object[] { "first" }, null);
+		final JSONRequest second = new JSONRequest(method,
+				new Object[] { "second" }, null);
+		assertNotSame(first.getParams(), second.getParams());
+		first.getParams().put("message", "changed");
+		first.getParams().put("added", true);
+		assertEquals("second", second.getParams().get("message").asText());
+		final JSONRequest third = new JSONRequest(method,
+				new Object[] { "third" }, null);
+		assertEquals("third", third.getParams().get("message").asText());
+		assertFalse(third.getParams().has("added"));
+		assertEquals(1, third.getParams().size());
+
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(AgentConfig.create("templateExample"));
+		final AsyncExampleInterface[] proxies = new AsyncExampleInterface[] {
+				AgentProxyFactory.genProxy(agent,
+						URIUtil.create("local:templateExample"),
+						AsyncExampleInterface.class),
+				AgentProxyFactory.genProxy(agent,
+						URIUtil.create("local:templateExample"),
+						AsyncExampleInterface.class) };
+		assertSame(proxies[0].getClass(), proxies[1].getClass());
+		final List<Future<String>> replies = new ArrayList<Future<String>>();
+		for (int i = 0; i < 100; i++) {
+			replies.add(proxies[i % 2].helloWorld("call " + i));
+		}
+		for (int i = 0; i < 100; i++) {
+			assertEquals("You said:call " + i,
+					replies.get(i).get(10, TimeUnit.SECONDS));
+		}
+	}
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.capabilities.handler.SimpleHandler;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.Transport;
+import com.almende.eve.transport.TransportBuilder;
+import com.almende.eve.transport.shm.ShmTransportConfig;
+
+/**
+ * The Class TestShm, runs the shared memory transport between this process
+ * and a second JVM that echoes every message.
+ */
+public class TestShm extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger(TestShm.class
+												.getName());
+	private static final int	COUNT	= 100000;
+	private static final int	ROUNDS	= 10000;
+
+	private static Transport createTransport(final String id,
+			final String node, final String directory, final Receiver receiver)
+			throws IOException {
+		final ShmTransportConfig config = ShmTransportConfig.create();
+		config.setId(id);
+		config.setNode(node);
+		config.setDirectory(directory);
+		config.setDoShortcut(false);
+		final Transport transport = new TransportBuilder().withConfig(config)
+				.withHandle(new SimpleHandler<Receiver>(receiver)).build();
+		transport.connect();
+		return transport;
+	}
+
+	/**
+	 * Test round trips and throughput to another process.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testShm() throws Exception {
+		final File directory = Files.createTempDirectory("eve-shm").toFile();
+		final BlockingQueue<Object> pongs = new LinkedBlockingQueue<Object>();
+		final AtomicReference<CountDownLatch> echoed = new AtomicReference<CountDownLatch>();
+		final Transport pinger = createTransport("shmPinger", "parent",
+				directory.getPath(), new Receiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						final CountDownLatch latch = echoed.get();
+						if (latch != null) {
+							latch.countDown();
+						} else {
+							pongs.add(msg);
+						}
+					}
+				});
+
+		final Process echo = new ProcessBuilder(new File(
+				System.getProperty("java.home"), "bin/java").getPath(), "-cp",
+				System.getProperty("java.class.path"),
+				EchoProcess.class.getName(), directory.getPath())
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		try {
+			final BufferedReader out = new BufferedReader(
+					new InputStreamReader(echo.getInputStream(), "UTF-8"));
+			assertEquals("ready", out.readLine());
+
+			final URI url = URI.create("shm:shmEcho");
+			final long[] times = new long[ROUNDS];
+			for (int i = -1000; i < ROUNDS; i++) {
+				final long start = System.nanoTime();
+				pinger.send(url, "{\"ping\":" + i + "}", null, null);
+				assertEquals("{\"ping\":" + i + "}",
+						pongs.poll(5, TimeUnit.SECONDS));
+				// The first thousand rounds warm up.
+				if (i >= 0) {
+					times[i] = System.nanoTime() - start;
+				}
+			}
+			Arrays.sort(times);
+			long total = 0;
+			for (final long time : times) {
+				total += time;
+			}
+			LOG.warning(ROUNDS + " shm round trips, average:"
+					+ (total / ROUNDS / 1000) + " us, p99:"
+					+ (times[ROUNDS * 99 / 100] / 1000) + " us");
+
+			final byte[] large = new byte[100000];
+			large[large.length - 1] = 42;
+			pinger.send(url, large, null, null);
+			final byte[] back = (byte[]) pongs.poll(5, TimeUnit.SECONDS);
+			assertEquals(large.length, back.length);
+			assertEquals(42, back[back.length - 1]);
+
+			echoed.set(new CountDownLatch(COUNT));
+			final long start = System.currentTimeMillis();
+			for (int i = 0; i < COUNT; i++) {
+				pinger.send(url, "{\"id\":" + i + "}", null, null);
+			}
+			assertTrue(echoed.get().await(30, TimeUnit.SECONDS));
+			LOG.warning(COUNT + " shm messages echoed in:"
+					+ (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			// Closing its input stops the echo process.
+			echo.getOutputStream().close();
+			echo.waitFor();
+			pinger.disconnect();
+			for (final File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Test that a sender looks an agent up again when sending to the node it
+	 * knew times out: the agent moved to another node.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMovedAgent() throws Exception {
+		final File directory = Files.createTempDirectory("eve-shm").toFile();
+		final ShmTransportConfig config = ShmTransportConfig.create();
+		config.setId("shmMoveSender");
+		config.setNode("moveSender");
+		config.setDirectory(directory.getPath());
+		config.setDoShortcut(false);
+		config.setLaneSize(4096);
+		config.setSendTimeout(100);
+		final Transport sender = new TransportBuilder().withConfig(config)
+				.withHandle(new SimpleHandler<Receiver>(new Receiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {}
+				})).build();
+		sender.connect();
+		Transport mover = null;
+		try {
+			// The agent lives on a node that is no longer running.
+			final File agents = new File(directory, "agents");
+			final Properties entries = new Properties();
+			final FileInputStream in = new FileInputStream(agents);
+			try {
+				entries.load(in);
+			} finally {
+				in.close();
+			}
+			entries.setProperty("shmMover", "moveGone");
+			final FileOutputStream out = new FileOutputStream(agents);
+			try {
+				entries.store(out, null);
+			} finally {
+				out.close();
+			}
+
+			final URI url = URI.create("shm:shmMover");
+			final byte[] message = new byte[1000];
+			try {
+				for (int i = 0; i < 10; i++) {
+					sender.send(url, message, null, null);
+				}
+				fail("The lane to the stopped node should stay full");
+			} catch (final IOException e) {
+				LOG.info("Send timed out:" + e);
+			}
+
+			// It moved to another node.
+			final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+			mover = createTransport("shmMover", "moveTarget",
+					directory.getPath(), new Receiver() {
+						@Override
+						public void receive(final Object msg,
+								final URI senderUrl, final String tag) {
+							received.add(msg);
+						}
+					});
+			sender.send(url, "{\"moved\":true}", null, null);
+			assertEquals("{\"moved\":true}", received.poll(5, TimeUnit.SECONDS));
+		} finally {
+			sender.disconnect();
+			if (mover != null) {
+				mover.disconnect();
+			}
+			for (final File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Test that shm nodes refuse to start on platforms where the lanes can't
+	 * keep their data and position updates in order.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testUnsupportedPlatform() throws Exception {
+		final File directory = Files.createTempDirectory("eve-shm").toFile();
+		final ShmTransportConfig config = ShmTransportConfig.create();
+		config.setId("shmElsewhere");
+		config.setNode("elsewhere");
+		config.setDirectory(directory.getPath());
+		config.setDoShortcut(false);
+		final String arch = System.getProperty("os.arch");
+		System.setProperty("os.arch", "aarch64");
+		try {
+			assertNull(new TransportBuilder().withConfig(config)
+					.withHandle(new SimpleHandler<Receiver>(new Receiver() {
+						@Override
+						public void receive(final Object msg,
+								final URI senderUrl, final String tag) {}
+					})).build());
+		} finally {
+			System.setProperty("os.arch", arch);
+		}
+	}
+
+	/**
+	 * The second process: echoes all messages to their sender, until its
+	 * input is closed.
+	 */
+	public static final class EchoProcess {
+		private EchoProcess() {}
+
+		/**
+		 * The main method.
+		 *
+		 * @param args
+		 *            the shared memory directory
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		public static void main(final String[] args) throws IOException {
+			final AtomicReference<Transport> echo = new AtomicReference<Transport>();
+			echo.set(createTransport("shmEcho", "child", args[0],
+					new Receiver() {
+						@Override
+						public void receive(final Object msg,
+								final URI senderUrl, final String tag) {
+							try {
+								echo.get().send(senderUrl, msg, null, null);
+							} catch (final IOException e) {
+								LOG.warning("Couldn't echo:" + e);
+							}
+						}
+					}));
+			System.out.println("ready");
+			System.out.flush();
+			while (System.in.read() >= 0) {
+				continue;
+			}
+			echo.get().disconnect();
+			System.exit(0);
+		}
+	}
+}
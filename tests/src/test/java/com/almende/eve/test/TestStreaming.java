@@ -0,0 +1,80 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentConfig;
+import com.almende.eve.agent.ExampleAgent;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.util.TypeUtil;
+import com.almende.util.callback.StreamCallback;
+
+/**
+ * The Class TestStreaming.
+ */
+public class TestStreaming extends TestCase {
+	private static final Logger	LOG	= Logger.getLogger(TestStreaming.class
+											.getName());
+
+	/**
+	 * Test a streamed result.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testStream() throws Exception {
+		final ExampleAgent target = new ExampleAgent();
+		target.setConfig(AgentConfig.create("streamTarget"));
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(AgentConfig.create("streamCaller"));
+
+		final URI url = URI.create("local:streamTarget");
+		final Params params = new Params();
+		params.add("count", 1000);
+
+		final List<Integer> items = new ArrayList<Integer>();
+		final CountDownLatch done = new CountDownLatch(1);
+		agent.pubSend(url, "countTo", params,
+				new StreamCallback<Integer>(2) {
+					@Override
+					public void onItem(final Integer item) {
+						items.add(item);
+					}
+
+					@Override
+					public void onComplete() {
+						done.countDown();
+					}
+
+					@Override
+					public void onFailure(final Exception exception) {
+						LOG.log(Level.SEVERE, "Stream failed", exception);
+						done.countDown();
+					}
+				});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(1000, items.size());
+		for (int i = 0; i < items.size(); i++) {
+			assertEquals(Integer.valueOf(i), items.get(i));
+		}
+
+		// Callers that don't stream receive the complete result.
+		final List<Integer> all = agent.pubSendSync(url, "countTo", params,
+				new TypeUtil<List<Integer>>() {});
+		assertEquals(1000, all.size());
+	}
+}
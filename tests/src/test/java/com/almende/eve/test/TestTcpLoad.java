@@ -0,0 +1,140 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.capabilities.handler.SimpleHandler;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.Transport;
+import com.almende.eve.transport.TransportBuilder;
+import com.almende.eve.transport.tcp.TcpTransportConfig;
+
+/**
+ * The Class TestTcpLoad, throughput and round trip latency of the tcp
+ * transport between two nodes over loopback.
+ */
+public class TestTcpLoad extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger(TestTcpLoad.class
+												.getName());
+	private static final int	COUNT	= 100000;
+	private static final int	ROUNDS	= 10000;
+
+	private static Transport createTransport(final String id, final int port,
+			final Receiver receiver) throws IOException {
+		final TcpTransportConfig config = TcpTransportConfig.create();
+		config.setAddress("eve+tcp://127.0.0.1:" + port + "/");
+		config.setId(id);
+		config.setDoShortcut(false);
+		final Transport transport = new TransportBuilder().withConfig(config)
+				.withHandle(new SimpleHandler<Receiver>(receiver)).build();
+		transport.connect();
+		return transport;
+	}
+
+	/**
+	 * Test one-way throughput.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testThroughput() throws Exception {
+		final CountDownLatch received = new CountDownLatch(COUNT);
+		final Transport sender = createTransport("tcpSender", 5800,
+				new Receiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {}
+				});
+		final Transport target = createTransport("tcpTarget", 5801,
+				new Receiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						received.countDown();
+					}
+				});
+
+		final URI url = URI.create("eve+tcp://127.0.0.1:5801/tcpTarget");
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < COUNT; i++) {
+			sender.send(url, "{\"id\":" + i + "}", null, null);
+		}
+		assertTrue(received.await(30, TimeUnit.SECONDS));
+		LOG.warning(COUNT + " tcp messages took:"
+				+ (System.currentTimeMillis() - start) + " ms");
+
+		sender.disconnect();
+		target.disconnect();
+	}
+
+	/**
+	 * Test round trip latency, one message in flight at a time.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLatency() throws Exception {
+		final BlockingQueue<Object> pongs = new LinkedBlockingQueue<Object>();
+		final AtomicReference<Transport> echo = new AtomicReference<Transport>();
+		final Transport pinger = createTransport("tcpPinger", 5800,
+				new Receiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						pongs.add(msg);
+					}
+				});
+		echo.set(createTransport("tcpEcho", 5801, new Receiver() {
+			@Override
+			public void receive(final Object msg, final URI senderUrl,
+					final String tag) {
+				try {
+					echo.get().send(senderUrl, msg.toString(), null, null);
+				} catch (final IOException e) {
+					LOG.warning("Couldn't echo:" + e);
+				}
+			}
+		}));
+
+		final URI url = URI.create("eve+tcp://127.0.0.1:5801/tcpEcho");
+		final long[] times = new long[ROUNDS];
+		for (int i = -1000; i < ROUNDS; i++) {
+			final long start = System.nanoTime();
+			pinger.send(url, "{\"ping\":" + i + "}", null, null);
+			assertEquals("{\"ping\":" + i + "}",
+					pongs.poll(5, TimeUnit.SECONDS));
+			// The first thousand rounds warm up.
+			if (i >= 0) {
+				times[i] = System.nanoTime() - start;
+			}
+		}
+		Arrays.sort(times);
+		long total = 0;
+		for (final long time : times) {
+			total += time;
+		}
+		LOG.warning(ROUNDS + " tcp round trips, average:"
+				+ (total / ROUNDS / 1000) + " us, p99:"
+				+ (times[ROUNDS * 99 / 100] / 1000) + " us");
+
+		pinger.disconnect();
+		echo.get().disconnect();
+	}
+}
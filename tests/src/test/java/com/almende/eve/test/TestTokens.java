@@ -0,0 +1,138 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentConfig;
+import com.almende.eve.agent.ExampleAgent;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.eve.transport.http.HttpTransportConfig;
+import com.almende.eve.transport.tokens.TokenSigner;
+import com.almende.util.URIUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestTokens.
+ */
+public class TestTokens extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger(TestTokens.class
+												.getName());
+	private static final String	SENDER	= "http://localhost:8080/agents/sender";
+
+	/**
+	 * Test signing and verifying tokens.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSignedTokens() throws Exception {
+		final TokenSigner signer = new TokenSigner("secret".getBytes("UTF-8"),
+				60000, 100);
+		final TokenSigner receiver = new TokenSigner(
+				"secret".getBytes("UTF-8"), 60000, 100);
+		final TokenSigner stranger = new TokenSigner(
+				"other".getBytes("UTF-8"), 60000, 100);
+
+		final String token = signer.sign(SENDER);
+		assertTrue(receiver.verify(SENDER, token));
+		// Cached:
+		assertTrue(receiver.verify(SENDER, token));
+		assertFalse(receiver.verify(SENDER + "2", token));
+		assertFalse(stranger.verify(SENDER, token));
+		assertFalse(receiver.verify(SENDER, token.replaceFirst("^\\d", "9")));
+		assertFalse(receiver.verify(SENDER, "garbage"));
+
+		final TokenSigner expired = new TokenSigner(
+				"secret".getBytes("UTF-8"), -1000, 100);
+		assertFalse(receiver.verify(SENDER, expired.sign(SENDER)));
+
+		final int count = 100000;
+		final long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			receiver.verify(SENDER, token);
+		}
+		LOG.warning("Verifying a cached token took:"
+				+ ((System.nanoTime() - start) / count) + " ns");
+	}
+
+	private static ExampleAgent createAgent(final String id, final String key) {
+		final HttpTransportConfig transportConfig = HttpTransportConfig
+				.create();
+		transportConfig.setServletUrl("http://localhost:8090/agents/");
+		transportConfig.setServletLauncher("JettyLauncher");
+		transportConfig.setAsyncClient(true);
+		transportConfig.setDoShortcut(false);
+		transportConfig.setDoAuthentication(true);
+		transportConfig.setHandshakeKey(key);
+		final ObjectNode jettyParms = JOM.createObjectNode();
+		jettyParms.put("port", 8090);
+		transportConfig.set("jetty", jettyParms);
+
+		final AgentConfig config = AgentConfig.create(id);
+		config.addTransport(transportConfig);
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(config);
+		return agent;
+	}
+
+	/**
+	 * Test calls between agents over http, authenticated by signed tokens.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSignedTraffic() throws Exception {
+		final ExampleAgent caller = createAgent("signedCaller", "secret");
+		createAgent("signedCallee", "secret");
+		final URI url = URIUtil
+				.create("http://localhost:8090/agents/signedCallee");
+
+		final int count = 2000;
+		for (int round = 0; round < 2; round++) {
+			final CountDownLatch done = new CountDownLatch(count);
+			final AtomicInteger received = new AtomicInteger(0);
+			final long start = System.currentTimeMillis();
+			for (int i = 0; i < count; i++) {
+				final Params params = new Params();
+				params.add("message", "Hi");
+				caller.pubSend(url, "helloWorld", params,
+						new AsyncCallback<String>() {
+							@Override
+							public void onSuccess(final String result) {
+								received.incrementAndGet();
+								done.countDown();
+							}
+
+							@Override
+							public void onFailure(final Exception exception) {
+								LOG.log(Level.WARNING, "Call failed", exception);
+								done.countDown();
+							}
+						});
+			}
+			assertTrue(done.await(60, TimeUnit.SECONDS));
+			assertEquals(count, received.get());
+			// The first round warms up.
+			if (round > 0) {
+				LOG.warning(count + " signed http calls took:"
+						+ (System.currentTimeMillis() - start) + " ms");
+			}
+		}
+	}
+}
@@ -6,6 +6,16 @@ package com.almende.eve.test;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,8 +24,13 @@ import junit.framework.TestCase;
 import org.junit.Test;
 
 import com.almende.eve.capabilities.handler.Handler;
+import com.almende.eve.capabilities.handler.SimpleHandler;
+import com.almende.eve.transport.AbstractTransport;
 import com.almende.eve.transport.LocalTransportConfig;
+import com.almende.eve.transport.MulticastTransport;
 import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.RouteTable;
+import com.almende.eve.transport.Router;
 import com.almende.eve.transport.Transport;
 import com.almende.eve.transport.TransportBuilder;
 import com.almende.eve.transport.amqp.AmqpTransportConfig;
@@ -28,6 +43,7 @@ import com.almende.eve.transport.xmpp.XmppTransportConfig;
 import com.almende.eve.transport.zmq.ZmqTransportConfig;
 import com.almende.util.URIUtil;
 import com.almende.util.callback.AsyncCallback;
+import com.almende.util.callback.SyncCallback;
 import com.almende.util.jackson.JOM;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -81,6 +97,103 @@ public class TestTransports extends TestCase {
 				"Hello World", null, null);
 	}
 
+	/**
+	 * Test Zmq in router mode, over inproc and ipc endpoints.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testZmqRouter() throws Exception {
+		final String[] hosts = new String[] { "zmq://inproc://eveHost",
+				"zmq://ipc:///tmp/eve-zmq-test" };
+		final int count = 100;
+		final CountDownLatch received = new CountDownLatch(2 * hosts.length
+				* count);
+		final Receiver counter = new Receiver() {
+			@Override
+			public void receive(final Object msg, final URI senderUrl,
+					final String tag) {
+				received.countDown();
+			}
+		};
+		for (final String host : hosts) {
+			final Transport[] agents = new Transport[2];
+			for (int i = 0; i < agents.length; i++) {
+				final ZmqTransportConfig config = ZmqTransportConfig.create();
+				config.setAddress(host);
+				config.setId("agent" + i);
+				config.setRouter(true);
+				config.setDoShortcut(false);
+				config.setDoAuthentication(false);
+				agents[i] = new TransportBuilder().withConfig(config)
+						.withHandle(new SimpleHandler<Receiver>(counter))
+						.build();
+				agents[i].connect();
+			}
+			for (int j = 0; j < count; j++) {
+				agents[0].send(agents[1].getAddress(), "Hello " + j, null,
+						null);
+				agents[1].send(agents[0].getAddress(), "Hello " + j, null,
+						null);
+			}
+		}
+		assertTrue(received.await(10, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Test Zmq in router mode: non-ASCII agent ids, binding an endpoint again
+	 * right after its last agent disconnects, and sends to a host that isn't
+	 * there.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testZmqRouterReconnect() throws Exception {
+		final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+		final Transport[] agents = new Transport[2];
+		for (int i = 0; i < agents.length; i++) {
+			final ZmqTransportConfig config = ZmqTransportConfig.create();
+			config.setAddress("zmq://tcp://127.0.0.1:5679");
+			config.setId("\u00e9\u00e8nt" + i);
+			config.setRouter(true);
+			config.setDoShortcut(false);
+			config.setDoAuthentication(false);
+			agents[i] = new TransportBuilder().withConfig(config)
+					.withHandle(new SimpleHandler<Receiver>(new Receiver() {
+						@Override
+						public void receive(final Object msg,
+								final URI senderUrl, final String tag) {
+							received.add(msg);
+						}
+					})).build();
+			agents[i].connect();
+		}
+		agents[0].send(agents[1].getAddress(), "Hello", null, null);
+		assertEquals("Hello", received.poll(5, TimeUnit.SECONDS));
+
+		agents[0].disconnect();
+		agents[1].disconnect();
+		agents[1].connect();
+		agents[0].send(agents[1].getAddress(), "Hello again", null, null);
+		assertEquals("Hello again", received.poll(5, TimeUnit.SECONDS));
+
+		final BlockingQueue<Exception> failures = new LinkedBlockingQueue<Exception>();
+		agents[0].send(URIUtil.create("zmq://tcp://127.0.0.1:5680#nobody"),
+				"Hello?", null, new AsyncCallback<Void>() {
+					@Override
+					public void onSuccess(final Void result) {}
+
+					@Override
+					public void onFailure(final Exception exception) {
+						failures.add(exception);
+					}
+				});
+		assertNotNull(failures.poll(5, TimeUnit.SECONDS));
+		agents[1].disconnect();
+	}
+
 	/**
 	 * Test local transport.
 	 * 
@@ -203,6 +316,313 @@ public class TestTransports extends TestCase {
 
 	}
 
+	/**
+	 * Test multiplexed Websocket clients: many client agents, two server
+	 * agents, a single connection.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testWsMultiplex() throws Exception {
+		final int clients = 100;
+		final CountDownLatch replies = new CountDownLatch(2 * clients);
+		final Transport[] servers = new Transport[2];
+		for (int i = 0; i < servers.length; i++) {
+			final int index = i;
+			final WebsocketTransportConfig serverConfig = WebsocketTransportConfig
+					.create();
+			serverConfig.setAddress("ws://localhost:8082/ws/muxServer" + i);
+			serverConfig.setServer(true);
+			serverConfig.setServletLauncher("JettyLauncher");
+			final ObjectNode jettyParms = JOM.createObjectNode();
+			jettyParms.put("port", 8082);
+			serverConfig.set("jetty", jettyParms);
+			servers[i] = new TransportBuilder().withConfig(serverConfig)
+					.withHandle(new SimpleHandler<Receiver>(new Receiver() {
+						@Override
+						public void receive(final Object msg,
+								final URI senderUrl, final String tag) {
+							try {
+								servers[index].send(senderUrl, "Re: " + msg,
+										null, null);
+							} catch (final IOException e) {
+								LOG.log(Level.WARNING, "Couldn't reply", e);
+							}
+						}
+					})).build();
+		}
+
+		final Receiver counter = new Receiver() {
+			@Override
+			public void receive(final Object msg, final URI senderUrl,
+					final String tag) {
+				replies.countDown();
+			}
+		};
+		for (int i = 0; i < clients; i++) {
+			final WebsocketTransportConfig clientConfig = WebsocketTransportConfig
+					.create();
+			clientConfig.setId("muxClient" + i);
+			clientConfig.setMultiplex(true);
+			final Transport client = new TransportBuilder()
+					.withConfig(clientConfig)
+					.withHandle(new SimpleHandler<Receiver>(counter)).build();
+			for (final Transport server : servers) {
+				client.send(server.getAddress(), "Hello from " + i, null,
+						null);
+			}
+		}
+		assertTrue(replies.await(20, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Test multi-address routing: co-located peers are reached locally,
+	 * failing addresses are ranked last.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testRouting() throws IOException {
+		final CountDownLatch received = new CountDownLatch(1);
+		final LocalTransportConfig config = LocalTransportConfig.create();
+		config.setId("routeMe");
+		final Transport local = new TransportBuilder().withConfig(config)
+				.withHandle(new SimpleHandler<Receiver>(new Receiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						received.countDown();
+					}
+				})).build();
+
+		final Router router = new Router();
+		router.register(local);
+		final URI remote = URI.create("amqp:routeMe");
+		router.addPeer(Arrays.asList(remote, URI.create("local:routeMe")));
+		// No AMQP transport registered, so this must go through local:
+		router.send(remote, "Hello World", null, null);
+		try {
+			assertTrue(received.await(5, TimeUnit.SECONDS));
+		} catch (final InterruptedException e) {
+			fail();
+		}
+
+		final RouteTable routes = new RouteTable();
+		final URI fast = URI.create("http://fast/agents/peer");
+		final URI slow = URI.create("ws://slow/agents/peer");
+		routes.addPeer(Arrays.asList(slow, fast));
+		routes.success(fast, 5);
+		routes.success(slow, 50);
+		assertEquals(fast, routes.rank(slow).get(0));
+		for (int i = 0; i < 5; i++) {
+			routes.failure(fast);
+		}
+		assertEquals(slow, routes.rank(slow).get(0));
+		assertTrue(routes.getErrorRate(fast) > 0.5);
+		assertNull(routes.rank(URI.create("local:unknown")));
+	}
+
+	/**
+	 * Test routing of requests whose reply is tracked: the roundtrip time of
+	 * the reply and timeouts are recorded for the address used, retriable
+	 * requests fail over to the next address if no reply comes in time.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRoutingReplies() throws Exception {
+		final LocalTransportConfig config = LocalTransportConfig.create();
+		config.setId("silentPeer");
+		// The local address of the peer never replies.
+		final Transport silent = new TransportBuilder().withConfig(config)
+				.withHandle(new SimpleHandler<Receiver>(new Receiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {}
+				})).build();
+		final Capture capture = new Capture();
+		final Router router = new Router();
+		router.register(silent);
+		router.register(capture);
+		final RouteTable routes = router.getRoutes();
+
+		final URI remote = URI.create("capture:remotePeer");
+		router.addPeer(Arrays.asList(remote));
+		final BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+		final AsyncCallback<String> callback = new AsyncCallback<String>() {
+			@Override
+			public void onSuccess(final String result) {
+				results.add(result);
+			}
+
+			@Override
+			public void onFailure(final Exception exception) {
+				results.add(exception);
+			}
+		};
+
+		// The latency is the roundtrip time of the reply.
+		Router.Reply<String> reply = new Router.Reply<String>(callback, false);
+		router.send(remote, "Hello", null, reply);
+		assertEquals(remote, capture.sent.poll(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		reply.onSuccess("Hi");
+		assertEquals("Hi", results.poll());
+		assertTrue(routes.getLatency(remote) >= 50);
+		assertEquals(0.0, routes.getErrorRate(remote));
+
+		// A timeout is a failure of the address, completed only once.
+		reply = new Router.Reply<String>(callback, false);
+		router.send(remote, "Hello", null, reply);
+		reply.onFailure(new TimeoutException());
+		reply.onSuccess("Too late");
+		assertTrue(results.poll() instanceof TimeoutException);
+		assertTrue(results.isEmpty());
+		assertTrue(routes.getErrorRate(remote) > 0);
+
+		final URI local = URI.create("local:silentPeer");
+		final URI other = URI.create("capture:silentPeer");
+		router.addPeer(Arrays.asList(local, other));
+		capture.sent.clear();
+
+		// Not retriable: stays with the silent address.
+		router.send(other, "Hello", null, new Router.Reply<String>(callback,
+				false));
+		assertNull(capture.sent.poll(2, TimeUnit.SECONDS));
+
+		// Retriable: fails over to the next address.
+		reply = new Router.Reply<String>(callback, true);
+		router.send(other, "Hello", null, reply);
+		assertEquals(other, capture.sent.poll(5, TimeUnit.SECONDS));
+		reply.onSuccess("Hi");
+		assertEquals("Hi", results.poll());
+		assertTrue(routes.getErrorRate(local) > 0);
+		assertTrue(routes.getLatency(other) > 0);
+
+		// Synchronous calls fail over just the same.
+		final SyncCallback<String> sync = new SyncCallback<String>() {};
+		final Router.SyncReply<String> syncReply = new Router.SyncReply<String>(
+				sync, true);
+		router.send(other, "Hello", null, syncReply);
+		assertEquals(other, capture.sent.poll(5, TimeUnit.SECONDS));
+		syncReply.onSuccess("Hi");
+		assertEquals("Hi", sync.get());
+	}
+
+	/**
+	 * Test that a multicast reaches every receiver with the same serialized
+	 * message, in a single call to transports that support multicast.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMulticast() throws Exception {
+		final Capture plain = new Capture();
+		final MulticastCapture multi = new MulticastCapture();
+		final Router router = new Router();
+		router.register(plain);
+		router.register(multi);
+
+		final List<URI> receivers = Arrays.asList(
+				URI.create("capture:first"), URI.create("mcapture:second"),
+				URI.create("capture:third"), URI.create("mcapture:fourth"));
+		final String message = "{\"method\":\"gossip\"}";
+		router.multicast(receivers, message, null);
+
+		assertEquals(Arrays.asList(receivers.get(0), receivers.get(2)),
+				new ArrayList<URI>(plain.sent));
+		assertEquals(1, multi.calls.get());
+		assertEquals(Arrays.asList(receivers.get(1), receivers.get(3)),
+				new ArrayList<URI>(multi.sent));
+		assertEquals(4, plain.messages.size() + multi.messages.size());
+		for (final Object received : plain.messages) {
+			assertSame(message, received);
+		}
+		for (final Object received : multi.messages) {
+			assertSame(message, received);
+		}
+
+		// Unknown schemes fail, after the others have been sent to.
+		try {
+			router.multicast(Arrays.asList(URI.create("unknown:peer"),
+					URI.create("capture:fifth")), message, null);
+			fail("Multicast to an unknown scheme should fail");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage().contains("unknown:peer"));
+		}
+		assertTrue(plain.sent.contains(URI.create("capture:fifth")));
+	}
+
+	/**
+	 * A transport that only records the addresses it sends to.
+	 */
+	private static class Capture extends AbstractTransport {
+		protected final BlockingQueue<URI>	sent		= new LinkedBlockingQueue<URI>();
+		protected final List<Object>		messages	= Collections
+																.synchronizedList(new ArrayList<Object>());
+		private final String				scheme;
+
+		Capture() {
+			this("capture");
+		}
+
+		Capture(final String scheme) {
+			super(URI.create(scheme + ":self"), null, null, JOM
+					.createObjectNode());
+			this.scheme = scheme;
+		}
+
+		@Override
+		public <T> void send(final URI receiverUri, final String message,
+				final String tag, final AsyncCallback<T> callback) {
+			messages.add(message);
+			sent.add(receiverUri);
+		}
+
+		@Override
+		public <T> void send(final URI receiverUri, final byte[] message,
+				final String tag, final AsyncCallback<T> callback) {
+			sent.add(receiverUri);
+		}
+
+		@Override
+		public void connect() {}
+
+		@Override
+		public void disconnect() {}
+
+		@Override
+		public List<String> getProtocols() {
+			return Arrays.asList(scheme);
+		}
+	}
+
+	/**
+	 * A capturing transport that supports multicast.
+	 */
+	private static class MulticastCapture extends Capture implements
+			MulticastTransport {
+		private final AtomicInteger	calls	= new AtomicInteger(0);
+
+		MulticastCapture() {
+			super("mcapture");
+		}
+
+		@Override
+		public void multicast(final List<URI> receiverUris,
+				final String message, final String tag) {
+			calls.incrementAndGet();
+			for (final URI receiverUri : receiverUris) {
+				messages.add(message);
+				sent.add(receiverUri);
+			}
+		}
+	}
+
 	/**
 	 * The Class myReceiver.
 	 */
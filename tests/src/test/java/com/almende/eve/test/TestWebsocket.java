@@ -0,0 +1,272 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentConfig;
+import com.almende.eve.agent.ExampleAgent;
+import com.almende.eve.capabilities.handler.SimpleHandler;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.Transport;
+import com.almende.eve.transport.TransportBuilder;
+import com.almende.eve.transport.http.embed.JettyLauncher;
+import com.almende.eve.transport.ws.WebsocketTransportConfig;
+import com.almende.util.TypeUtil;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestWebsocket, RPC calls between agents over websockets and
+ * multiplexed client connections.
+ */
+public class TestWebsocket extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger(TestWebsocket.class
+												.getName());
+	private static final String	SERVER	= "ws://localhost:8089/ws/";
+
+	private static ExampleAgent createServerAgent(final String id) {
+		final WebsocketTransportConfig transportConfig = WebsocketTransportConfig
+				.create();
+		// The agent's id is appended to the address.
+		transportConfig.setAddress("ws://localhost:8089/ws");
+		transportConfig.setServer(true);
+		transportConfig.setServletLauncher("JettyLauncher");
+		final ObjectNode jettyParms = JOM.createObjectNode();
+		jettyParms.put("port", 8089);
+		transportConfig.set("jetty", jettyParms);
+
+		final AgentConfig config = AgentConfig.create(id);
+		config.addTransport(transportConfig);
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(config);
+		return agent;
+	}
+
+	private static ExampleAgent createClientAgent(final String id,
+			final String server) {
+		final WebsocketTransportConfig transportConfig = WebsocketTransportConfig
+				.create();
+		transportConfig.setId(id);
+		transportConfig.setServerUrl(SERVER + server);
+
+		final AgentConfig config = AgentConfig.create(id);
+		config.addTransport(transportConfig);
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(config);
+		return agent;
+	}
+
+	/**
+	 * Test a handler that makes a synchronous call back to the agent that
+	 * called it, over the same session.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCallback() throws Exception {
+		createServerAgent("wsCallee");
+		final ExampleAgent caller = createClientAgent("wsCaller", "wsCallee");
+
+		final Params inner = new Params();
+		inner.add("message", "Hi there!");
+		final Params params = new Params();
+		params.add("url", "wsclient:wsCaller");
+		params.add("method", "helloWorld");
+		params.add("params", inner);
+		final long start = System.currentTimeMillis();
+		assertEquals("You said:Hi there!", caller.pubSendSync(
+				URI.create(SERVER + "wsCallee"), "callOtherAgent", params,
+				new TypeUtil<String>() {}));
+		LOG.warning("Call with callback took:"
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Test multiplexed clients: many client agents share a single connection,
+	 * which is reopened after it drops. Messages sent in the meantime are
+	 * buffered.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMultiplex() throws Exception {
+		final int clients = 20;
+		final AtomicReference<CountDownLatch> replies = new AtomicReference<CountDownLatch>();
+		final Transport[] servers = new Transport[2];
+		for (int i = 0; i < servers.length; i++) {
+			final int index = i;
+			final WebsocketTransportConfig serverConfig = WebsocketTransportConfig
+					.create();
+			serverConfig.setAddress(SERVER + "muxTarget" + i);
+			serverConfig.setServer(true);
+			serverConfig.setServletLauncher("JettyLauncher");
+			final ObjectNode jettyParms = JOM.createObjectNode();
+			jettyParms.put("port", 8089);
+			serverConfig.set("jetty", jettyParms);
+			servers[i] = new TransportBuilder().withConfig(serverConfig)
+					.withHandle(new SimpleHandler<Receiver>(new Receiver() {
+						@Override
+						public void receive(final Object msg,
+								final URI senderUrl, final String tag) {
+							try {
+								servers[index].send(senderUrl, "Re: " + msg,
+										null, null);
+							} catch (final IOException e) {
+								LOG.log(Level.WARNING, "Couldn't reply", e);
+							}
+						}
+					})).build();
+		}
+		final ServerConnector connector = Launcher.getConnector();
+		final int before = connector.getConnectedEndPoints().size();
+
+		final Receiver counter = new Receiver() {
+			@Override
+			public void receive(final Object msg, final URI senderUrl,
+					final String tag) {
+				replies.get().countDown();
+			}
+		};
+		final Transport[] agents = new Transport[clients];
+		for (int i = 0; i < clients; i++) {
+			final WebsocketTransportConfig clientConfig = WebsocketTransportConfig
+					.create();
+			clientConfig.setId("muxAgent" + i);
+			clientConfig.setMultiplex(true);
+			clientConfig.setMaxReconnectDelay(500);
+			agents[i] = new TransportBuilder().withConfig(clientConfig)
+					.withHandle(new SimpleHandler<Receiver>(counter)).build();
+		}
+		replies.set(new CountDownLatch(clients * servers.length));
+		for (final Transport agent : agents) {
+			for (final Transport server : servers) {
+				agent.send(server.getAddress(), "Hello", null, null);
+			}
+		}
+		assertTrue(replies.get().await(10, TimeUnit.SECONDS));
+		assertEquals(before + 1, connector.getConnectedEndPoints().size());
+
+		// Drop the connection, sends are buffered until it's back.
+		final List<EndPoint> dropped = new ArrayList<EndPoint>(
+				connector.getConnectedEndPoints());
+		connector.stop();
+		for (final EndPoint endPoint : dropped) {
+			endPoint.close();
+		}
+		Thread.sleep(500);
+		replies.set(new CountDownLatch(clients * servers.length));
+		for (final Transport agent : agents) {
+			for (final Transport server : servers) {
+				agent.send(server.getAddress(), "Hello again", null, null);
+			}
+		}
+		Thread.sleep(500);
+		assertEquals(clients * servers.length, replies.get().getCount());
+		connector.start();
+		assertTrue(replies.get().await(20, TimeUnit.SECONDS));
+		// Only the multiplexed connection reopens by itself.
+		final List<EndPoint> opened = new ArrayList<EndPoint>(
+				connector.getConnectedEndPoints());
+		opened.removeAll(dropped);
+		assertEquals(1, opened.size());
+	}
+
+	/**
+	 * Counts how often it's serialized.
+	 */
+	public static class Counted {
+		private final AtomicInteger	count	= new AtomicInteger(0);
+
+		/**
+		 * Gets the value, once per serialization.
+		 *
+		 * @return the number of times this was serialized
+		 */
+		public int getValue() {
+			return count.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Test a multicast from a server agent to connected clients: every client
+	 * gets the same text, serialized once.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMulticast() throws Exception {
+		final ExampleAgent server = createServerAgent("wsMulticaster");
+		final int clients = 3;
+		final List<BlockingQueue<Object>> received = new ArrayList<BlockingQueue<Object>>();
+		final List<URI> urls = new ArrayList<URI>();
+		for (int i = 0; i < clients; i++) {
+			final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+			received.add(queue);
+			final WebsocketTransportConfig clientConfig = WebsocketTransportConfig
+					.create();
+			clientConfig.setId("mcClient" + i);
+			clientConfig.setServerUrl(SERVER + "wsMulticaster");
+			final Transport client = new TransportBuilder()
+					.withConfig(clientConfig)
+					.withHandle(new SimpleHandler<Receiver>(new Receiver() {
+						@Override
+						public void receive(final Object msg,
+								final URI senderUrl, final String tag) {
+							queue.add(msg);
+						}
+					})).build();
+			// The reply shows the client is connected.
+			client.send(URI.create(SERVER + "wsMulticaster"),
+					"{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"helloWorld\","
+							+ "\"params\":{\"message\":\"Hi\"}}", null, null);
+			assertNotNull(queue.poll(10, TimeUnit.SECONDS));
+			urls.add(URI.create("wsclient:mcClient" + i));
+		}
+
+		final Counted counted = new Counted();
+		final Params params = new Params();
+		params.putPOJO("counted", counted);
+		server.pubMulticast(urls, "gossip", params);
+
+		final Object first = received.get(0).poll(10, TimeUnit.SECONDS);
+		assertNotNull(first);
+		assertTrue(first.toString().contains("gossip"));
+		for (int i = 1; i < clients; i++) {
+			assertEquals(first, received.get(i).poll(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, counted.count.get());
+	}
+
+	/**
+	 * Gives access to the embedded server.
+	 */
+	private static class Launcher extends JettyLauncher {
+		private static ServerConnector getConnector() {
+			return (ServerConnector) server.getConnectors()[0];
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentConfig;
+import com.almende.eve.agent.CallerDecorator;
+import com.almende.eve.agent.ExampleAgent;
+import com.almende.eve.agent.WindowedCaller;
+import com.almende.eve.protocol.jsonrpc.JSONRpcProtocolConfig;
+import com.almende.eve.protocol.jsonrpc.annotation.Access;
+import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRPCException;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.util.TypeUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.callback.SyncCallback;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+/**
+ * The Class TestWindow.
+ */
+public class TestWindow extends TestCase {
+	private static final Logger	LOG	= Logger.getLogger(TestWindow.class
+											.getName());
+
+	private static Params millis(final int millis) {
+		final Params params = new Params();
+		params.put("millis", millis);
+		return params;
+	}
+
+	/**
+	 * An agent that passes a call on to the slow target, without waiting for
+	 * the result.
+	 */
+	@Access(AccessType.PUBLIC)
+	public static class Relay extends ExampleAgent {
+		private final CountDownLatch				done	= new CountDownLatch(1);
+		private final AtomicReference<Exception>	failure	= new AtomicReference<Exception>();
+
+		/**
+		 * Call the target.
+		 *
+		 * @throws Exception
+		 *             the exception
+		 */
+		public void relay() throws Exception {
+			pubSend(URI.create("local:deadlineTarget"), "delay",
+					millis(10), new AsyncCallback<Integer>() {
+						@Override
+						public void onSuccess(final Integer result) {
+							done.countDown();
+						}
+
+						@Override
+						public void onFailure(final Exception exception) {
+							failure.set(exception);
+							done.countDown();
+						}
+					});
+		}
+	}
+
+	/**
+	 * Test that a queued request keeps the deadline of the request during
+	 * which it was made, and fails when it passes before the request is sent.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testQueuedDeadline() throws Exception {
+		final ExampleAgent target = new ExampleAgent();
+		target.setConfig(AgentConfig.create("deadlineTarget"));
+
+		final AgentConfig relayConfig = AgentConfig.create("deadlineRelay");
+		relayConfig.setMaxInFlight(1);
+		final Relay relay = new Relay();
+		relay.setConfig(relayConfig);
+
+		// The caller's requests have a deadline of a second.
+		final AgentConfig config = AgentConfig.create("deadlineCaller");
+		final JSONRpcProtocolConfig rpcConfig = JSONRpcProtocolConfig.create();
+		rpcConfig.setCallbackTimeout(1);
+		final ArrayNode protocols = JOM.createArrayNode();
+		protocols.add(rpcConfig);
+		config.setProtocols(protocols);
+		final ExampleAgent caller = new ExampleAgent();
+		caller.setConfig(config);
+
+		// Fill the relay's window, the relayed call is queued.
+		final URI targetUrl = URI.create("local:deadlineTarget");
+		relay.pubSend(targetUrl, "delay", millis(2000),
+				new AsyncCallback<Integer>() {
+					@Override
+					public void onSuccess(final Integer result) {}
+
+					@Override
+					public void onFailure(final Exception exception) {}
+				});
+		caller.pubSendSync(URI.create("local:deadlineRelay"), "relay",
+				new Params(), new TypeUtil<Void>() {});
+
+		assertTrue(relay.done.await(10, TimeUnit.SECONDS));
+		final Exception failure = relay.failure.get();
+		assertNotNull(failure);
+		assertTrue(failure instanceof JSONRPCException);
+		assertEquals(-32408, ((JSONRPCException) failure).getCode());
+	}
+
+	private static WindowedCaller createCaller(final List<JSONRequest> sent,
+			final int maxWindow, final boolean adaptive) {
+		return new WindowedCaller(new CallerDecorator(null) {
+			@Override
+			protected void send(final URI url, final JSONRequest request,
+					final String tag) {
+				// Keep the requests in flight.
+				sent.add(request);
+			}
+		}, maxWindow, 10, adaptive, 1000);
+	}
+
+	/**
+	 * Test that a cancelled queued request fails, instead of leaving its
+	 * (synchronous) caller waiting.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCancelQueued() throws Exception {
+		final List<JSONRequest> sent = new CopyOnWriteArrayList<JSONRequest>();
+		final WindowedCaller caller = createCaller(sent, 1, false);
+		final URI url = URI.create("local:cancelTarget");
+		caller.call(url, new JSONRequest("delay", millis(10),
+				new AsyncCallback<Integer>() {
+					@Override
+					public void onSuccess(final Integer result) {}
+
+					@Override
+					public void onFailure(final Exception exception) {}
+				}));
+
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final SyncCallback<Integer> callback = new SyncCallback<Integer>() {
+			@Override
+			public void onFailure(final Exception exception) {
+				failure.set(exception);
+				super.onFailure(exception);
+			}
+		};
+		final JSONRequest queued = new JSONRequest("delay", millis(10),
+				callback);
+		caller.call(url, queued);
+		assertEquals(1, sent.size());
+
+		caller.cancel(queued.getId());
+		assertTrue(failure.get() instanceof JSONRPCException);
+		assertEquals(-32800, ((JSONRPCException) failure.get()).getCode());
+		try {
+			callback.get();
+			fail("Cancelled request must fail");
+		} catch (final JSONRPCException e) {
+			assertEquals(-32800, e.getCode());
+		}
+	}
+
+	/**
+	 * Test that the window of a peer is dropped once it's idle: a shrunk
+	 * adaptive window starts at its maximum again.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testIdleWindow() throws Exception {
+		final List<JSONRequest> sent = new CopyOnWriteArrayList<JSONRequest>();
+		final WindowedCaller caller = createCaller(sent, 4, true);
+		final URI url = URI.create("local:idleTarget");
+		caller.call(url, new JSONRequest("delay", millis(10),
+				new AsyncCallback<Integer>() {
+					@Override
+					public void onSuccess(final Integer result) {}
+
+					@Override
+					public void onFailure(final Exception exception) {}
+				}));
+		assertEquals(1, caller.getInFlight(url));
+
+		// A failure halves the window, which is dropped as it's idle now.
+		sent.get(0).getCallback().onFailure(new Exception("Failed"));
+		assertEquals(0, caller.getInFlight(url));
+		assertEquals(4, caller.getWindowSize(url));
+		assertTrue(caller.awaitCapacity(url, 0));
+	}
+
+	/**
+	 * Test limiting the requests in flight.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testWindow() throws Exception {
+		final ExampleAgent target = new ExampleAgent();
+		target.setConfig(AgentConfig.create("windowTarget"));
+
+		final AgentConfig config = AgentConfig.create("windowCaller");
+		config.setMaxInFlight(2);
+		config.setMaxQueued(20);
+		final ExampleAgent agent = new ExampleAgent();
+		agent.setConfig(config);
+		final URI url = URI.create("local:windowTarget");
+
+		final int count = 20;
+		final CountDownLatch done = new CountDownLatch(count);
+		final AtomicInteger max = new AtomicInteger(0);
+		for (int i = 0; i < count; i++) {
+			agent.pubSend(url, "concurrentWork", new Params(),
+					new AsyncCallback<Integer>() {
+						@Override
+						public void onSuccess(final Integer running) {
+							synchronized (max) {
+								max.set(Math.max(max.get(), running));
+							}
+							done.countDown();
+						}
+
+						@Override
+						public void onFailure(final Exception exception) {
+							LOG.log(Level.SEVERE, "Call failed", exception);
+							max.set(Integer.MAX_VALUE);
+							done.countDown();
+						}
+					});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue(max.get() <= 2);
+	}
+}
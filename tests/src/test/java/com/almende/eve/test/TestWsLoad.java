@@ -0,0 +1,125 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+
+import junit.framework.TestCase;
+
+import org.glassfish.tyrus.client.ClientManager;
+import org.junit.Test;
+
+import com.almende.eve.capabilities.handler.SimpleHandler;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.Transport;
+import com.almende.eve.transport.TransportBuilder;
+import com.almende.eve.transport.ws.WebsocketTransportConfig;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestWsLoad, many client sessions against a single websocket
+ * server transport. Each client sends a numbered series of messages, the
+ * server checks the order per session and echoes every message.
+ * Note: this opens 2 * SESSIONS sockets, the open file limit must allow
+ * that.
+ */
+public class TestWsLoad extends TestCase {
+	private static final Logger	LOG			= Logger.getLogger(TestWsLoad.class
+													.getName());
+	private static final String	URL			= "ws://localhost:8088/ws/loadServer";
+	private static final int	SESSIONS	= 2000;
+	private static final int	MESSAGES	= 20;
+
+	/**
+	 * Test many concurrent sessions.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLoad() throws Exception {
+		final AtomicInteger outOfOrder = new AtomicInteger(0);
+		final ConcurrentHashMap<URI, Integer> last = new ConcurrentHashMap<URI, Integer>();
+		final Transport[] server = new Transport[1];
+		final Receiver echo = new Receiver() {
+			@Override
+			public void receive(final Object msg, final URI senderUrl,
+					final String tag) {
+				final int count = Integer.parseInt(msg.toString());
+				final Integer previous = last.put(senderUrl, count);
+				if (count != (previous == null ? 0 : previous + 1)) {
+					outOfOrder.incrementAndGet();
+				}
+				try {
+					server[0].send(senderUrl, msg.toString(), null, null);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Couldn't echo", e);
+				}
+			}
+		};
+
+		final WebsocketTransportConfig serverConfig = WebsocketTransportConfig
+				.create();
+		serverConfig.setAddress(URL);
+		serverConfig.setServer(true);
+		serverConfig.setServletLauncher("JettyLauncher");
+		final ObjectNode jettyParms = JOM.createObjectNode();
+		jettyParms.put("port", 8088);
+		serverConfig.set("jetty", jettyParms);
+		server[0] = new TransportBuilder().withConfig(serverConfig)
+				.withHandle(new SimpleHandler<Receiver>(echo)).build();
+
+		final CountDownLatch replies = new CountDownLatch(SESSIONS * MESSAGES);
+		final ClientManager client = ClientManager.createClient();
+		final List<Session> sessions = new ArrayList<Session>(SESSIONS);
+		for (int i = 0; i < SESSIONS; i++) {
+			sessions.add(client.connectToServer(new Endpoint() {
+				@Override
+				public void onOpen(final Session session,
+						final EndpointConfig config) {
+					session.addMessageHandler(new MessageHandler.Whole<String>() {
+						@Override
+						public void onMessage(final String message) {
+							replies.countDown();
+						}
+					});
+				}
+			}, ClientEndpointConfig.Builder.create().build(), URI.create(URL
+					+ "?id=load" + i)));
+		}
+
+		final long start = System.currentTimeMillis();
+		for (int j = 0; j < MESSAGES; j++) {
+			for (final Session session : sessions) {
+				session.getBasicRemote().sendText(String.valueOf(j));
+			}
+		}
+		assertTrue(replies.await(60, TimeUnit.SECONDS));
+		LOG.warning(SESSIONS * MESSAGES + " messages over " + SESSIONS
+				+ " sessions took:" + (System.currentTimeMillis() - start)
+				+ " ms");
+		assertEquals(0, outOfOrder.get());
+
+		for (final Session session : sessions) {
+			session.close();
+		}
+	}
+}
@@ -6,20 +6,36 @@ package com.almende.eve.transport;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.almende.eve.capabilities.handler.Handler;
+import com.almende.util.BinaryMessage;
 import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
 import com.almende.util.threads.ThreadPool;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * The Class AbstractTransport.
  */
 public abstract class AbstractTransport implements Transport {
-	private TransportService	service		= null;
-	private Handler<Receiver>	handle		= null;
-	private URI					address		= null;
-	private ObjectNode			myParams	= null;
+	private static final Logger					LOG			= Logger.getLogger(AbstractTransport.class
+																	.getName());
+	private static final int					MAXINLINE	= 16;
+	private static final ThreadLocal<int[]>		INLINEDEPTH	= new ThreadLocal<int[]>() {
+																@Override
+																protected int[] initialValue() {
+																	return new int[1];
+																}
+															};
+	private TransportService					service		= null;
+	private Handler<Receiver>					handle		= null;
+	private URI									address		= null;
+	private ObjectNode							myParams	= null;
+	private boolean								inline		= false;
 	
 	/**
 	 * Instantiates a new abstract transport.
@@ -39,7 +55,7 @@ public abstract class AbstractTransport implements Transport {
 		this.address = address;
 		this.service = service;
 		this.handle = handle;
-		myParams = params;
+		setParams(params);
 	}
 	
 	/*
@@ -138,10 +154,26 @@ public abstract class AbstractTransport implements Transport {
 	 */
 	public void setParams(ObjectNode params) {
 		this.myParams = params;
+		inline = params != null
+				&& TransportConfig.decorate(params).getInlineDelivery();
 	}
 
 	/**
-	 * Send local.
+	 * Checks if local messages to this transport are delivered on the
+	 * sender's thread.
+	 * 
+	 * @return true, if inline delivery is configured
+	 * @see TransportConfig#setInlineDelivery(boolean)
+	 */
+	public boolean isInlineDelivery() {
+		return inline;
+	}
+
+	/**
+	 * Send local. If the receiving transport has inline delivery, the
+	 * receiver runs on the calling thread, unless this thread is already
+	 * nested too deep in inline deliveries (e.g. agents replying to each
+	 * other). Otherwise the message is handed to the threadpool.
 	 * 
 	 * @param receiverUri
 	 *            the receiver uri
@@ -153,6 +185,23 @@ public abstract class AbstractTransport implements Transport {
 		final Transport local = getService().getLocal(receiverUri);
 		if (local != null) {
 			// Do local shortcut.
+			if (local instanceof AbstractTransport
+					&& ((AbstractTransport) local).inline) {
+				final int[] depth = INLINEDEPTH.get();
+				if (depth[0] < MAXINLINE) {
+					depth[0]++;
+					try {
+						local.getHandle().get()
+								.receive(message, getAddress(), null);
+					} catch (final RuntimeException e) {
+						LOG.log(Level.WARNING, "Receiver at " + receiverUri
+								+ " failed", e);
+					} finally {
+						depth[0]--;
+					}
+					return true;
+				}
+			}
 			ThreadPool.getPool().execute(new Runnable() {
 				@Override
 				public void run() {
@@ -164,4 +213,52 @@ public abstract class AbstractTransport implements Transport {
 		}
 		return false;
 	}
+
+	/**
+	 * Checks if the message is a JSON-RPC response: a JSON object with a
+	 * result or error, but no method. Only the top level fields are parsed.
+	 *
+	 * @param body
+	 *            the message, a String or a BinaryMessage
+	 * @return true, if the message is a response
+	 */
+	public static boolean isResponse(final Object body) {
+		final String text;
+		if (body instanceof BinaryMessage) {
+			text = ((BinaryMessage) body).getBody();
+		} else if (body instanceof String) {
+			text = (String) body;
+		} else {
+			return false;
+		}
+		if (text.indexOf("\"result\"") < 0 && text.indexOf("\"error\"") < 0) {
+			return false;
+		}
+		boolean response = false;
+		try {
+			final JsonParser parser = JOM.getInstance().getFactory()
+					.createParser(text);
+			try {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					return false;
+				}
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					final String field = parser.getCurrentName();
+					if ("method".equals(field)) {
+						return false;
+					}
+					if ("result".equals(field) || "error".equals(field)) {
+						response = true;
+					}
+					parser.nextToken();
+					parser.skipChildren();
+				}
+			} finally {
+				parser.close();
+			}
+		} catch (final IOException e) {
+			return false;
+		}
+		return response;
+	}
 }
@@ -7,9 +7,8 @@ package com.almende.eve.transport;
 import java.io.IOException;
 import java.net.URI;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import com.almende.eve.capabilities.AbstractCapabilityBuilder;
@@ -19,13 +18,14 @@ import com.almende.util.callback.AsyncCallback;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
- * The Class LocalTransportBuilder.
+ * The Class LocalTransportBuilder. The local transports of all agents in this
+ * JVM are kept in a concurrent map, so lookups on every local send don't
+ * contend with agents being created or removed.
  */
 public class LocalTransportBuilder extends AbstractCapabilityBuilder<Transport> {
-	private static final Logger					LOG			= Logger.getLogger(LocalTransportBuilder.class
-																	.getName());
-	private static final Map<URI, LocalService>	INSTANCES	= new HashMap<URI, LocalService>(
-																	10);
+	private static final Logger									LOG			= Logger.getLogger(LocalTransportBuilder.class
+																					.getName());
+	private static final ConcurrentHashMap<URI, LocalService>	INSTANCES	= new ConcurrentHashMap<URI, LocalService>();
 
 	@Override
 	public Transport build() {
@@ -40,16 +40,16 @@ public class LocalTransportBuilder extends AbstractCapabilityBuilder<Transport>
 		}
 		final String addr = "local:" + config.getId();
 		final URI address = URIUtil.create(addr);
-		LocalService result = null;
-		synchronized (INSTANCES) {
-			result = getLocal(address);
+		LocalService result = INSTANCES.get(address);
+		if (result == null) {
+			final LocalService fresh = new LocalService(address, newHandle,
+					getParams());
+			result = INSTANCES.putIfAbsent(address, fresh);
 			if (result == null) {
-				result = new LocalService(address, newHandle, getParams());
-				INSTANCES.put(address, result);
-			} else {
-				result.getHandle().update(newHandle);
+				return fresh;
 			}
 		}
+		result.getHandle().update(newHandle);
 		return result;
 	}
 
@@ -186,9 +186,7 @@ public class LocalTransportBuilder extends AbstractCapabilityBuilder<Transport>
 		 */
 		@Override
 		public void delete(final Transport instance) {
-			synchronized (INSTANCES) {
-				INSTANCES.remove(instance.getAddress());
-			}
+			INSTANCES.remove(instance.getAddress(), instance);
 		}
 
 	}
@@ -0,0 +1,33 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * The Interface MulticastTransport, implemented by transports that can send a
+ * single message to multiple receivers more efficiently than by separate
+ * sends.
+ */
+public interface MulticastTransport extends Transport {
+
+	/**
+	 * Send the same message to multiple receivers.
+	 *
+	 * @param receiverUris
+	 *            the receiver uris, all handled by this transport.
+	 * @param message
+	 *            the message
+	 * @param tag
+	 *            the tag
+	 * @throws IOException
+	 *             Signals that the message couldn't be delivered to one or
+	 *             more of the receivers.
+	 */
+	void multicast(final List<URI> receiverUris, final String message,
+			final String tag) throws IOException;
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The known addresses of peer agents, with per address statistics: an
+ * exponentially weighted moving average (EWMA) of the latency and of the
+ * error rate. Addresses of a peer are ranked healthy first, then by their
+ * latency plus FAILURECOST times their error rate. An address counts as
+ * unhealthy while its error rate is above one half, until RETRYAFTER has
+ * passed since its last failure; then it gets another try. Without new
+ * failures, the error rate halves every RETRYAFTER, so addresses that are
+ * ranked last because of old failures get used again.
+ */
+public final class RouteTable {
+	private static final double							ALPHA		= 0.2;
+	private static final long							RETRYAFTER	= 30000;
+	private static final double							FAILURECOST	= 1000;
+	private final ConcurrentHashMap<URI, List<URI>>		peers		= new ConcurrentHashMap<URI, List<URI>>();
+	private final ConcurrentHashMap<URI, AddressStats>	stats		= new ConcurrentHashMap<URI, AddressStats>();
+
+	/**
+	 * Add the addresses of a peer agent. Addresses already known for another
+	 * peer are merged into one group.
+	 *
+	 * @param addresses
+	 *            the addresses
+	 */
+	public synchronized void addPeer(final Collection<URI> addresses) {
+		final List<URI> group = new ArrayList<URI>();
+		for (final URI address : addresses) {
+			final List<URI> known = peers.get(address);
+			if (known != null) {
+				for (final URI other : known) {
+					if (!group.contains(other)) {
+						group.add(other);
+					}
+				}
+			} else if (!group.contains(address)) {
+				group.add(address);
+			}
+		}
+		final List<URI> frozen = Collections.unmodifiableList(group);
+		for (final URI address : frozen) {
+			peers.put(address, frozen);
+			if (!stats.containsKey(address)) {
+				stats.put(address, new AddressStats());
+			}
+		}
+	}
+
+	/**
+	 * Forget a peer agent, by any of its addresses.
+	 *
+	 * @param address
+	 *            the address
+	 */
+	public synchronized void removePeer(final URI address) {
+		final List<URI> group = peers.get(address);
+		if (group != null) {
+			for (final URI other : group) {
+				peers.remove(other);
+				stats.remove(other);
+			}
+		}
+	}
+
+	/**
+	 * Gets the addresses of the peer with the given address, best first.
+	 *
+	 * @param address
+	 *            the address
+	 * @return the ranked addresses, or null if the address isn't known.
+	 */
+	public List<URI> rank(final URI address) {
+		final List<URI> group = peers.get(address);
+		if (group == null) {
+			return null;
+		}
+		final long now = System.currentTimeMillis();
+		// Rank on a snapshot, the statistics change concurrently.
+		final List<Ranked> ranked = new ArrayList<Ranked>(group.size());
+		for (final URI member : group) {
+			ranked.add(new Ranked(member, stats.get(member), now));
+		}
+		Collections.sort(ranked);
+		final List<URI> result = new ArrayList<URI>(ranked.size());
+		for (final Ranked member : ranked) {
+			result.add(member.address);
+		}
+		return result;
+	}
+
+	/**
+	 * Record a successful send, or roundtrip, to the given address.
+	 *
+	 * @param address
+	 *            the address
+	 * @param millis
+	 *            the latency in milliseconds
+	 */
+	public void success(final URI address, final double millis) {
+		final AddressStats entry = stats.get(address);
+		if (entry != null) {
+			entry.update(millis, 0);
+		}
+	}
+
+	/**
+	 * Record a failed send to the given address.
+	 *
+	 * @param address
+	 *            the address
+	 */
+	public void failure(final URI address) {
+		final AddressStats entry = stats.get(address);
+		if (entry != null) {
+			entry.update(-1, 1);
+		}
+	}
+
+	/**
+	 * Gets the latency EWMA of the given address.
+	 *
+	 * @param address
+	 *            the address
+	 * @return the latency in milliseconds, or -1 if the address isn't known.
+	 */
+	public double getLatency(final URI address) {
+		final AddressStats entry = stats.get(address);
+		return entry != null ? entry.latency : -1;
+	}
+
+	/**
+	 * Gets the error rate EWMA of the given address.
+	 *
+	 * @param address
+	 *            the address
+	 * @return the error rate between 0 and 1, or -1 if the address isn't
+	 *         known.
+	 */
+	public double getErrorRate(final URI address) {
+		final AddressStats entry = stats.get(address);
+		return entry != null ? entry.getErrors(System.currentTimeMillis())
+				: -1;
+	}
+
+	private static final class Ranked implements Comparable<Ranked> {
+		private final URI		address;
+		private final boolean	healthy;
+		private final double	score;
+
+		private Ranked(final URI address, final AddressStats entry,
+				final long now) {
+			this.address = address;
+			this.healthy = entry == null || entry.isHealthy(now);
+			this.score = entry == null ? 0 : entry.latency + FAILURECOST
+					* entry.getErrors(now);
+		}
+
+		@Override
+		public int compareTo(final Ranked other) {
+			if (healthy != other.healthy) {
+				return healthy ? -1 : 1;
+			}
+			return Double.compare(score, other.score);
+		}
+	}
+
+	private static final class AddressStats {
+		// Zero until measured: untried addresses get a chance.
+		private volatile double	latency		= 0;
+		// The error rate as of decayed.
+		private double			errors		= 0;
+		private long			decayed		= 0;
+		private volatile long	lastFailure	= 0;
+		private boolean			measured	= false;
+
+		private synchronized double getErrors(final long now) {
+			if (errors == 0) {
+				return 0;
+			}
+			return errors * Math.pow(0.5, (now - decayed) / (double) RETRYAFTER);
+		}
+
+		private synchronized void update(final double millis, final int failed) {
+			final long now = System.currentTimeMillis();
+			errors = getErrors(now);
+			decayed = now;
+			errors += ALPHA * (failed - errors);
+			if (failed > 0) {
+				lastFailure = now;
+			} else if (!measured) {
+				latency = millis;
+				measured = true;
+			} else {
+				latency += ALPHA * (millis - latency);
+			}
+		}
+
+		private boolean isHealthy(final long now) {
+			return getErrors(now) <= 0.5 || now - lastFailure > RETRYAFTER;
+		}
+	}
+}
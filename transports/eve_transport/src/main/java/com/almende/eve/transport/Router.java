@@ -9,17 +9,21 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.almende.eve.capabilities.handler.Handler;
 import com.almende.util.callback.AsyncCallback;
+import com.almende.util.callback.SyncCallback;
 import com.almende.util.jackson.JOM;
 import com.almende.util.threads.ThreadPool;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -27,11 +31,18 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * The Class Router, outbound transport selection based on protocol scheme.
+ * For peers with several known addresses, see {@link #addPeer(List)}, the
+ * address is chosen based on locality, latency and error rate. The latency of
+ * an address is the roundtrip time of replies, see {@link Reply}, or else the
+ * time to hand a message to its transport.
  */
 public class Router implements Transport {
 	private static final Logger				LOG			= Logger.getLogger(Router.class
 																.getName());
+	private static final long				MINFAILOVER	= 1000;
+	private static final int				FAILOVERAT	= 4;
 	private final Map<String, Transport>	transports	= new HashMap<String, Transport>(2);
+	private final RouteTable				routes		= new RouteTable();
 
 	/**
 	 * Register new transport. If a given protocol is already known, this will
@@ -50,6 +61,60 @@ public class Router implements Transport {
 		}
 	}
 
+	/**
+	 * Gets the transport for the scheme of the given uri.
+	 *
+	 * @param uri
+	 *            the uri
+	 * @return the transport, or null if none is registered for its scheme.
+	 */
+	private Transport getTransport(final URI uri) {
+		final String scheme = uri.getScheme();
+		final Transport transport = transports.get(scheme);
+		if (transport != null) {
+			return transport;
+		}
+		return transports.get(scheme.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Add the known addresses of a peer agent. Messages to any of these
+	 * addresses are routed to the best one: the local address if the peer is
+	 * co-located, otherwise the fastest healthy one. If sending fails, the
+	 * next address is tried. Agents register the peers listed in the "peers"
+	 * option of their configuration, see AgentConfig#setPeers.
+	 *
+	 * @param addresses
+	 *            the addresses
+	 */
+	public void addPeer(final List<URI> addresses) {
+		routes.addPeer(addresses);
+	}
+
+	/**
+	 * Record a measured roundtrip time to the given address, e.g. of an RPC
+	 * call. This improves the latency estimates, which otherwise only cover
+	 * the time to hand the message to the transport.
+	 *
+	 * @param address
+	 *            the address
+	 * @param millis
+	 *            the roundtrip time in milliseconds
+	 */
+	public void recordLatency(final URI address, final long millis) {
+		routes.success(address, millis);
+	}
+
+	/**
+	 * Gets the route table, with the known peer addresses and their
+	 * statistics.
+	 *
+	 * @return the route table
+	 */
+	public RouteTable getRoutes() {
+		return routes;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.transport.Transport#send(java.net.URI, byte[],
@@ -58,14 +123,13 @@ public class Router implements Transport {
 	@Override
 	public <T> void send(final URI receiverUri, final String message,
 			final String tag, final AsyncCallback<T> callback) throws IOException {
-		final Transport transport = transports.get(receiverUri.getScheme()
-				.toLowerCase());
-		if (transport != null) {
-			transport.send(receiverUri, message, tag, callback);
-		} else {
-			throw new IOException("No transport known for scheme:"
-					+ receiverUri.getScheme());
-		}
+		route(receiverUri, new Delivery<T>() {
+			@Override
+			void send(final Transport transport, final URI uri,
+					final AsyncCallback<T> cb) throws IOException {
+				transport.send(uri, message, tag, cb);
+			}
+		}, callback);
 	}
 
 	/*
@@ -76,14 +140,13 @@ public class Router implements Transport {
 	@Override
 	public <T> void send(final URI receiverUri, final byte[] message,
 			final String tag, final AsyncCallback<T> callback) throws IOException {
-		final Transport transport = transports.get(receiverUri.getScheme()
-				.toLowerCase());
-		if (transport != null) {
-			transport.send(receiverUri, message, tag, callback);
-		} else {
-			throw new IOException("No transport known for scheme:"
-					+ receiverUri.getScheme());
-		}
+		route(receiverUri, new Delivery<T>() {
+			@Override
+			void send(final Transport transport, final URI uri,
+					final AsyncCallback<T> cb) throws IOException {
+				transport.send(uri, message, tag, cb);
+			}
+		}, callback);
 	}
 
 	/*
@@ -94,14 +157,381 @@ public class Router implements Transport {
 	@Override
 	public <T> void send(final URI receiverUri, final Object message,
 			final String tag, final AsyncCallback<T> callback) throws IOException {
-	        final Transport transport = transports.get(receiverUri.getScheme()
-	                                                   .toLowerCase(Locale.ENGLISH));
-    		if (transport != null) {
-    			transport.send(receiverUri, message, tag, callback);
-    		} else {
-    			throw new IOException("No transport known for scheme:"
-    					+ receiverUri.getScheme());
-    		}
+		route(receiverUri, new Delivery<T>() {
+			@Override
+			void send(final Transport transport, final URI uri,
+					final AsyncCallback<T> cb) throws IOException {
+				transport.send(uri, message, tag, cb);
+			}
+		}, callback);
+	}
+
+	private <T> void route(final URI receiverUri, final Delivery<T> delivery,
+			final AsyncCallback<T> callback) throws IOException {
+		final List<URI> ranked = routes.rank(receiverUri);
+		if (ranked == null) {
+			final Transport transport = getTransport(receiverUri);
+			if (transport == null) {
+				throw new IOException("No transport known for scheme:"
+						+ receiverUri.getScheme());
+			}
+			delivery.send(transport, receiverUri, callback);
+			return;
+		}
+		final List<URI> candidates = new ArrayList<URI>(ranked.size());
+		for (final URI candidate : ranked) {
+			if (getTransport(candidate) == null) {
+				continue;
+			}
+			if (isLocal(candidate)) {
+				// Co-located, nothing beats that.
+				candidates.add(0, candidate);
+			} else {
+				candidates.add(candidate);
+			}
+		}
+		if (candidates.isEmpty()) {
+			throw new IOException("No transport known for any address of:"
+					+ receiverUri);
+		}
+		attempt(candidates, 0, delivery, callback, null);
+	}
+
+	private boolean isLocal(final URI address) {
+		if (!"local".equals(address.getScheme())) {
+			return false;
+		}
+		final Transport transport = transports.get("local");
+		return transport instanceof LocalTransportBuilder.LocalService
+				&& ((LocalTransportBuilder.LocalService) transport)
+						.getLocal(address) != null;
+	}
+
+	/**
+	 * Send to the candidate at the given index, failing over to the next one
+	 * if the send throws or, asynchronously, its callback reports a failure.
+	 * A retriable {@link Reply} also fails over if no reply comes in time.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> void attempt(final List<URI> candidates, final int index,
+			final Delivery<T> delivery, final AsyncCallback<T> callback,
+			final IOException previous) throws IOException {
+		if (index >= candidates.size()) {
+			throw previous;
+		}
+		final URI target = candidates.get(index);
+		final long start = System.nanoTime();
+		final Reply<T> reply;
+		if (callback instanceof Reply) {
+			reply = (Reply<T>) callback;
+		} else if (callback instanceof SyncReply) {
+			reply = ((SyncReply<T>) callback).getReply();
+		} else {
+			reply = null;
+		}
+		AsyncCallback<T> routed = null;
+		if (callback != null) {
+			routed = new AsyncCallback<T>() {
+				@Override
+				public void onSuccess(final T result) {
+					// A reply completes the callback itself, not the send.
+					if (reply == null) {
+						callback.onSuccess(result);
+					}
+				}
+
+				@Override
+				public void onFailure(final Exception exception) {
+					routes.failure(target);
+					try {
+						attempt(candidates, index + 1, delivery, callback,
+								exception instanceof IOException ? (IOException) exception
+										: new IOException(exception));
+					} catch (final IOException e) {
+						if (reply != null) {
+							reply.fail(exception);
+						} else {
+							callback.onFailure(exception);
+						}
+					}
+				}
+			};
+		}
+		if (reply != null) {
+			reply.sent(routes, target, start);
+		}
+		try {
+			delivery.send(getTransport(target), target, routed);
+		} catch (final IOException e) {
+			routes.failure(target);
+			LOG.log(Level.FINE, "Failed to send to " + target
+					+ ", trying next address", e);
+			attempt(candidates, index + 1, delivery, callback, e);
+			return;
+		}
+		if (reply == null) {
+			routes.success(target, (System.nanoTime() - start) / 1e6);
+		} else if (reply.retry && index + 1 < candidates.size()) {
+			failover(candidates, index, delivery, reply);
+		}
+	}
+
+	/**
+	 * Send the request to the next candidate, if the current one hasn't
+	 * replied within FAILOVERAT times its latency.
+	 */
+	private <T> void failover(final List<URI> candidates, final int index,
+			final Delivery<T> delivery, final Reply<T> reply) {
+		final URI target = candidates.get(index);
+		final long delay = Math.max(MINFAILOVER,
+				(long) (FAILOVERAT * routes.getLatency(target)));
+		ThreadPool.getScheduledPool().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (reply.isDone() || reply.target != target) {
+					return;
+				}
+				routes.failure(target);
+				try {
+					attempt(candidates, index + 1, delivery, reply, null);
+				} catch (final IOException e) {
+					// The earlier addresses may still reply, until the
+					// callback times out.
+					LOG.log(Level.FINE, "Failover of request to " + target
+							+ " failed", e);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * A callback that is completed by the reply to the message, e.g. of an
+	 * RPC call, rather than by its transport. For peers with several known
+	 * addresses, the router records the roundtrip time of the reply for the
+	 * address the message went to, and a {@link TimeoutException} as a
+	 * failure of that address. Retriable messages, e.g. requests of
+	 * idempotent methods, are sent to the next address if no reply comes in
+	 * time; the first reply completes the callback.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 */
+	public static final class Reply<T> extends AsyncCallback<T> {
+		private final AsyncCallback<T>	callback;
+		private final boolean			retry;
+		private final AtomicBoolean		done	= new AtomicBoolean(false);
+		private volatile RouteTable		routes	= null;
+		private volatile URI			target	= null;
+		private volatile long			start	= 0;
+
+		/**
+		 * Instantiates a new reply.
+		 *
+		 * @param callback
+		 *            the callback to complete
+		 * @param retry
+		 *            whether the message may be sent to another address of
+		 *            the peer when no reply comes in time
+		 */
+		public Reply(final AsyncCallback<T> callback, final boolean retry) {
+			super(callback.getType());
+			this.callback = callback;
+			this.retry = retry;
+		}
+
+		/**
+		 * Gets the callback this reply completes.
+		 *
+		 * @return the callback
+		 */
+		public AsyncCallback<T> getCallback() {
+			return callback;
+		}
+
+		private synchronized void sent(final RouteTable routes,
+				final URI target, final long start) {
+			this.routes = routes;
+			this.start = start;
+			this.target = target;
+		}
+
+		private boolean isDone() {
+			return done.get();
+		}
+
+		private void fail(final Exception exception) {
+			if (done.compareAndSet(false, true)) {
+				callback.onFailure(exception);
+			}
+		}
+
+		private void record(final boolean failed) {
+			final URI address;
+			final double millis;
+			synchronized (this) {
+				address = target;
+				millis = (System.nanoTime() - start) / 1e6;
+			}
+			if (address == null) {
+				return;
+			}
+			if (failed) {
+				routes.failure(address);
+			} else {
+				routes.success(address, millis);
+			}
+		}
+
+		@Override
+		public void onSuccess(final T result) {
+			if (done.compareAndSet(false, true)) {
+				record(false);
+				callback.onSuccess(result);
+			}
+		}
+
+		@Override
+		public void onFailure(final Exception exception) {
+			if (done.compareAndSet(false, true)) {
+				// An error reply still means the address works.
+				record(exception instanceof TimeoutException);
+				callback.onFailure(exception);
+			}
+		}
+	}
+
+	/**
+	 * A {@link Reply} for synchronous calls, which stays recognizable as
+	 * such by its callback type.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 */
+	public static final class SyncReply<T> extends SyncCallback<T> {
+		private final Reply<T>	reply;
+
+		/**
+		 * Instantiates a new sync reply.
+		 *
+		 * @param callback
+		 *            the callback to complete
+		 * @param retry
+		 *            whether the message may be sent to another address of
+		 *            the peer when no reply comes in time
+		 */
+		public SyncReply(final SyncCallback<T> callback, final boolean retry) {
+			super(callback.getType());
+			this.reply = new Reply<T>(callback, retry);
+		}
+
+		/**
+		 * Gets the reply that tracks this call.
+		 *
+		 * @return the reply
+		 */
+		public Reply<T> getReply() {
+			return reply;
+		}
+
+		@Override
+		public void onSuccess(final T result) {
+			reply.onSuccess(result);
+		}
+
+		@Override
+		public void onFailure(final Exception exception) {
+			reply.onFailure(exception);
+		}
+	}
+
+	/**
+	 * A message, to be sent through some transport.
+	 */
+	private abstract static class Delivery<T> {
+		abstract void send(Transport transport, URI uri,
+				AsyncCallback<T> callback) throws IOException;
+	}
+
+	/**
+	 * Send the same message to multiple receivers. The receivers are grouped
+	 * by transport, transports implementing {@link MulticastTransport} get
+	 * their whole group in one call, others get a send per receiver. Delivery
+	 * continues after failures, which are reported afterwards.
+	 *
+	 * @param receiverUris
+	 *            the receiver uris
+	 * @param message
+	 *            the message, already serialized.
+	 * @param tag
+	 *            the tag
+	 * @throws IOException
+	 *             Signals that the message couldn't be delivered to one or
+	 *             more of the receivers.
+	 */
+	public void multicast(final List<URI> receiverUris, final String message,
+			final String tag) throws IOException {
+		final Map<Transport, List<URI>> groups = new LinkedHashMap<Transport, List<URI>>(
+				2);
+		final List<String> failed = new ArrayList<String>(0);
+		IOException cause = null;
+		for (final URI receiverUri : receiverUris) {
+			final Transport transport = getTransport(receiverUri);
+			if (transport == null) {
+				failed.add(receiverUri.toASCIIString());
+				continue;
+			}
+			List<URI> group = groups.get(transport);
+			if (group == null) {
+				group = new ArrayList<URI>();
+				groups.put(transport, group);
+			}
+			group.add(receiverUri);
+		}
+		for (final Map.Entry<Transport, List<URI>> group : groups.entrySet()) {
+			final Transport transport = group.getKey();
+			if (transport instanceof MulticastTransport) {
+				try {
+					((MulticastTransport) transport).multicast(
+							group.getValue(), message, tag);
+				} catch (final IOException e) {
+					failed.add(group.getValue().toString());
+					cause = e;
+				}
+				continue;
+			}
+			for (final URI receiverUri : group.getValue()) {
+				try {
+					transport.send(receiverUri, message, tag, null);
+				} catch (final IOException e) {
+					failed.add(receiverUri.toASCIIString());
+					cause = e;
+				}
+			}
+		}
+		if (!failed.isEmpty()) {
+			throw new IOException("Multicast failed for:" + failed, cause);
+		}
+	}
+
+	/**
+	 * Gets the receiver of a co-located agent, through the local transport.
+	 * This allows callers in the same JVM to bypass the transport for targets
+	 * that support it.
+	 *
+	 * @param receiverUri
+	 *            the receiver uri, should be a "local:" address.
+	 * @return the receiver, or null if the address isn't known locally.
+	 */
+	public Receiver getLocalReceiver(final URI receiverUri) {
+		final Transport transport = transports.get("local");
+		if (transport instanceof LocalTransportBuilder.LocalService) {
+			final Transport local = ((LocalTransportBuilder.LocalService) transport)
+					.getLocal(receiverUri);
+			if (local != null && local.getHandle() != null) {
+				return local.getHandle().get();
+			}
+		}
+		return null;
 	}
 
 	/*
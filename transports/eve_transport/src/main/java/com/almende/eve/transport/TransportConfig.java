@@ -75,4 +75,29 @@ public class TransportConfig extends Config {
 		}
 		return true;
 	}
+	
+	/**
+	 * Sets the inline delivery. (Optional, default is false) Only set this
+	 * for receivers that don't block: messages from co-located agents are then
+	 * delivered on the sender's thread, instead of being handed to the
+	 * threadpool.
+	 * 
+	 * @param inlineDelivery
+	 *            the new inline delivery
+	 */
+	public void setInlineDelivery(final boolean inlineDelivery) {
+		this.put("inlineDelivery", inlineDelivery);
+	}
+	
+	/**
+	 * Gets the inline delivery.
+	 * 
+	 * @return the inline delivery
+	 */
+	public boolean getInlineDelivery() {
+		if (this.has("inlineDelivery")) {
+			return this.get("inlineDelivery").asBoolean();
+		}
+		return false;
+	}
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.tokens;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Signed, expiring tokens: a token states that the holder of the node key
+ * vouches for the given subject (the sender url) until the expiry time. Nodes
+ * that share the key verify each other's tokens locally, without a handshake
+ * round trip. Verified tokens are kept in a bounded cache, so repeated
+ * messages from the same sender cost a map lookup, as long as the sender
+ * reuses its token until it's about to expire, see {@link #getLifetime()}.
+ * Tokens are of the form: "expiryMillis:signature", with the signature the
+ * URL-safe Base64 encoded HmacSHA256 of "subject|expiryMillis". As with the
+ * other tokens, they should only be sent over trusted or encrypted
+ * connections: anyone who sees a token can replay it until it expires.
+ */
+public final class TokenSigner {
+	private static final String		ALGORITHM	= "HmacSHA256";
+	private static final Charset	UTF8		= Charset.forName("UTF-8");
+	private final SecretKeySpec		key;
+	private final long				lifetime;
+	private final Map<String, Long>	verified;
+	private final ThreadLocal<Mac>	macs		= new ThreadLocal<Mac>();
+
+	/**
+	 * Instantiates a new token signer.
+	 *
+	 * @param key
+	 *            the shared node key
+	 * @param lifetime
+	 *            the lifetime of new tokens, in milliseconds
+	 * @param cacheSize
+	 *            the maximum number of verified tokens to remember
+	 */
+	public TokenSigner(final byte[] key, final long lifetime,
+			final int cacheSize) {
+		this.key = new SecretKeySpec(key, ALGORITHM);
+		this.lifetime = lifetime;
+		this.verified = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			private static final long	serialVersionUID	= 7145621537128004335L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, Long> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Instantiates a new token signer, with the key taken from a keystore.
+	 *
+	 * @param keyStore
+	 *            the path of the keystore, a JCEKS store holding a secret key
+	 * @param password
+	 *            the password of the keystore and the key
+	 * @param alias
+	 *            the alias of the key
+	 * @param lifetime
+	 *            the lifetime of new tokens, in milliseconds
+	 * @param cacheSize
+	 *            the maximum number of verified tokens to remember
+	 * @return the token signer
+	 * @throws IOException
+	 *             Signals that the key couldn't be loaded.
+	 */
+	public static TokenSigner fromKeyStore(final String keyStore,
+			final String password, final String alias, final long lifetime,
+			final int cacheSize) throws IOException {
+		final char[] pass = password != null ? password.toCharArray() : null;
+		final InputStream in = new FileInputStream(keyStore);
+		try {
+			final KeyStore store = KeyStore.getInstance("JCEKS");
+			store.load(in, pass);
+			final Key key = store.getKey(alias, pass);
+			if (key == null) {
+				throw new IOException("No key '" + alias + "' in keystore:"
+						+ keyStore);
+			}
+			return new TokenSigner(key.getEncoded(), lifetime, cacheSize);
+		} catch (final GeneralSecurityException e) {
+			throw new IOException("Couldn't load key from keystore:"
+					+ keyStore, e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Gets the lifetime of new tokens.
+	 *
+	 * @return the lifetime, in milliseconds
+	 */
+	public long getLifetime() {
+		return lifetime;
+	}
+
+	/**
+	 * Create a new token for the given subject.
+	 *
+	 * @param subject
+	 *            the subject, normally the url of the sender
+	 * @return the token
+	 */
+	public String sign(final String subject) {
+		final long expires = System.currentTimeMillis() + lifetime;
+		return expires + ":"
+				+ Base64.encodeBase64URLSafeString(mac(subject, expires));
+	}
+
+	/**
+	 * Verify the token for the given subject.
+	 *
+	 * @param subject
+	 *            the subject, normally the url of the sender
+	 * @param token
+	 *            the token
+	 * @return true, if the token is signed with the node key and hasn't
+	 *         expired yet.
+	 */
+	public boolean verify(final String subject, final String token) {
+		if (subject == null || token == null) {
+			return false;
+		}
+		final int sep = token.indexOf(':');
+		if (sep <= 0) {
+			return false;
+		}
+		final long expires;
+		try {
+			expires = Long.parseLong(token.substring(0, sep));
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+		if (expires < System.currentTimeMillis()) {
+			return false;
+		}
+		final String cacheKey = subject + "|" + token;
+		synchronized (verified) {
+			if (verified.containsKey(cacheKey)) {
+				return true;
+			}
+		}
+		final byte[] signature = Base64.decodeBase64(token.substring(sep + 1));
+		if (!MessageDigest.isEqual(mac(subject, expires), signature)) {
+			return false;
+		}
+		synchronized (verified) {
+			verified.put(cacheKey, expires);
+		}
+		return true;
+	}
+
+	private byte[] mac(final String subject, final long expires) {
+		Mac mac = macs.get();
+		try {
+			if (mac == null) {
+				mac = Mac.getInstance(ALGORITHM);
+				mac.init(key);
+				macs.set(mac);
+			}
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException("Couldn't initialize "
+					+ ALGORITHM, e);
+		}
+		return mac.doFinal((subject + "|" + expires).getBytes(UTF8));
+	}
+}
@@ -7,41 +7,83 @@ package com.almende.eve.transport.amqp;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.codec.binary.Base64;
-
 import com.almende.eve.capabilities.handler.Handler;
 import com.almende.eve.transport.AbstractTransport;
 import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.amqp.AmqpTransportBuilder.AmqpService;
-import com.almende.eve.transport.envelop.JSONEnvelop;
+import com.almende.util.BinaryFrame;
+import com.almende.util.BinaryMessage;
 import com.almende.util.URIUtil;
 import com.almende.util.callback.AsyncCallback;
 import com.almende.util.threads.ThreadPool;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
 
 /**
- * The Class AmqpTransport.
+ * The Class AmqpTransport. Messages are published on a pool of channels in
+ * confirm mode: the callback of a send gets a failure if the broker rejects
+ * the message or the channel is lost before the broker confirmed it. Its
+ * success is left to the reply, the confirms themselves are reported to the
+ * confirm listener, if set. The body is sent as is, text as UTF-8 and
+ * messages with attachments as a {@link BinaryFrame}; the sender is given in
+ * the replyTo property. Received messages are acknowledged once handled, with
+ * at most prefetch messages unacknowledged.
  */
 public class AmqpTransport extends AbstractTransport {
-	private static final Logger	LOG			= Logger.getLogger(AmqpTransport.class
-													.getName());
-	private ConnectionFactory	factory		= null;
-	private Connection			connection	= null;
-	private Channel				channel		= null;
-	private String				myId		= "";
+	private static final Logger					LOG			= Logger.getLogger(AmqpTransport.class
+																	.getName());
+	private static final Charset				UTF8		= Charset
+																	.forName("UTF-8");
+	private static final AMQP.BasicProperties	TEXT		= new AMQP.BasicProperties.Builder()
+																	.contentType(
+																			"text/plain")
+																	.contentEncoding(
+																			"UTF-8")
+																	.build();
+	private static final AMQP.BasicProperties	BINARY		= new AMQP.BasicProperties.Builder()
+																	.contentType(
+																			"application/octet-stream")
+																	.build();
+	private static final AsyncCallback<Void>	NOCALLBACK	= new AsyncCallback<Void>() {
+																	@Override
+																	public void onSuccess(
+																			final Void result) {}
+
+																	@Override
+																	public void onFailure(
+																			final Exception exception) {}
+																};
+	private ConnectionFactory					factory		= null;
+	private Connection							connection	= null;
+	private Channel								channel		= null;
+	private BlockingQueue<Publisher>			publishers	= null;
+	private volatile AsyncCallback<Void>		confirms	= null;
+	private final String						myId;
+	private final int							channels;
+	private final int							prefetch;
 
 	/**
 	 * Instantiates a new AMQP transport.
@@ -58,6 +100,8 @@ public class AmqpTransport extends AbstractTransport {
 		super(URIUtil.create("amqp:" + config.getId()), newHandle, amqpService,
 				config);
 		myId = config.getId();
+		channels = Math.max(1, config.getChannels());
+		prefetch = config.getPrefetch();
 		factory = new ConnectionFactory();
 		try {
 			factory.setUri(config.getHostUri());
@@ -68,6 +112,28 @@ public class AmqpTransport extends AbstractTransport {
 
 	}
 
+	/**
+	 * Sets the connection factory, e.g. a preconfigured one. Takes effect on
+	 * the next connect.
+	 *
+	 * @param factory
+	 *            the new connection factory
+	 */
+	public void setConnectionFactory(final ConnectionFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Sets the confirm listener, called for each message the broker confirmed
+	 * (onSuccess) or rejected (onFailure).
+	 *
+	 * @param listener
+	 *            the listener, or null
+	 */
+	public void setConfirmListener(final AsyncCallback<Void> listener) {
+		this.confirms = listener;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.transport.Transport#send(java.net.URI,
@@ -77,14 +143,7 @@ public class AmqpTransport extends AbstractTransport {
 	public <T> void send(final URI receiverUri, final String message,
 			final String tag, final AsyncCallback<T> callback)
 			throws IOException {
-		if (channel != null && channel.isOpen()) {
-			final String to = receiverUri.getRawSchemeSpecificPart();
-			final String msg = JSONEnvelop.wrapAsString(myId, to, message);
-			LOG.warning("Sending '" + msg + "' to:" + to);
-			channel.basicPublish("", to, null, msg.getBytes());
-		} else {
-			throw new IOException("Amqp transport not connected!");
-		}
+		publish(receiverUri, TEXT, message.getBytes(UTF8), callback);
 	}
 
 	/*
@@ -96,7 +155,57 @@ public class AmqpTransport extends AbstractTransport {
 	public <T> void send(final URI receiverUri, final byte[] message,
 			final String tag, final AsyncCallback<T> callback)
 			throws IOException {
-		send(receiverUri, Base64.encodeBase64String(message), tag, callback);
+		publish(receiverUri, BINARY, message, callback);
+	}
+
+	/**
+	 * Send a message, messages with attachments are sent as a binary frame.
+	 *
+	 * @param <T>
+	 *            the generic type
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @param message
+	 *            the message
+	 * @param tag
+	 *            the tag
+	 * @param callback
+	 *            the callback
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final Object message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		if (BinaryFrame.hasAttachments(message)) {
+			send(receiverUri, BinaryFrame.toBytes(BinaryFrame
+					.encode((BinaryMessage) message)), tag, callback);
+		} else {
+			super.send(receiverUri, message, tag, callback);
+		}
+	}
+
+	private void publish(final URI receiverUri,
+			final AMQP.BasicProperties type, final byte[] body,
+			final AsyncCallback<?> callback) throws IOException {
+		final BlockingQueue<Publisher> pool = publishers;
+		if (pool == null) {
+			throw new IOException("Amqp transport not connected!");
+		}
+		final Publisher publisher;
+		try {
+			publisher = pool.take();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a channel", e);
+		}
+		try {
+			publisher.publish(receiverUri.getRawSchemeSpecificPart(), type
+					.builder().replyTo(myId).build(), body, callback);
+		} finally {
+			pool.offer(publisher);
+		}
 	}
 
 	/*
@@ -106,30 +215,57 @@ public class AmqpTransport extends AbstractTransport {
 	@Override
 	public void connect() throws IOException {
 		connection = factory.newConnection();
+		final BlockingQueue<Publisher> pool = new ArrayBlockingQueue<Publisher>(
+				channels);
+		for (int i = 0; i < channels; i++) {
+			pool.add(new Publisher(connection.createChannel()));
+		}
+		publishers = pool;
+
 		channel = connection.createChannel();
 		channel.queueDeclare(myId, true, true, true, null);
+		channel.basicQos(prefetch);
 
-		Consumer consumer = new DefaultConsumer(channel) {
+		final Channel consumerChannel = channel;
+		final Consumer consumer = new DefaultConsumer(consumerChannel) {
 			@Override
 			public void handleDelivery(final String consumerTag,
 					final Envelope envelope,
 					final AMQP.BasicProperties properties, final byte[] body)
 					throws IOException {
-				final String message = new String(body, "UTF-8");
-				final JSONEnvelop.Envelop res = JSONEnvelop.unwrap(message);
-				if (myId.equals(res.getTo())) {
-					ThreadPool.getPool().execute(new Runnable() {
-						@Override
-						public void run() {
-							getHandle().get().receive(res.getMessage(),
-									URIUtil.create("amqp:" + res.getFrom()),
-									null);
+				ThreadPool.getPool().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							getHandle().get().receive(decode(body),
+									URIUtil.create("amqp:"
+											+ properties.getReplyTo()), null);
+						} catch (final IOException e) {
+							LOG.log(Level.WARNING,
+									"Failed to decode AMQP message", e);
+						} finally {
+							try {
+								consumerChannel.basicAck(
+										envelope.getDeliveryTag(), false);
+							} catch (final IOException e) {
+								LOG.log(Level.WARNING,
+										"Failed to acknowledge AMQP message",
+										e);
+							}
 						}
-					});
-				}
+					}
+				});
 			}
 		};
-		channel.basicConsume(myId, true, consumer);
+		channel.basicConsume(myId, false, consumer);
+	}
+
+	private static Object decode(final byte[] body) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(body);
+		if (BinaryFrame.isFrame(buffer)) {
+			return BinaryFrame.decode(buffer);
+		}
+		return new String(body, UTF8);
 	}
 
 	/*
@@ -138,7 +274,16 @@ public class AmqpTransport extends AbstractTransport {
 	 */
 	@Override
 	public void disconnect() {
+		final BlockingQueue<Publisher> pool = publishers;
+		publishers = null;
 		try {
+			if (pool != null) {
+				final List<Publisher> open = new ArrayList<Publisher>(channels);
+				pool.drainTo(open);
+				for (final Publisher publisher : open) {
+					publisher.channel.close();
+				}
+			}
 			channel.close();
 			channel = null;
 
@@ -158,4 +303,92 @@ public class AmqpTransport extends AbstractTransport {
 		return Arrays.asList("amqp");
 	}
 
+	/**
+	 * A publishing channel in confirm mode, with the callbacks of the messages
+	 * that aren't confirmed yet. The broker may confirm many messages at once.
+	 */
+	private final class Publisher implements ConfirmListener, ShutdownListener {
+		private final Channel										channel;
+		private final ConcurrentNavigableMap<Long, AsyncCallback<?>>	unconfirmed	= new ConcurrentSkipListMap<Long, AsyncCallback<?>>();
+
+		private Publisher(final Channel channel) throws IOException {
+			this.channel = channel;
+			channel.confirmSelect();
+			channel.addConfirmListener(this);
+			channel.addShutdownListener(this);
+		}
+
+		private void publish(final String to,
+				final AMQP.BasicProperties properties, final byte[] body,
+				final AsyncCallback<?> callback) throws IOException {
+			final long seq = channel.getNextPublishSeqNo();
+			if (callback != null || confirms != null) {
+				unconfirmed.put(seq, callback != null ? callback : NOCALLBACK);
+			}
+			try {
+				channel.basicPublish("", to, properties, body);
+			} catch (final IOException e) {
+				unconfirmed.remove(seq);
+				throw e;
+			}
+		}
+
+		private List<AsyncCallback<?>> take(final long deliveryTag,
+				final boolean multiple) {
+			final List<AsyncCallback<?>> result = new ArrayList<AsyncCallback<?>>();
+			if (multiple) {
+				final Map<Long, AsyncCallback<?>> confirmed = unconfirmed
+						.headMap(deliveryTag, true);
+				result.addAll(confirmed.values());
+				confirmed.clear();
+			} else {
+				final AsyncCallback<?> callback = unconfirmed
+						.remove(deliveryTag);
+				if (callback != null) {
+					result.add(callback);
+				}
+			}
+			return result;
+		}
+
+		private void fail(final List<AsyncCallback<?>> callbacks,
+				final Exception cause) {
+			final AsyncCallback<Void> listener = confirms;
+			for (final AsyncCallback<?> callback : callbacks) {
+				if (callback != NOCALLBACK) {
+					callback.onFailure(cause);
+				}
+				if (listener != null) {
+					listener.onFailure(cause);
+				}
+			}
+		}
+
+		@Override
+		public void handleAck(final long deliveryTag, final boolean multiple) {
+			// The send callback waits for the reply, only the listener
+			// hears about confirms.
+			final List<AsyncCallback<?>> confirmed = take(deliveryTag, multiple);
+			final AsyncCallback<Void> listener = confirms;
+			if (listener != null) {
+				for (int i = 0; i < confirmed.size(); i++) {
+					listener.onSuccess(null);
+				}
+			}
+		}
+
+		@Override
+		public void handleNack(final long deliveryTag, final boolean multiple) {
+			fail(take(deliveryTag, multiple), new IOException(
+					"AMQP broker couldn't accept message"));
+		}
+
+		@Override
+		public void shutdownCompleted(final ShutdownSignalException cause) {
+			if (!unconfirmed.isEmpty()) {
+				fail(take(Long.MAX_VALUE, true), new IOException(
+						"AMQP channel lost before the broker confirmed", cause));
+			}
+		}
+	}
 }
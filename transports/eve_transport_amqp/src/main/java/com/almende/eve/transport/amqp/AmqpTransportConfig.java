@@ -108,4 +108,50 @@ public class AmqpTransportConfig extends TransportConfig {
 	public void setHostUri(final String uri) {
 		this.put("hostUri", uri);
 	}
+
+	/**
+	 * Gets the number of pooled publishing channels.
+	 *
+	 * @return the number of channels, defaults to 8
+	 */
+	public int getChannels() {
+		if (this.has("channels")) {
+			return this.get("channels").asInt();
+		}
+		return 8;
+	}
+
+	/**
+	 * Sets the number of pooled publishing channels: at most this many
+	 * threads publish at the same time, others wait for a free channel.
+	 *
+	 * @param channels
+	 *            the new number of channels
+	 */
+	public void setChannels(final int channels) {
+		this.put("channels", channels);
+	}
+
+	/**
+	 * Gets the prefetch.
+	 *
+	 * @return the prefetch, defaults to 250
+	 */
+	public int getPrefetch() {
+		if (this.has("prefetch")) {
+			return this.get("prefetch").asInt();
+		}
+		return 250;
+	}
+
+	/**
+	 * Sets the prefetch: the maximum number of received messages that are
+	 * not yet handled and acknowledged.
+	 *
+	 * @param prefetch
+	 *            the new prefetch
+	 */
+	public void setPrefetch(final int prefetch) {
+		this.put("prefetch", prefetch);
+	}
 }
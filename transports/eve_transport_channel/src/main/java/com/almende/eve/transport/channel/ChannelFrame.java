@@ -0,0 +1,150 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.channel;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.almende.util.BinaryFrame;
+import com.almende.util.BinaryMessage;
+
+/**
+ * The frames sent over a channel. Each frame is an int length, followed by a
+ * type byte and the type's fields:
+ * HELLO|nodeId|address|slot: opens a connection, sent by the connecting node.
+ * HELLO_ACK|lastSeq: the last message the receiving node has delivered on
+ * this connection slot, earlier messages needn't be resent.
+ * DATA|seq|senderId|receiverId|kind|body: a message between two agents.
+ * ACK|seq: all messages up to seq have been delivered.
+ */
+final class ChannelFrame {
+	static final byte				HELLO		= 1;
+	static final byte				HELLO_ACK	= 2;
+	static final byte				DATA		= 3;
+	static final byte				ACK			= 4;
+
+	private static final byte		TEXT		= 0;
+	private static final byte		BYTES		= 1;
+	private static final byte		BINARY		= 2;
+	private static final int		MAXLENGTH	= 256 * 1024 * 1024;
+	private static final Charset	UTF8		= Charset.forName("UTF-8");
+
+	private ChannelFrame() {}
+
+	/**
+	 * Read the next frame.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @return the frame, positioned at the type byte
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static ByteBuffer read(final DataInputStream in) throws IOException {
+		final int length = in.readInt();
+		if (length < 1 || length > MAXLENGTH) {
+			throw new IOException("Invalid frame length:" + length);
+		}
+		final byte[] frame = new byte[length];
+		in.readFully(frame);
+		return ByteBuffer.wrap(frame);
+	}
+
+	static byte[] hello(final String nodeId, final String address,
+			final int slot) {
+		final byte[] node = nodeId.getBytes(UTF8);
+		final byte[] addr = address.getBytes(UTF8);
+		final ByteBuffer frame = allocate(1 + 2 + node.length + 2
+				+ addr.length + 4);
+		frame.put(HELLO);
+		putString(frame, node);
+		putString(frame, addr);
+		frame.putInt(slot);
+		return frame.array();
+	}
+
+	static byte[] helloAck(final long lastSeq) {
+		return allocate(1 + 8).put(HELLO_ACK).putLong(lastSeq).array();
+	}
+
+	static byte[] ack(final long seq) {
+		return allocate(1 + 8).put(ACK).putLong(seq).array();
+	}
+
+	static byte[] data(final long seq, final String senderId,
+			final String receiverId, final Object message) throws IOException {
+		final byte[] sender = senderId.getBytes(UTF8);
+		final byte[] receiver = receiverId.getBytes(UTF8);
+		final byte kind;
+		final byte[] body;
+		if (BinaryFrame.hasAttachments(message)) {
+			kind = BINARY;
+			body = BinaryFrame.toBytes(BinaryFrame
+					.encode((BinaryMessage) message));
+		} else if (message instanceof byte[]) {
+			kind = BYTES;
+			body = (byte[]) message;
+		} else {
+			kind = TEXT;
+			body = (message == null ? "" : message.toString()).getBytes(UTF8);
+		}
+		final ByteBuffer frame = allocate(1 + 8 + 2 + sender.length + 2
+				+ receiver.length + 1 + body.length);
+		frame.put(DATA).putLong(seq);
+		putString(frame, sender);
+		putString(frame, receiver);
+		frame.put(kind).put(body);
+		return frame.array();
+	}
+
+	/**
+	 * Gets the message body of a DATA frame, positioned after the receiver
+	 * id.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @return the message: a String, a byte[] or a BinaryFrame
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static Object getMessage(final ByteBuffer frame) throws IOException {
+		final byte kind = frame.get();
+		switch (kind) {
+			case BINARY:
+				return BinaryFrame.decode(frame.slice());
+			case BYTES:
+				final byte[] bytes = new byte[frame.remaining()];
+				frame.get(bytes);
+				return bytes;
+			default:
+				return new String(frame.array(), frame.position(),
+						frame.remaining(), UTF8);
+		}
+	}
+
+	static String getString(final ByteBuffer frame) {
+		final int length = frame.getShort() & 0xFFFF;
+		final String result = new String(frame.array(), frame.position(),
+				length, UTF8);
+		((Buffer) frame).position(frame.position() + length);
+		return result;
+	}
+
+	private static void putString(final ByteBuffer frame, final byte[] value) {
+		if (value.length > 0xFFFF) {
+			throw new IllegalArgumentException("Id too long for a frame");
+		}
+		frame.putShort((short) value.length).put(value);
+	}
+
+	private static ByteBuffer allocate(final int length) {
+		final ByteBuffer frame = ByteBuffer.allocate(4 + length);
+		frame.putInt(length);
+		return frame;
+	}
+}
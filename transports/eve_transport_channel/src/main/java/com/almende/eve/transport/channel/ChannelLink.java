@@ -0,0 +1,281 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.channel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * A single outbound connection to a peer node. Messages are numbered and kept
+ * until the peer acknowledges them; after a reconnect the peer reports the
+ * last message it delivered, and the rest is resent in order. Connections are
+ * opened on first use, and reopened with an exponential backoff.
+ * Frames are written under a separate write lock, in order of their sequence
+ * number: a write that blocks on a slow peer doesn't keep the reader from
+ * handling the acknowledgements.
+ */
+final class ChannelLink {
+	private static final Logger	LOG			= Logger.getLogger(ChannelLink.class
+													.getName());
+	private static final int	MINDELAY	= 100;
+	private static final int	TIMEOUT		= 20000;
+	private final ChannelNode	node;
+	private final String		host;
+	private final int			port;
+	private final int			slot;
+	private final Queue<Pending>	unacked		= new ArrayDeque<Pending>();
+	private final Queue<Pending>	unsent		= new ArrayDeque<Pending>();
+	private final Object		writeLock	= new Object();
+	private long				seq			= 0;
+	private Socket				socket		= null;
+	private OutputStream		out			= null;
+	private boolean				connecting	= false;
+	private boolean				closed		= false;
+	private int					delay		= 0;
+
+	ChannelLink(final ChannelNode node, final String host, final int port,
+			final int slot) {
+		this.node = node;
+		this.host = host;
+		this.port = port;
+		this.slot = slot;
+	}
+
+	/**
+	 * Send a message, or keep it for sending once connected.
+	 *
+	 * @param senderId
+	 *            the sender id
+	 * @param receiverId
+	 *            the receiver id
+	 * @param message
+	 *            the message
+	 * @throws IOException
+	 *             if too many messages stay waiting for acknowledgement, or
+	 *             the link has been closed.
+	 */
+	void send(final String senderId, final String receiverId,
+			final Object message) throws IOException {
+		synchronized (this) {
+			if (unacked.size() >= node.getMaxUnacked()) {
+				// Hold back the sender until the peer catches up.
+				final long end = System.currentTimeMillis()
+						+ node.getSendTimeout();
+				try {
+					while (unacked.size() >= node.getMaxUnacked() && !closed) {
+						final long left = end - System.currentTimeMillis();
+						if (left <= 0) {
+							throw new IOException(
+									"Too many unacknowledged messages for "
+											+ host + ":" + port);
+						}
+						wait(left);
+					}
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while sending to "
+							+ host + ":" + port, e);
+				}
+			}
+			if (closed) {
+				throw new IOException("Link to " + host + ":" + port
+						+ " is closed");
+			}
+			final byte[] frame = ChannelFrame.data(seq + 1, senderId,
+					receiverId, message);
+			seq++;
+			final Pending pending = new Pending(seq, frame);
+			unacked.add(pending);
+			if (out == null) {
+				connect();
+				return;
+			}
+			unsent.add(pending);
+		}
+		write();
+	}
+
+	/**
+	 * Write the frames that haven't been written to the current connection,
+	 * in order.
+	 */
+	private void write() {
+		synchronized (writeLock) {
+			final OutputStream target;
+			final Socket current;
+			final Pending[] frames;
+			synchronized (this) {
+				if (out == null || unsent.isEmpty()) {
+					return;
+				}
+				target = out;
+				current = socket;
+				frames = unsent.toArray(new Pending[unsent.size()]);
+				unsent.clear();
+			}
+			try {
+				for (final Pending pending : frames) {
+					target.write(pending.frame);
+				}
+				target.flush();
+			} catch (final IOException e) {
+				LOG.log(Level.FINE, "Lost connection to " + host + ":" + port,
+						e);
+				drop(current);
+			}
+		}
+	}
+
+	private synchronized void acked(final long last) {
+		while (!unacked.isEmpty() && unacked.peek().seq <= last) {
+			unacked.poll();
+		}
+		notifyAll();
+	}
+
+	private synchronized void drop(final Socket dropped) {
+		if (dropped != socket) {
+			return;
+		}
+		close(socket);
+		socket = null;
+		out = null;
+		unsent.clear();
+		if (!unacked.isEmpty() && !closed) {
+			connect();
+		}
+	}
+
+	/**
+	 * Close the link, messages that aren't acknowledged yet are dropped.
+	 */
+	synchronized void close() {
+		closed = true;
+		if (socket != null) {
+			close(socket);
+			socket = null;
+			out = null;
+		}
+		unacked.clear();
+		unsent.clear();
+		notifyAll();
+	}
+
+	private void connect() {
+		if (connecting || closed) {
+			return;
+		}
+		connecting = true;
+		ThreadPool.getScheduledPool().schedule(new Runnable() {
+			@Override
+			public void run() {
+				open();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void open() {
+		final Socket newSocket = new Socket();
+		try {
+			newSocket.setTcpNoDelay(true);
+			newSocket.setKeepAlive(true);
+			newSocket.connect(new InetSocketAddress(host, port), TIMEOUT);
+			newSocket.setSoTimeout(TIMEOUT);
+			final OutputStream newOut = new BufferedOutputStream(
+					newSocket.getOutputStream());
+			newOut.write(ChannelFrame.hello(node.getNodeId(), node
+					.getAddress().toASCIIString(), slot));
+			newOut.flush();
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(newSocket.getInputStream()));
+			final ByteBuffer ack = ChannelFrame.read(in);
+			if (ack.get() != ChannelFrame.HELLO_ACK) {
+				throw new IOException("Unexpected handshake reply");
+			}
+			final long last = ack.getLong();
+			newSocket.setSoTimeout(0);
+			synchronized (writeLock) {
+				synchronized (this) {
+					connecting = false;
+					if (closed) {
+						close(newSocket);
+						return;
+					}
+					acked(last);
+					// Resend everything the peer hasn't delivered.
+					unsent.clear();
+					unsent.addAll(unacked);
+					socket = newSocket;
+					out = newOut;
+					delay = 0;
+				}
+			}
+			readAcks(newSocket, in);
+			write();
+		} catch (final IOException e) {
+			LOG.log(Level.FINE, "Couldn't connect to " + host + ":" + port, e);
+			close(newSocket);
+			synchronized (this) {
+				connecting = false;
+				delay = Math.min(node.getMaxReconnectDelay(),
+						Math.max(MINDELAY, delay * 2));
+				connect();
+			}
+		}
+	}
+
+	private void readAcks(final Socket ackSocket, final DataInputStream in) {
+		final Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final ByteBuffer frame = ChannelFrame.read(in);
+						if (frame.get() == ChannelFrame.ACK) {
+							acked(frame.getLong());
+						}
+					}
+				} catch (final IOException e) {
+					LOG.log(Level.FINE, "Lost connection to " + host + ":"
+							+ port, e);
+				}
+				drop(ackSocket);
+			}
+		}, "channel-" + host + ":" + port + "-" + slot);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private static void close(final Socket closing) {
+		try {
+			closing.close();
+		} catch (final IOException e) {
+			LOG.log(Level.FINEST, "Couldn't close socket", e);
+		}
+	}
+
+	private static final class Pending {
+		private final long		seq;
+		private final byte[]	frame;
+
+		private Pending(final long seq, final byte[] frame) {
+			this.seq = seq;
+			this.frame = frame;
+		}
+	}
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.channel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.transport.AbstractTransport;
+import com.almende.util.URIUtil;
+import com.almende.util.threads.ReadWriteExecutor;
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * A node: the listening socket shared by all channel agents with the same
+ * host and port, together with the node's connections to its peers. All
+ * messages from the agents of this node to the agents of a peer node are
+ * multiplexed over the same few connections. The node is closed once its
+ * last agent disconnects, which waits until its port is free again.
+ * Received messages are handed to each receiver in order, except for
+ * responses, which mustn't wait behind a request that waits for them.
+ */
+final class ChannelNode {
+	private static final int									ACKINTERVAL	= 256;
+	// Keep the receiving state of a slot this long after its connection is
+	// lost, a peer that doesn't reconnect in time starts over.
+	private static final long									SLOTEXPIRY	= 600000;
+	private static final long									JOINTIMEOUT	= 5000;
+	private static final Logger									LOG			= Logger.getLogger(ChannelNode.class
+																					.getName());
+	private static final ConcurrentHashMap<String, ChannelNode>	NODES		= new ConcurrentHashMap<String, ChannelNode>();
+	private final String										nodeId		= UUID.randomUUID()
+																					.toString();
+	private final URI											address;
+	private final int											connections;
+	private final int											maxUnacked;
+	private final int											maxReconnectDelay;
+	private final int											sendTimeout;
+	private final ServerSocket									server;
+	private final Thread										acceptor;
+	private final ConcurrentHashMap<Socket, Thread>				sessions	= new ConcurrentHashMap<Socket, Thread>();
+	private final ConcurrentHashMap<String, ReadWriteExecutor>	serials		= new ConcurrentHashMap<String, ReadWriteExecutor>();
+	private final ConcurrentHashMap<String, ChannelTransport>	agents		= new ConcurrentHashMap<String, ChannelTransport>();
+	private final ConcurrentHashMap<String, ChannelLink[]>		peers		= new ConcurrentHashMap<String, ChannelLink[]>();
+	private final ConcurrentHashMap<String, Inbound>			inbound		= new ConcurrentHashMap<String, Inbound>();
+	private final String										key;
+
+	private ChannelNode(final String key, final ChannelTransportConfig config)
+			throws IOException {
+		this.key = key;
+		this.address = URIUtil.create("channel://" + key + "/");
+		connections = Math.max(1, config.getConnections());
+		maxUnacked = config.getMaxUnacked();
+		maxReconnectDelay = config.getMaxReconnectDelay();
+		sendTimeout = config.getSendTimeout();
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(address.getHost(), address.getPort()));
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "channel-" + address.getPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Gets the node listening at the host and port of the given address,
+	 * starting it if needed.
+	 *
+	 * @param address
+	 *            the address
+	 * @param config
+	 *            the config
+	 * @return the node
+	 * @throws IOException
+	 *             Signals that the node couldn't listen at the address.
+	 */
+	private static synchronized ChannelNode get(final URI address,
+			final ChannelTransportConfig config) throws IOException {
+		final String key = address.getHost() + ":" + address.getPort();
+		ChannelNode node = NODES.get(key);
+		if (node == null) {
+			node = new ChannelNode(key, config);
+			NODES.put(key, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Register an agent at the node listening at the host and port of the
+	 * given address, starting it if needed.
+	 *
+	 * @param address
+	 *            the address
+	 * @param config
+	 *            the config
+	 * @param id
+	 *            the agent id
+	 * @param transport
+	 *            the transport
+	 * @return the node
+	 * @throws IOException
+	 *             Signals that the node couldn't listen at the address.
+	 */
+	static synchronized ChannelNode register(final URI address,
+			final ChannelTransportConfig config, final String id,
+			final ChannelTransport transport) throws IOException {
+		final ChannelNode node = get(address, config);
+		node.agents.put(id, transport);
+		return node;
+	}
+
+	/**
+	 * Unregister an agent, the node is closed if it was the last one.
+	 *
+	 * @param node
+	 *            the node
+	 * @param id
+	 *            the agent id
+	 * @param transport
+	 *            the transport
+	 */
+	static synchronized void unregister(final ChannelNode node,
+			final String id, final ChannelTransport transport) {
+		if (node.agents.remove(id, transport)) {
+			node.serials.remove(id);
+		}
+		if (node.agents.isEmpty() && NODES.remove(node.key, node)) {
+			node.close();
+		}
+	}
+
+	String getNodeId() {
+		return nodeId;
+	}
+
+	URI getAddress() {
+		return address;
+	}
+
+	int getMaxUnacked() {
+		return maxUnacked;
+	}
+
+	int getMaxReconnectDelay() {
+		return maxReconnectDelay;
+	}
+
+	int getSendTimeout() {
+		return sendTimeout;
+	}
+
+	/**
+	 * Stop listening, and close all connections. A socket is only released
+	 * once the thread blocked on it has returned, so this waits for the
+	 * acceptor and the receiving threads.
+	 */
+	private void close() {
+		try {
+			server.close();
+		} catch (final IOException e) {
+			LOG.log(Level.FINEST, "Couldn't close server socket", e);
+		}
+		join(acceptor);
+		for (final Map.Entry<Socket, Thread> session : sessions.entrySet()) {
+			try {
+				session.getKey().close();
+			} catch (final IOException e) {
+				LOG.log(Level.FINEST, "Couldn't close socket", e);
+			}
+			join(session.getValue());
+		}
+		sessions.clear();
+		for (final ChannelLink[] links : peers.values()) {
+			for (final ChannelLink link : links) {
+				link.close();
+			}
+		}
+		peers.clear();
+		for (final Inbound state : inbound.values()) {
+			state.shutdown();
+		}
+		inbound.clear();
+		serials.clear();
+	}
+
+	private static void join(final Thread thread) {
+		if (thread == Thread.currentThread()) {
+			return;
+		}
+		try {
+			thread.join(JOINTIMEOUT);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			LOG.warning("Thread " + thread.getName() + " didn't stop in time");
+		}
+	}
+
+	/**
+	 * Send a message to an agent at a peer node.
+	 *
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @param senderId
+	 *            the sender id
+	 * @param message
+	 *            the message
+	 * @throws IOException
+	 *             Signals that the message couldn't be queued for sending.
+	 */
+	void send(final URI receiverUri, final String senderId,
+			final Object message) throws IOException {
+		final String host = receiverUri.getHost();
+		final int port = receiverUri.getPort();
+		if (host == null || port < 0) {
+			throw new IOException("Invalid channel address:" + receiverUri);
+		}
+		final String receiverId = receiverUri.getPath().replaceFirst("^/", "");
+		final String key = host + ":" + port;
+		ChannelLink[] links = peers.get(key);
+		if (links == null) {
+			links = new ChannelLink[connections];
+			for (int i = 0; i < connections; i++) {
+				links[i] = new ChannelLink(this, host, port, i);
+			}
+			final ChannelLink[] existing = peers.putIfAbsent(key, links);
+			if (existing != null) {
+				links = existing;
+			}
+		}
+		// Keep the messages to one receiver in order, on a single link.
+		links[(receiverId.hashCode() & Integer.MAX_VALUE) % links.length].send(
+				senderId, receiverId, message);
+	}
+
+	private void accept() {
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				final Thread session = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						receive(socket);
+					}
+				}, "channel-" + address.getPort() + "-"
+						+ socket.getRemoteSocketAddress());
+				session.setDaemon(true);
+				sessions.put(socket, session);
+				session.start();
+			} catch (final IOException e) {
+				if (!server.isClosed()) {
+					LOG.log(Level.WARNING,
+							"Couldn't accept channel connection", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handle an incoming connection: deliver its messages, skipping those
+	 * delivered before a reconnect, and acknowledge them whenever the
+	 * connection is idle, or every ACKINTERVAL messages.
+	 */
+	private void receive(final Socket socket) {
+		Inbound state = null;
+		try {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			final OutputStream out = new BufferedOutputStream(
+					socket.getOutputStream());
+			final ByteBuffer hello = ChannelFrame.read(in);
+			if (hello.get() != ChannelFrame.HELLO) {
+				throw new IOException("Expected handshake");
+			}
+			final String peerId = ChannelFrame.getString(hello);
+			final String peerAddress = ChannelFrame.getString(hello);
+			final String slot = peerId + ":" + hello.getInt();
+			expire();
+			long last;
+			do {
+				state = inbound.get(slot);
+				if (state == null) {
+					state = new Inbound();
+					final Inbound existing = inbound.putIfAbsent(slot, state);
+					if (existing != null) {
+						state = existing;
+					}
+				}
+				last = state.open(socket);
+				if (last < 0) {
+					inbound.remove(slot, state);
+				}
+			} while (last < 0);
+			if (server.isClosed()) {
+				throw new IOException("Node has been closed");
+			}
+			out.write(ChannelFrame.helloAck(last));
+			out.flush();
+			int unacked = 0;
+			while (true) {
+				final ByteBuffer frame = ChannelFrame.read(in);
+				if (frame.get() == ChannelFrame.DATA) {
+					last = state.deliver(socket, frame, peerAddress);
+					unacked++;
+				}
+				if (unacked >= ACKINTERVAL || in.available() == 0) {
+					out.write(ChannelFrame.ack(last));
+					out.flush();
+					unacked = 0;
+				}
+			}
+		} catch (final IOException e) {
+			LOG.log(Level.FINE, "Channel connection closed", e);
+		} finally {
+			if (state != null) {
+				state.close(socket);
+			}
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				LOG.log(Level.FINEST, "Couldn't close socket", e);
+			}
+			sessions.remove(socket);
+		}
+	}
+
+	/**
+	 * Drop the receiving state of slots whose peer didn't reconnect in time.
+	 */
+	private void expire() {
+		final long now = System.currentTimeMillis();
+		for (final Map.Entry<String, Inbound> entry : inbound.entrySet()) {
+			if (entry.getValue().expire(now)) {
+				inbound.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private void deliver(final String receiverId, final Object message,
+			final URI senderUrl) {
+		final ChannelTransport transport = agents.get(receiverId);
+		if (transport == null) {
+			LOG.warning("Received message for unknown agent:" + receiverId
+					+ " from:" + senderUrl);
+			return;
+		}
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				transport.getHandle().get().receive(message, senderUrl, null);
+			}
+		};
+		if (AbstractTransport.isResponse(message)) {
+			ThreadPool.getPool().execute(task);
+			return;
+		}
+		ReadWriteExecutor serial = serials.get(receiverId);
+		if (serial == null) {
+			serial = new ReadWriteExecutor();
+			final ReadWriteExecutor prev = serials.putIfAbsent(receiverId,
+					serial);
+			if (prev != null) {
+				serial = prev;
+			}
+		}
+		serial.execute(task);
+	}
+
+	/**
+	 * The receiving state of a single connection slot of a peer node, which
+	 * outlives the connection itself.
+	 */
+	private final class Inbound {
+		private Socket	current	= null;
+		private long	last	= 0;
+		private long	lost	= System.currentTimeMillis();
+		private boolean	expired	= false;
+
+		/**
+		 * Take over the slot, a connection that is replaced by a reconnect
+		 * is closed first.
+		 *
+		 * @return the last delivered message, or -1 if the slot has expired.
+		 */
+		private synchronized long open(final Socket socket) {
+			if (expired) {
+				return -1;
+			}
+			if (current != null) {
+				try {
+					current.close();
+				} catch (final IOException e) {
+					LOG.log(Level.FINEST, "Couldn't close socket", e);
+				}
+			}
+			current = socket;
+			return last;
+		}
+
+		private synchronized long deliver(final Socket socket,
+				final ByteBuffer frame, final String peerAddress)
+				throws IOException {
+			if (socket != current) {
+				throw new IOException("Connection has been replaced");
+			}
+			final long seq = frame.getLong();
+			if (seq > last) {
+				final String senderId = ChannelFrame.getString(frame);
+				final String receiverId = ChannelFrame.getString(frame);
+				ChannelNode.this.deliver(receiverId,
+						ChannelFrame.getMessage(frame),
+						URIUtil.create(peerAddress + senderId));
+				last = seq;
+			}
+			return last;
+		}
+
+		private synchronized void close(final Socket socket) {
+			if (socket == current) {
+				current = null;
+				lost = System.currentTimeMillis();
+			}
+		}
+
+		/**
+		 * Expire the slot if it has been without connection for too long.
+		 *
+		 * @return true, if the slot has expired.
+		 */
+		private synchronized boolean expire(final long now) {
+			if (current == null && now - lost > SLOTEXPIRY) {
+				expired = true;
+			}
+			return expired;
+		}
+
+		/**
+		 * Expire the slot, closing its connection.
+		 */
+		private synchronized void shutdown() {
+			expired = true;
+			if (current != null) {
+				try {
+					current.close();
+				} catch (final IOException e) {
+					LOG.log(Level.FINEST, "Couldn't close socket", e);
+				}
+				current = null;
+			}
+		}
+	}
+}
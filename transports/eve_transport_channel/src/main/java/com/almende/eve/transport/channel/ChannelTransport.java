@@ -0,0 +1,137 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.channel;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import com.almende.eve.capabilities.handler.Handler;
+import com.almende.eve.transport.AbstractTransport;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.TransportService;
+import com.almende.util.callback.AsyncCallback;
+
+/**
+ * The Class ChannelTransport, a transport over persistent TCP connections
+ * between nodes. All agents that share the host and port of their address
+ * form a node, and all messages between two nodes are multiplexed over the
+ * same few connections: per message only a small frame header with the
+ * sender and receiver ids is sent. Lost connections are reopened, and
+ * unacknowledged messages are resent without duplicates.
+ * Addresses look like: "channel://host:port/agentId".
+ */
+public class ChannelTransport extends AbstractTransport {
+	private final ChannelTransportConfig	config;
+	private final String					id;
+	private volatile ChannelNode			node;
+	private final List<String>				protocols	= Arrays.asList("channel");
+
+	/**
+	 * Instantiates a new channel transport.
+	 *
+	 * @param config
+	 *            the config
+	 * @param handle
+	 *            the handle
+	 * @param service
+	 *            the service
+	 * @throws IOException
+	 *             Signals that the node couldn't listen at the address.
+	 */
+	public ChannelTransport(final ChannelTransportConfig config,
+			final Handler<Receiver> handle, final TransportService service)
+			throws IOException {
+		super(config.getAddress(), handle, service, config);
+		this.config = config;
+		id = config.getId();
+		// Reachable right away, the router connects its transports later.
+		node = ChannelNode.register(config.getAddress(), config, id, this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#send(java.net.URI,
+	 * java.lang.String, java.lang.String)
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final String message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		doSend(receiverUri, message);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#send(java.net.URI, byte[],
+	 * java.lang.String)
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final byte[] message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		doSend(receiverUri, message);
+	}
+
+	/**
+	 * Send a message, messages with attachments are sent as a binary frame.
+	 *
+	 * @param <T>
+	 *            the generic type
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @param message
+	 *            the message
+	 * @param tag
+	 *            the tag
+	 * @param callback
+	 *            the callback
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final Object message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		doSend(receiverUri, message);
+	}
+
+	private void doSend(final URI receiverUri, final Object message)
+			throws IOException {
+		if (sendLocal(receiverUri, message)) {
+			return;
+		}
+		node.send(receiverUri, id, message);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#connect()
+	 */
+	@Override
+	public void connect() throws IOException {
+		// The node is started again if it was closed by a disconnect.
+		node = ChannelNode.register(config.getAddress(), config, id, this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#disconnect()
+	 */
+	@Override
+	public void disconnect() {
+		ChannelNode.unregister(node, id, this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#getProtocols()
+	 */
+	@Override
+	public List<String> getProtocols() {
+		return protocols;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.channel;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.capabilities.AbstractCapabilityBuilder;
+import com.almende.eve.capabilities.Capability;
+import com.almende.eve.capabilities.handler.Handler;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.Transport;
+import com.almende.eve.transport.TransportService;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class ChannelTransportBuilder.
+ */
+public class ChannelTransportBuilder extends
+		AbstractCapabilityBuilder<ChannelTransport> {
+	private static final Logger					LOG			= Logger.getLogger(ChannelTransportBuilder.class
+																	.getName());
+	private final Map<URI, ChannelTransport>	instances	= new ConcurrentHashMap<URI, ChannelTransport>();
+	private static ChannelService				singleton	= null;
+
+	@Override
+	public ChannelTransport build() {
+		if (singleton == null) {
+			singleton = new ChannelService();
+			singleton.doesShortcut = ChannelTransportConfig.decorate(
+					getParams()).getDoShortcut();
+		}
+		return singleton.get(getParams(), getHandle());
+	}
+
+	class ChannelService implements TransportService {
+		private boolean	doesShortcut	= true;
+
+		/**
+		 * Gets the channel transport.
+		 *
+		 * @param <T>
+		 *            the generic type
+		 * @param <V>
+		 *            the value type
+		 * @param params
+		 *            the params
+		 * @param handle
+		 *            the handle
+		 * @return the channel transport
+		 */
+		public <T extends Capability, V> ChannelTransport get(
+				final ObjectNode params, final Handler<V> handle) {
+			final Handler<Receiver> newHandle = Transport.TYPEUTIL
+					.inject(handle);
+			final ChannelTransportConfig config = ChannelTransportConfig
+					.decorate(params);
+			final URI address = config.getAddress();
+			ChannelTransport result = instances.get(address);
+
+			if (result == null) {
+				try {
+					result = new ChannelTransport(config, newHandle, this);
+					instances.put(address, result);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Couldn't start channel node for "
+							+ address, e);
+				}
+			} else {
+				result.getHandle().update(newHandle);
+			}
+			return result;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see
+		 * com.almende.eve.transport.TransportService#delete(com.almende.eve.
+		 * transport
+		 * .Transport)
+		 */
+		@Override
+		public void delete(final Transport instance) {
+			instances.remove(instance.getAddress());
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see
+		 * com.almende.eve.transport.TransportService#getLocal(java.net.URI)
+		 */
+		@Override
+		public Transport getLocal(final URI address) {
+			if (doesShortcut && instances.containsKey(address)) {
+				return instances.get(address);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.channel;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.logging.Logger;
+
+import com.almende.eve.transport.TransportConfig;
+import com.almende.util.URIUtil;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class ChannelTransportConfig.
+ */
+public class ChannelTransportConfig extends TransportConfig {
+	private static final Logger	LOG		= Logger.getLogger(ChannelTransportConfig.class
+												.getName());
+	private static final String	BUILDER	= ChannelTransportBuilder.class
+												.getName();
+
+	/**
+	 * Instantiates a new channel transport config.
+	 */
+	protected ChannelTransportConfig() {
+		super();
+	}
+
+	/**
+	 * Instantiates a new channel transport config.
+	 *
+	 * @return the channel transport config
+	 */
+	public static ChannelTransportConfig create() {
+		final ChannelTransportConfig res = new ChannelTransportConfig();
+		res.setBuilder(BUILDER);
+		return res;
+	}
+
+	/**
+	 * Instantiates a new channel transport config.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the channel transport config
+	 */
+	public static ChannelTransportConfig decorate(final ObjectNode node) {
+		final ChannelTransportConfig res = new ChannelTransportConfig();
+		res.extend(node);
+		return res;
+	}
+
+	/**
+	 * Gets the address of the agent: the address of the node, followed by the
+	 * id.
+	 *
+	 * @return the address
+	 */
+	public URI getAddress() {
+		if (this.has("address")) {
+			try {
+				return URIUtil.parse(this.get("address").asText()
+						+ (getId() != null ? getId() : ""));
+			} catch (final URISyntaxException e) {
+				LOG.warning("Couldn't parse URI from: "
+						+ this.get("address").asText());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the address of the node, e.g. "channel://127.0.0.1:5700/". All
+	 * agents with the same host and port share the node's connections.
+	 *
+	 * @param address
+	 *            the new address
+	 */
+	public void setAddress(final String address) {
+		this.put("address", address);
+	}
+
+	/**
+	 * Sets the id.
+	 *
+	 * @param id
+	 *            the new id
+	 */
+	public void setId(final String id) {
+		this.put("id", id);
+	}
+
+	/**
+	 * Gets the id.
+	 *
+	 * @return the id
+	 */
+	public String getId() {
+		if (this.has("id")) {
+			return this.get("id").asText();
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the number of connections to open per peer node. Messages are
+	 * spread over the connections by receiver, messages to a single receiver
+	 * stay in order.
+	 *
+	 * @param connections
+	 *            the new number of connections
+	 */
+	public void setConnections(final int connections) {
+		this.put("connections", connections);
+	}
+
+	/**
+	 * Gets the number of connections per peer node.
+	 *
+	 * @return the number of connections, defaults to 1
+	 */
+	public int getConnections() {
+		if (this.has("connections")) {
+			return this.get("connections").asInt();
+		}
+		return 1;
+	}
+
+	/**
+	 * Sets the maximum number of unacknowledged messages per connection.
+	 * These messages are kept for resending after a reconnect, beyond this
+	 * limit senders wait until the peer catches up.
+	 *
+	 * @param maxUnacked
+	 *            the new max unacked
+	 */
+	public void setMaxUnacked(final int maxUnacked) {
+		this.put("maxUnacked", maxUnacked);
+	}
+
+	/**
+	 * Gets the maximum number of unacknowledged messages per connection.
+	 *
+	 * @return the max unacked, defaults to 10000
+	 */
+	public int getMaxUnacked() {
+		if (this.has("maxUnacked")) {
+			return this.get("maxUnacked").asInt();
+		}
+		return 10000;
+	}
+
+	/**
+	 * Sets the maximum delay between reconnection attempts, in milliseconds.
+	 *
+	 * @param maxReconnectDelay
+	 *            the new max reconnect delay
+	 */
+	public void setMaxReconnectDelay(final int maxReconnectDelay) {
+		this.put("maxReconnectDelay", maxReconnectDelay);
+	}
+
+	/**
+	 * Gets the maximum delay between reconnection attempts.
+	 *
+	 * @return the max reconnect delay, defaults to 5000
+	 */
+	public int getMaxReconnectDelay() {
+		if (this.has("maxReconnectDelay")) {
+			return this.get("maxReconnectDelay").asInt();
+		}
+		return 5000;
+	}
+
+	/**
+	 * Sets the maximum time a sender waits for room among the
+	 * unacknowledged messages, in milliseconds, before sending fails.
+	 *
+	 * @param sendTimeout
+	 *            the new send timeout
+	 */
+	public void setSendTimeout(final int sendTimeout) {
+		this.put("sendTimeout", sendTimeout);
+	}
+
+	/**
+	 * Gets the maximum time a sender waits for room among the
+	 * unacknowledged messages.
+	 *
+	 * @return the send timeout, defaults to 30000
+	 */
+	public int getSendTimeout() {
+		if (this.has("sendTimeout")) {
+			return this.get("sendTimeout").asInt();
+		}
+		return 30000;
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+
+import com.almende.util.ApacheHttpAsyncClient;
+import com.almende.util.BinaryFrame;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+import com.almende.util.threads.ThreadPool;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class AsyncEveServlet, an EveServlet that doesn't hold a container
+ * thread while a request is handled: the body is read through non-blocking
+ * reads, the agent handles it on the ThreadPool and its response completes the
+ * request from the agent's thread, and the handshake uses the non-blocking
+ * HTTP client. JSON bodies are parsed
+ * directly from the received bytes, bodies larger than the configured maximum
+ * (see HttpTransportConfig.setMaxBodySize()) are rejected with status 413.
+ * Use it through HttpTransportConfig.setServletClass(), the container must
+ * support Servlet 3.1 and asynchronous requests for this servlet.
+ */
+public class AsyncEveServlet extends EveServlet {
+	private static final long					serialVersionUID	= 2079134436254916343L;
+	private static final Logger					LOG					= Logger.getLogger(AsyncEveServlet.class
+																			.getSimpleName());
+	private static final Charset				UTF8				= Charset
+																			.forName("UTF-8");
+	private static final ThreadLocal<byte[]>	BUFFER				= new ThreadLocal<byte[]>() {
+																		@Override
+																		protected byte[] initialValue() {
+																			return new byte[8192];
+																		}
+																	};
+
+	/**
+	 * Instantiates a new async eve servlet.
+	 */
+	public AsyncEveServlet() {
+		super();
+	}
+
+	/**
+	 * Instantiates a new async eve servlet.
+	 *
+	 * @param servletUrl
+	 *            the servlet url
+	 */
+	public AsyncEveServlet(final URI servletUrl) {
+		super(servletUrl);
+	}
+
+	@Override
+	public void doPost(final HttpServletRequest req,
+			final HttpServletResponse resp) throws IOException,
+			ServletException {
+		if (!req.isAsyncSupported()) {
+			super.doPost(req, resp);
+			return;
+		}
+		final String id = getId(req.getRequestURI());
+		if (id == null || id.isEmpty() || id.equals(myUrl.toASCIIString())) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"Couldn't parse URL, missing 'id'");
+			resp.flushBuffer();
+			return;
+		}
+		final HttpTransport transport = HttpService.get(myUrl, id);
+		if (transport == null) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+					"Couldn't load transport");
+			resp.flushBuffer();
+			return;
+		}
+		if (req.getContentLength() > HttpService.getMaxBodySize(myUrl)) {
+			resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+					"Request body too large");
+			resp.flushBuffer();
+			return;
+		}
+		final AsyncContext context = req.startAsync();
+		// The transport's callback store times out stale requests.
+		context.setTimeout(0);
+		if (req.getSession(false) != null
+				|| !HttpService.doAuthentication(myUrl)) {
+			req.getSession(true);
+			read(context, transport);
+			return;
+		}
+		handShake(context, transport);
+	}
+
+	/**
+	 * Authenticate the sender, through its signed token or otherwise the
+	 * sender's half of the handshake, retrieved through the non-blocking
+	 * client.
+	 */
+	private void handShake(final AsyncContext context,
+			final HttpTransport transport) throws IOException {
+		final HttpServletRequest req = (HttpServletRequest) context
+				.getRequest();
+		final HttpServletResponse resp = (HttpServletResponse) context
+				.getResponse();
+		final Handshake signed = checkSignature(req);
+		if (signed != null) {
+			if (signed == Handshake.OK) {
+				req.getSession(true);
+				read(context, transport);
+			} else {
+				fail(context, HttpServletResponse.SC_UNAUTHORIZED, null);
+			}
+			return;
+		}
+		final String tokenTupple = req.getHeader("X-Eve-Token");
+		final String senderUrl = req.getHeader("X-Eve-SenderUrl");
+		if (tokenTupple == null) {
+			// This is a webpage, no HandShake available.
+			try {
+				if (req.authenticate(resp)) {
+					req.getSession(true);
+					read(context, transport);
+					return;
+				}
+			} catch (final ServletException e) {
+				LOG.log(Level.WARNING, "", e);
+			}
+			fail(context, HttpServletResponse.SC_UNAUTHORIZED, null);
+			return;
+		}
+		if (senderUrl == null || senderUrl.isEmpty()) {
+			fail(context, HttpServletResponse.SC_UNAUTHORIZED, null);
+			return;
+		}
+		final ObjectNode tokenObj;
+		try {
+			tokenObj = (ObjectNode) JOM.getInstance().readTree(tokenTupple);
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "", e);
+			fail(context, HttpServletResponse.SC_UNAUTHORIZED, null);
+			return;
+		}
+		ApacheHttpAsyncClient.get().execute(
+				createHandShake(senderUrl, tokenObj),
+				new FutureCallback<HttpResponse>() {
+					@Override
+					public void completed(final HttpResponse response) {
+						if (checkHandShake(response, tokenObj) != Handshake.OK) {
+							fail(context, HttpServletResponse.SC_UNAUTHORIZED,
+									null);
+							return;
+						}
+						try {
+							req.getSession(true);
+							read(context, transport);
+						} catch (final IOException e) {
+							failed(e);
+						}
+					}
+
+					@Override
+					public void failed(final Exception e) {
+						LOG.log(Level.WARNING, "Handshake failed", e);
+						fail(context, HttpServletResponse.SC_UNAUTHORIZED, null);
+					}
+
+					@Override
+					public void cancelled() {
+						fail(context, HttpServletResponse.SC_UNAUTHORIZED, null);
+					}
+				});
+	}
+
+	/**
+	 * Read the body without blocking, and hand it to the transport once
+	 * complete.
+	 */
+	private void read(final AsyncContext context,
+			final HttpTransport transport) throws IOException {
+		final HttpServletRequest req = (HttpServletRequest) context
+				.getRequest();
+		final ServletInputStream in = req.getInputStream();
+		final int maxBodySize = HttpService.getMaxBodySize(myUrl);
+		final Body body = new Body(req.getContentLength());
+		in.setReadListener(new ReadListener() {
+			@Override
+			public void onDataAvailable() throws IOException {
+				final byte[] buffer = BUFFER.get();
+				while (!body.rejected && in.isReady()) {
+					final int count = in.read(buffer);
+					if (count < 0) {
+						break;
+					}
+					// Bodies without a Content-Length are only checked here.
+					if (body.size() + count > maxBodySize) {
+						body.rejected = true;
+						fail(context,
+								HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+								"Request body too large");
+						return;
+					}
+					body.write(buffer, 0, count);
+				}
+			}
+
+			@Override
+			public void onAllDataRead() throws IOException {
+				if (body.rejected) {
+					return;
+				}
+				// Methods without isolation run on the receiving thread,
+				// which mustn't be the container's.
+				ThreadPool.getPool().execute(new Runnable() {
+					@Override
+					public void run() {
+						dispatch(context, transport, body);
+					}
+				});
+			}
+
+			@Override
+			public void onError(final Throwable t) {
+				LOG.log(Level.WARNING, "Couldn't read request body", t);
+				fail(context, HttpServletResponse.SC_BAD_REQUEST,
+						"Couldn't read request body");
+			}
+		});
+	}
+
+	private void dispatch(final AsyncContext context,
+			final HttpTransport transport, final Body body) {
+		final HttpServletRequest req = (HttpServletRequest) context
+				.getRequest();
+		final Object msg;
+		try {
+			msg = body.parse(req.getContentType());
+		} catch (final IOException e) {
+			fail(context, HttpServletResponse.SC_BAD_REQUEST,
+					"Couldn't parse request: " + e.getMessage());
+			return;
+		}
+		transport.receive(msg, getSenderUrl(req), new AsyncCallback<String>() {
+			@Override
+			public void onSuccess(final String response) {
+				final HttpServletResponse resp = (HttpServletResponse) context
+						.getResponse();
+				try {
+					resp.addHeader("Content-Type", "application/json");
+					resp.getWriter().println(response);
+					resp.getWriter().close();
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Couldn't write response", e);
+				} finally {
+					context.complete();
+				}
+			}
+
+			@Override
+			public void onFailure(final Exception exception) {
+				fail(context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+						"Receiver raised exception:" + exception.getMessage());
+			}
+		});
+	}
+
+	private static void fail(final AsyncContext context, final int status,
+			final String message) {
+		final HttpServletResponse resp = (HttpServletResponse) context
+				.getResponse();
+		try {
+			if (!resp.isCommitted()) {
+				if (message == null) {
+					resp.sendError(status);
+				} else {
+					resp.sendError(status, message);
+				}
+			}
+		} catch (final IOException e) {
+			LOG.log(Level.FINE, "Couldn't send error", e);
+		} finally {
+			context.complete();
+		}
+	}
+
+	/**
+	 * The received body, parsed without copying it into a String first.
+	 */
+	private static final class Body extends ByteArrayOutputStream {
+		private static final int	MAXINITIAL	= 8192;
+		private boolean				rejected	= false;
+
+		private Body(final int contentLength) {
+			// The Content-Length is the client's claim, it grows as needed.
+			super(contentLength > 0 ? Math.min(contentLength, MAXINITIAL)
+					: 1024);
+		}
+
+		private Object parse(final String contentType) throws IOException {
+			if (contentType != null
+					&& contentType.startsWith(BinaryFrame.CONTENTTYPE)) {
+				return BinaryFrame.decode(ByteBuffer.wrap(buf, 0, count));
+			}
+			int start = 0;
+			while (start < count && Character.isWhitespace(buf[start])) {
+				start++;
+			}
+			if (start < count && buf[start] == '{') {
+				try {
+					return JOM.getInstance().readTree(
+							new ByteArrayInputStream(buf, start, count - start));
+				} catch (final IOException e) {
+					// Let the receiver report the invalid message.
+					LOG.log(Level.FINE, "Couldn't parse JSON body", e);
+				}
+			}
+			return new String(buf, 0, count, UTF8);
+		}
+	}
+}
@@ -20,7 +20,9 @@ import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
 
+import com.almende.eve.transport.tokens.TokenSigner;
 import com.almende.util.ApacheHttpClient;
+import com.almende.util.BinaryFrame;
 import com.almende.util.StringUtil;
 import com.almende.util.URIUtil;
 import com.almende.util.jackson.JOM;
@@ -135,6 +137,10 @@ public class EveServlet extends HttpServlet {
 	 * @return the handshake
 	 */
 	protected Handshake doHandShake(final HttpServletRequest req) {
+		final Handshake signed = checkSignature(req);
+		if (signed != null) {
+			return signed;
+		}
 		final String tokenTupple = req.getHeader("X-Eve-Token");
 		if (tokenTupple == null) {
 			// This is a webpage, no HandShake available.
@@ -146,29 +152,9 @@ public class EveServlet extends HttpServlet {
 			if (senderUrl != null && !senderUrl.isEmpty()) {
 				final ObjectNode tokenObj = (ObjectNode) JOM.getInstance()
 						.readTree(tokenTupple);
-				final HttpGet httpGet = new HttpGet(senderUrl);
-				httpGet.setHeader("X-Eve-requestToken", tokenObj.get("time")
-						.textValue());
 				final HttpResponse response = ApacheHttpClient.get().execute(
-						httpGet);
-				if (response != null
-						&& response.getStatusLine().getStatusCode() == HttpServletResponse.SC_OK) {
-					Header replyToken = response
-							.getLastHeader("X-Eve-replyToken");
-					if (replyToken == null) {
-						LOG.log(Level.WARNING,
-								"Failed to receive valid handshake, replyToken missing!:"
-										+ response);
-						return Handshake.INVALID;
-					}
-					if (tokenObj.get("token").textValue()
-							.equals(replyToken.getValue())) {
-						return Handshake.OK;
-					}
-				} else {
-					LOG.log(Level.WARNING, "Failed to receive valid handshake:"
-							+ response);
-				}
+						createHandShake(senderUrl, tokenObj));
+				return checkHandShake(response, tokenObj);
 			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
@@ -177,6 +163,79 @@ public class EveServlet extends HttpServlet {
 		return Handshake.INVALID;
 	}
 
+	/**
+	 * Check the signed token of the request, if both sides share a node key.
+	 * This replaces the handshake request back to the sender.
+	 * 
+	 * @param req
+	 *            the req
+	 * @return the handshake, null if the request can't be checked this way.
+	 */
+	protected Handshake checkSignature(final HttpServletRequest req) {
+		final String signature = req.getHeader("X-Eve-Signature");
+		if (signature == null) {
+			return null;
+		}
+		final TokenSigner signer = HttpService.getSigner(myUrl);
+		if (signer == null) {
+			return null;
+		}
+		if (signer.verify(req.getHeader("X-Eve-SenderUrl"), signature)) {
+			return Handshake.OK;
+		}
+		LOG.warning("Invalid or expired signed token from:"
+				+ req.getHeader("X-Eve-SenderUrl"));
+		return Handshake.INVALID;
+	}
+
+	/**
+	 * Create the request for the sender's half of the handshake.
+	 * 
+	 * @param senderUrl
+	 *            the sender url
+	 * @param tokenObj
+	 *            the token as received
+	 * @return the http get
+	 */
+	protected HttpGet createHandShake(final String senderUrl,
+			final ObjectNode tokenObj) {
+		final HttpGet httpGet = new HttpGet(senderUrl);
+		httpGet.setHeader("X-Eve-requestToken", tokenObj.get("time")
+				.textValue());
+		return httpGet;
+	}
+
+	/**
+	 * Check the sender's reply to the handshake.
+	 * 
+	 * @param response
+	 *            the response
+	 * @param tokenObj
+	 *            the token as received
+	 * @return the handshake
+	 */
+	protected Handshake checkHandShake(final HttpResponse response,
+			final ObjectNode tokenObj) {
+		if (response != null
+				&& response.getStatusLine().getStatusCode() == HttpServletResponse.SC_OK) {
+			Header replyToken = response.getLastHeader("X-Eve-replyToken");
+			if (replyToken == null) {
+				LOG.log(Level.WARNING,
+						"Failed to receive valid handshake, replyToken missing!:"
+								+ response);
+				return Handshake.INVALID;
+			}
+			if (tokenObj.get("token").textValue()
+					.equals(replyToken.getValue())) {
+				return Handshake.OK;
+			}
+		} else {
+			LOG.log(Level.WARNING, "Failed to receive valid handshake:"
+					+ response);
+		}
+		return Handshake.INVALID;
+	}
+
 	/**
 	 * Handle session.
 	 * 
@@ -231,6 +290,26 @@ public class EveServlet extends HttpServlet {
 		return id.indexOf('/') > 0 ? id.substring(0, id.indexOf('/')) : id;
 	}
 
+	/**
+	 * Gets the sender url of the request.
+	 * 
+	 * @param req
+	 *            the req
+	 * @return the sender url, null if it couldn't be parsed.
+	 */
+	protected URI getSenderUrl(final HttpServletRequest req) {
+		String sender = req.getHeader("X-Eve-SenderUrl");
+		if (sender == null || sender.isEmpty()) {
+			sender = "web://" + req.getRemoteUser() + "@" + req.getRemoteAddr();
+		}
+		try {
+			return URIUtil.parse(sender);
+		} catch (final URISyntaxException e) {
+			LOG.log(Level.WARNING, "Couldn't parse senderUrl:" + sender, e);
+		}
+		return null;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see
@@ -250,8 +329,22 @@ public class EveServlet extends HttpServlet {
 			return;
 		}
 
-		// retrieve the url and the request body
-		final String body = StringUtil.streamToString(req.getInputStream());
+		// retrieve the url and the request body, binary frames carry
+		// attachments next to the body.
+		final Object body;
+		if (req.getContentType() != null
+				&& req.getContentType().startsWith(BinaryFrame.CONTENTTYPE)) {
+			try {
+				body = BinaryFrame.read(req.getInputStream());
+			} catch (final IOException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+						"Couldn't parse binary frame: " + e.getMessage());
+				resp.flushBuffer();
+				return;
+			}
+		} else {
+			body = StringUtil.streamToString(req.getInputStream());
+		}
 		final String url = req.getRequestURI();
 		final String id = getId(url);
 		if (id == null || id.isEmpty() || id.equals(myUrl.toASCIIString())) {
@@ -261,16 +354,7 @@ public class EveServlet extends HttpServlet {
 			return;
 		}
 
-		String sender = req.getHeader("X-Eve-SenderUrl");
-		if (sender == null || sender.isEmpty()) {
-			sender = "web://" + req.getRemoteUser() + "@" + req.getRemoteAddr();
-		}
-		URI senderUrl = null;
-		try {
-			senderUrl = URIUtil.parse(sender);
-		} catch (final URISyntaxException e) {
-			LOG.log(Level.WARNING, "Couldn't parse senderUrl:" + sender, e);
-		}
+		final URI senderUrl = getSenderUrl(req);
 		final HttpTransport transport = HttpService.get(myUrl, id);
 		if (transport != null) {
 			try {
@@ -4,6 +4,7 @@
  */
 package com.almende.eve.transport.http;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
@@ -18,6 +19,8 @@ import com.almende.eve.capabilities.handler.Handler;
 import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.Transport;
 import com.almende.eve.transport.TransportService;
+import com.almende.eve.transport.tokens.TokenSigner;
+import com.almende.util.ApacheHttpAsyncClient;
 import com.almende.util.ClassUtil;
 import com.almende.util.URIUtil;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -31,6 +34,7 @@ public class HttpService implements TransportService {
 	private URI								myUrl		= null;
 	private final Map<URI, HttpTransport>	transports	= new HashMap<URI, HttpTransport>();
 	private HttpTransportConfig				myParams	= null;
+	private TokenSigner						signer		= null;
 
 	/**
 	 * Instantiates a new http service.
@@ -43,6 +47,11 @@ public class HttpService implements TransportService {
 	public HttpService(final URI servletUrl, final ObjectNode params) {
 		myUrl = servletUrl;
 		myParams = HttpTransportConfig.decorate(params);
+		signer = createSigner(myParams);
+		if (myParams.isAsyncClient()) {
+			ApacheHttpAsyncClient.setMaxPerRoute(myParams
+					.getMaxConnectionsPerPeer());
+		}
 
 		String servletLauncher = myParams.getServletLauncher();
 		if (servletLauncher != null) {
@@ -82,6 +91,26 @@ public class HttpService implements TransportService {
 		}
 	}
 
+	private static TokenSigner createSigner(final HttpTransportConfig config) {
+		try {
+			if (config.getHandshakeKeyStore() != null) {
+				return TokenSigner.fromKeyStore(config.getHandshakeKeyStore(),
+						config.getHandshakeKeyStorePassword(),
+						config.getHandshakeKeyAlias(),
+						config.getTokenLifetime(), config.getTokenCacheSize());
+			}
+			if (config.getHandshakeKey() != null) {
+				return new TokenSigner(config.getHandshakeKey().getBytes(
+						"UTF-8"), config.getTokenLifetime(),
+						config.getTokenCacheSize());
+			}
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING,
+					"Couldn't load handshake key, signed tokens disabled!", e);
+		}
+		return null;
+	}
+
 	/**
 	 * Gets the.
 	 * 
@@ -187,6 +216,47 @@ public class HttpService implements TransportService {
 		return false;
 	}
 
+	/**
+	 * Gets the maximum size of a request body of the given servlet.
+	 * 
+	 * @param servletUrl
+	 *            the servlet url
+	 * @return the max body size in bytes
+	 */
+	public static int getMaxBodySize(final URI servletUrl) {
+		final HttpService service = HttpTransportBuilder.getServices().get(
+				servletUrl);
+		if (service != null) {
+			return service.myParams.getMaxBodySize();
+		}
+		return HttpTransportConfig.create().getMaxBodySize();
+	}
+
+	/**
+	 * Gets the signer of handshake tokens of the given servlet.
+	 * 
+	 * @param servletUrl
+	 *            the servlet url
+	 * @return the token signer, null if no node key is configured.
+	 */
+	public static TokenSigner getSigner(final URI servletUrl) {
+		final HttpService service = HttpTransportBuilder.getServices().get(
+				servletUrl);
+		if (service != null) {
+			return service.getSigner();
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the signer of handshake tokens.
+	 * 
+	 * @return the token signer, null if no node key is configured.
+	 */
+	public TokenSigner getSigner() {
+		return signer;
+	}
+
 	/**
 	 * Should the Servlet handle authentication?
 	 * 
@@ -18,8 +18,11 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.util.EntityUtils;
 
@@ -27,8 +30,12 @@ import com.almende.eve.capabilities.handler.Handler;
 import com.almende.eve.transport.AbstractTransport;
 import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.TransportService;
+import com.almende.eve.transport.tokens.TokenSigner;
 import com.almende.eve.transport.tokens.TokenStore;
+import com.almende.util.ApacheHttpAsyncClient;
 import com.almende.util.ApacheHttpClient;
+import com.almende.util.BinaryFrame;
+import com.almende.util.BinaryMessage;
 import com.almende.util.callback.AsyncCallback;
 import com.almende.util.callback.AsyncCallbackStore;
 import com.almende.util.callback.SyncCallback;
@@ -51,6 +58,9 @@ public class HttpTransport extends AbstractTransport {
 																	"http",
 																	"https",
 																	"web");
+	private final boolean						asyncClient;
+	private final TokenSigner					signer;
+	private volatile Signature					signature	= null;
 
 	/**
 	 * Instantiates a new http transport.
@@ -68,6 +78,11 @@ public class HttpTransport extends AbstractTransport {
 			final TransportService service, final ObjectNode params) {
 		super(address, handle, service, params);
 		callbacks = new AsyncCallbackStore<String>("HttpTags_" + address);
+		final HttpTransportConfig config = HttpTransportConfig
+				.decorate(params);
+		asyncClient = config.isAsyncClient();
+		signer = service instanceof HttpService ? ((HttpService) service)
+				.getSigner() : null;
 	}
 
 	/*
@@ -98,7 +113,46 @@ public class HttpTransport extends AbstractTransport {
 		if (sendLocal(receiverUri, message)) {
 			return;
 		}
-		final String senderUrl = super.getAddress().toASCIIString();
+		post(receiverUri, message, exceptionCallback);
+	}
+
+	/**
+	 * Send a message, messages with attachments are posted as a binary frame,
+	 * except for responses.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @param message
+	 *            the message
+	 * @param tag
+	 *            the tag
+	 * @param exceptionCallback
+	 *            the exception callback
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final Object message,
+			final String tag, final AsyncCallback<T> exceptionCallback)
+			throws IOException {
+		if (tag != null || !BinaryFrame.hasAttachments(message)) {
+			super.send(receiverUri, message, tag, exceptionCallback);
+			return;
+		}
+		if (sendLocal(receiverUri, message)) {
+			return;
+		}
+		post(receiverUri, message, exceptionCallback);
+	}
+
+	private <T> void post(final URI receiverUri, final Object message,
+			final AsyncCallback<T> exceptionCallback) {
+		if (asyncClient) {
+			postAsync(receiverUri, message, exceptionCallback);
+			return;
+		}
 		final Handler<Receiver> handle = super.getHandle();
 		// Use fresh Executor instead of the RunQueue, as this thread will sleep
 		// most of its run.
@@ -107,43 +161,11 @@ public class HttpTransport extends AbstractTransport {
 			public void run() {
 				HttpPost httpPost = null;
 				try {
-					httpPost = new HttpPost(receiverUri);
-					// invoke via Apache HttpClient request:
-					httpPost.setEntity(new StringEntity(message, "UTF-8"));
-					httpPost.setProtocolVersion(HttpVersion.HTTP_1_1);
-
-					// // Add token for HTTP handshake
-					httpPost.addHeader("X-Eve-Token", tokenstore.create()
-							.toString());
-					httpPost.addHeader("X-Eve-SenderUrl", senderUrl);
+					httpPost = createPost(receiverUri, message);
 					final HttpResponse webResp = ApacheHttpClient.get()
 							.execute(httpPost, HttpClientContext.create());
-					final HttpEntity entity = webResp.getEntity();
-					final String result = EntityUtils.toString(entity, "UTF-8");
-					EntityUtils.consumeQuietly(entity);
-					if (webResp.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-						LOG.warning("Received HTTP Error Status:"
-								+ webResp.getStatusLine().getStatusCode() + ":"
-								+ webResp.getStatusLine().getReasonPhrase());
-						LOG.warning(result);
-						// TODO: should we send back a JSONRPCException? (Which
-						// is not a known type at this point!)
-						if (exceptionCallback != null) {
-							exceptionCallback.onFailure(new Exception(
-									"Received HTTP Error Status:"
-											+ webResp.getStatusLine()
-													.getStatusCode()
-											+ ":"
-											+ webResp.getStatusLine()
-													.getReasonPhrase()));
-						}
-					} else {
-						ThreadPool.getPool().execute(new Runnable() {
-							public void run() {
-								handle.get().receive(result, receiverUri, null);
-							}
-						});
-					}
+					handleResponse(webResp, receiverUri, handle,
+							exceptionCallback);
 				} catch (final Exception e) {
 					LOG.log(Level.WARNING,
 							"HTTP roundtrip resulted in exception!", e);
@@ -161,6 +183,113 @@ public class HttpTransport extends AbstractTransport {
 		});
 	}
 
+	/**
+	 * Post the message through the non-blocking client: no thread waits for
+	 * the response, which is handed to the receiver from the ThreadPool.
+	 */
+	private <T> void postAsync(final URI receiverUri, final Object message,
+			final AsyncCallback<T> exceptionCallback) {
+		final Handler<Receiver> handle = super.getHandle();
+		final HttpPost httpPost = createPost(receiverUri, message);
+		ApacheHttpAsyncClient.get().execute(httpPost,
+				new FutureCallback<HttpResponse>() {
+					@Override
+					public void completed(final HttpResponse webResp) {
+						try {
+							handleResponse(webResp, receiverUri, handle,
+									exceptionCallback);
+						} catch (final IOException e) {
+							failed(e);
+						}
+					}
+
+					@Override
+					public void failed(final Exception e) {
+						LOG.log(Level.WARNING,
+								"HTTP roundtrip resulted in exception!", e);
+						if (exceptionCallback != null) {
+							exceptionCallback.onFailure(new IOException(
+									"HTTP roundtrip resulted in exception!", e));
+						}
+					}
+
+					@Override
+					public void cancelled() {
+						failed(new IOException("HTTP request cancelled"));
+					}
+				});
+	}
+
+	private HttpPost createPost(final URI receiverUri, final Object message) {
+		final HttpPost httpPost = new HttpPost(receiverUri);
+		// invoke via Apache HttpClient request:
+		if (message instanceof BinaryMessage) {
+			httpPost.setEntity(new ByteArrayEntity(BinaryFrame
+					.toBytes(BinaryFrame.encode((BinaryMessage) message)),
+					ContentType.create(BinaryFrame.CONTENTTYPE)));
+		} else {
+			httpPost.setEntity(new StringEntity((String) message, "UTF-8"));
+		}
+		httpPost.setProtocolVersion(HttpVersion.HTTP_1_1);
+
+		// // Add token for HTTP handshake
+		httpPost.addHeader("X-Eve-Token", tokenstore.create().toString());
+		httpPost.addHeader("X-Eve-SenderUrl", super.getAddress()
+				.toASCIIString());
+		// Signed token, verified by the receiver without a handshake.
+		if (signer != null) {
+			httpPost.addHeader("X-Eve-Signature", getSignature());
+		}
+		return httpPost;
+	}
+
+	/**
+	 * Gets the signed token of this transport. The same token is sent until
+	 * half of its lifetime has passed, so receivers find it in their cache of
+	 * verified tokens.
+	 *
+	 * @return the signed token
+	 */
+	private String getSignature() {
+		final long now = System.currentTimeMillis();
+		Signature current = signature;
+		if (current == null || current.renew <= now) {
+			// Racing senders may both sign, either token is fine.
+			current = new Signature(signer.sign(super.getAddress()
+					.toASCIIString()), now + signer.getLifetime() / 2);
+			signature = current;
+		}
+		return current.token;
+	}
+
+	private <T> void handleResponse(final HttpResponse webResp,
+			final URI receiverUri, final Handler<Receiver> handle,
+			final AsyncCallback<T> exceptionCallback) throws IOException {
+		final HttpEntity entity = webResp.getEntity();
+		final String result = EntityUtils.toString(entity, "UTF-8");
+		EntityUtils.consumeQuietly(entity);
+		if (webResp.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			LOG.warning("Received HTTP Error Status:"
+					+ webResp.getStatusLine().getStatusCode() + ":"
+					+ webResp.getStatusLine().getReasonPhrase());
+			LOG.warning(result);
+			// TODO: should we send back a JSONRPCException? (Which
+			// is not a known type at this point!)
+			if (exceptionCallback != null) {
+				exceptionCallback.onFailure(new Exception(
+						"Received HTTP Error Status:"
+								+ webResp.getStatusLine().getStatusCode() + ":"
+								+ webResp.getStatusLine().getReasonPhrase()));
+			}
+		} else {
+			ThreadPool.getPool().execute(new Runnable() {
+				public void run() {
+					handle.get().receive(result, receiverUri, null);
+				}
+			});
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.transport.Transport#send(java.net.URI, byte[],
@@ -177,20 +306,17 @@ public class HttpTransport extends AbstractTransport {
 	 * Receive.
 	 * 
 	 * @param body
-	 *            the body
+	 *            the body, a String or a {@link BinaryFrame}
 	 * @param senderUrl
 	 *            the sender url
 	 * @return the response string
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	public String receive(final String body, final URI senderUrl)
+	public String receive(final Object body, final URI senderUrl)
 			throws IOException {
-		final String tag = new UUID().toString();
 		final SyncCallback<String> callback = new SyncCallback<String>() {};
-		callbacks.put(tag, "inbound http call", callback);
-
-		super.getHandle().get().receive(body, senderUrl, tag);
+		receive(body, senderUrl, callback);
 		try {
 			return callback.get();
 		} catch (final Exception e) {
@@ -199,6 +325,24 @@ public class HttpTransport extends AbstractTransport {
 		}
 	}
 
+	/**
+	 * Receive, without waiting for the response: the callback gets the
+	 * response string once the receiver has replied.
+	 * 
+	 * @param body
+	 *            the body, a String, a JSON tree or a {@link BinaryFrame}
+	 * @param senderUrl
+	 *            the sender url
+	 * @param callback
+	 *            the callback
+	 */
+	public void receive(final Object body, final URI senderUrl,
+			final AsyncCallback<String> callback) {
+		final String tag = new UUID().toString();
+		callbacks.put(tag, "inbound http call", callback);
+		super.getHandle().get().receive(body, senderUrl, tag);
+	}
+
 	/**
 	 * Gets the tokenstore of this transport
 	 * 
@@ -237,4 +381,13 @@ public class HttpTransport extends AbstractTransport {
 		return protocols;
 	}
 
+	private static final class Signature {
+		private final String	token;
+		private final long		renew;
+
+		private Signature(final String token, final long renew) {
+			this.token = token;
+			this.renew = renew;
+		}
+	}
 }
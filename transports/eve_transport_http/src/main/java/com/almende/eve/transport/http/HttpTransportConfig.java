@@ -132,6 +132,217 @@ public class HttpTransportConfig extends TransportConfig {
 		return EveServlet.class.getName();
 	}
 
+	/**
+	 * Checks if outbound messages are sent through the non-blocking HTTP
+	 * client, instead of a blocking request in a thread per message.
+	 * (default: false)
+	 * 
+	 * @return true, if the async client is used
+	 */
+	public boolean isAsyncClient() {
+		if (this.has("asyncClient")) {
+			return this.get("asyncClient").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the use of the non-blocking HTTP client.
+	 * 
+	 * @param asyncClient
+	 *            the new async client
+	 */
+	public void setAsyncClient(final boolean asyncClient) {
+		this.put("asyncClient", asyncClient);
+	}
+
+	/**
+	 * Gets the maximum number of connections per peer of the non-blocking
+	 * HTTP client, further requests wait for a free connection. This is
+	 * shared by all services, which get the highest configured value.
+	 * (default: 20)
+	 * 
+	 * @return the max connections per peer
+	 */
+	public int getMaxConnectionsPerPeer() {
+		if (this.has("maxConnectionsPerPeer")) {
+			return this.get("maxConnectionsPerPeer").asInt();
+		}
+		return 20;
+	}
+
+	/**
+	 * Sets the maximum number of connections per peer.
+	 * 
+	 * @param maxConnectionsPerPeer
+	 *            the new max connections per peer
+	 */
+	public void setMaxConnectionsPerPeer(final int maxConnectionsPerPeer) {
+		this.put("maxConnectionsPerPeer", maxConnectionsPerPeer);
+	}
+
+	/**
+	 * Gets the maximum size in bytes of a request body accepted by the
+	 * AsyncEveServlet, larger requests are rejected with status 413.
+	 * (default: 10MB)
+	 * 
+	 * @return the max body size
+	 */
+	public int getMaxBodySize() {
+		if (this.has("maxBodySize")) {
+			return this.get("maxBodySize").asInt();
+		}
+		return 10 * 1024 * 1024;
+	}
+
+	/**
+	 * Sets the maximum size of a request body.
+	 * 
+	 * @param maxBodySize
+	 *            the new max body size
+	 */
+	public void setMaxBodySize(final int maxBodySize) {
+		this.put("maxBodySize", maxBodySize);
+	}
+
+	/**
+	 * Gets the shared node key for signed handshake tokens. Nodes that share
+	 * this key verify each other's senders locally, instead of through a
+	 * handshake request back to the sender. (default: null, no signed tokens)
+	 * 
+	 * @return the handshake key
+	 */
+	public String getHandshakeKey() {
+		if (this.has("handshakeKey")) {
+			return this.get("handshakeKey").asText();
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the shared node key for signed handshake tokens.
+	 * 
+	 * @param handshakeKey
+	 *            the new handshake key
+	 */
+	public void setHandshakeKey(final String handshakeKey) {
+		this.put("handshakeKey", handshakeKey);
+	}
+
+	/**
+	 * Gets the path of the JCEKS keystore holding the node key, used instead
+	 * of the handshakeKey. (default: null)
+	 * 
+	 * @return the handshake key store
+	 */
+	public String getHandshakeKeyStore() {
+		if (this.has("handshakeKeyStore")) {
+			return this.get("handshakeKeyStore").asText();
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the path of the keystore holding the node key.
+	 * 
+	 * @param handshakeKeyStore
+	 *            the new handshake key store
+	 */
+	public void setHandshakeKeyStore(final String handshakeKeyStore) {
+		this.put("handshakeKeyStore", handshakeKeyStore);
+	}
+
+	/**
+	 * Gets the password of the keystore and the node key.
+	 * 
+	 * @return the handshake key store password
+	 */
+	public String getHandshakeKeyStorePassword() {
+		if (this.has("handshakeKeyStorePassword")) {
+			return this.get("handshakeKeyStorePassword").asText();
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the password of the keystore and the node key.
+	 * 
+	 * @param handshakeKeyStorePassword
+	 *            the new handshake key store password
+	 */
+	public void setHandshakeKeyStorePassword(
+			final String handshakeKeyStorePassword) {
+		this.put("handshakeKeyStorePassword", handshakeKeyStorePassword);
+	}
+
+	/**
+	 * Gets the alias of the node key in the keystore. (default: "eve")
+	 * 
+	 * @return the handshake key alias
+	 */
+	public String getHandshakeKeyAlias() {
+		if (this.has("handshakeKeyAlias")) {
+			return this.get("handshakeKeyAlias").asText();
+		}
+		return "eve";
+	}
+
+	/**
+	 * Sets the alias of the node key in the keystore.
+	 * 
+	 * @param handshakeKeyAlias
+	 *            the new handshake key alias
+	 */
+	public void setHandshakeKeyAlias(final String handshakeKeyAlias) {
+		this.put("handshakeKeyAlias", handshakeKeyAlias);
+	}
+
+	/**
+	 * Gets the lifetime of signed handshake tokens, in milliseconds.
+	 * (default: 3600000)
+	 * 
+	 * @return the token lifetime
+	 */
+	public long getTokenLifetime() {
+		if (this.has("tokenLifetime")) {
+			return this.get("tokenLifetime").asLong();
+		}
+		return 3600000;
+	}
+
+	/**
+	 * Sets the lifetime of signed handshake tokens.
+	 * 
+	 * @param tokenLifetime
+	 *            the new token lifetime
+	 */
+	public void setTokenLifetime(final long tokenLifetime) {
+		this.put("tokenLifetime", tokenLifetime);
+	}
+
+	/**
+	 * Gets the maximum number of verified tokens to remember.
+	 * (default: 10000)
+	 * 
+	 * @return the token cache size
+	 */
+	public int getTokenCacheSize() {
+		if (this.has("tokenCacheSize")) {
+			return this.get("tokenCacheSize").asInt();
+		}
+		return 10000;
+	}
+
+	/**
+	 * Sets the maximum number of verified tokens to remember.
+	 * 
+	 * @param tokenCacheSize
+	 *            the new token cache size
+	 */
+	public void setTokenCacheSize(final int tokenCacheSize) {
+		this.put("tokenCacheSize", tokenCacheSize);
+	}
+
 	/**
 	 * Gets the do authentication. (Overriden to change the default to false)
 	 * 
@@ -0,0 +1,142 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ssl.SSLContextBuilder;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * The Class ApacheHttpAsyncClient, the non-blocking counterpart of
+ * {@link ApacheHttpClient}. A few I/O reactor threads handle all connections,
+ * no thread waits for a response. Connections are kept alive and reused, with
+ * a bounded number of connections per peer: requests beyond that wait in the
+ * pool until a connection comes free.
+ */
+public final class ApacheHttpAsyncClient {
+	private static final Logger							LOG				= Logger.getLogger(ApacheHttpAsyncClient.class
+																				.getCanonicalName());
+	private static CloseableHttpAsyncClient				httpClient		= null;
+	private static PoolingNHttpClientConnectionManager	connection		= null;
+	private static int									maxPerRoute		= 20;
+
+	private ApacheHttpAsyncClient() {}
+
+	private static void init() throws IOReactorException {
+		final IOReactorConfig reactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(ThreadPool.getNofCores())
+				.setConnectTimeout(20000).setSoTimeout(60000)
+				.setTcpNoDelay(true).build();
+		final DefaultConnectingIOReactor reactor = new DefaultConnectingIOReactor(
+				reactorConfig, ThreadPool.getFactory());
+		final RegistryBuilder<SchemeIOSessionStrategy> schemes = RegistryBuilder
+				.<SchemeIOSessionStrategy> create().register("http",
+						NoopIOSessionStrategy.INSTANCE);
+		// Allow self-signed SSL certificates, like ApacheHttpClient:
+		try {
+			final SSLContext sslContext = new SSLContextBuilder()
+					.loadTrustMaterial(null, new TrustStrategy() {
+
+						@Override
+						public boolean isTrusted(
+								java.security.cert.X509Certificate[] arg0,
+								String arg1)
+								throws java.security.cert.CertificateException {
+							return true;
+						}
+					}).build();
+			schemes.register("https", new SSLIOSessionStrategy(sslContext,
+					SSLIOSessionStrategy.ALLOW_ALL_HOSTNAME_VERIFIER));
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Couldn't init SSL strategy", e);
+		}
+		connection = new PoolingNHttpClientConnectionManager(reactor,
+				schemes.build());
+		connection.setDefaultMaxPerRoute(maxPerRoute);
+		connection.setMaxTotal(1000);
+
+		final HttpAsyncClientBuilder builder = HttpAsyncClients.custom();
+		builder.setConnectionManager(connection);
+		builder.setDefaultRequestConfig(RequestConfig.custom()
+				.setCookieSpec(CookieSpecs.BROWSER_COMPATIBILITY)
+				.setConnectTimeout(20000).build());
+
+		httpClient = builder.build();
+		httpClient.start();
+
+		// Provide eviction thread to clear out stale connections.
+		final Thread evictor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						synchronized (this) {
+							wait(5000);
+							connection.closeExpiredConnections();
+							connection.closeIdleConnections(30,
+									TimeUnit.SECONDS);
+						}
+					}
+				} catch (final InterruptedException ex) {}
+			}
+		});
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	/**
+	 * Gets the shared asynchronous client, starting it if needed.
+	 *
+	 * @return the default http async client
+	 */
+	public static synchronized CloseableHttpAsyncClient get() {
+		if (httpClient == null) {
+			try {
+				init();
+			} catch (final IOReactorException e) {
+				LOG.log(Level.SEVERE, "Couldn't start async HTTP client", e);
+			}
+		}
+		return httpClient;
+	}
+
+	/**
+	 * Raises the maximum number of connections per peer. The connection pool
+	 * is shared by all services, so a service asking for fewer connections
+	 * doesn't lower the limit of the others.
+	 *
+	 * @param max
+	 *            the max connections per peer this service needs
+	 */
+	public static synchronized void setMaxPerRoute(final int max) {
+		if (max <= maxPerRoute) {
+			return;
+		}
+		maxPerRoute = max;
+		if (connection != null) {
+			connection.setDefaultMaxPerRoute(max);
+		}
+	}
+}
@@ -98,6 +98,8 @@ public class JettyLauncher implements ServletLauncher {
 		}
 		LOG.info("Registering servlet:" + servletPath.getPath());
 		ServletHolder sh = new ServletHolder(servlet);
+		// Allows servlets like AsyncEveServlet to release the container thread.
+		sh.setAsyncSupported(true);
 
 		if (config.has("initParams")) {
 			ArrayNode params = (ArrayNode) config.get("initParams");
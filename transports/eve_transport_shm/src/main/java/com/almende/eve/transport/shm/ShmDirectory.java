@@ -0,0 +1,154 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.shm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The agent directory shared by the processes on a host: a properties file
+ * mapping agent ids to node names. Updates lock the file, so processes can
+ * register concurrently. Lookups are cached; the file is only read again
+ * for unknown agents. Agents moving to another node aren't noticed until
+ * their entry is dropped, which the node does when a send to them fails.
+ */
+final class ShmDirectory {
+	private static final String						FILENAME	= "agents";
+	private final File								file;
+	private final ConcurrentHashMap<String, String>	cache		= new ConcurrentHashMap<String, String>();
+
+	ShmDirectory(final File directory) {
+		file = new File(directory, FILENAME);
+	}
+
+	/**
+	 * Register an agent at the given node.
+	 *
+	 * @param id
+	 *            the agent id
+	 * @param node
+	 *            the node
+	 * @throws IOException
+	 *             Signals that the directory file couldn't be updated.
+	 */
+	void register(final String id, final String node) throws IOException {
+		update(id, node, true);
+		cache.put(id, node);
+	}
+
+	/**
+	 * Unregister an agent, if it's still registered at the given node.
+	 *
+	 * @param id
+	 *            the agent id
+	 * @param node
+	 *            the node
+	 * @throws IOException
+	 *             Signals that the directory file couldn't be updated.
+	 */
+	void unregister(final String id, final String node) throws IOException {
+		cache.remove(id, node);
+		update(id, node, false);
+	}
+
+	/**
+	 * Find the node of the given agent.
+	 *
+	 * @param id
+	 *            the agent id
+	 * @return the node, or null if the agent isn't registered.
+	 * @throws IOException
+	 *             Signals that the directory file couldn't be read.
+	 */
+	String lookup(final String id) throws IOException {
+		String node = cache.get(id);
+		if (node == null) {
+			final Properties agents = read();
+			for (final String name : agents.stringPropertyNames()) {
+				cache.put(name, agents.getProperty(name));
+			}
+			node = cache.get(id);
+		}
+		return node;
+	}
+
+	/**
+	 * Drop the cached entry of the given agent, e.g. when its node went away
+	 * or no longer hosts it. The next lookup reads the file again.
+	 *
+	 * @param id
+	 *            the agent id
+	 */
+	void forget(final String id) {
+		cache.remove(id);
+	}
+
+	private synchronized Properties read() throws IOException {
+		final Properties agents = new Properties();
+		if (!file.exists()) {
+			return agents;
+		}
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+			try {
+				agents.load(new ByteArrayInputStream(readAll(channel)));
+			} finally {
+				lock.release();
+			}
+		} finally {
+			raf.close();
+		}
+		return agents;
+	}
+
+	private synchronized void update(final String id, final String node,
+			final boolean register) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final FileLock lock = channel.lock();
+			try {
+				final Properties agents = new Properties();
+				agents.load(new ByteArrayInputStream(readAll(channel)));
+				if (register) {
+					agents.setProperty(id, node);
+				} else if (node.equals(agents.getProperty(id))) {
+					agents.remove(id);
+				} else {
+					return;
+				}
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				agents.store(out, "Eve shared memory agents");
+				channel.truncate(0);
+				channel.write(ByteBuffer.wrap(out.toByteArray()), 0);
+			} finally {
+				lock.release();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static byte[] readAll(final FileChannel channel)
+			throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, buffer.position()) < 0) {
+				break;
+			}
+		}
+		return buffer.array();
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+
+/**
+ * A lane: a single-producer, single-consumer ring buffer in a memory mapped
+ * file, carrying the messages from one node to another. The file starts with
+ * the tail (written by the producer) and the head (written by the consumer)
+ * on separate cache lines, followed by the ring. Each record is an int
+ * length followed by the frame:
+ * senderId|receiverId|kind|body, ids as an unsigned short length followed by
+ * UTF-8. Records are 8 byte aligned, a negative length pads the rest of the
+ * ring before wrapping around.
+ * <p>
+ * Handing over a message takes no system call: the producer writes the
+ * record and then publishes the new tail, the consumer reads up to the tail
+ * and then publishes the new head. A fence (a volatile write and read)
+ * between writing the data and publishing the position keeps the two in
+ * order on x86 with HotSpot, see {@link #fence()}; nodes refuse to start on
+ * other platforms, see {@link #checkPlatform()}. Within a process, producers
+ * serialize on the lane.
+ */
+final class ShmLane {
+	static final byte				TEXT		= 0;
+	static final byte				BYTES		= 1;
+	static final byte				BINARY		= 2;
+	static final Charset			UTF8		= Charset.forName("UTF-8");
+	private static final int		TAIL		= 0;
+	private static final int		HEAD		= 64;
+	private static final int		DATA		= 128;
+	private static final int		PADDING		= -1;
+	private static volatile int		fence		= 0;
+	private final File				file;
+	private final MappedByteBuffer	mapped;
+	private final ByteBuffer		out;
+	private final ByteBuffer		in;
+	private final int				capacity;
+	private final int				mask;
+
+	/**
+	 * Open the lane in the given file. The producer creates the file if
+	 * needed, fully sized before it appears under its name.
+	 *
+	 * @param file
+	 *            the file
+	 * @param size
+	 *            the ring size for a new lane, rounded up to a power of two;
+	 *            0 to only open an existing lane.
+	 * @throws IOException
+	 *             Signals that the file couldn't be created or mapped.
+	 */
+	ShmLane(final File file, final int size) throws IOException {
+		this.file = file;
+		if (size > 0 && !file.exists()) {
+			final int ring = Integer.highestOneBit(Math.max(size, 4096) - 1) << 1;
+			final File tmp = new File(file.getPath() + ".tmp");
+			final RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.setLength(DATA + ring);
+			} finally {
+				raf.close();
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Couldn't create lane " + file);
+			}
+		}
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			final long ring = raf.length() - DATA;
+			if (ring <= 0 || ring > Integer.MAX_VALUE / 2
+					|| Long.bitCount(ring) != 1) {
+				throw new IOException("Invalid lane file:" + file);
+			}
+			capacity = (int) ring;
+			mask = capacity - 1;
+			mapped = raf.getChannel().map(MapMode.READ_WRITE, 0,
+					DATA + capacity);
+		} finally {
+			raf.close();
+		}
+		out = mapped.duplicate();
+		in = mapped.duplicate();
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Keeps the data writes and reads on either side of the position update.
+	 * <p>
+	 * This is not a store-store barrier in terms of the Java memory model,
+	 * which says nothing about the order in which another process sees writes
+	 * to a mapped buffer. It relies on HotSpot not reordering the plain
+	 * buffer accesses across a volatile access, and on x86 not reordering
+	 * stores with other stores, or loads with other loads. On other platforms
+	 * or JVMs the consumer may see the new tail before the record, hence
+	 * {@link #checkPlatform()}.
+	 */
+	private static int fence() {
+		fence = 0;
+		return fence;
+	}
+
+	/**
+	 * Checks that this platform keeps the data and position updates in order,
+	 * see {@link #fence()}: an x86 processor and a HotSpot JVM.
+	 *
+	 * @throws IOException
+	 *             Signals that lanes can't be used on this platform.
+	 */
+	static void checkPlatform() throws IOException {
+		final String arch = System.getProperty("os.arch", "");
+		final String vm = System.getProperty("java.vm.name", "");
+		if (!arch.matches("x86|i[3-6]86|amd64|x86_64")
+				|| !(vm.contains("HotSpot") || vm.contains("OpenJDK"))) {
+			throw new IOException(
+					"The shm transport needs an x86 processor and a HotSpot JVM, "
+							+ "found " + arch + " and " + vm);
+		}
+	}
+
+	private static int align(final int length) {
+		return (length + 7) & ~7;
+	}
+
+	/**
+	 * Gets the size of the frame for the given ids and body.
+	 *
+	 * @param sender
+	 *            the sender
+	 * @param receiver
+	 *            the receiver
+	 * @param bodyLength
+	 *            the body length
+	 * @return the frame size
+	 * @throws IOException
+	 *             Signals that the message doesn't fit in this lane.
+	 */
+	int frameSize(final byte[] sender, final byte[] receiver,
+			final int bodyLength) throws IOException {
+		final int size = 2 + sender.length + 2 + receiver.length + 1
+				+ bodyLength;
+		if (align(4 + size) > capacity / 2) {
+			throw new IOException("Message too large for lane " + file + ":"
+					+ bodyLength);
+		}
+		return size;
+	}
+
+	/**
+	 * Write a message into the lane, if there's room.
+	 *
+	 * @param sender
+	 *            the sender id
+	 * @param receiver
+	 *            the receiver id
+	 * @param kind
+	 *            the kind of body
+	 * @param body
+	 *            the body
+	 * @return true, if written; false if the lane is full.
+	 * @throws IOException
+	 *             Signals that the message doesn't fit in this lane.
+	 */
+	synchronized boolean offer(final byte[] sender, final byte[] receiver,
+			final byte kind, final byte[] body) throws IOException {
+		final int size = frameSize(sender, receiver, body.length);
+		final int record = align(4 + size);
+		long tail = out.getLong(TAIL);
+		final long head = out.getLong(HEAD);
+		int index = (int) tail & mask;
+		final int toEnd = capacity - index;
+		final int needed = record <= toEnd ? record : record + toEnd;
+		if (capacity - (tail - head) < needed) {
+			return false;
+		}
+		if (record > toEnd) {
+			out.putInt(DATA + index, PADDING);
+			tail += toEnd;
+			index = 0;
+		}
+		((Buffer) out).position(DATA + index + 4);
+		out.putShort((short) sender.length).put(sender);
+		out.putShort((short) receiver.length).put(receiver);
+		out.put(kind).put(body);
+		out.putInt(DATA + index, size);
+		fence();
+		out.putLong(TAIL, tail + record);
+		return true;
+	}
+
+	/**
+	 * Read the messages available in the lane, on the node's reader thread.
+	 *
+	 * @param node
+	 *            the node to deliver to
+	 * @return the number of messages read
+	 * @throws IOException
+	 *             Signals that the lane holds a corrupt record.
+	 */
+	int poll(final ShmNode node) throws IOException {
+		long head = in.getLong(HEAD);
+		final long tail = in.getLong(TAIL);
+		if (head == tail) {
+			return 0;
+		}
+		fence();
+		int count = 0;
+		while (head < tail) {
+			final int index = (int) head & mask;
+			final int size = in.getInt(DATA + index);
+			if (size == PADDING) {
+				head += capacity - index;
+				continue;
+			}
+			if (size < 5 || index + 4 + size > capacity) {
+				throw new IOException("Corrupt record in lane " + file);
+			}
+			((Buffer) in).limit(DATA + index + 4 + size);
+			((Buffer) in).position(DATA + index + 4);
+			node.read(in);
+			((Buffer) in).limit(in.capacity());
+			head += align(4 + size);
+			count++;
+		}
+		fence();
+		in.putLong(HEAD, head);
+		return count;
+	}
+}
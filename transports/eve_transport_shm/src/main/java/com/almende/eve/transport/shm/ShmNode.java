@@ -0,0 +1,310 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.util.BinaryFrame;
+import com.almende.util.BinaryMessage;
+import com.almende.util.URIUtil;
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * A node: this process in a shared memory directory. It sends to other nodes
+ * through a lane per destination node and reads its incoming lanes on a
+ * single reader thread. Lane files are named "sender-receiver.lane", the
+ * reader looks for new incoming lanes every scan interval.
+ * <p>
+ * The reader spins for a while when there's nothing to read, then yields,
+ * then sleeps for increasingly long periods up to maxIdle. So a busy node
+ * picks up messages without delay, while an idle one doesn't burn a core.
+ */
+final class ShmNode implements Runnable {
+	private static final Logger								LOG				= Logger.getLogger(ShmNode.class
+																				.getName());
+	private static final long								SCANINTERVAL	= TimeUnit.MILLISECONDS
+																				.toNanos(100);
+	private static final int								SPINS			= 100;
+	private static final int								YIELDS			= 200;
+	private static final Map<String, ShmNode>				NODES			= new HashMap<String, ShmNode>();
+	private final String									name;
+	private final File										dir;
+	private final ShmDirectory								directory;
+	private final int										laneSize;
+	private final long										maxIdle;
+	private final long										sendTimeout;
+	private final ConcurrentHashMap<String, ShmTransport>	agents			= new ConcurrentHashMap<String, ShmTransport>();
+	private final ConcurrentHashMap<String, ShmLane>		lanes			= new ConcurrentHashMap<String, ShmLane>();
+
+	// Reader thread only
+	private final List<ShmLane>								incoming		= new ArrayList<ShmLane>();
+	private final Set<String>								known			= new HashSet<String>();
+	private final Map<String, URI>							senders			= new HashMap<String, URI>();
+	private byte[]											scratch			= new byte[256];
+
+	private ShmNode(final ShmTransportConfig config) throws IOException {
+		name = config.getNode();
+		if (!name.matches("[A-Za-z0-9_]+")) {
+			throw new IOException("Invalid shm node name:" + name);
+		}
+		dir = new File(config.getDirectory());
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Couldn't create shm directory:" + dir);
+		}
+		directory = new ShmDirectory(dir);
+		laneSize = config.getLaneSize();
+		maxIdle = TimeUnit.MICROSECONDS.toNanos(config.getMaxIdle());
+		sendTimeout = TimeUnit.MILLISECONDS.toNanos(config.getSendTimeout());
+		final Thread thread = new Thread(this, "eve-shm-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Gets the node for the directory and node name of the given config,
+	 * starting it if needed.
+	 *
+	 * @param config
+	 *            the config
+	 * @return the node
+	 * @throws IOException
+	 *             Signals that the directory couldn't be used, or that this
+	 *             platform doesn't support shm lanes.
+	 */
+	static synchronized ShmNode get(final ShmTransportConfig config)
+			throws IOException {
+		ShmLane.checkPlatform();
+		final String key = new File(config.getDirectory()).getCanonicalPath()
+				+ File.separator + config.getNode();
+		ShmNode node = NODES.get(key);
+		if (node == null) {
+			node = new ShmNode(config);
+			NODES.put(key, node);
+		}
+		return node;
+	}
+
+	void register(final String id, final ShmTransport transport)
+			throws IOException {
+		agents.put(id, transport);
+		directory.register(id, name);
+	}
+
+	void unregister(final String id, final ShmTransport transport) {
+		if (agents.remove(id, transport)) {
+			try {
+				directory.unregister(id, name);
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Couldn't unregister " + id, e);
+			}
+		}
+	}
+
+	/**
+	 * Send a message to the given agent.
+	 *
+	 * @param receiverId
+	 *            the receiver id
+	 * @param senderId
+	 *            the sender id
+	 * @param senderBytes
+	 *            the sender id, encoded
+	 * @param message
+	 *            the message
+	 * @throws IOException
+	 *             Signals that the receiver is unknown, the message too large
+	 *             or the lane stayed full for the send timeout.
+	 */
+	void send(final String receiverId, final String senderId,
+			final byte[] senderBytes, final Object message) throws IOException {
+		String target = directory.lookup(receiverId);
+		if (name.equals(target) && !agents.containsKey(receiverId)) {
+			// Stale entry, the agent left this node: read the directory again.
+			directory.forget(receiverId);
+			target = directory.lookup(receiverId);
+		}
+		if (target == null
+				|| (target.equals(name) && !agents.containsKey(receiverId))) {
+			directory.forget(receiverId);
+			throw new IOException("Unknown shm agent:" + receiverId);
+		}
+		if (target.equals(name)) {
+			deliver(receiverId, message, URIUtil.create("shm:" + senderId));
+			return;
+		}
+		final byte kind;
+		final byte[] body;
+		if (BinaryFrame.hasAttachments(message)) {
+			kind = ShmLane.BINARY;
+			body = BinaryFrame.toBytes(BinaryFrame
+					.encode((BinaryMessage) message));
+		} else if (message instanceof byte[]) {
+			kind = ShmLane.BYTES;
+			body = (byte[]) message;
+		} else {
+			kind = ShmLane.TEXT;
+			body = message.toString().getBytes(ShmLane.UTF8);
+		}
+		final byte[] receiverBytes = receiverId.getBytes(ShmLane.UTF8);
+		final ShmLane lane = getLane(target);
+		if (lane.offer(senderBytes, receiverBytes, kind, body)) {
+			return;
+		}
+		final long deadline = System.nanoTime() + sendTimeout;
+		while (!lane.offer(senderBytes, receiverBytes, kind, body)) {
+			if (System.nanoTime() - deadline > 0) {
+				// The agent may have moved, look it up again next time.
+				directory.forget(receiverId);
+				throw new IOException("Lane to node " + target
+						+ " stayed full, is it still running?");
+			}
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+		}
+	}
+
+	private ShmLane getLane(final String target) throws IOException {
+		ShmLane lane = lanes.get(target);
+		if (lane == null) {
+			synchronized (lanes) {
+				lane = lanes.get(target);
+				if (lane == null) {
+					lane = new ShmLane(new File(dir, name + "-" + target
+							+ ".lane"), laneSize);
+					lanes.put(target, lane);
+				}
+			}
+		}
+		return lane;
+	}
+
+	/**
+	 * Read a single frame, called by a lane on the reader thread.
+	 *
+	 * @param in
+	 *            the frame
+	 * @throws IOException
+	 *             Signals that the frame is corrupt.
+	 */
+	void read(final ByteBuffer in) throws IOException {
+		final String sender = readString(in, in.getShort() & 0xFFFF);
+		final String receiver = readString(in, in.getShort() & 0xFFFF);
+		final byte kind = in.get();
+		final Object message;
+		switch (kind) {
+			case ShmLane.TEXT:
+				message = readString(in, in.remaining());
+				break;
+			case ShmLane.BYTES:
+				final byte[] bytes = new byte[in.remaining()];
+				in.get(bytes);
+				message = bytes;
+				break;
+			case ShmLane.BINARY:
+				final byte[] frame = new byte[in.remaining()];
+				in.get(frame);
+				message = BinaryFrame.decode(ByteBuffer.wrap(frame));
+				break;
+			default:
+				throw new IOException("Unknown message kind:" + kind);
+		}
+		URI senderUrl = senders.get(sender);
+		if (senderUrl == null) {
+			senderUrl = URIUtil.create("shm:" + sender);
+			senders.put(sender, senderUrl);
+		}
+		deliver(receiver, message, senderUrl);
+	}
+
+	private String readString(final ByteBuffer in, final int length) {
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		in.get(scratch, 0, length);
+		return new String(scratch, 0, length, ShmLane.UTF8);
+	}
+
+	private void deliver(final String receiverId, final Object message,
+			final URI senderUrl) {
+		final ShmTransport transport = agents.get(receiverId);
+		if (transport == null) {
+			LOG.warning("Received message for unknown agent:" + receiverId
+					+ " from:" + senderUrl);
+			return;
+		}
+		ThreadPool.getPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				transport.getHandle().get().receive(message, senderUrl, null);
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		long lastScan = System.nanoTime() - SCANINTERVAL;
+		int idle = 0;
+		while (true) {
+			if (System.nanoTime() - lastScan >= SCANINTERVAL) {
+				scan();
+				lastScan = System.nanoTime();
+			}
+			int count = 0;
+			for (int i = 0; i < incoming.size(); i++) {
+				final ShmLane lane = incoming.get(i);
+				try {
+					count += lane.poll(this);
+				} catch (final IOException | RuntimeException e) {
+					LOG.log(Level.SEVERE, "Dropping lane " + lane.getFile(), e);
+					incoming.remove(i--);
+				}
+			}
+			if (count > 0) {
+				idle = 0;
+			} else if (++idle > YIELDS) {
+				LockSupport.parkNanos(Math.min(maxIdle,
+						1000L << Math.min(idle - YIELDS, 20)));
+			} else if (idle > SPINS) {
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * Look for new incoming lanes.
+	 */
+	private void scan() {
+		final String suffix = "-" + name + ".lane";
+		final File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (final File file : files) {
+			final String fileName = file.getName();
+			if (fileName.endsWith(suffix) && !known.contains(fileName)) {
+				try {
+					incoming.add(new ShmLane(file, 0));
+					known.add(fileName);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Couldn't open lane " + file, e);
+					known.add(fileName);
+				}
+			}
+		}
+	}
+}
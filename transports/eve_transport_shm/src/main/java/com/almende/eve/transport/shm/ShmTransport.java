@@ -0,0 +1,136 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.shm;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import com.almende.eve.capabilities.handler.Handler;
+import com.almende.eve.transport.AbstractTransport;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.TransportService;
+import com.almende.util.callback.AsyncCallback;
+
+/**
+ * The Class ShmTransport, exchanges messages between processes on the same
+ * host through memory mapped ring buffers. All agents of a process form a
+ * node; each pair of nodes communicates through two lanes, one per direction.
+ * A directory file maps the agent ids to their nodes.
+ * Addresses look like: "shm:agentId".
+ */
+public class ShmTransport extends AbstractTransport {
+	private final ShmNode		node;
+	private final String		id;
+	private final byte[]		idBytes;
+	private final List<String>	protocols	= Arrays.asList("shm");
+
+	/**
+	 * Instantiates a new shm transport.
+	 *
+	 * @param config
+	 *            the config
+	 * @param handle
+	 *            the handle
+	 * @param service
+	 *            the service
+	 * @throws IOException
+	 *             Signals that the shared memory directory couldn't be used.
+	 */
+	public ShmTransport(final ShmTransportConfig config,
+			final Handler<Receiver> handle, final TransportService service)
+			throws IOException {
+		super(config.getAddress(), handle, service, config);
+		node = ShmNode.get(config);
+		id = config.getId();
+		idBytes = id.getBytes(ShmLane.UTF8);
+		if (idBytes.length > 0xFFFF) {
+			throw new IOException("Id too long for a shm transport:" + id);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#send(java.net.URI,
+	 * java.lang.String, java.lang.String)
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final String message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		doSend(receiverUri, message);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#send(java.net.URI, byte[],
+	 * java.lang.String)
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final byte[] message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		doSend(receiverUri, message);
+	}
+
+	/**
+	 * Send a message, messages with attachments are sent as a binary frame.
+	 *
+	 * @param <T>
+	 *            the generic type
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @param message
+	 *            the message
+	 * @param tag
+	 *            the tag
+	 * @param callback
+	 *            the callback
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final Object message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		doSend(receiverUri, message);
+	}
+
+	private void doSend(final URI receiverUri, final Object message)
+			throws IOException {
+		if (sendLocal(receiverUri, message)) {
+			return;
+		}
+		node.send(receiverUri.getSchemeSpecificPart(), id, idBytes, message);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#connect()
+	 */
+	@Override
+	public void connect() throws IOException {
+		node.register(id, this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#disconnect()
+	 */
+	@Override
+	public void disconnect() {
+		node.unregister(id, this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#getProtocols()
+	 */
+	@Override
+	public List<String> getProtocols() {
+		return protocols;
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.shm;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+
+import com.almende.eve.transport.TransportConfig;
+import com.almende.util.URIUtil;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class ShmTransportConfig.
+ */
+public class ShmTransportConfig extends TransportConfig {
+	private static final String	BUILDER	= ShmTransportBuilder.class
+												.getName();
+
+	/**
+	 * Instantiates a new shared memory transport config.
+	 */
+	protected ShmTransportConfig() {
+		super();
+	}
+
+	/**
+	 * Instantiates a new shared memory transport config.
+	 *
+	 * @return the shared memory transport config
+	 */
+	public static ShmTransportConfig create() {
+		final ShmTransportConfig res = new ShmTransportConfig();
+		res.setBuilder(BUILDER);
+		return res;
+	}
+
+	/**
+	 * Instantiates a new shared memory transport config.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the shared memory transport config
+	 */
+	public static ShmTransportConfig decorate(final ObjectNode node) {
+		final ShmTransportConfig res = new ShmTransportConfig();
+		res.extend(node);
+		return res;
+	}
+
+	/**
+	 * Gets the address of the agent, "shm:" followed by the id.
+	 *
+	 * @return the address
+	 */
+	public URI getAddress() {
+		final String id = getId();
+		if (id != null) {
+			return URIUtil.create("shm:" + id);
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the id.
+	 *
+	 * @param id
+	 *            the new id
+	 */
+	public void setId(final String id) {
+		this.put("id", id);
+	}
+
+	/**
+	 * Gets the id.
+	 *
+	 * @return the id
+	 */
+	public String getId() {
+		if (this.has("id")) {
+			return this.get("id").asText();
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the directory holding the agent directory file and the lane files.
+	 * All processes that should reach each other use the same directory,
+	 * preferably on a memory backed filesystem like /dev/shm.
+	 *
+	 * @param directory
+	 *            the new directory
+	 */
+	public void setDirectory(final String directory) {
+		this.put("directory", directory);
+	}
+
+	/**
+	 * Gets the directory.
+	 *
+	 * @return the directory, defaults to "eve-shm" in the temp directory.
+	 */
+	public String getDirectory() {
+		if (this.has("directory")) {
+			return this.get("directory").asText();
+		}
+		return System.getProperty("java.io.tmpdir") + File.separator
+				+ "eve-shm";
+	}
+
+	/**
+	 * Sets the name of this process in the directory. It should be unique
+	 * among the processes sharing the directory and only contain letters,
+	 * digits and underscores.
+	 *
+	 * @param node
+	 *            the new node name
+	 */
+	public void setNode(final String node) {
+		this.put("node", node);
+	}
+
+	/**
+	 * Gets the name of this process in the directory.
+	 *
+	 * @return the node name, defaults to one based on the process id and host.
+	 */
+	public String getNode() {
+		if (this.has("node")) {
+			return this.get("node").asText();
+		}
+		return ManagementFactory.getRuntimeMXBean().getName()
+				.replaceAll("[^A-Za-z0-9_]", "_");
+	}
+
+	/**
+	 * Sets the size of the ring buffer of a lane, in bytes. It's rounded up
+	 * to a power of two, a single message can take at most half of it. Lanes
+	 * that already exist keep their size.
+	 *
+	 * @param laneSize
+	 *            the new lane size
+	 */
+	public void setLaneSize(final int laneSize) {
+		this.put("laneSize", laneSize);
+	}
+
+	/**
+	 * Gets the size of the ring buffer of a lane.
+	 *
+	 * @return the lane size, defaults to 1MB
+	 */
+	public int getLaneSize() {
+		if (this.has("laneSize")) {
+			return this.get("laneSize").asInt();
+		}
+		return 1024 * 1024;
+	}
+
+	/**
+	 * Sets the longest time the reader of an idle node sleeps between polls
+	 * of its lanes, in microseconds. This bounds the delay of a message that
+	 * arrives at an idle node, while a busy node doesn't sleep at all.
+	 *
+	 * @param maxIdle
+	 *            the new max idle time
+	 */
+	public void setMaxIdle(final int maxIdle) {
+		this.put("maxIdle", maxIdle);
+	}
+
+	/**
+	 * Gets the longest time the reader of an idle node sleeps, in
+	 * microseconds.
+	 *
+	 * @return the max idle time, defaults to 1000
+	 */
+	public int getMaxIdle() {
+		if (this.has("maxIdle")) {
+			return this.get("maxIdle").asInt();
+		}
+		return 1000;
+	}
+
+	/**
+	 * Sets how long sending waits for room in a full lane, in milliseconds.
+	 *
+	 * @param sendTimeout
+	 *            the new send timeout
+	 */
+	public void setSendTimeout(final int sendTimeout) {
+		this.put("sendTimeout", sendTimeout);
+	}
+
+	/**
+	 * Gets how long sending waits for room in a full lane.
+	 *
+	 * @return the send timeout, defaults to 10000
+	 */
+	public int getSendTimeout() {
+		if (this.has("sendTimeout")) {
+			return this.get("sendTimeout").asInt();
+		}
+		return 10000;
+	}
+}
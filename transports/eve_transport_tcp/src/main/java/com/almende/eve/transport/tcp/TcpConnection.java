@@ -0,0 +1,465 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.util.BinaryFrame;
+import com.almende.util.BinaryMessage;
+import com.almende.util.URIUtil;
+
+/**
+ * A connection between two nodes, used in both directions. Both sides start
+ * with a HELLO frame carrying their node address, after which either side may
+ * send DATA frames.
+ * <p>
+ * Outbound, small frames are written straight into a pooled direct buffer,
+ * so a burst of messages goes out in a single write. Larger bodies aren't
+ * copied: their header and body are queued as separate buffers and written
+ * together with a gathering write. All socket I/O happens on the node's
+ * selector thread, senders only queue frames.
+ */
+final class TcpConnection {
+	private static final Logger				LOG			= Logger.getLogger(TcpConnection.class
+																.getName());
+	private static final int				MAXGATHER	= 64;
+	private final TcpNode					node;
+	private final InetSocketAddress			remote;
+	private final Object					lock		= new Object();
+	private final ArrayDeque<Unit>			queue		= new ArrayDeque<Unit>();
+	private final ByteBuffer[]				gather		= new ByteBuffer[MAXGATHER];
+	private final Map<String, URI>			senders		= new HashMap<String, URI>();
+	private final ByteBuffer				directRead;
+	private volatile String					key;
+	private SocketChannel					channel;
+	private SelectionKey					selectionKey;
+	private ByteBuffer						readBuffer;
+	private byte[]							scratch		= new byte[256];
+	private String							peerBase	= null;
+
+	// Guarded by lock
+	private ByteBuffer						current		= null;
+	private int								coalesced	= 0;
+	private int								queued		= 0;
+	private boolean							connected	= false;
+	private boolean							writing		= false;
+	private boolean							closed		= false;
+
+	/**
+	 * A connection to the given peer, not yet open.
+	 */
+	TcpConnection(final TcpNode node, final String key,
+			final InetSocketAddress remote) {
+		this.node = node;
+		this.key = key;
+		this.remote = remote;
+		directRead = node.takeBuffer();
+		readBuffer = directRead;
+		queue.add(new Unit(TcpFrame.hello(node.getAddress().toString()), 0,
+				false));
+	}
+
+	/**
+	 * A connection accepted by the node.
+	 */
+	TcpConnection(final TcpNode node, final SocketChannel channel) {
+		this(node, null, null);
+		this.channel = channel;
+		connected = true;
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	void setKey(final String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Open the connection, on the selector thread.
+	 */
+	void open() {
+		node.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (channel == null) {
+						channel = SocketChannel.open();
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true);
+						channel.socket().setKeepAlive(true);
+						if (channel.connect(remote)) {
+							selectionKey = node.register(channel,
+									SelectionKey.OP_READ,
+									TcpConnection.this);
+							finishConnect();
+						} else {
+							selectionKey = node.register(channel,
+									SelectionKey.OP_CONNECT,
+									TcpConnection.this);
+						}
+					} else {
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true);
+						channel.socket().setKeepAlive(true);
+						selectionKey = node.register(channel,
+								SelectionKey.OP_READ, TcpConnection.this);
+						synchronized (lock) {
+							writing = true;
+						}
+						flush();
+					}
+				} catch (final IOException | CancelledKeyException e) {
+					close(e);
+				}
+			}
+		});
+	}
+
+	void finishConnect() throws IOException {
+		if (!channel.finishConnect()) {
+			return;
+		}
+		selectionKey.interestOps(SelectionKey.OP_READ);
+		synchronized (lock) {
+			connected = true;
+			writing = true;
+		}
+		flush();
+	}
+
+	/**
+	 * Queue a message for sending.
+	 *
+	 * @param sender
+	 *            the sender id
+	 * @param receiver
+	 *            the receiver id
+	 * @param message
+	 *            the message: a String, a byte[] or a message with attachments
+	 * @return false if the connection was closed, the message isn't sent.
+	 * @throws IOException
+	 *             Signals that the message is too large or the send queue is
+	 *             full.
+	 */
+	boolean send(final byte[] sender, final byte[] receiver,
+			final Object message) throws IOException {
+		final byte kind;
+		final ByteBuffer body;
+		if (BinaryFrame.hasAttachments(message)) {
+			kind = TcpFrame.BINARY;
+			body = BinaryFrame.encode((BinaryMessage) message);
+		} else if (message instanceof byte[]) {
+			kind = TcpFrame.BYTES;
+			body = ByteBuffer.wrap((byte[]) message);
+		} else {
+			kind = TcpFrame.TEXT;
+			body = ByteBuffer.wrap(message.toString().getBytes(TcpFrame.UTF8));
+		}
+		final int header = TcpFrame.headerSize(sender, receiver);
+		final int size = header + body.remaining();
+		if (size - 4 > TcpFrame.MAXLENGTH) {
+			throw new IOException("Message too large for a tcp frame:" + size);
+		}
+		boolean schedule = false;
+		synchronized (lock) {
+			if (closed) {
+				return false;
+			}
+			if (queued >= node.getMaxQueued()) {
+				throw new IOException("Send queue to " + key + " is full ("
+						+ queued + " messages)");
+			}
+			if (size <= node.getBufferSize() / 4) {
+				if (current == null || current.remaining() < size) {
+					seal();
+					current = node.takeBuffer();
+				}
+				TcpFrame.putHeader(current, sender, receiver, kind,
+						body.remaining());
+				current.put(body);
+				coalesced++;
+			} else {
+				seal();
+				final ByteBuffer head = ByteBuffer.allocate(header);
+				TcpFrame.putHeader(head, sender, receiver, kind,
+						body.remaining());
+				((Buffer) head).flip();
+				queue.add(new Unit(new ByteBuffer[] { head, body }, 1, false));
+			}
+			queued++;
+			if (connected && !writing) {
+				writing = true;
+				schedule = true;
+			}
+		}
+		if (schedule) {
+			node.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (final IOException | CancelledKeyException e) {
+						close(e);
+					}
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Move the current coalescing buffer to the queue, if it holds data.
+	 */
+	private void seal() {
+		if (current != null && current.position() > 0) {
+			((Buffer) current).flip();
+			queue.add(new Unit(current, coalesced, true));
+			current = null;
+			coalesced = 0;
+		}
+	}
+
+	/**
+	 * Write as much of the queue as the socket takes, on the selector thread.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void flush() throws IOException {
+		while (true) {
+			int count = 0;
+			synchronized (lock) {
+				if (closed) {
+					return;
+				}
+				seal();
+				final Iterator<Unit> units = queue.iterator();
+				while (units.hasNext() && count < MAXGATHER) {
+					for (final ByteBuffer buffer : units.next().buffers) {
+						if (count < MAXGATHER && buffer.hasRemaining()) {
+							gather[count++] = buffer;
+						}
+					}
+				}
+				if (count == 0) {
+					writing = false;
+					selectionKey.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+			}
+			channel.write(gather, 0, count);
+			final boolean full = gather[count - 1].hasRemaining();
+			for (int i = 0; i < count; i++) {
+				gather[i] = null;
+			}
+			synchronized (lock) {
+				while (!queue.isEmpty() && queue.peek().isDone()) {
+					final Unit unit = queue.poll();
+					queued -= unit.messages;
+					if (unit.pooled) {
+						node.releaseBuffer(unit.buffers[0]);
+					}
+				}
+			}
+			if (full) {
+				// Socket buffer is full, continue when it's writable.
+				selectionKey.interestOps(SelectionKey.OP_READ
+						| SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Read what is available and deliver the complete frames, on the selector
+	 * thread.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void read() throws IOException {
+		if (channel.read(readBuffer) < 0) {
+			close(null);
+			return;
+		}
+		((Buffer) readBuffer).flip();
+		while (readBuffer.remaining() >= 4) {
+			final int length = readBuffer.getInt(readBuffer.position());
+			if (length < 1 || length > TcpFrame.MAXLENGTH) {
+				throw new IOException("Invalid frame length:" + length);
+			}
+			if (readBuffer.remaining() < 4 + length) {
+				if (4 + length > readBuffer.capacity()) {
+					// Larger than the read buffer, grow temporarily.
+					final ByteBuffer larger = ByteBuffer.allocate(4 + length);
+					larger.put(readBuffer);
+					readBuffer = larger;
+					return;
+				}
+				break;
+			}
+			final int end = readBuffer.position() + 4 + length;
+			((Buffer) readBuffer).position(readBuffer.position() + 4);
+			parse(readBuffer, end);
+			((Buffer) readBuffer).position(end);
+		}
+		readBuffer.compact();
+		if (readBuffer != directRead
+				&& readBuffer.position() <= directRead.capacity()) {
+			((Buffer) readBuffer).flip();
+			((Buffer) directRead).clear();
+			directRead.put(readBuffer);
+			readBuffer = directRead;
+		}
+	}
+
+	private void parse(final ByteBuffer in, final int end) throws IOException {
+		final byte type = in.get();
+		if (type == TcpFrame.HELLO) {
+			final URI peer = URIUtil.create(readString(in, in.getShort() & 0xFFFF));
+			peerBase = "eve+tcp://" + peer.getHost() + ":" + peer.getPort()
+					+ "/";
+			node.hello(this, peer);
+			return;
+		}
+		if (type != TcpFrame.DATA) {
+			throw new IOException("Unknown frame type:" + type);
+		}
+		if (peerBase == null) {
+			throw new IOException("Data received before hello");
+		}
+		final String sender = readString(in, in.getShort() & 0xFFFF);
+		final String receiver = readString(in, in.getShort() & 0xFFFF);
+		final byte kind = in.get();
+		final int length = end - in.position();
+		final Object message;
+		switch (kind) {
+			case TcpFrame.TEXT:
+				message = readString(in, length);
+				break;
+			case TcpFrame.BYTES:
+				final byte[] bytes = new byte[length];
+				in.get(bytes);
+				message = bytes;
+				break;
+			case TcpFrame.BINARY:
+				final byte[] frame = new byte[length];
+				in.get(frame);
+				message = BinaryFrame.decode(ByteBuffer.wrap(frame));
+				break;
+			default:
+				throw new IOException("Unknown message kind:" + kind);
+		}
+		URI senderUrl = senders.get(sender);
+		if (senderUrl == null) {
+			senderUrl = URIUtil.create(peerBase + sender);
+			senders.put(sender, senderUrl);
+		}
+		node.deliver(receiver, message, senderUrl);
+	}
+
+	private String readString(final ByteBuffer in, final int length) {
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		in.get(scratch, 0, length);
+		return new String(scratch, 0, length, TcpFrame.UTF8);
+	}
+
+	/**
+	 * Drop a connection that was never opened, returning its read buffer to
+	 * the pool.
+	 */
+	void discard() {
+		node.releaseBuffer(directRead);
+	}
+
+	/**
+	 * Close the connection, messages still queued are lost.
+	 *
+	 * @param cause
+	 *            the cause, null if the peer closed the connection.
+	 */
+	void close(final Exception cause) {
+		int lost;
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			lost = queued;
+			if (current != null) {
+				node.releaseBuffer(current);
+				current = null;
+			}
+			for (final Unit unit : queue) {
+				if (unit.pooled) {
+					node.releaseBuffer(unit.buffers[0]);
+				}
+			}
+			queue.clear();
+		}
+		node.closed(this);
+		if (selectionKey != null) {
+			selectionKey.cancel();
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (final IOException e) {
+				LOG.log(Level.FINE, "Couldn't close tcp connection", e);
+			}
+		}
+		node.releaseBuffer(directRead);
+		readBuffer = null;
+		if (cause != null) {
+			LOG.log(Level.WARNING, "Connection to " + key + " failed", cause);
+		}
+		if (lost > 0) {
+			LOG.warning("Connection to " + key + " closed, lost " + lost
+					+ " messages.");
+		}
+	}
+
+	/**
+	 * A queued unit of buffers, written as a whole.
+	 */
+	private static final class Unit {
+		private final ByteBuffer[]	buffers;
+		private final int			messages;
+		private final boolean		pooled;
+
+		private Unit(final ByteBuffer buffer, final int messages,
+				final boolean pooled) {
+			this(new ByteBuffer[] { buffer }, messages, pooled);
+		}
+
+		private Unit(final ByteBuffer[] buffers, final int messages,
+				final boolean pooled) {
+			this.buffers = buffers;
+			this.messages = messages;
+			this.pooled = pooled;
+		}
+
+		private boolean isDone() {
+			return !buffers[buffers.length - 1].hasRemaining();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.tcp;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The frames sent over a tcp connection. Each frame is an int length,
+ * followed by a type byte and the type's fields:
+ * HELLO|address: the first frame in each direction, the node's address.
+ * DATA|senderId|receiverId|kind|body: a message between two agents.
+ * Ids are an unsigned short length followed by UTF-8, the body takes the
+ * rest of the frame.
+ */
+final class TcpFrame {
+	static final byte				HELLO		= 1;
+	static final byte				DATA		= 2;
+
+	static final byte				TEXT		= 0;
+	static final byte				BYTES		= 1;
+	static final byte				BINARY		= 2;
+	static final int				MAXLENGTH	= 256 * 1024 * 1024;
+	static final Charset			UTF8		= Charset.forName("UTF-8");
+
+	private TcpFrame() {}
+
+	static byte[] getBytes(final String value) {
+		final byte[] result = value.getBytes(UTF8);
+		if (result.length > 0xFFFF) {
+			throw new IllegalArgumentException("Id too long for a frame");
+		}
+		return result;
+	}
+
+	static ByteBuffer hello(final String address) {
+		final byte[] addr = getBytes(address);
+		final ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 2 + addr.length);
+		frame.putInt(1 + 2 + addr.length).put(HELLO);
+		frame.putShort((short) addr.length).put(addr);
+		((Buffer) frame).flip();
+		return frame;
+	}
+
+	/**
+	 * Gets the size of the header of a DATA frame, including the length.
+	 *
+	 * @param sender
+	 *            the sender id
+	 * @param receiver
+	 *            the receiver id
+	 * @return the header size
+	 */
+	static int headerSize(final byte[] sender, final byte[] receiver) {
+		return 4 + 1 + 2 + sender.length + 2 + receiver.length + 1;
+	}
+
+	static void putHeader(final ByteBuffer out, final byte[] sender,
+			final byte[] receiver, final byte kind, final int bodyLength) {
+		out.putInt(headerSize(sender, receiver) - 4 + bodyLength);
+		out.put(DATA);
+		out.putShort((short) sender.length).put(sender);
+		out.putShort((short) receiver.length).put(receiver);
+		out.put(kind);
+	}
+}
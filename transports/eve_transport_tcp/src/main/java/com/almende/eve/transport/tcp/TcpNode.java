@@ -0,0 +1,285 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.util.URIUtil;
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * A node: the listening socket shared by all tcp agents with the same host and
+ * port, together with the node's connections to its peers. A single selector
+ * thread accepts, connects, reads and writes for all of them; other threads
+ * only hand it tasks. Small outbound messages are coalesced into pooled
+ * direct buffers, see {@link TcpConnection}.
+ */
+final class TcpNode implements Runnable {
+	private static final Logger									LOG			= Logger.getLogger(TcpNode.class
+																					.getName());
+	private static final int									MAXPOOLED	= 64;
+	private static final ConcurrentHashMap<String, TcpNode>		NODES		= new ConcurrentHashMap<String, TcpNode>();
+	private final URI											address;
+	private final int											bufferSize;
+	private final int											maxQueued;
+	private final Selector										selector;
+	private final ServerSocketChannel							server;
+	private final ConcurrentLinkedQueue<Runnable>				tasks		= new ConcurrentLinkedQueue<Runnable>();
+	private final ConcurrentHashMap<String, TcpTransport>		agents		= new ConcurrentHashMap<String, TcpTransport>();
+	private final ConcurrentHashMap<String, TcpConnection>		peers		= new ConcurrentHashMap<String, TcpConnection>();
+	private final ConcurrentLinkedQueue<ByteBuffer>				pool		= new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger									pooled		= new AtomicInteger(0);
+
+	private TcpNode(final URI address, final TcpTransportConfig config)
+			throws IOException {
+		this.address = address;
+		bufferSize = Math.max(1024, config.getBufferSize());
+		maxQueued = config.getMaxQueued();
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.bind(new InetSocketAddress(address.getHost(), address.getPort()));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		final Thread thread = new Thread(this, "eve+tcp-" + address.getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Gets the node listening at the host and port of the given address,
+	 * starting it if needed.
+	 *
+	 * @param address
+	 *            the address
+	 * @param config
+	 *            the config
+	 * @return the node
+	 * @throws IOException
+	 *             Signals that the node couldn't listen at the address.
+	 */
+	static synchronized TcpNode get(final URI address,
+			final TcpTransportConfig config) throws IOException {
+		final String key = address.getHost() + ":" + address.getPort();
+		TcpNode node = NODES.get(key);
+		if (node == null) {
+			node = new TcpNode(URIUtil.create("eve+tcp://" + key + "/"),
+					config);
+			NODES.put(key, node);
+		}
+		return node;
+	}
+
+	URI getAddress() {
+		return address;
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	int getMaxQueued() {
+		return maxQueued;
+	}
+
+	void register(final String id, final TcpTransport transport) {
+		agents.put(id, transport);
+	}
+
+	void unregister(final String id, final TcpTransport transport) {
+		agents.remove(id, transport);
+	}
+
+	/**
+	 * Take a direct buffer of bufferSize from the pool.
+	 *
+	 * @return the buffer, cleared
+	 */
+	ByteBuffer takeBuffer() {
+		final ByteBuffer buffer = pool.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		return buffer;
+	}
+
+	void releaseBuffer(final ByteBuffer buffer) {
+		if (pooled.incrementAndGet() <= MAXPOOLED) {
+			((Buffer) buffer).clear();
+			pool.offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Run the given task on the selector thread.
+	 *
+	 * @param task
+	 *            the task
+	 */
+	void execute(final Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	SelectionKey register(final SocketChannel channel, final int ops,
+			final TcpConnection connection) throws IOException {
+		return channel.register(selector, ops, connection);
+	}
+
+	/**
+	 * Send a message to an agent at a peer node.
+	 *
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @param senderId
+	 *            the sender id
+	 * @param message
+	 *            the message
+	 * @throws IOException
+	 *             Signals that the message couldn't be queued for sending.
+	 */
+	void send(final URI receiverUri, final byte[] senderId,
+			final Object message) throws IOException {
+		final String host = receiverUri.getHost();
+		final int port = receiverUri.getPort();
+		if (host == null || port < 0) {
+			throw new IOException("Invalid eve+tcp address:" + receiverUri);
+		}
+		final byte[] receiverId = TcpFrame.getBytes(receiverUri.getPath()
+				.replaceFirst("^/", ""));
+		final String key = host + ":" + port;
+		while (true) {
+			TcpConnection connection = peers.get(key);
+			if (connection == null) {
+				connection = new TcpConnection(this, key,
+						new InetSocketAddress(host, port));
+				final TcpConnection existing = peers.putIfAbsent(key,
+						connection);
+				if (existing != null) {
+					// Another thread connected first.
+					connection.discard();
+					connection = existing;
+				} else {
+					connection.open();
+				}
+			}
+			if (connection.send(senderId, receiverId, message)) {
+				return;
+			}
+			// Closed in the meantime, start a new connection.
+			peers.remove(key, connection);
+		}
+	}
+
+	/**
+	 * The peer at the other end of the given connection introduced itself,
+	 * messages to that peer can use an accepted connection as well.
+	 */
+	void hello(final TcpConnection connection, final URI peer) {
+		if (connection.getKey() == null) {
+			final String key = peer.getHost() + ":" + peer.getPort();
+			connection.setKey(key);
+			peers.putIfAbsent(key, connection);
+		}
+	}
+
+	void closed(final TcpConnection connection) {
+		final String key = connection.getKey();
+		if (key != null) {
+			peers.remove(key, connection);
+		}
+	}
+
+	void deliver(final String receiverId, final Object message,
+			final URI senderUrl) {
+		final TcpTransport transport = agents.get(receiverId);
+		if (transport == null) {
+			LOG.warning("Received message for unknown agent:" + receiverId
+					+ " from:" + senderUrl);
+			return;
+		}
+		ThreadPool.getPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				transport.getHandle().get().receive(message, senderUrl, null);
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				final Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isAcceptable()) {
+						accept();
+					} else {
+						handle(key);
+					}
+				}
+			} catch (final ClosedSelectorException e) {
+				return;
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Selector failed on " + address, e);
+			}
+		}
+	}
+
+	private void accept() {
+		try {
+			final SocketChannel channel = server.accept();
+			if (channel != null) {
+				new TcpConnection(this, channel).open();
+			}
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Couldn't accept tcp connection", e);
+		}
+	}
+
+	private void handle(final SelectionKey key) {
+		final TcpConnection connection = (TcpConnection) key.attachment();
+		try {
+			if (key.isValid() && key.isConnectable()) {
+				connection.finishConnect();
+			}
+			if (key.isValid() && key.isReadable()) {
+				connection.read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				connection.flush();
+			}
+		} catch (final IOException | CancelledKeyException e) {
+			connection.close(e);
+		}
+	}
+}
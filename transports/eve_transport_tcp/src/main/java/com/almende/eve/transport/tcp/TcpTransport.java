@@ -0,0 +1,135 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.tcp;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import com.almende.eve.capabilities.handler.Handler;
+import com.almende.eve.transport.AbstractTransport;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.TransportService;
+import com.almende.util.callback.AsyncCallback;
+
+/**
+ * The Class TcpTransport, a lightweight transport over plain TCP. All agents
+ * that share the host and port of their address form a node, served by a
+ * single selector thread. Messages between two nodes share one connection,
+ * as length-prefixed binary frames with the sender and receiver ids.
+ * Unlike the channel transport, messages aren't acknowledged: messages still
+ * queued when a connection drops are lost.
+ * Addresses look like: "eve+tcp://host:port/agentId".
+ */
+public class TcpTransport extends AbstractTransport {
+	private final TcpNode		node;
+	private final String		id;
+	private final byte[]		idBytes;
+	private final List<String>	protocols	= Arrays.asList("eve+tcp");
+
+	/**
+	 * Instantiates a new tcp transport.
+	 *
+	 * @param config
+	 *            the config
+	 * @param handle
+	 *            the handle
+	 * @param service
+	 *            the service
+	 * @throws IOException
+	 *             Signals that the node couldn't listen at the address.
+	 */
+	public TcpTransport(final TcpTransportConfig config,
+			final Handler<Receiver> handle, final TransportService service)
+			throws IOException {
+		super(config.getAddress(), handle, service, config);
+		node = TcpNode.get(config.getAddress(), config);
+		id = config.getId();
+		idBytes = TcpFrame.getBytes(id);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#send(java.net.URI,
+	 * java.lang.String, java.lang.String)
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final String message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		doSend(receiverUri, message);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#send(java.net.URI, byte[],
+	 * java.lang.String)
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final byte[] message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		doSend(receiverUri, message);
+	}
+
+	/**
+	 * Send a message, messages with attachments are sent as a binary frame.
+	 *
+	 * @param <T>
+	 *            the generic type
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @param message
+	 *            the message
+	 * @param tag
+	 *            the tag
+	 * @param callback
+	 *            the callback
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final Object message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		doSend(receiverUri, message);
+	}
+
+	private void doSend(final URI receiverUri, final Object message)
+			throws IOException {
+		if (sendLocal(receiverUri, message)) {
+			return;
+		}
+		node.send(receiverUri, idBytes, message);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#connect()
+	 */
+	@Override
+	public void connect() throws IOException {
+		node.register(id, this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#disconnect()
+	 */
+	@Override
+	public void disconnect() {
+		node.unregister(id, this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#getProtocols()
+	 */
+	@Override
+	public List<String> getProtocols() {
+		return protocols;
+	}
+}
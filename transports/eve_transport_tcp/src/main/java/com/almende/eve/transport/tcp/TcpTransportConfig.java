@@ -0,0 +1,154 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.tcp;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.logging.Logger;
+
+import com.almende.eve.transport.TransportConfig;
+import com.almende.util.URIUtil;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TcpTransportConfig.
+ */
+public class TcpTransportConfig extends TransportConfig {
+	private static final Logger	LOG		= Logger.getLogger(TcpTransportConfig.class
+												.getName());
+	private static final String	BUILDER	= TcpTransportBuilder.class
+												.getName();
+
+	/**
+	 * Instantiates a new tcp transport config.
+	 */
+	protected TcpTransportConfig() {
+		super();
+	}
+
+	/**
+	 * Instantiates a new tcp transport config.
+	 *
+	 * @return the tcp transport config
+	 */
+	public static TcpTransportConfig create() {
+		final TcpTransportConfig res = new TcpTransportConfig();
+		res.setBuilder(BUILDER);
+		return res;
+	}
+
+	/**
+	 * Instantiates a new tcp transport config.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the tcp transport config
+	 */
+	public static TcpTransportConfig decorate(final ObjectNode node) {
+		final TcpTransportConfig res = new TcpTransportConfig();
+		res.extend(node);
+		return res;
+	}
+
+	/**
+	 * Gets the address of the agent: the address of the node, followed by the
+	 * id.
+	 *
+	 * @return the address
+	 */
+	public URI getAddress() {
+		if (this.has("address")) {
+			try {
+				return URIUtil.parse(this.get("address").asText()
+						+ (getId() != null ? getId() : ""));
+			} catch (final URISyntaxException e) {
+				LOG.warning("Couldn't parse URI from: "
+						+ this.get("address").asText());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the address of the node, e.g. "eve+tcp://127.0.0.1:5800/". All
+	 * agents with the same host and port share the node's listening socket
+	 * and connections.
+	 *
+	 * @param address
+	 *            the new address
+	 */
+	public void setAddress(final String address) {
+		this.put("address", address);
+	}
+
+	/**
+	 * Sets the id.
+	 *
+	 * @param id
+	 *            the new id
+	 */
+	public void setId(final String id) {
+		this.put("id", id);
+	}
+
+	/**
+	 * Gets the id.
+	 *
+	 * @return the id
+	 */
+	public String getId() {
+		if (this.has("id")) {
+			return this.get("id").asText();
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the size of the direct buffers used for reading and for
+	 * coalescing small outbound messages, in bytes.
+	 *
+	 * @param bufferSize
+	 *            the new buffer size
+	 */
+	public void setBufferSize(final int bufferSize) {
+		this.put("bufferSize", bufferSize);
+	}
+
+	/**
+	 * Gets the size of the direct buffers.
+	 *
+	 * @return the buffer size, defaults to 65536
+	 */
+	public int getBufferSize() {
+		if (this.has("bufferSize")) {
+			return this.get("bufferSize").asInt();
+		}
+		return 65536;
+	}
+
+	/**
+	 * Sets the maximum number of messages waiting to be written to a single
+	 * peer node. Beyond this limit sending fails right away.
+	 *
+	 * @param maxQueued
+	 *            the new max queued
+	 */
+	public void setMaxQueued(final int maxQueued) {
+		this.put("maxQueued", maxQueued);
+	}
+
+	/**
+	 * Gets the maximum number of messages waiting to be written to a single
+	 * peer node.
+	 *
+	 * @return the max queued, defaults to 10000
+	 */
+	public int getMaxQueued() {
+		if (this.has("maxQueued")) {
+			return this.get("maxQueued").asInt();
+		}
+		return 10000;
+	}
+}
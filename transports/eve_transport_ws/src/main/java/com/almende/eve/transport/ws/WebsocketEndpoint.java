@@ -8,9 +8,16 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,13 +28,32 @@ import javax.websocket.MessageHandler;
 import javax.websocket.RemoteEndpoint;
 import javax.websocket.Session;
 
+import com.almende.eve.transport.AbstractTransport;
+import com.almende.util.BinaryFrame;
+import com.almende.util.threads.ReadWriteExecutor;
+import com.almende.util.threads.ThreadPool;
+
 /**
- * The Class WebsocketEndpoint.
+ * The Class WebsocketEndpoint, one instance per session. Received messages
+ * are handled on the shared pool, one at a time and in order of arrival per
+ * sending and receiving agent. JSON-RPC responses skip that queue: they are
+ * handed to the receiver right away, so a handler that waits for a response
+ * from its peer doesn't block that response. At most maxQueued messages wait
+ * per session: beyond that, the container's thread waits as well, which
+ * stops reading from the session until the receiver catches up.
+ * Sessions opened with "?mux=true" are multiplexed: they carry messages of
+ * many client agents, to any server agent on this host, see {@link WsMux}.
  */
 public class WebsocketEndpoint extends Endpoint {
-	private static final Logger	LOG			= Logger.getLogger(WebsocketEndpoint.class
-													.getName());
-	private WebsocketTransport	transport	= null;
+	private static final Logger									LOG			= Logger.getLogger(WebsocketEndpoint.class
+																					.getName());
+	private static final Charset								UTF8		= Charset.forName("UTF-8");
+	private WebsocketTransport									transport	= null;
+	private final ConcurrentHashMap<String, ReadWriteExecutor>	serials		= new ConcurrentHashMap<String, ReadWriteExecutor>();
+	private Semaphore											queued		= null;
+	private WsSender											muxSender	= null;
+	private final Set<WsServerTransport>						routed		= Collections
+																			.newSetFromMap(new ConcurrentHashMap<WsServerTransport, Boolean>());
 	
 	/*
 	 * (non-Javadoc)
@@ -40,50 +66,177 @@ public class WebsocketEndpoint extends Endpoint {
 		final RemoteEndpoint.Async remote = session.getAsyncRemote();
 		final URI address = (URI) config.getUserProperties().get("address");
 		transport = WebsocketTransportBuilder.get(address);
+		queued = new Semaphore(Math.max(1, WebsocketTransportConfig.decorate(
+				transport.getParams()).getMaxQueued()));
 		
 		Map<String, List<String>> queryparms = session.getRequestParameterMap();
 		String remoteId = null;
+		boolean mux = false;
 		for (final Entry<String, List<String>> param : queryparms.entrySet()) {
 			if (param.getKey().equals("id")) {
 				remoteId = param.getValue().get(0);
 			}
+			if (param.getKey().equals("mux")) {
+				mux = Boolean.parseBoolean(param.getValue().get(0));
+			}
 		}
 		if (remoteId != null) {
 			session.getUserProperties().put("remoteId", remoteId);
 		}
+		session.getUserProperties().put("remote", remote);
 		try {
 			remote.setBatchingAllowed(true);
 		} catch (IOException e1) {
 			LOG.log(Level.WARNING, "Failed to switch on Batching", e1);
 		}
 		
-		transport.registerRemote(remoteId, remote);
+		if (mux) {
+			muxSender = new WsSender(remote);
+		} else {
+			transport.registerRemote(remoteId, remote);
+		}
 		transport.setConnected(true);
 		
 		final String id = remoteId;
 		session.addMessageHandler(new MessageHandler.Whole<String>() {
 			@Override
 			public void onMessage(final String text) {
-				
-				new Thread(new Runnable() {
-					
-					@Override
-					public void run() {
-						try {
-							if (!transport.isConnected()){
-								LOG.warning("Strange, received message from unconnected source? Reopening!");
-								transport.registerRemote(id, remote);
-								transport.setConnected(true);
-							}
-							transport.receive(text, id);
-						} catch (final IOException e) {
-							LOG.log(Level.WARNING, "Failed to receive message",
-									e);
-						}
+				if (muxSender == null) {
+					dispatch(text, id, remote);
+					return;
+				}
+				final String[] route = WsMux.split(text);
+				if (route == null) {
+					LOG.warning("Dropped message without header on multiplexed session");
+					return;
+				}
+				dispatch(route[2], route);
+			}
+			
+		});
+		session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>() {
+			@Override
+			public void onMessage(final ByteBuffer data) {
+				// The container may reuse its buffer, take a copy.
+				final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+				copy.put(data);
+				((Buffer) copy).flip();
+				String[] route = null;
+				if (muxSender != null) {
+					route = WsMux.readHeader(copy);
+					if (route == null) {
+						LOG.warning("Dropped message without header on multiplexed session");
+						return;
+					}
+				}
+				final Object body;
+				if (!BinaryFrame.isFrame(copy)) {
+					body = UTF8.decode(copy).toString();
+				} else {
+					try {
+						body = BinaryFrame.decode(copy);
+					} catch (final IOException e) {
+						LOG.log(Level.WARNING,
+								"Failed to decode binary message", e);
+						return;
+					}
+				}
+				if (route == null) {
+					dispatch(body, id, remote);
+				} else {
+					dispatch(body, route);
+				}
+			}
+			
+		});
+	}
+	
+	private void dispatch(final Object body, final String id,
+			final RemoteEndpoint.Async remote) {
+		enqueue("", body, new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					if (!transport.isConnected()){
+						LOG.warning("Strange, received message from unconnected source? Reopening!");
+						transport.registerRemote(id, remote);
+						transport.setConnected(true);
 					}
-				}).start();
+					transport.receive(body, id);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Failed to receive message",
+							e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Dispatch a message from a multiplexed session to the addressed server
+	 * agent, which may be any server agent on this host.
+	 * 
+	 * @param body
+	 *            the body
+	 * @param route
+	 *            the receiver and sender
+	 */
+	private void dispatch(final Object body, final String[] route) {
+		enqueue(route[0] + " " + route[1], body, new Runnable() {
+			
+			@Override
+			public void run() {
+				final WebsocketTransport target = WebsocketTransportBuilder
+						.get(URI.create(route[0]));
+				if (!(target instanceof WsServerTransport)) {
+					LOG.warning("Dropped message for unknown agent:"
+							+ route[0]);
+					return;
+				}
+				try {
+					((WsServerTransport) target).registerRoute(route[1],
+							muxSender);
+					routed.add((WsServerTransport) target);
+					target.receive(body, route[1]);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Failed to receive message",
+							e);
+				}
+			}
+		});
+	}
+	
+	private void enqueue(final String key, final Object body,
+			final Runnable task) {
+		if (AbstractTransport.isResponse(body)) {
+			ThreadPool.getPool().execute(task);
+			return;
+		}
+		ReadWriteExecutor serial = serials.get(key);
+		if (serial == null) {
+			serial = new ReadWriteExecutor();
+			final ReadWriteExecutor prev = serials.putIfAbsent(key, serial);
+			if (prev != null) {
+				serial = prev;
 			}
+		}
+		try {
+			queued.acquire();
+		} catch (final InterruptedException e) {
+			LOG.log(Level.WARNING, "Interrupted, message dropped", e);
+			Thread.currentThread().interrupt();
+			return;
+		}
+		serial.execute(new Runnable() {
 			
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					queued.release();
+				}
+			}
 		});
 	}
 	
@@ -95,6 +248,12 @@ public class WebsocketEndpoint extends Endpoint {
 	 */
 	@Override
 	public void onClose(final Session session, final CloseReason closeReason) {
+		if (muxSender != null) {
+			for (final WsServerTransport target : routed) {
+				target.removeRoutes(muxSender);
+			}
+			return;
+		}
 		transport.onClose(session, closeReason);
 	}
 	
@@ -108,12 +267,12 @@ public class WebsocketEndpoint extends Endpoint {
 	public void onError(final Session session, final Throwable throwable) {
 		LOG.log(Level.WARNING, "Websocket connection error:", throwable);
 		if (throwable instanceof SocketTimeoutException) {
-			transport.onClose(session, new CloseReason(
+			onClose(session, new CloseReason(
 					CloseReason.CloseCodes.CLOSED_ABNORMALLY,
 					"Timeout on Socket!"));
 		}
 		if (throwable instanceof EOFException) {
-			transport.onClose(session, new CloseReason(
+			onClose(session, new CloseReason(
 					CloseReason.CloseCodes.CLOSED_ABNORMALLY, "EOF!"));
 		}
 	}
@@ -17,6 +17,9 @@ import com.almende.eve.capabilities.handler.Handler;
 import com.almende.eve.transport.AbstractTransport;
 import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.TransportService;
+import com.almende.util.BinaryFrame;
+import com.almende.util.BinaryMessage;
+import com.almende.util.callback.AsyncCallback;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -51,15 +54,43 @@ public abstract class WebsocketTransport extends AbstractTransport {
 	 * Receive.
 	 * 
 	 * @param body
-	 *            the body
+	 *            the body, a String or a {@link BinaryFrame}
 	 * @param id
 	 *            the id
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	public abstract void receive(final String body, final String id)
+	public abstract void receive(final Object body, final String id)
 			throws IOException;
 	
+	/**
+	 * Send a message, messages with attachments are sent as a binary frame.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @param message
+	 *            the message
+	 * @param tag
+	 *            the tag
+	 * @param callback
+	 *            the callback
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final Object message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		if (BinaryFrame.hasAttachments(message)) {
+			send(receiverUri, BinaryFrame.toBytes(BinaryFrame
+					.encode((BinaryMessage) message)), tag, callback);
+		} else {
+			super.send(receiverUri, message, tag, callback);
+		}
+	}
+	
 	/**
 	 * On close.
 	 * 
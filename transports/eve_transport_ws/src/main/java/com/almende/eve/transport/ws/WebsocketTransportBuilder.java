@@ -7,8 +7,8 @@ package com.almende.eve.transport.ws;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,7 +57,7 @@ public class WebsocketTransportBuilder extends
 	}
 
 	class WebsocketService implements TransportService {
-		private final Map<URI, WebsocketTransport>	transports	= new HashMap<URI, WebsocketTransport>();
+		private final Map<URI, WebsocketTransport>	transports	= new ConcurrentHashMap<URI, WebsocketTransport>();
 
 		/**
 		 * Gets the.
@@ -157,12 +157,17 @@ public class WebsocketTransportBuilder extends
 					LOG.log(Level.WARNING, "Looking up:" + key);
 					if (transports.containsKey(key)) {
 						result = transports.get(key);
-						if (!(WebsocketTransportConfig.decorate(result
-								.getParams())).getServerUrl().equals(
-								config.getServerUrl())) {
+						if (result instanceof WsClientTransport
+								&& !(WebsocketTransportConfig.decorate(result
+										.getParams())).getServerUrl().equals(
+										config.getServerUrl())) {
 							((WsClientTransport) result).updateConfig(config);
 						}
 						result.getHandle().update(handle);
+					} else if (config.isMultiplex()) {
+						result = new WsMuxClientTransport(key, handle, this,
+								config);
+						transports.put(key, result);
 					} else {
 						result = new WsClientTransport(key, handle, this,
 								config);
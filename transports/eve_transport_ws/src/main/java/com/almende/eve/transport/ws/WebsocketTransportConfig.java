@@ -163,4 +163,100 @@ public class WebsocketTransportConfig extends TransportConfig {
 		}
 		return null;
 	}
+
+	/**
+	 * Sets the maximum number of received messages per session waiting to be
+	 * handled. When full, reading from that session pauses.
+	 * 
+	 * @param maxQueued
+	 *            the new max queued
+	 */
+	public void setMaxQueued(final int maxQueued) {
+		this.put("maxQueued", maxQueued);
+	}
+
+	/**
+	 * Gets the maximum number of received messages per session waiting to be
+	 * handled. (default: 100)
+	 * 
+	 * @return the max queued
+	 */
+	public int getMaxQueued() {
+		if (this.has("maxQueued")) {
+			return this.get("maxQueued").asInt();
+		}
+		return 100;
+	}
+
+	/**
+	 * Share one connection per server among all multiplexing client agents
+	 * on this host. Such agents can send to any server agent, instead of
+	 * only to their serverUrl. (client)
+	 * 
+	 * @param multiplex
+	 *            the new multiplex
+	 */
+	public void setMultiplex(final boolean multiplex) {
+		this.put("multiplex", multiplex);
+	}
+
+	/**
+	 * Does this client agent share its connections? (default: false)
+	 * 
+	 * @return true, if multiplexed
+	 */
+	public boolean isMultiplex() {
+		if (this.has("multiplex")) {
+			return this.get("multiplex").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the maximum number of messages buffered per server while a
+	 * multiplexed connection is being (re)opened. (client)
+	 * 
+	 * @param maxBuffered
+	 *            the new max buffered
+	 */
+	public void setMaxBuffered(final int maxBuffered) {
+		this.put("maxBuffered", maxBuffered);
+	}
+
+	/**
+	 * Gets the maximum number of messages buffered per server while a
+	 * multiplexed connection is being (re)opened. (default: 10000)
+	 * 
+	 * @return the max buffered
+	 */
+	public int getMaxBuffered() {
+		if (this.has("maxBuffered")) {
+			return this.get("maxBuffered").asInt();
+		}
+		return 10000;
+	}
+
+	/**
+	 * Sets the maximum delay between reconnection attempts of a multiplexed
+	 * connection, in milliseconds. (client)
+	 * 
+	 * @param maxReconnectDelay
+	 *            the new max reconnect delay
+	 */
+	public void setMaxReconnectDelay(final int maxReconnectDelay) {
+		this.put("maxReconnectDelay", maxReconnectDelay);
+	}
+
+	/**
+	 * Gets the maximum delay between reconnection attempts of a multiplexed
+	 * connection. (default: 5000)
+	 * 
+	 * @return the max reconnect delay
+	 */
+	public int getMaxReconnectDelay() {
+		if (this.has("maxReconnectDelay")) {
+			return this.get("maxReconnectDelay").asInt();
+		}
+		return 5000;
+	}
 }
@@ -86,11 +86,11 @@ public class WsClientTransport extends WebsocketTransport {
 	/*
 	 * (non-Javadoc)
 	 * @see
-	 * com.almende.eve.transport.ws.WebsocketTransport#receive(java.lang.String,
-	 * java.net.URI)
+	 * com.almende.eve.transport.ws.WebsocketTransport#receive(java.lang.Object,
+	 * java.lang.String)
 	 */
 	@Override
-	public void receive(final String body, final String id) throws IOException {
+	public void receive(final Object body, final String id) throws IOException {
 		super.getHandle().get().receive(body, serverUrl, null);
 	}
 
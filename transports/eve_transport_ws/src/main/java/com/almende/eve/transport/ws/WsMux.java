@@ -0,0 +1,103 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.ws;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Framing of multiplexed websocket sessions: every message on such a session
+ * starts with a header naming the receiving and the sending agent, of the
+ * form: RS receiver US sender RS, with RS (0x1E) and US (0x1F) the ASCII
+ * record and unit separators. On text frames the header is text, on binary
+ * frames it is the UTF-8 encoding of the same header.
+ */
+final class WsMux {
+	private static final Charset	UTF8	= Charset.forName("UTF-8");
+	private static final char		RS		= '\u001E';
+	private static final char		US		= '\u001F';
+
+	private WsMux() {}
+
+	/**
+	 * Create the header for messages between the given agents.
+	 *
+	 * @param receiver
+	 *            the receiver
+	 * @param sender
+	 *            the sender
+	 * @return the header
+	 */
+	static String header(final String receiver, final String sender) {
+		return RS + receiver + US + sender + RS;
+	}
+
+	/**
+	 * Split a text message into receiver, sender and body.
+	 *
+	 * @param text
+	 *            the text
+	 * @return the receiver, sender and body, or null if the message has no
+	 *         header
+	 */
+	static String[] split(final String text) {
+		if (text.isEmpty() || text.charAt(0) != RS) {
+			return null;
+		}
+		final int end = text.indexOf(RS, 1);
+		final int sep = text.indexOf(US, 1);
+		if (end < 0 || sep < 0 || sep > end) {
+			return null;
+		}
+		return new String[] { text.substring(1, sep),
+				text.substring(sep + 1, end), text.substring(end + 1) };
+	}
+
+	/**
+	 * Prefix a binary message with a header.
+	 *
+	 * @param header
+	 *            the header
+	 * @param payload
+	 *            the payload
+	 * @return the framed message
+	 */
+	static ByteBuffer wrap(final String header, final ByteBuffer payload) {
+		final byte[] head = header.getBytes(UTF8);
+		final ByteBuffer result = ByteBuffer.allocate(head.length
+				+ payload.remaining());
+		result.put(head).put(payload.duplicate());
+		((Buffer) result).flip();
+		return result;
+	}
+
+	/**
+	 * Read the header of a binary message, on success the buffer is left
+	 * positioned at the payload.
+	 *
+	 * @param data
+	 *            the data
+	 * @return the receiver and sender, or null if the message has no header
+	 */
+	static String[] readHeader(final ByteBuffer data) {
+		final int start = data.position();
+		if (!data.hasRemaining() || data.get(start) != RS) {
+			return null;
+		}
+		for (int i = start + 1; i < data.limit(); i++) {
+			if (data.get(i) == RS) {
+				final byte[] head = new byte[i + 1 - start];
+				data.get(head);
+				final String[] route = split(new String(head, UTF8));
+				if (route == null) {
+					((Buffer) data).position(start);
+				}
+				return route;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.ws;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.RemoteEndpoint.Async;
+
+import com.almende.eve.capabilities.handler.Handler;
+import com.almende.eve.transport.Receiver;
+import com.almende.eve.transport.TransportService;
+import com.almende.util.URIUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class WsMuxClientTransport, a websocket client agent that shares its
+ * connections with the other multiplexing client agents on this host: one
+ * connection per server, see {@link WsMuxConnection}. It can send to any
+ * server agent. Server agents can reach it, as "wsclient:" + id, once it has
+ * sent them a message.
+ */
+public class WsMuxClientTransport extends WebsocketTransport {
+	private static final Logger				LOG			= Logger.getLogger(WsMuxClientTransport.class
+															.getName());
+	private final WebsocketTransportConfig	config;
+	private final String					myId;
+
+	/**
+	 * Instantiates a new multiplexing websocket client transport.
+	 *
+	 * @param address
+	 *            the address
+	 * @param handle
+	 *            the handle
+	 * @param service
+	 *            the service
+	 * @param params
+	 *            the params
+	 */
+	public WsMuxClientTransport(final URI address,
+			final Handler<Receiver> handle, final TransportService service,
+			final ObjectNode params) {
+		super(address, handle, service, params);
+		config = WebsocketTransportConfig.decorate(params);
+		myId = config.getId();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.transport.ws.WebsocketTransport#registerRemote(java.lang
+	 * .String, javax.websocket.RemoteEndpoint.Async)
+	 */
+	@Override
+	protected void registerRemote(final String key, final Async remote) {
+		// Remotes are kept by the shared connections.
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.transport.ws.WebsocketTransport#receive(java.lang.Object,
+	 * java.lang.String)
+	 */
+	@Override
+	public void receive(final Object body, final String id) throws IOException {
+		try {
+			super.getHandle().get().receive(body, URIUtil.parse(id), null);
+		} catch (final URISyntaxException e) {
+			throw new IOException("Couldn't parse sender:" + id, e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#send(java.net.URI,
+	 * java.lang.String, java.lang.String)
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final String message,
+			final String tag, final AsyncCallback<T> callback) throws IOException {
+		WsMuxConnection.get(receiverUri, config).send(
+				receiverUri.toASCIIString(), myId, message, callback);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#send(java.net.URI, byte[],
+	 * java.lang.String)
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final byte[] message,
+			final String tag, final AsyncCallback<T> callback) throws IOException {
+		WsMuxConnection.get(receiverUri, config).send(
+				receiverUri.toASCIIString(), myId, ByteBuffer.wrap(message),
+				callback);
+	}
+
+	/**
+	 * Opens the connection to the configured serverUrl, if any. Other
+	 * connections are opened on first use.
+	 *
+	 * @see com.almende.eve.transport.ws.WebsocketTransport#connect()
+	 */
+	@Override
+	public void connect() throws IOException {
+		final String sURL = config.getServerUrl();
+		if (sURL != null) {
+			try {
+				WsMuxConnection.get(URIUtil.parse(sURL), config).connect();
+			} catch (final URISyntaxException e) {
+				LOG.log(Level.WARNING,
+						"'serverUrl' parameter couldn't be parsed", e);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.ws.WebsocketTransport#disconnect()
+	 */
+	@Override
+	public void disconnect() {
+		// Connections are shared, they stay open for the other agents.
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.Transport#getProtocols()
+	 */
+	@Override
+	public List<String> getProtocols() {
+		return Arrays.asList("wss", "ws");
+	}
+
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.ws;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.CloseReason;
+import javax.websocket.DeploymentException;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+
+import org.glassfish.tyrus.client.ClientManager;
+
+import com.almende.eve.transport.AbstractTransport;
+import com.almende.util.BinaryFrame;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.threads.ReadWriteExecutor;
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * A websocket connection from this host to a remote server, shared by all
+ * local multiplexing client agents that talk to agents on that server. Every
+ * message carries a header with the receiving and sending agent, see
+ * {@link WsMux}. When the connection drops, it is reopened with a jittered,
+ * exponential backoff; messages sent in the meantime are buffered and go out
+ * in order once the connection is back. Received requests are handled in
+ * order per sending and receiving agent, responses right away, as in
+ * {@link WebsocketEndpoint}.
+ */
+final class WsMuxConnection extends Endpoint {
+	private static final Logger										LOG			= Logger.getLogger(WsMuxConnection.class
+																						.getName());
+	private static final Charset									UTF8		= Charset
+																						.forName("UTF-8");
+	private static final int										MINDELAY	= 100;
+	private static final ConcurrentHashMap<String, WsMuxConnection>	CONNECTIONS	= new ConcurrentHashMap<String, WsMuxConnection>();
+	private static ClientManager									client		= null;
+	private final URI												url;
+	private final int												maxBuffered;
+	private final int												maxDelay;
+	private final Queue<Pending>									buffer		= new ArrayDeque<Pending>();
+	private final ConcurrentHashMap<String, ReadWriteExecutor>		serials		= new ConcurrentHashMap<String, ReadWriteExecutor>();
+	private Session													session		= null;
+	private WsSender												sender		= null;
+	private boolean													connecting	= false;
+	private int														attempts	= 0;
+
+	private WsMuxConnection(final URI url,
+			final WebsocketTransportConfig config) {
+		this.url = url;
+		this.maxBuffered = config.getMaxBuffered();
+		this.maxDelay = config.getMaxReconnectDelay();
+	}
+
+	/**
+	 * Get the connection to the server of the given agent, the first caller
+	 * for a server decides the connection's settings.
+	 *
+	 * @param agentUrl
+	 *            the url of an agent on the server
+	 * @param config
+	 *            the config
+	 * @return the connection
+	 */
+	static WsMuxConnection get(final URI agentUrl,
+			final WebsocketTransportConfig config) {
+		final String key = agentUrl.getScheme() + "://"
+				+ agentUrl.getRawAuthority();
+		WsMuxConnection result = CONNECTIONS.get(key);
+		if (result == null) {
+			result = new WsMuxConnection(URI.create(key
+					+ agentUrl.getRawPath() + "?mux=true"), config);
+			final WsMuxConnection prev = CONNECTIONS.putIfAbsent(key, result);
+			if (prev != null) {
+				result = prev;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Make sure the connection is open or being opened.
+	 */
+	synchronized void connect() {
+		if (sender == null) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Send a message.
+	 *
+	 * @param receiver
+	 *            the url of the receiving agent
+	 * @param from
+	 *            the id of the sending agent
+	 * @param message
+	 *            the message, a String or a ByteBuffer
+	 * @param callback
+	 *            the callback, informed of failures, may be null
+	 * @throws IOException
+	 *             Signals that the message couldn't be buffered.
+	 */
+	void send(final String receiver, final String from, final Object message,
+			final AsyncCallback<?> callback) throws IOException {
+		final String header = WsMux.header(receiver, from);
+		final Object framed = message instanceof String ? header + message
+				: WsMux.wrap(header, (ByteBuffer) message);
+		final WsSender current;
+		synchronized (this) {
+			current = sender;
+			if (current == null) {
+				if (buffer.size() >= maxBuffered) {
+					throw new IOException("Not connected to " + url
+							+ ", buffer is full.");
+				}
+				buffer.add(new Pending(framed, callback));
+				schedule();
+				return;
+			}
+		}
+		send(current, framed, callback);
+	}
+
+	private static void send(final WsSender sender, final Object framed,
+			final AsyncCallback<?> callback) {
+		if (framed instanceof String) {
+			sender.send((String) framed, callback);
+		} else {
+			sender.send((ByteBuffer) framed, callback);
+		}
+	}
+
+	private void schedule() {
+		if (connecting) {
+			return;
+		}
+		connecting = true;
+		long delay = 0;
+		if (attempts > 0) {
+			final long max = Math.min(maxDelay,
+					(long) MINDELAY << Math.min(attempts, 20));
+			delay = max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+		}
+		attempts++;
+		ThreadPool.getScheduledPool().schedule(new Runnable() {
+			@Override
+			public void run() {
+				open();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void open() {
+		try {
+			getClient().connectToServer(this,
+					ClientEndpointConfig.Builder.create().build(), url);
+		} catch (final DeploymentException e) {
+			retry(e);
+		} catch (final IOException e) {
+			retry(e);
+		} catch (final RuntimeException e) {
+			retry(e);
+		}
+	}
+
+	private synchronized void retry(final Exception e) {
+		LOG.log(Level.FINE, "Couldn't connect to " + url + ", retrying", e);
+		connecting = false;
+		schedule();
+	}
+
+	private static synchronized ClientManager getClient() {
+		if (client == null) {
+			client = ClientManager.createClient();
+			client.setDefaultMaxSessionIdleTimeout(-1);
+		}
+		return client;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see javax.websocket.Endpoint#onOpen(javax.websocket.Session,
+	 * javax.websocket.EndpointConfig)
+	 */
+	@Override
+	public void onOpen(final Session session, final EndpointConfig config) {
+		final RemoteEndpoint.Async remote = session.getAsyncRemote();
+		try {
+			remote.setBatchingAllowed(true);
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Failed to switch on Batching", e);
+		}
+		session.addMessageHandler(new MessageHandler.Whole<String>() {
+			@Override
+			public void onMessage(final String text) {
+				final String[] route = WsMux.split(text);
+				if (route == null) {
+					LOG.warning("Dropped message without header from " + url);
+					return;
+				}
+				deliver(route[2], route);
+			}
+		});
+		session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>() {
+			@Override
+			public void onMessage(final ByteBuffer data) {
+				// The container may reuse its buffer, take a copy.
+				final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+				copy.put(data);
+				((Buffer) copy).flip();
+				final String[] route = WsMux.readHeader(copy);
+				if (route == null) {
+					LOG.warning("Dropped message without header from " + url);
+					return;
+				}
+				if (!BinaryFrame.isFrame(copy)) {
+					deliver(UTF8.decode(copy).toString(), route);
+					return;
+				}
+				try {
+					deliver(BinaryFrame.decode(copy), route);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Failed to decode binary message",
+							e);
+				}
+			}
+		});
+
+		final WsSender opened = new WsSender(remote);
+		synchronized (this) {
+			for (final Pending pending : buffer) {
+				send(opened, pending.message, pending.callback);
+			}
+			buffer.clear();
+			this.session = session;
+			this.sender = opened;
+			connecting = false;
+			attempts = 0;
+		}
+	}
+
+	private void deliver(final Object body, final String[] route) {
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				final WebsocketTransport target = WebsocketTransportBuilder
+						.get(URI.create("wsclient:" + route[0]));
+				if (!(target instanceof WsMuxClientTransport)) {
+					LOG.warning("Dropped message for unknown agent:"
+							+ route[0]);
+					return;
+				}
+				try {
+					target.receive(body, route[1]);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Failed to receive message", e);
+				}
+			}
+		};
+		if (AbstractTransport.isResponse(body)) {
+			ThreadPool.getPool().execute(task);
+			return;
+		}
+		final String key = route[0] + " " + route[1];
+		ReadWriteExecutor serial = serials.get(key);
+		if (serial == null) {
+			serial = new ReadWriteExecutor();
+			final ReadWriteExecutor prev = serials.putIfAbsent(key, serial);
+			if (prev != null) {
+				serial = prev;
+			}
+		}
+		serial.execute(task);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see javax.websocket.Endpoint#onClose(javax.websocket.Session,
+	 * javax.websocket.CloseReason)
+	 */
+	@Override
+	public void onClose(final Session session, final CloseReason closeReason) {
+		synchronized (this) {
+			if (this.session != session) {
+				return;
+			}
+			LOG.info("Connection to " + url + " closed:"
+					+ closeReason.getReasonPhrase() + ", reconnecting");
+			this.session = null;
+			this.sender = null;
+			schedule();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see javax.websocket.Endpoint#onError(javax.websocket.Session,
+	 * java.lang.Throwable)
+	 */
+	@Override
+	public void onError(final Session session, final Throwable throwable) {
+		LOG.log(Level.WARNING, "Websocket connection error:", throwable);
+		if (throwable instanceof SocketTimeoutException
+				|| throwable instanceof EOFException) {
+			onClose(session, new CloseReason(
+					CloseReason.CloseCodes.CLOSED_ABNORMALLY,
+					throwable.getClass().getSimpleName()));
+		}
+	}
+
+	private static final class Pending {
+		private final Object			message;
+		private final AsyncCallback<?>	callback;
+
+		private Pending(final Object message, final AsyncCallback<?> callback) {
+			this.message = message;
+			this.callback = callback;
+		}
+	}
+}
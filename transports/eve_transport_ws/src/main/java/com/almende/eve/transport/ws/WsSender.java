@@ -0,0 +1,197 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.ws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.RemoteEndpoint.Async;
+
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * The outbound side of a websocket session. Senders never wait for the
+ * connection: messages are queued, and a single pool task at a time writes
+ * them through the asynchronous remote, in order. Messages queued while a
+ * write is underway go out together, in batches of at most BATCH messages.
+ */
+final class WsSender implements Runnable {
+	private static final Logger	LOG			= Logger.getLogger(WsSender.class
+													.getName());
+	private static final int	BATCH		= 64;
+	private final Async			remote;
+	private final Queue<Entry>	queue		= new ArrayDeque<Entry>();
+	private boolean				scheduled	= false;
+	private final WsSender		session;
+	private final String		header;
+
+	/**
+	 * Instantiates a new sender.
+	 *
+	 * @param remote
+	 *            the remote, with batching allowed
+	 */
+	WsSender(final Async remote) {
+		this.remote = remote;
+		this.session = null;
+		this.header = null;
+	}
+
+	private WsSender(final WsSender session, final String header) {
+		this.remote = null;
+		this.session = session;
+		this.header = header;
+	}
+
+	/**
+	 * Get a sender for a single agent on this multiplexed session: its
+	 * messages are prefixed with the given header and queued on this sender.
+	 *
+	 * @param header
+	 *            the header, see {@link WsMux#header(String, String)}
+	 * @return the sender
+	 */
+	WsSender route(final String header) {
+		return new WsSender(this, header);
+	}
+
+	/**
+	 * Checks if this sender is a route on the given session sender.
+	 *
+	 * @param session
+	 *            the session sender
+	 * @return true, if so
+	 */
+	boolean routes(final WsSender session) {
+		return this.session == session;
+	}
+
+	/**
+	 * Checks if this sender writes directly to the given remote.
+	 *
+	 * @param remote
+	 *            the remote
+	 * @return true, if it does
+	 */
+	boolean uses(final Async remote) {
+		return this.remote == remote;
+	}
+
+	/**
+	 * Queue a text message.
+	 *
+	 * @param message
+	 *            the message
+	 * @param callback
+	 *            the callback, informed of failures, may be null
+	 */
+	void send(final String message, final AsyncCallback<?> callback) {
+		if (session != null) {
+			session.send(header + message, callback);
+			return;
+		}
+		enqueue(new Entry(message, callback));
+	}
+
+	/**
+	 * Queue a binary message.
+	 *
+	 * @param message
+	 *            the message
+	 * @param callback
+	 *            the callback, informed of failures, may be null
+	 */
+	void send(final ByteBuffer message, final AsyncCallback<?> callback) {
+		if (session != null) {
+			session.send(WsMux.wrap(header, message), callback);
+			return;
+		}
+		enqueue(new Entry(message, callback));
+	}
+
+	private void enqueue(final Entry entry) {
+		synchronized (queue) {
+			queue.add(entry);
+			if (scheduled) {
+				return;
+			}
+			scheduled = true;
+		}
+		ThreadPool.getPool().execute(this);
+	}
+
+	@Override
+	public void run() {
+		Entry entry;
+		synchronized (queue) {
+			entry = queue.poll();
+		}
+		int count = 0;
+		while (entry != null) {
+			try {
+				final Future<Void> future = entry.message instanceof String ? remote
+						.sendText((String) entry.message) : remote
+						.sendBinary((ByteBuffer) entry.message);
+				// With batching, this only waits for the message to be
+				// buffered.
+				future.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				entry.fail(e);
+			} catch (final ExecutionException e) {
+				entry.fail(e.getCause());
+			} catch (final RuntimeException e) {
+				entry.fail(e);
+			}
+			if (++count % BATCH == 0) {
+				flush();
+			}
+			synchronized (queue) {
+				entry = queue.poll();
+			}
+		}
+		flush();
+		synchronized (queue) {
+			if (queue.isEmpty()) {
+				scheduled = false;
+				return;
+			}
+		}
+		ThreadPool.getPool().execute(this);
+	}
+
+	private void flush() {
+		try {
+			remote.flushBatch();
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Failed to flush websocket batch", e);
+		}
+	}
+
+	private static final class Entry {
+		private final Object			message;
+		private final AsyncCallback<?>	callback;
+
+		private Entry(final Object message, final AsyncCallback<?> callback) {
+			this.message = message;
+			this.callback = callback;
+		}
+
+		private void fail(final Throwable cause) {
+			LOG.log(Level.WARNING, "Failed to send websocket message", cause);
+			if (callback != null) {
+				callback.onFailure(cause instanceof Exception ? (Exception) cause
+						: new IOException(cause));
+			}
+		}
+	}
+}
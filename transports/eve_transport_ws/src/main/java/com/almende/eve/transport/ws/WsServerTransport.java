@@ -7,17 +7,19 @@ package com.almende.eve.transport.ws;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.websocket.CloseReason;
 import javax.websocket.RemoteEndpoint.Async;
 import javax.websocket.Session;
 
 import com.almende.eve.capabilities.handler.Handler;
+import com.almende.eve.transport.MulticastTransport;
 import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.TransportService;
 import com.almende.util.URIUtil;
@@ -27,8 +29,9 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 /**
  * The Class WebsocketTransport.
  */
-public class WsServerTransport extends WebsocketTransport {
-	private final Map<URI, Async>	remotes	= new HashMap<URI, Async>();
+public class WsServerTransport extends WebsocketTransport implements
+		MulticastTransport {
+	private final ConcurrentHashMap<URI, WsSender>	remotes	= new ConcurrentHashMap<URI, WsSender>();
 	
 	/**
 	 * Instantiates a new websocket transport.
@@ -61,7 +64,13 @@ public class WsServerTransport extends WebsocketTransport {
 			final String remoteId = (String) session.getUserProperties().get(
 					"remoteId");
 			final URI key = URIUtil.create("wsclient:" + remoteId);
-			remotes.remove(key);
+			// The client may already have reconnected on a new session.
+			final WsSender current = remotes.get(key);
+			if (current != null
+					&& current.uses((Async) session.getUserProperties().get(
+							"remote"))) {
+				remotes.remove(key, current);
+			}
 		}
 	}
 	
@@ -85,18 +94,50 @@ public class WsServerTransport extends WebsocketTransport {
 	@Override
 	protected void registerRemote(final String id, final Async remote) {
 		final URI key = URI.create("wsclient:" + id);
-		remotes.put(key, remote);
+		remotes.put(key, new WsSender(remote));
 	}
-	
+
+	/**
+	 * Register a client agent reached through a multiplexed session.
+	 *
+	 * @param id
+	 *            the id of the client agent
+	 * @param session
+	 *            the sender of the multiplexed session
+	 */
+	void registerRoute(final String id, final WsSender session) {
+		final URI key = URI.create("wsclient:" + id);
+		final WsSender current = remotes.get(key);
+		if (current == null || !current.routes(session)) {
+			remotes.put(key, session.route(WsMux.header(id, getAddress()
+					.toASCIIString())));
+		}
+	}
+
+	/**
+	 * Remove the client agents reached through a multiplexed session, once
+	 * that session is closed.
+	 *
+	 * @param session
+	 *            the sender of the multiplexed session
+	 */
+	void removeRoutes(final WsSender session) {
+		for (final Map.Entry<URI, WsSender> entry : remotes.entrySet()) {
+			if (entry.getValue().routes(session)) {
+				remotes.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see
-	 * com.almende.eve.transport.ws.WebsocketTransport#receive(java.lang.String,
-	 * java.net.URI)
+	 * com.almende.eve.transport.ws.WebsocketTransport#receive(java.lang.Object,
+	 * java.lang.String)
 	 */
 	@Override
-	public void receive(final String body, final String id) throws IOException {
+	public void receive(final Object body, final String id) throws IOException {
 		final URI senderUrl = URI.create("wsclient:" + id);
 		super.getHandle().get().receive(body, senderUrl, null);
 	}
@@ -110,10 +151,9 @@ public class WsServerTransport extends WebsocketTransport {
 	@Override
 	public <T> void send(final URI receiverUri, final String message,
 			final String tag, final AsyncCallback<T> calback) throws IOException {
-		if (remotes.containsKey(receiverUri)) {
-			final Async remote = remotes.get(receiverUri);
-			remote.sendText(message);
-			remote.flushBatch();
+		final WsSender remote = remotes.get(receiverUri);
+		if (remote != null) {
+			remote.send(message, calback);
 		} else {
 			throw new IOException("Remote: " + receiverUri.toASCIIString()
 					+ " is currently not connected. (" + getAddress() + " / "
@@ -121,6 +161,30 @@ public class WsServerTransport extends WebsocketTransport {
 		}
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.transport.MulticastTransport#multicast(java.util.List,
+	 * java.lang.String, java.lang.String)
+	 */
+	@Override
+	public void multicast(final List<URI> receiverUris, final String message,
+			final String tag) throws IOException {
+		final List<URI> missing = new ArrayList<URI>(0);
+		for (final URI receiverUri : receiverUris) {
+			final WsSender remote = remotes.get(receiverUri);
+			if (remote != null) {
+				remote.send(message, null);
+			} else {
+				missing.add(receiverUri);
+			}
+		}
+		if (!missing.isEmpty()) {
+			throw new IOException("Remotes: " + missing
+					+ " are currently not connected.");
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -130,10 +194,9 @@ public class WsServerTransport extends WebsocketTransport {
 	@Override
 	public <T> void send(final URI receiverUri, final byte[] message,
 			final String tag, final AsyncCallback<T> calback) throws IOException {
-		if (remotes.containsKey(receiverUri)) {
-			final Async remote = remotes.get(receiverUri);
-			remote.sendBinary(ByteBuffer.wrap(message));
-			remote.flushBatch();
+		final WsSender remote = remotes.get(receiverUri);
+		if (remote != null) {
+			remote.send(ByteBuffer.wrap(message), calback);
 		} else {
 			throw new IOException("Remote: " + receiverUri.toASCIIString()
 					+ " is currently not connected.");
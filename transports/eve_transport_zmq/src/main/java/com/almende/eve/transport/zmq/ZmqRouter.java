@@ -0,0 +1,172 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.zmq;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.zeromq.ZMQ.Socket;
+
+import com.almende.util.threads.ReadWriteExecutor;
+
+/**
+ * The ROUTER socket of a host endpoint, shared by all agents in router mode
+ * with that endpoint. Peers send through their pooled DEALER sockets, with the
+ * id of the receiving agent as the first frame:
+ * receiverId|type|senderUrl|tokenJson|body(|attachmentId|attachment)*
+ * Messages are handed to the receiving agent's transport in order, agents
+ * don't wait for each other.
+ */
+final class ZmqRouter implements Runnable {
+	private static final Logger									LOG		= Logger.getLogger(ZmqRouter.class
+																				.getName());
+	private static final Charset								UTF8	= Charset
+																				.forName("UTF-8");
+	private static final ConcurrentHashMap<String, ZmqRouter>	ROUTERS	= new ConcurrentHashMap<String, ZmqRouter>();
+	private final String										endpoint;
+	private final ConcurrentHashMap<String, Agent>				agents	= new ConcurrentHashMap<String, Agent>();
+	private Thread												thread	= null;
+	private Socket												socket	= null;
+
+	private ZmqRouter(final String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	/**
+	 * Register an agent on the given endpoint, binding the ROUTER socket if
+	 * this is the first.
+	 *
+	 * @param endpoint
+	 *            the endpoint
+	 * @param id
+	 *            the agent id
+	 * @param transport
+	 *            the transport
+	 */
+	static void register(final String endpoint, final String id,
+			final ZmqTransport transport) {
+		ZmqRouter router = ROUTERS.get(endpoint);
+		if (router == null) {
+			router = new ZmqRouter(endpoint);
+			final ZmqRouter prev = ROUTERS.putIfAbsent(endpoint, router);
+			if (prev != null) {
+				router = prev;
+			}
+		}
+		router.agents.put(id, new Agent(transport));
+		router.start();
+	}
+
+	/**
+	 * Unregister an agent, the ROUTER socket is closed after the last one.
+	 * Returns once it's closed, so the endpoint can be bound again.
+	 *
+	 * @param endpoint
+	 *            the endpoint
+	 * @param id
+	 *            the agent id
+	 */
+	static void unregister(final String endpoint, final String id) {
+		final ZmqRouter router = ROUTERS.get(endpoint);
+		if (router != null) {
+			router.agents.remove(id);
+			synchronized (router) {
+				if (router.agents.isEmpty() && router.thread != null) {
+					final Thread thread = router.thread;
+					router.thread = null;
+					thread.interrupt();
+					if (thread != Thread.currentThread()) {
+						try {
+							// At most the receive timeout.
+							thread.join();
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private synchronized void start() {
+		if (thread == null) {
+			// Bind right away: inproc peers can only connect after the bind.
+			socket = ZMQ.getSocket(org.zeromq.ZMQ.ROUTER);
+			socket.setReceiveTimeOut(1000);
+			socket.setLinger(0);
+			socket.bind(endpoint);
+			thread = new Thread(this, "ZMQ router " + endpoint);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	@Override
+	public void run() {
+		final Socket socket;
+		synchronized (this) {
+			socket = this.socket;
+		}
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				// Routing id of the peer's DEALER, not used.
+				if (socket.recv() == null) {
+					continue;
+				}
+				final List<byte[]> frames = new ArrayList<byte[]>(6);
+				while (socket.hasReceiveMore()) {
+					frames.add(socket.recv());
+				}
+				if (frames.size() < 5) {
+					LOG.warning("Dropped incomplete message on " + endpoint);
+					continue;
+				}
+				final String id = new String(frames.get(0), UTF8);
+				final Agent agent = agents.get(id);
+				if (agent == null) {
+					LOG.warning("Dropped message for unknown agent '" + id
+							+ "' on " + endpoint);
+					continue;
+				}
+				final ByteBuffer[] msg = new ByteBuffer[frames.size() - 1];
+				for (int i = 1; i < frames.size(); i++) {
+					msg[i - 1] = ByteBuffer.wrap(frames.get(i));
+				}
+				agent.deliver(msg);
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.SEVERE, "Router on " + endpoint + " stopped:", e);
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static final class Agent {
+		private final ZmqTransport		transport;
+		private final ReadWriteExecutor	serial	= new ReadWriteExecutor();
+
+		private Agent(final ZmqTransport transport) {
+			this.transport = transport;
+		}
+
+		private void deliver(final ByteBuffer[] msg) {
+			serial.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						transport.handleMsg(msg);
+					} catch (final Exception e) {
+						LOG.log(Level.WARNING, "Failed to handle message", e);
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.zmq;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.zeromq.ZMQ.Socket;
+
+/**
+ * A bounded pool of long-lived, connected DEALER sockets, one per peer
+ * endpoint. When the pool is full, the least recently used socket is closed.
+ * ZeroMQ sockets aren't thread safe: a socket is only used while holding its
+ * entry's lock. Sends give up after a timeout, so an unreachable peer can't
+ * hold on to that lock.
+ */
+final class ZmqSocketPool {
+	private static final Charset			UTF8			= Charset
+																	.forName("UTF-8");
+	private static final int				SENDTIMEOUT		= 1000;
+	private static ZmqSocketPool			pool			= null;
+	private final Map<String, PoolEntry>	sockets;
+	// Evicted by the last put, closed outside the lock on sockets.
+	private PoolEntry						evicted			= null;
+
+	private ZmqSocketPool(final int maxSockets) {
+		sockets = new LinkedHashMap<String, PoolEntry>(16, 0.75f, true) {
+			private static final long	serialVersionUID	= -4417153906323211284L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, PoolEntry> eldest) {
+				if (size() > maxSockets) {
+					evicted = eldest.getValue();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Gets the pool, the first caller decides its size.
+	 *
+	 * @param maxSockets
+	 *            the maximum number of open sockets
+	 * @return the pool
+	 */
+	static synchronized ZmqSocketPool get(final int maxSockets) {
+		if (pool == null) {
+			pool = new ZmqSocketPool(maxSockets);
+		}
+		return pool;
+	}
+
+	/**
+	 * Send a multipart message to the given endpoint.
+	 *
+	 * @param endpoint
+	 *            the endpoint, e.g. "tcp://127.0.0.1:5678" or
+	 *            "inproc://host"
+	 * @param frames
+	 *            the frames, Strings (sent as UTF-8) or byte arrays
+	 * @throws IOException
+	 *             Signals that the peer didn't take the message in time.
+	 */
+	void send(final String endpoint, final List<Object> frames)
+			throws IOException {
+		while (true) {
+			final PoolEntry entry = getEntry(endpoint);
+			synchronized (entry) {
+				if (entry.socket == null) {
+					// Evicted in the meantime, take a fresh one.
+					continue;
+				}
+				final int last = frames.size() - 1;
+				for (int i = 0; i <= last; i++) {
+					final int flags = i < last ? org.zeromq.ZMQ.SNDMORE : 0;
+					final Object frame = frames.get(i);
+					final byte[] data = frame instanceof String ? ((String) frame)
+							.getBytes(UTF8) : (byte[]) frame;
+					if (!entry.socket.send(data, flags)) {
+						break;
+					}
+					if (i == last) {
+						return;
+					}
+				}
+			}
+			// A partly sent message leaves the socket unusable.
+			close(endpoint, entry);
+			throw new IOException("Timeout sending to " + endpoint);
+		}
+	}
+
+	/**
+	 * Close the socket to the given endpoint, if any.
+	 *
+	 * @param endpoint
+	 *            the endpoint
+	 */
+	void close(final String endpoint) {
+		final PoolEntry entry;
+		synchronized (sockets) {
+			entry = sockets.remove(endpoint);
+		}
+		if (entry != null) {
+			entry.close();
+		}
+	}
+
+	private void close(final String endpoint, final PoolEntry entry) {
+		synchronized (sockets) {
+			if (sockets.get(endpoint) == entry) {
+				sockets.remove(endpoint);
+			}
+		}
+		entry.close();
+	}
+
+	private PoolEntry getEntry(final String endpoint) {
+		final PoolEntry result;
+		final PoolEntry old;
+		synchronized (sockets) {
+			PoolEntry entry = sockets.get(endpoint);
+			if (entry == null) {
+				final Socket socket = ZMQ.getSocket(org.zeromq.ZMQ.DEALER);
+				socket.setLinger(1000);
+				socket.setSendTimeOut(SENDTIMEOUT);
+				socket.connect(endpoint);
+				entry = new PoolEntry(socket);
+				sockets.put(endpoint, entry);
+			}
+			result = entry;
+			old = evicted;
+			evicted = null;
+		}
+		// The evicted socket may still be sending, don't wait for it while
+		// holding the lock on sockets.
+		if (old != null) {
+			old.close();
+		}
+		return result;
+	}
+
+	private static final class PoolEntry {
+		private Socket	socket;
+
+		private PoolEntry(final Socket socket) {
+			this.socket = socket;
+		}
+
+		private synchronized void close() {
+			if (socket != null) {
+				socket.close();
+				socket = null;
+			}
+		}
+	}
+}
@@ -9,8 +9,16 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,11 +30,12 @@ import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.TransportService;
 import com.almende.eve.transport.tokens.TokenRet;
 import com.almende.eve.transport.tokens.TokenStore;
+import com.almende.util.BinaryFrame;
+import com.almende.util.BinaryMessage;
 import com.almende.util.ObjectCache;
 import com.almende.util.URIUtil;
 import com.almende.util.callback.AsyncCallback;
 import com.almende.util.callback.AsyncCallbackStore;
-import com.almende.util.callback.SyncCallback;
 import com.almende.util.jackson.JOM;
 import com.almende.util.threads.ThreadPool;
 
@@ -36,12 +45,17 @@ import com.almende.util.threads.ThreadPool;
 public class ZmqTransport extends AbstractTransport {
 	private static final Logger						LOG					= Logger.getLogger(ZmqTransport.class
 																				.getCanonicalName());
+	private static final Charset					UTF8				= Charset
+																				.forName("UTF-8");
 	private final String							zmqUrl;
+	private final String							routerId;
+	private final int								maxSockets;
 	private Thread									listeningThread;
 	private boolean									doesAuthentication	= false;
 	private boolean									doDisconnect		= false;
-	private static final AsyncCallbackStore<String>	CALLBACKS			= new AsyncCallbackStore<String>(
-																				"ZMQ");
+	private final AsyncCallbackStore<String>		callbacks;
+	private final Map<String, Queue<ByteBuffer[]>>	handshakes			= new HashMap<String, Queue<ByteBuffer[]>>();
+	private final int								maxParked;
 	private final TokenStore						tokenstore			= new TokenStore();
 	private final List<String>						protocols			= Arrays.asList("zmq");
 
@@ -58,10 +72,29 @@ public class ZmqTransport extends AbstractTransport {
 	public ZmqTransport(final ZmqTransportConfig config,
 			final Handler<Receiver> handle, final TransportService service) {
 		super(config.getAddress(), handle, service, config);
-		zmqUrl = super.getAddress().toString().replaceFirst("^zmq:/?/?", "");
+		zmqUrl = toEndpoint(super.getAddress());
+		routerId = config.isRouter() ? config.getId() : null;
+		maxSockets = config.getMaxSockets();
+		maxParked = config.getMaxParked();
+		callbacks = new AsyncCallbackStore<String>("ZMQ_" + getAddress());
 		doesAuthentication = config.getDoAuthentication();
 	}
 
+	/**
+	 * Get the ZeroMQ endpoint of the given url: the url without the "zmq://"
+	 * scheme and without the agent id of router mode addresses.
+	 *
+	 * @param url
+	 *            the url
+	 * @return the endpoint
+	 */
+	private static String toEndpoint(final URI url) {
+		final String raw = url.toString();
+		final int hash = raw.indexOf('#');
+		return (hash >= 0 ? raw.substring(0, hash) : raw).replaceFirst(
+				"^zmq:/?/?", "");
+	}
+
 	/**
 	 * Send async.
 	 *
@@ -83,6 +116,33 @@ public class ZmqTransport extends AbstractTransport {
 	public <T> void sendAsync(final byte[] zmqType, final String token,
 			final URI receiverUrl, final byte[] message, final String tag,
 			final AsyncCallback<T> callback) {
+		sendAsync(zmqType, token, receiverUrl, message, null, tag, callback);
+	}
+
+	/**
+	 * Send async, with the attachments as extra frames after the body.
+	 *
+	 * @param <T>
+	 *            the generic type
+	 * @param zmqType
+	 *            the zmq type
+	 * @param token
+	 *            the token
+	 * @param receiverUrl
+	 *            the receiver url
+	 * @param message
+	 *            the message
+	 * @param attachments
+	 *            the attachments, may be null
+	 * @param tag
+	 *            the tag
+	 * @param callback
+	 *            the callback
+	 */
+	public <T> void sendAsync(final byte[] zmqType, final String token,
+			final URI receiverUrl, final byte[] message,
+			final Map<String, ByteBuffer> attachments, final String tag,
+			final AsyncCallback<T> callback) {
 		final String senderUrl = super.getAddress().toString();
 		ThreadPool.getPool().execute(new Runnable() {
 
@@ -92,6 +152,11 @@ public class ZmqTransport extends AbstractTransport {
 			 */
 			@Override
 			public void run() {
+				if (receiverUrl.getRawFragment() != null) {
+					sendRouted(zmqType, token, senderUrl, receiverUrl,
+							message, attachments, callback);
+					return;
+				}
 				final String addr = receiverUrl.toString().replaceFirst(
 						"zmq:/?/?", "");
 				final Socket socket = ZMQ.getSocket(org.zeromq.ZMQ.PUSH);
@@ -100,7 +165,23 @@ public class ZmqTransport extends AbstractTransport {
 					socket.send(zmqType, org.zeromq.ZMQ.SNDMORE);
 					socket.send(senderUrl, org.zeromq.ZMQ.SNDMORE);
 					socket.send(token, org.zeromq.ZMQ.SNDMORE);
-					socket.send(message, 0);
+					if (attachments == null || attachments.isEmpty()) {
+						socket.send(message, 0);
+					} else {
+						socket.send(message, org.zeromq.ZMQ.SNDMORE);
+						final Iterator<Map.Entry<String, ByteBuffer>> iter = attachments
+								.entrySet().iterator();
+						while (iter.hasNext()) {
+							final Map.Entry<String, ByteBuffer> attachment = iter
+									.next();
+							socket.send(attachment.getKey(),
+									org.zeromq.ZMQ.SNDMORE);
+							socket.send(
+									BinaryFrame.toBytes(attachment.getValue()),
+									iter.hasNext() ? org.zeromq.ZMQ.SNDMORE
+											: 0);
+						}
+					}
 
 				} catch (final Exception e) {
 					LOG.log(Level.WARNING, "Failed to send JSON through ZMQ", e);
@@ -115,6 +196,56 @@ public class ZmqTransport extends AbstractTransport {
 		});
 	}
 
+	/**
+	 * Send to an agent in router mode, through the pooled DEALER socket of its
+	 * host, with the agent id as first frame.
+	 *
+	 * @param <T>
+	 *            the generic type
+	 * @param zmqType
+	 *            the zmq type
+	 * @param token
+	 *            the token
+	 * @param senderUrl
+	 *            the sender url
+	 * @param receiverUrl
+	 *            the receiver url
+	 * @param message
+	 *            the message
+	 * @param attachments
+	 *            the attachments, may be null
+	 * @param callback
+	 *            the callback
+	 */
+	private <T> void sendRouted(final byte[] zmqType, final String token,
+			final String senderUrl, final URI receiverUrl,
+			final byte[] message, final Map<String, ByteBuffer> attachments,
+			final AsyncCallback<T> callback) {
+		final List<Object> frames = new ArrayList<Object>(5
+				+ (attachments != null ? 2 * attachments.size() : 0));
+		frames.add(receiverUrl.getFragment());
+		frames.add(zmqType);
+		frames.add(senderUrl);
+		frames.add(token);
+		frames.add(message);
+		if (attachments != null) {
+			for (final Map.Entry<String, ByteBuffer> attachment : attachments
+					.entrySet()) {
+				frames.add(attachment.getKey());
+				frames.add(BinaryFrame.toBytes(attachment.getValue()));
+			}
+		}
+		try {
+			ZmqSocketPool.get(maxSockets).send(toEndpoint(receiverUrl), frames);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Failed to send JSON through ZMQ", e);
+			if (callback != null) {
+				callback.onFailure(new IOException(
+						"Failed to send JSON through ZMQ, e: " + e.getMessage()));
+			}
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.transport.Transport#send(java.net.URI,
@@ -125,7 +256,7 @@ public class ZmqTransport extends AbstractTransport {
 			final String tag, final AsyncCallback<T> callback)
 			throws IOException {
 		sendAsync(ZMQ.NORMAL, tokenstore.create().toString(), receiverUri,
-				message.getBytes(), tag, callback);
+				message.getBytes(UTF8), tag, callback);
 	}
 
 	/*
@@ -141,12 +272,46 @@ public class ZmqTransport extends AbstractTransport {
 				message, tag, callback);
 	}
 
+	/**
+	 * Send a message, the attachments of a message are sent as extra frames.
+	 *
+	 * @param <T>
+	 *            the generic type
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @param message
+	 *            the message
+	 * @param tag
+	 *            the tag
+	 * @param callback
+	 *            the callback
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public <T> void send(final URI receiverUri, final Object message,
+			final String tag, final AsyncCallback<T> callback)
+			throws IOException {
+		if (BinaryFrame.hasAttachments(message)) {
+			final BinaryMessage binary = (BinaryMessage) message;
+			sendAsync(ZMQ.NORMAL, tokenstore.create().toString(), receiverUri,
+					binary.getBody().getBytes(UTF8), binary.getAttachments(),
+					tag, callback);
+		} else {
+			super.send(receiverUri, message, tag, callback);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.transport.Transport#connect()
 	 */
 	@Override
 	public void connect() throws IOException {
+		if (routerId != null) {
+			ZmqRouter.register(zmqUrl, routerId, this);
+			return;
+		}
 		if (listeningThread != null) {
 			return;
 		}
@@ -159,6 +324,10 @@ public class ZmqTransport extends AbstractTransport {
 	 */
 	@Override
 	public void disconnect() {
+		if (routerId != null) {
+			ZmqRouter.unregister(zmqUrl, routerId);
+			return;
+		}
 		doDisconnect = true;
 		listeningThread.interrupt();
 	}
@@ -181,12 +350,23 @@ public class ZmqTransport extends AbstractTransport {
 	 */
 	private ByteBuffer[] getRequest(final Socket socket) {
 		final byte[] res = socket.recv();
-		final ByteBuffer[] result = new ByteBuffer[4];
+		ByteBuffer[] result = new ByteBuffer[4];
 		if (res != null) {
 			result[0] = ByteBuffer.wrap(res);
 			result[1] = ByteBuffer.wrap(socket.recv());
 			result[2] = ByteBuffer.wrap(socket.recv());
 			result[3] = ByteBuffer.wrap(socket.recv());
+			// Attachments: id|data frame pairs
+			final List<ByteBuffer> extra = new ArrayList<ByteBuffer>(0);
+			while (socket.hasReceiveMore()) {
+				extra.add(ByteBuffer.wrap(socket.recv()));
+			}
+			if (!extra.isEmpty()) {
+				result = Arrays.copyOf(result, 4 + extra.size());
+				for (int i = 0; i < extra.size(); i++) {
+					result[4 + i] = extra.get(i);
+				}
+			}
 		}
 		return result;
 
@@ -244,31 +424,31 @@ public class ZmqTransport extends AbstractTransport {
 	 *             Signals that an I/O exception has occurred.
 	 * @throws URISyntaxException
 	 */
-	private void handleMsg(final ByteBuffer[] msg)
+	void handleMsg(final ByteBuffer[] msg)
 			throws ClassNotFoundException, InstantiationException,
 			IllegalAccessException, InvocationTargetException,
 			NoSuchMethodException, IOException, URISyntaxException {
 
 		// Receive
-		// ZMQ.NORMAL|senderUrl|tokenJson|body
+		// ZMQ.NORMAL|senderUrl|tokenJson|body(|attachmentId|attachment)*
 		// ZMQ.HANDSHAKE|senderUrl|tokenJson|timestamp
 		// ZMQ.HANDSHAKE_RESPONSE|senderUrl|tokenJson|null
 
-		final URI senderUrl = URIUtil.parse(new String(msg[1].array()));
+		final URI senderUrl = URIUtil
+				.parse(new String(msg[1].array(), UTF8));
 		final TokenRet token = JOM.getInstance().readValue(msg[2].array(),
 				TokenRet.class);
-		final String body = new String(msg[3].array());
+		final String body = new String(msg[3].array(), UTF8);
 		final String key = senderUrl + ":" + token.getToken();
 
 		if (Arrays.equals(msg[0].array(), ZMQ.HANDSHAKE)) {
 			// Reply token corresponding to timestamp.
 			final String res = tokenstore.get(body);
-			sendAsync(ZMQ.HANDSHAKE_RESPONSE, res, senderUrl, res.getBytes(),
-					null, null);
+			sendAsync(ZMQ.HANDSHAKE_RESPONSE, res, senderUrl,
+					res.getBytes(UTF8), null, null);
 			return;
 		} else if (Arrays.equals(msg[0].array(), ZMQ.HANDSHAKE_RESPONSE)) {
-			// post response to callback for handling by other thread
-			final AsyncCallback<String> callback = CALLBACKS.get(key);
+			final AsyncCallback<String> callback = callbacks.get(key);
 			if (callback != null) {
 				callback.onSuccess(body);
 			} else {
@@ -276,28 +456,100 @@ public class ZmqTransport extends AbstractTransport {
 						+ senderUrl + " : " + token);
 			}
 			return;
-		} else {
-			final ObjectCache sessionCache = ObjectCache.get("ZMQSessions");
-			if (!sessionCache.containsKey(key) && doesAuthentication) {
-				final SyncCallback<String> callback = new SyncCallback<String>() {};
-				CALLBACKS.put(key, "", callback);
-				sendAsync(ZMQ.HANDSHAKE, token.toString(), senderUrl, token
-						.getTime().getBytes(), null, null);
+		} else if (doesAuthentication
+				&& !ObjectCache.get("ZMQSessions").containsKey(key)) {
+			verify(key, senderUrl, token, msg);
+			return;
+		}
+		deliver(msg, senderUrl, body);
+	}
 
-				String retToken = null;
-				try {
-					retToken = callback.get();
-				} catch (final Exception e) {}
-				if (token.getToken().equals(retToken)) {
-					sessionCache.put(key, true);
+	/**
+	 * Park the message until the sender's token is verified. The first message
+	 * with an unknown token starts the handshake, later ones wait in a bounded
+	 * queue. Nothing blocks: the parked messages are delivered when the
+	 * response comes in, or dropped when the handshake fails or times out.
+	 *
+	 * @param key
+	 *            the key, sender url and token
+	 * @param senderUrl
+	 *            the sender url
+	 * @param token
+	 *            the token
+	 * @param msg
+	 *            the msg
+	 */
+	private void verify(final String key, final URI senderUrl,
+			final TokenRet token, final ByteBuffer[] msg) {
+		synchronized (handshakes) {
+			final Queue<ByteBuffer[]> parked = handshakes.get(key);
+			if (parked != null) {
+				if (parked.size() < maxParked) {
+					parked.add(msg);
 				} else {
-					LOG.warning("Failed to complete handshake!");
-					return;
+					LOG.warning("Too many messages waiting for handshake with "
+							+ senderUrl + ", dropped message.");
 				}
+				return;
 			}
+			final Queue<ByteBuffer[]> queue = new ArrayDeque<ByteBuffer[]>();
+			queue.add(msg);
+			handshakes.put(key, queue);
 		}
+		callbacks.put(key, "", new AsyncCallback<String>() {
+			@Override
+			public void onSuccess(final String retToken) {
+				final boolean valid = token.getToken().equals(retToken);
+				if (valid) {
+					ObjectCache.get("ZMQSessions").put(key, true);
+				}
+				release(key, senderUrl, valid);
+			}
 
-		if (body != null) {
+			@Override
+			public void onFailure(final Exception exception) {
+				release(key, senderUrl, false);
+			}
+		});
+		sendAsync(ZMQ.HANDSHAKE, token.toString(), senderUrl, token.getTime()
+				.getBytes(UTF8), null, null);
+	}
+
+	private void release(final String key, final URI senderUrl,
+			final boolean valid) {
+		final Queue<ByteBuffer[]> parked;
+		synchronized (handshakes) {
+			parked = handshakes.remove(key);
+		}
+		if (parked == null) {
+			return;
+		}
+		if (!valid) {
+			LOG.warning("Failed to complete handshake with " + senderUrl
+					+ ", dropped " + parked.size() + " messages.");
+			return;
+		}
+		for (final ByteBuffer[] msg : parked) {
+			try {
+				deliver(msg, senderUrl, new String(msg[3].array(), UTF8));
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Failed to deliver message", e);
+			}
+		}
+	}
+
+	private void deliver(final ByteBuffer[] msg, final URI senderUrl,
+			final String body) throws IOException {
+		if (msg.length > 4) {
+			final Map<String, ByteBuffer> attachments = new LinkedHashMap<String, ByteBuffer>(
+					msg.length - 4);
+			for (int i = 4; i + 1 < msg.length; i += 2) {
+				attachments.put(new String(msg[i].array(), UTF8),
+						msg[i + 1].asReadOnlyBuffer());
+			}
+			super.getHandle().get()
+					.receive(new BinaryFrame(body, attachments), senderUrl, null);
+		} else if (body != null) {
 			super.getHandle().get().receive(body, senderUrl, null);
 		}
 	}
@@ -59,8 +59,9 @@ public class ZmqTransportConfig extends TransportConfig {
 	public URI getAddress() {
 		if (this.has("address")) {
 			try {
+				final String id = getId() != null ? getId() : "";
 				return URIUtil.parse(this.get("address").asText()
-						+ (getId() != null ? getId() : ""));
+						+ (isRouter() ? "#" + id : id));
 			} catch (final URISyntaxException e) {
 				LOG.warning("Couldn't parse URI from: "
 						+ this.get("address").asText());
@@ -70,7 +71,9 @@ public class ZmqTransportConfig extends TransportConfig {
 	}
 
 	/**
-	 * Sets the address.
+	 * Sets the address. In router mode, this is the address of the host's
+	 * ROUTER socket, e.g. "zmq://tcp://127.0.0.1:5678" or "zmq://inproc://eve",
+	 * and the agent's address is the host address followed by "#" and the id.
 	 * 
 	 * @param address
 	 *            the new address
@@ -100,4 +103,76 @@ public class ZmqTransportConfig extends TransportConfig {
 		}
 		return null;
 	}
+
+	/**
+	 * Sets router mode: all agents with the same address share one ROUTER
+	 * socket, and are sent to through pooled DEALER sockets. (Optional,
+	 * default is false)
+	 * 
+	 * @param router
+	 *            the new router
+	 */
+	public void setRouter(final boolean router) {
+		this.put("router", router);
+	}
+
+	/**
+	 * Checks if this agent runs in router mode.
+	 * 
+	 * @return true, if in router mode
+	 */
+	public boolean isRouter() {
+		if (this.has("router")) {
+			return this.get("router").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the maximum number of pooled DEALER sockets, the least recently
+	 * used socket is closed beyond this. (Optional, default is 100)
+	 * 
+	 * @param maxSockets
+	 *            the new max sockets
+	 */
+	public void setMaxSockets(final int maxSockets) {
+		this.put("maxSockets", maxSockets);
+	}
+
+	/**
+	 * Gets the maximum number of pooled DEALER sockets.
+	 * 
+	 * @return the max sockets
+	 */
+	public int getMaxSockets() {
+		if (this.has("maxSockets")) {
+			return this.get("maxSockets").asInt();
+		}
+		return 100;
+	}
+
+	/**
+	 * Sets the maximum number of messages per sender that wait for its
+	 * handshake to complete, beyond this messages are dropped. (Optional,
+	 * default is 1000)
+	 * 
+	 * @param maxParked
+	 *            the new max parked
+	 */
+	public void setMaxParked(final int maxParked) {
+		this.put("maxParked", maxParked);
+	}
+
+	/**
+	 * Gets the maximum number of messages per sender that wait for its
+	 * handshake to complete.
+	 * 
+	 * @return the max parked
+	 */
+	public int getMaxParked() {
+		if (this.has("maxParked")) {
+			return this.get("maxParked").asInt();
+		}
+		return 1000;
+	}
 }